@@ -40,6 +40,7 @@ class AudioInput implements AudioInputDevice
     private short buf[];
     private int bufsize;
     private App par;
+    private int rate;
 
     /**
      * Convert between   0-32767  <->  0.0-1.0
@@ -49,10 +50,15 @@ class AudioInput implements AudioInputDevice
 
     public AudioInput(App par) {
         this.par    = par;
-        int rate    = 44100;
         int config  = AudioFormat.CHANNEL_IN_MONO;
         int format  = AudioFormat.ENCODING_PCM_16BIT;
+        //the device's own rate, so that nothing resamples before App does
+        rate    = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
         bufsize = AudioRecord.getMinBufferSize(rate, config, format);
+        if (bufsize < 0) {
+            rate    = 44100;
+            bufsize = AudioRecord.getMinBufferSize(rate, config, format);
+        }
         if (bufsize < 0) {
             error("Invalid format for this device:" + bufsize);
         } else {
@@ -79,7 +85,7 @@ class AudioInput implements AudioInputDevice
 
     @Override
     public double sampleRate() {
-        return 44100.0;
+        return rate;
     }
 
     @Override
@@ -96,20 +102,34 @@ class AudioInput implements AudioInputDevice
     }
     
 
+    /**
+     * Convert up to len samples into dst at off.  App owns dst, so
+     * nothing is allocated here.
+     */
+    @Override
+    public int read(double[] dst, int off, int len) {
+        int count = input.read(buf, 0, Math.min(len, bufsize));
+        for (int i= 0 ; i < count ; i++)
+            dst[off + i] = shortToDouble * buf[i];
+        return count < 0 ? 0 : count;
+    }
+
+    /**
+     * The older contract, a new packet per read
+     */
     @Override
     public scala.Option<double[]> read() {
-        int count = input.read(buf, 0, bufsize);
-        if (count < 0) {
-            //error("read: " + count);
+        double packet[] = new double[bufsize];
+        int count = read(packet, 0, bufsize);
+        if (count <= 0)
             return scala.Option.apply(null);
-            }
-        double packet[] = new double[count];
-        for (int i= 0 ; i < count ; i++) {
-            short iv = buf[i];
-            double v = shortToDouble * iv;
-            packet[i] = v;
-            }
-        return scala.Option.apply(packet);
+        return scala.Option.apply(java.util.Arrays.copyOf(packet, count));
+    }
+
+    @Override
+    public int read(short[] sbuf, int off, int len) {
+        int count = input.read(sbuf, off, len);
+        return count < 0 ? 0 : count;
     }
 
 
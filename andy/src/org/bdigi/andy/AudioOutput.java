@@ -40,9 +40,9 @@ class AudioOutput implements AudioOutputDevice
     private int bufsize;
     private AudioTrack output;
     private short[] sbuf;
-    private int sptr;
     private int slen;
     private App par;
+    private int rate;
 
     /**
      * Convert between   0-32767  <->  0.0-1.0
@@ -53,8 +53,8 @@ class AudioOutput implements AudioOutputDevice
 
     public AudioOutput(App par) {
         this.par = par;
-        int rate = 44100;
         int streamtype = AudioManager.STREAM_MUSIC;
+        rate = AudioTrack.getNativeOutputSampleRate(streamtype);
         int config = AudioFormat.CHANNEL_OUT_MONO;
         int format = AudioFormat.ENCODING_PCM_16BIT;
         bufsize = AudioTrack.getMinBufferSize(rate, config, format);
@@ -74,25 +74,35 @@ class AudioOutput implements AudioOutputDevice
     }
 
     public double sampleRate() {
-        return 44100.0;
+        return rate;
     }
     
-    public boolean write(double inbuf[]) {
-        int len = inbuf.length;
-        for (int i=0 ; i < len ; i++)
-            {
-            sbuf[sptr++] = (short) (doubleToShort * inbuf[i]);
-            if (sptr >= slen)
-                {
-                output.write(sbuf, 0, slen);
-                sptr = 0;
-                }
+    /**
+     * Convert and write len samples from inbuf at off, a buffer at a time
+     */
+    @Override
+    public boolean write(double inbuf[], int off, int len) {
+        int n = 0;
+        while (n < len) {
+            int count = Math.min(slen, len - n);
+            for (int i = 0 ; i < count ; i++) {
+                double v = doubleToShort * inbuf[off + n + i];
+                sbuf[i] = (short) (v > 32767.0 ? 32767.0 : v < -32768.0 ? -32768.0 : v);
             }
-        return true;
+            output.write(sbuf, 0, count);
+            n += count;
         }
+        return true;
+    }
+
+    @Override
+    public boolean write(double inbuf[]) {
+        return write(inbuf, 0, inbuf.length);
+    }
 
     public boolean open()
         {
+        output.play();
         return true;
         }
         
@@ -227,6 +227,22 @@ public class MainActivity extends FragmentActivity {
 		viewPager.setAdapter(adapter);
         viewPager.setCurrentItem(1);
 		setMode(_app.pskMode());
+		_app.openHistory(new java.io.File(getFilesDir(), "bdigi.spectrum").getPath(), 4.0);
+	}
+	
+	/**
+	 * Nobody can see the waterfall while we are paused, so stop computing it
+	 */
+	@Override
+	protected void onPause() {
+	    super.onPause();
+	    _app.setSpectrumEnabled(false);
+	}
+
+	@Override
+	protected void onResume() {
+	    super.onResume();
+	    _app.setSpectrumEnabled(true);
 	}
 	
     //##################################################
@@ -252,6 +268,15 @@ public class MainActivity extends FragmentActivity {
     //# Bind to App
     //##################################################
     
+    public int getSpectrumWidth() {
+        return _app.wf().width();
+    }
+    
+    public SpectrumHistory getHistory() {
+        scala.Option<SpectrumHistory> h = _app.history();
+        return h.isDefined() ? h.get() : null;
+    }
+    
     public void setFrequency(double freq) {
         _app.setFrequency(freq);
     }
@@ -328,6 +353,7 @@ public class MainActivity extends FragmentActivity {
 	            return true;
 	        case R.id.action_close:
 	            _app.stopProcessing(); //kill thread and close audio devices
+	            _app.closeHistory();
 	        	finish();
 	            return true;
 	        default:
@@ -27,39 +27,59 @@
 package org.bdigi.andy;
 
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 
 import android.content.Context;
+import android.os.Build;
 import android.view.View;
-import android.widget.LinearLayout;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.graphics.Color;
 import android.graphics.Paint;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.bdigi.Constants;
+import org.bdigi.RowRing;
+import org.bdigi.SpectrumHistory;
 
+/**
+ * The waterfall and tuner.  This is drawn for battery life:
+ *
+ *   - rows from the DSP side go into a lock-free RowRing, and only a new
+ *     row wakes the UI thread, so an idle waterfall costs no wakeups
+ *   - each vsync takes one row and writes it into one line of a persistent
+ *     Bitmap, which is used as a ring and drawn in two pieces, so nothing
+ *     is copied to scroll
+ *   - while the view is hidden nothing is scheduled, and MainActivity turns
+ *     the spectrum off in App altogether while paused
+ */
 class Waterfall extends View
 {
     private final double MAX_FREQ = Constants.highFrequency();
     private final int TUNER_HEIGHT = 20;
     private int imgWidth;
     private int imgHeight;
-    private int imgSize;
-    private int imgTopRow;
     private Bitmap img;
-    private int pixels[];
     private int colors[];
-    private int bins;
     /*Scale the power spectrum bins onto the output width.  Do once & reuse. */
-    private int psbuf[];
-    private int pslen;
+    private int rowPixels[];
     private int psIndices[];
+    /* the bitmap line the next row goes to, which is the oldest showing */
+    private int head;
+    
+    private final RowRing rows;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean visible = true;
+    
+    private final Paint paint = new Paint();
+    private final Rect src = new Rect();
+    private final Rect dst = new Rect();
 
     private MainActivity par;
-    private Animator animator;
 
     public void error(String msg) {
         par.error("Waterfall: " + msg);
@@ -73,14 +93,9 @@ class Waterfall extends View
     
         super(par, attrs);
         this.par = (MainActivity) par;
-        trace("i got called");
         colors = makeColors();
+        rows = new RowRing(64, this.par.getSpectrumWidth());
         setup();
-        //setBackgroundColor(0xff00ff00);
-        animator = new Animator(100);
-        animator.start();
-        psbuf = new int[500];
-        pslen = -1;
     }
     
     private void setup() {
@@ -88,14 +103,45 @@ class Waterfall extends View
         if (imgWidth <= 0) imgWidth = 10;
         imgHeight = getHeight() - TUNER_HEIGHT;
         if (imgHeight <= 0) imgHeight = 10;
-        imgSize   = imgWidth * imgHeight;
-        imgTopRow = imgSize - imgWidth;
-        pixels    = new int[imgSize];
         img       = Bitmap.createBitmap(imgWidth, imgHeight, Bitmap.Config.ARGB_8888);
-        bins      = 300;
+        head      = 0;
+        rowPixels = new int[imgWidth];
         psIndices = new int[imgWidth];
         for (int i= 0 ; i < imgWidth ; i++)
-            psIndices[i] = i * bins / imgWidth;
+            psIndices[i] = i * rows.width() / imgWidth;
+        SpectrumHistory history = par.getHistory();
+        if (history != null)
+            repaint(history);
+    }
+
+    /**
+     * Colour a row into the bitmap line at head, and advance head
+     */
+    private void paintRow(int row[], int idx[]) {
+        for (int x = 0 ; x < imgWidth ; x++)
+            rowPixels[x] = colors[row[idx[x]] & 0xff];
+        img.setPixels(rowPixels, 0, imgWidth, 0, head, imgWidth, 1);
+        head++;
+        if (head >= imgHeight)
+            head = 0;
+    }
+
+    /**
+     * Fill the bitmap with the newest rows of the history, so a resized
+     * view does not start out blank.
+     */
+    private void repaint(SpectrumHistory history) {
+        int hwidth = history.width();
+        int row[] = new int[hwidth];
+        int idx[] = new int[imgWidth];
+        for (int x = 0 ; x < imgWidth ; x++)
+            idx[x] = x * hwidth / imgWidth;
+        long end   = history.count();
+        long start = Math.max(history.first(), end - imgHeight);
+        for (long i = start ; i < end ; i++) {
+            if (history.read(i, row) >= 0)
+                paintRow(row, idx);
+        }
     }
 
 
@@ -114,32 +160,43 @@ class Waterfall extends View
         return colors;
     }
     
-	
-    private void redrawImage() {
-	    //if power spectrum length changes, we need to recalc
-	    if (pslen != psbuf.length) {
-	        pslen = psbuf.length;
-	        for (int i = 0 ; i < imgWidth ; i++) {
-	            psIndices[i] = i * pslen / imgWidth;
-	        }    
-	    }
-	    
-		/**
-		 * First scroll the image up one pixel
-		 */
-		int yp = imgTopRow;  //first pixel of last row
-		System.arraycopy(pixels, imgWidth, pixels, 0, yp); //shift up one row
-
-		/**
-		 * Now calculate and plot the new data into the bottom row
-		 */
-        for (int x = 0 ; x < imgWidth ; x++) {
-        	int v      = psbuf[psIndices[x]];
-        	int clridx = v & 0xff;
-        	pixels[yp++] = colors[clridx];
-        	}
-	    }
-	    
+    /**
+     * Runs on the UI thread at a vsync.  Take one row, and come back at the
+     * next vsync if there are more.
+     */
+    private final Runnable nextRow = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            int row[] = rows.peek();
+            if (row != null) {
+                paintRow(row, psIndices);
+                rows.release();
+                invalidate();
+                if (rows.available() > 0)
+                    schedule();
+            }
+        }
+    };
+    
+    /**
+     * Ask for nextRow at the next vsync, unless it is already pending or
+     * nobody can see us.  Safe from any thread.
+     */
+    private void schedule() {
+        if (visible && scheduled.compareAndSet(false, true)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                postAtVsync(nextRow);
+            else
+                postDelayed(nextRow, 16);
+        }
+    }
+    
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postAtVsync(Runnable r) {
+        postOnAnimation(r);
+    }
+    
 	double bw = 31.25;
         
     private void drawTuner(Canvas c) { 
@@ -154,7 +211,7 @@ class Waterfall extends View
         float maxFreq = (float) MAX_FREQ;
         
         float top = height - TUNER_HEIGHT;
-        Paint p = new Paint();
+        Paint p = paint;
         
         p.setColor(Color.BLACK);
         p.setStyle(Paint.Style.FILL);
@@ -174,7 +231,7 @@ class Waterfall extends View
                 {
                 p.setColor(Color.GREEN);
                 c.drawRect(hx, top, hx+2.0f, top+10.0f, p);
-                String str = String.format("%d", tick);
+                String str = Integer.toString(tick);
                 p.setColor(Color.CYAN);
                 c.drawText(str, hx-16.0f, top+19.0f, p);
                 }
@@ -206,69 +263,53 @@ class Waterfall extends View
             }
         }
         
-    private void drawScope(Canvas c) {
-    
-    
-    
-    
-    }
-    
-
 
-	/**
-	 * Called from another thread
-	 * @param arr an array of doubles describing the power spectrum to display
-	 */
-    @Override 
+    @Override
     public void onDraw(Canvas c) {
         super.onDraw(c);
-        //randomTestPs();
-        //trace("redraw:");
-        redrawImage();
-        img.setPixels(pixels, 0, imgWidth, 0, 0, imgWidth, imgHeight);
-        c.drawBitmap(img, 0f, 0f, null);
+        //the oldest line, at head, goes at the top
+        int older = imgHeight - head;
+        src.set(0, head, imgWidth, imgHeight);
+        dst.set(0, 0, imgWidth, older);
+        c.drawBitmap(img, src, dst, null);
+        if (head > 0) {
+            src.set(0, 0, imgWidth, head);
+            dst.set(0, older, imgWidth, imgHeight);
+            c.drawBitmap(img, src, dst, null);
+        }
         drawTuner(c);
-        drawScope(c);
         }
         
-    private void randomTestPs() {
-        int len = 500;
-        int ps[] = new int[len];
-        for (int i=0 ; i < len ; i++)
-            ps[i] = (int) (Math.random() * 255.0);
-        psbuf = ps.clone();
-        //trace("psbuf: " + psbuf.length);
-    }
-
+    /**
+     * Called from another thread.  Never blocks; a full ring drops the row.
+     * @param ps the power spectrum to display, as levels 0-255
+     */
     public void update(int ps[]) {
-        psbuf = ps.clone();
+        rows.write(ps);
+        schedule();
         }
 
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        visible = (visibility == VISIBLE);
+        if (visible && rows.available() > 0)
+            schedule();
+    }
+
     @Override 
     public void onSizeChanged(int x, int y, int oldx, int oldy)
         {
         trace("onsizechanged: " + x + " ," + y);
-        trace("w: " + getWidth() + " h: " + getHeight());
         setup();
         }
 
-    /*
-    @Override 
-    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-         int parentWidth = MeasureSpec.getSize(widthMeasureSpec);
-         int parentHeight = MeasureSpec.getSize(heightMeasureSpec);
-         //this.setMeasuredDimension(parentWidth, parentHeight/3);
-         this.setLayoutParams(new LinearLayout.LayoutParams(parentWidth,parentHeight/3));
-         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-    }
-    */
-    
     @Override
     public boolean onTouchEvent(MotionEvent evt) {
         float x = evt.getX();
-        float y = evt.getY();
         double newFreq = x2freq(x);
         par.setFrequency(newFreq);
+        invalidate();
         return true;
     }
     
@@ -276,36 +317,5 @@ class Waterfall extends View
         return (MAX_FREQ) * x / getWidth();
     }
     
-    class Animator implements Runnable
-    {
-        private Handler handler;
-        private int period;
-        private boolean cont;
-    
-        public Animator(int millis) {
-            this.handler = new Handler();
-            this.period = millis;
-        }
-
-        public void start() {
-            cont = true;
-            handler.postDelayed(this, period);
-        }
-
-        public void stop() {
-            cont = false;
-        }
-
-
-        @Override
-        public void run() {
-            invalidate();
-            if (cont)
-                handler.postDelayed(this, period);
-        }
-
-    }//Animator
-
 
 }//Waterfall
-
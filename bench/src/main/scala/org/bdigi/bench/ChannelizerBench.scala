@@ -0,0 +1,86 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.bdigi.{App, Channelizer}
+import org.bdigi.mode.Psk31
+
+
+/**
+ * Decoding N Psk31 signals: each mode mixing and decimating for itself,
+ * against one Channelizer feeding all of them.  Throughput is in
+ * samples/sec at App's decimated rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class ChannelizerBench
+{
+    import Signals._
+
+    @Param(Array("1", "8", "32"))
+    var count = 0
+
+    private val app = new App
+    private val in  = tone(1000.0, DecimatedRate, Block)
+    
+    private var modes : Array[Psk31] = _
+    private var channelizer : Channelizer = _
+
+    @Setup
+    def setup =
+        {
+        modes = Array.tabulate(count)(i =>
+            {
+            val psk = new Psk31(app)
+            psk.frequency = 400.0 + i * 60.0
+            psk
+            })
+        channelizer = new Channelizer(app, 32, modes(0).decimation)
+        modes.foreach(channelizer.attach)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def separate =
+        {
+        var i = 0
+        while (i < modes.length)
+            {
+            modes(i).receive(in, 0, Block)
+            i += 1
+            }
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def channelized =
+        channelizer.update(in, 0, Block)
+}
@@ -0,0 +1,427 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.bdigi.{InterleavedReedSolomon, Ldpc, LdpcDecoder, LdpcEncoder, LdpcStaircase,
+    LdpcStaircaseDecoder, ReedSolomon, ReedSolomonDecoder, Viterbi, ViterbiDecoder}
+import org.bdigi.mode.{CrcCCITT, HdlcDeframer}
+
+
+/**
+ * ViterbiDecoder on a clean soft-decision stream, a pair at a time and
+ * a block at a time.
+ * Throughput is in symbol pairs (input bits) per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class ViterbiBench
+{
+    import Signals._
+
+    @Param(Array("5", "7", "9"))
+    var k = 0
+
+    private var decoder : ViterbiDecoder = _
+    private var sym0    : Array[Int] = _
+    private var sym1    : Array[Int] = _
+    private val out     = Array.ofDim[Boolean](Block + 8)
+
+    @Setup
+    def setup =
+        {
+        val (poly1, poly2) = k match
+            {
+            case 9 => (0x1af, 0x11d)
+            case 7 => (0x6d, 0x4f)
+            case _ => (0x17, 0x19)
+            }
+        val encoder = Viterbi.encoder(k, poly1, poly2)
+        decoder     = Viterbi.decoder(k, poly1, poly2)
+        val dibits  = bits(Block).map(encoder.encode)
+        sym0 = dibits.map(d => if ((d & 2) != 0) 255 else 0)
+        sym1 = dibits.map(d => if ((d & 1) != 0) 255 else 0)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decodeOne(bh: Blackhole) =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            bh.consume(decoder.decodeOne(sym0(n), sym1(n)))
+            n += 1
+            }
+        }
+
+    /**
+     * The same, a block at a time into a reused buffer
+     */
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decodeBlock =
+        decoder.decode(sym0, sym1, 0, Block, out, 0)
+}
+
+
+/**
+ * ReedSolomon encoding and decoding, using the (255,239) code from the
+ * tests with a shortened 200-byte message: one codeword at a time, a
+ * batch of RsBatch contiguous codewords, and the same number interleaved
+ * and decoded across a thread pool.  The damaged codewords each carry two
+ * errors.  Throughput is in codewords/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class ReedSolomonBench
+{
+    import Signals._
+    import ReedSolomonBench._
+
+    private val rs      = new ReedSolomon(255, 239, 0x011d)
+    private val decoder = new ReedSolomonDecoder(rs)
+    private val len     = 200 + rs.checkSize
+    private val encoded = rs.encode(bytes(200).map(_.toByte))
+    private val damaged =
+        {
+        val arr = encoded.clone
+        arr(3)  = (arr(3) ^ 0x55).toByte
+        arr(77) = (arr(77) ^ 0x0f).toByte
+        arr
+        }
+    private val work = encoded.clone
+    
+    //RsBatch damaged codewords, one after another and interleaved
+    private val batch = Array.concat(Array.fill(RsBatch)(damaged):_*)
+    private val interleavedDamage =
+        Array.tabulate(RsBatch * len)(p => damaged(p / RsBatch))
+    private val batchWork = batch.clone
+
+    private val interleaved = new InterleavedReedSolomon(rs, RsBatch)
+    private var pool : java.util.concurrent.ExecutorService = _
+
+    @Setup
+    def setup =
+        {
+        pool = java.util.concurrent.Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors)
+        interleaved.executor = Some(pool)
+        }
+
+    @TearDown
+    def tearDown =
+        pool.shutdown
+
+    @Benchmark
+    def encode : Array[Byte] =
+        {
+        rs.encode(work, 0, len)
+        work
+        }
+
+    @Benchmark
+    def decodeClean : Int =
+        {
+        System.arraycopy(encoded, 0, work, 0, len)
+        decoder.decode(work, 0, len)
+        }
+
+    @Benchmark
+    def decodeErrors : Int =
+        {
+        System.arraycopy(damaged, 0, work, 0, len)
+        decoder.decode(work, 0, len)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(RsBatch)
+    def decodeBatch : Int =
+        {
+        System.arraycopy(batch, 0, batchWork, 0, batch.length)
+        decoder.decodeBatch(batchWork, 0, len, RsBatch)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(RsBatch)
+    def decodeInterleaved : Int =
+        {
+        System.arraycopy(interleavedDamage, 0, batchWork, 0, batchWork.length)
+        interleaved.decode(batchWork, 0, len)
+        }
+}
+
+object ReedSolomonBench
+{
+    final val RsBatch = 64
+}
+
+
+/**
+ * LdpcDecoder on noisy BPSK copies of the all-zero codeword, for a short
+ * low-rate code, a mid one and a long high-rate one.  Each invocation
+ * decodes enough codewords for LdpcBench.InfoBits information bits, so
+ * throughput is in decoded Mbit/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class LdpcBench
+{
+    @Param(Array("648-1/2", "1296-2/3", "1944-5/6"))
+    var code = ""
+
+    /**
+     * Noise standard deviation, with the signal at +/-1
+     */
+    @Param(Array("0.5", "0.7"))
+    var sigma = 0.0
+
+    private var decoder : LdpcDecoder = _
+    private var words   : Array[Array[Float]] = _
+    private var count   = 0
+    private var out     : Array[Byte] = _
+
+    @Setup
+    def setup =
+        {
+        val c = code match
+            {
+            case "1296-2/3" => Ldpc.code1296_54_2_3
+            case "1944-5/6" => Ldpc.code1944_81_5_6
+            case _          => Ldpc.code0648_27_1_2
+            }
+        decoder = c.decoder()
+        out     = Array.ofDim[Byte](c.blockSize)
+        count   = LdpcBench.InfoBits / c.infoSize
+        val rand = new scala.util.Random(12345)
+        words = Array.fill(16)(Array.fill(c.blockSize)(
+            (2.0 * (1.0 + sigma * rand.nextGaussian) / (sigma * sigma)).toFloat))
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(LdpcBench.InfoBits)
+    def decode(bh: Blackhole) =
+        {
+        var n = 0
+        while (n < count)
+            {
+            bh.consume(decoder.decode(words(n & 15), out))
+            n += 1
+            }
+        }
+}
+
+/**
+ * LdpcEncoder on random messages, in encoded Mbit/s of information
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class LdpcEncodeBench
+{
+    @Param(Array("648-1/2", "1296-2/3", "1944-5/6"))
+    var code = ""
+
+    private var encoder : LdpcEncoder = _
+    private var info    : Array[Long] = _
+    private var out     : Array[Long] = _
+    private var count   = 0
+
+    @Setup
+    def setup =
+        {
+        val c = code match
+            {
+            case "1296-2/3" => Ldpc.code1296_54_2_3
+            case "1944-5/6" => Ldpc.code1944_81_5_6
+            case _          => Ldpc.code0648_27_1_2
+            }
+        encoder = c.encoder
+        val rand = new scala.util.Random(12345)
+        info  = Array.fill(encoder.infoWords)(rand.nextLong)
+        out   = Array.ofDim[Long](encoder.blockWords)
+        count = LdpcBench.InfoBits / c.infoSize
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(LdpcBench.InfoBits)
+    def encode : Array[Long] =
+        {
+        var n = 0
+        while (n < count)
+            {
+            encoder.encode(info, out)
+            n += 1
+            }
+        out
+        }
+}
+
+object LdpcBench
+{
+    /**
+     * A multiple of 324, 864 and 1620, the information sizes benchmarked
+     */
+    final val InfoBits = 12960
+}
+
+
+/**
+ * LdpcStaircase on 1KB symbols at rate 2/3, encoding all the repair
+ * symbols, and decoding after losing a fifth of the n symbols.  Time is
+ * per block of k source symbols.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class LdpcStaircaseBench
+{
+    @Param(Array("1000", "10000"))
+    var k = 0
+
+    private val words = 128
+
+    private var code     : LdpcStaircase = _
+    private var decoder  : LdpcStaircaseDecoder = _
+    private var encoded  : Array[Long] = _
+    private var received : Array[Long] = _
+    private var lost     : Array[Boolean] = _
+    private var symbols  : Array[Long] = _
+    private var known    : Array[Boolean] = _
+
+    @Setup
+    def setup =
+        {
+        code    = new LdpcStaircase(k, k * 3 / 2)
+        decoder = code.decoder(words)
+        val rand = new scala.util.Random(12345)
+        encoded = Array.fill(code.n * words)(rand.nextLong)
+        code.encode(encoded, words)
+        lost     = Array.fill(code.n)(rand.nextDouble < 0.2)
+        received = encoded.clone
+        for (i <- 0 until code.n if lost(i))
+            java.util.Arrays.fill(received, i * words, (i + 1) * words, 0L)
+        symbols = Array.ofDim[Long](code.n * words)
+        known   = Array.ofDim[Boolean](code.n)
+        }
+
+    @Benchmark
+    def encode : Array[Long] =
+        {
+        code.encode(encoded, words)
+        encoded
+        }
+
+    @Benchmark
+    def decode : Boolean =
+        {
+        System.arraycopy(received, 0, symbols, 0, symbols.length)
+        var i = 0
+        while (i < known.length)
+            {
+            known(i) = !lost(i)
+            i += 1
+            }
+        decoder.decode(symbols, known)
+        }
+}
+
+
+/**
+ * HdlcDeframer on a stream of back to back 100-byte frames, and the
+ * slicing-by-8 CRC over a buffer.  Throughput is in bits/sec for the
+ * deframer and bytes/sec for the CRC.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class HdlcBench
+{
+    import Signals._
+
+    private var frames   = 0
+    private val deframer = new HdlcDeframer()((buf, len) => frames += 1)
+    private val crc      = new CrcCCITT
+    private val data     = bytes(Block).map(_.toByte)
+
+    //Block bits: frames of random bytes, stuffed, between flags
+    private val stream =
+        {
+        val out = scala.collection.mutable.ArrayBuffer[Boolean]()
+        val flag = Seq(false, true, true, true, true, true, true, false)
+        var pos = 0
+        while (out.size < Block)
+            {
+            out ++= flag
+            val c = new CrcCCITT
+            val frame = data.slice(pos, pos + 100)
+            c.updateLE(frame, 0, frame.size)
+            val fcs = c.valueLE ^ 0xffff
+            var ones = 0
+            for (b <- frame ++ Array((fcs & 0xff).toByte, (fcs >> 8).toByte) ; i <- 0 until 8)
+                {
+                val bit = ((b >> i) & 1) != 0
+                out += bit
+                ones = if (bit) ones + 1 else 0
+                if (ones == 5)
+                    {
+                    out += false
+                    ones = 0
+                    }
+                }
+            pos = (pos + 100) % (Block - 100)
+            }
+        out.take(Block).toArray
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def deframe : Int =
+        {
+        var i = 0
+        while (i < Block)
+            {
+            deframer.update(stream(i))
+            i += 1
+            }
+        frames
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def crcLE : Int =
+        {
+        crc.reset
+        crc.updateLE(data, 0, Block)
+        crc.valueLE
+        }
+}
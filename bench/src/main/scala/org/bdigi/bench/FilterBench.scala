@@ -0,0 +1,336 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.bdigi.{AdjustableNco, CicFrontEnd, DecimationChain, DecimationPlanner, FastFir, Fir, FirFilter,
+    MutableComplex, RationalResampler, Resampler, ResamplerX}
+
+
+/**
+ * Fir.update and Fir.filter, real and complex, at a few typical lengths.
+ * Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class FirBench
+{
+    import Signals._
+
+    @Param(Array("15", "31", "65", "127"))
+    var taps = 0
+
+    private var fir : Fir = _
+    private val out     = new MutableComplex
+    private val in      = tone(1000.0, DecimatedRate, Block)
+    private val (inr, ini) = complexTone(100.0, DecimatedRate, Block)
+
+    @Setup
+    def setup =
+        {
+        fir = Fir.lowPass(taps, 500.0, DecimatedRate)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def real(bh: Blackhole) =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            bh.consume(fir.update(in(n)))
+            n += 1
+            }
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def complex(bh: Blackhole) =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            fir.update(inr(n), ini(n), out)
+            bh.consume(out.r)
+            bh.consume(out.i)
+            n += 1
+            }
+        }
+
+    private val outr = Array.ofDim[Double](Block)
+    private val outi = Array.ofDim[Double](Block)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def realBlock =
+        {
+        fir.filter(in, outr, 0, Block)
+        outr
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def complexBlock =
+        {
+        fir.filter(inr, ini, outr, outi, 0, Block)
+        outi
+        }
+}
+
+
+/**
+ * Fir and FastFir filtering blocks with long filters, where Fir.auto
+ * would choose between them.  Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class FastFirBench
+{
+    import Signals._
+
+    @Param(Array("32", "64", "255", "1023"))
+    var taps = 0
+
+    @Param(Array("direct", "fast"))
+    var engine = ""
+
+    private var fir : FirFilter = _
+    private val (inr, ini) = complexTone(100.0, DecimatedRate, Block)
+    private val outr = Array.ofDim[Double](Block)
+    private val outi = Array.ofDim[Double](Block)
+
+    @Setup
+    def setup =
+        {
+        val h = Fir.bandPassCoeffs(taps, 100.0, 300.0, DecimatedRate)
+        fir = if (engine == "fast") new FastFir(h) else new Fir(h)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def complexBlock =
+        {
+        fir.filter(inr, ini, outr, outi, 0, Block)
+        outi
+        }
+}
+
+
+/**
+ * Resampler(n) and ResamplerX(n), decimating and interpolating.  Throughput
+ * is in input samples/sec, so an interpolator produces n times that many.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class ResamplerBench
+{
+    import Signals._
+
+    @Param(Array("2", "6", "7"))
+    var decimation = 0
+
+    private var resampler  : Resampler.Resampler  = _
+    private var resamplerX : ResamplerX.Resampler = _
+
+    private val in         = tone(1000.0, AudioRate, Block)
+    private val (inr, ini) = complexTone(100.0, AudioRate, Block)
+    private val out        = Array.ofDim[Double](Block)
+    private val outr       = Array.ofDim[Double](Block)
+    private val outi       = Array.ofDim[Double](Block)
+
+    private var acc = 0.0
+    private val sink  = (v: Double) => acc += v
+    private val sinkX = (r: Double, i: Double) => acc += r + i
+
+    @Setup
+    def setup =
+        {
+        resampler  = Resampler(decimation)
+        resamplerX = ResamplerX(decimation)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decimate : Double =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            resampler.decimate(in(n))(sink)
+            n += 1
+            }
+        acc
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decimateBlock : Int =
+        resampler.decimate(in, 0, Block, out)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def interpolate : Double =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            resampler.interpolate(in(n))(sink)
+            n += 1
+            }
+        acc
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decimateX : Double =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            resamplerX.decimate(inr(n), ini(n))(sinkX)
+            n += 1
+            }
+        acc
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def decimateXBlock : Int =
+        resamplerX.decimate(inr, ini, 0, Block, outr, outi)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def interpolateX : Double =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            resamplerX.interpolate(inr(n), ini(n))(sinkX)
+            n += 1
+            }
+        acc
+        }
+}
+
+
+/**
+ * A Mode's front end at 7350 Hz: the NCO, mixer and ResamplerX that it
+ * used to have, against the planned DecimationChain that mixes in its first
+ * stage.  Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class FrontEndBench
+{
+    import Signals._
+
+    @Param(Array("6", "7", "12"))
+    var decimation = 0
+
+    private val in   = tone(1000.0, DecimatedRate, Block)
+    private val outr = Array.ofDim[Double](Block)
+    private val outi = Array.ofDim[Double](Block)
+
+    private var nco        : AdjustableNco        = _
+    private var resamplerX : ResamplerX.Resampler = _
+    private var chain      : DecimationChain      = _
+
+    @Setup
+    def setup =
+        {
+        nco        = new AdjustableNco(1000.0, 20.0, DecimatedRate)
+        resamplerX = if (decimation <= 7) ResamplerX(decimation) else ResamplerX(1)
+        chain      = new DecimationChain(DecimationPlanner.plan(DecimatedRate, decimation,
+                         0.3 * DecimatedRate / decimation))
+        chain.frequency = 1000.0
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def mixer : Int =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            val iv = in(n)
+            nco.step
+            outr(n) =  iv * nco.cos
+            outi(n) = -iv * nco.sin
+            n += 1
+            }
+        resamplerX.decimate(outr, outi, 0, Block, outr, outi)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def planned : Int =
+        chain.decimate(in, 0, Block, outr, outi)
+}
+
+
+/**
+ * App's front end, 44.1 kHz down to 7350: the fixed-point CIC on 16-bit
+ * samples, against Resampler(6) and the RationalResampler App uses by default,
+ * both on doubles.  Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class CicBench
+{
+    import Signals._
+
+    private val in  = tone(1000.0, AudioRate, Block)
+    private val pcm = in.map(v => math.round(v * 32767.0).toShort)
+    private val out = Array.ofDim[Double](Block)
+
+    private val cic       = new CicFrontEnd(6)
+    private val resampler = Resampler(6)
+    private val rational  = RationalResampler.forRates(AudioRate, DecimatedRate)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def fixedPoint : Int =
+        cic.decimate(pcm, 0, Block, out)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def resampler6 : Int =
+        resampler.decimate(in, 0, Block, out)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def rationalResampler : Int =
+        rational.resample(in, 0, Block, out)
+}
@@ -0,0 +1,130 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.bdigi.App
+
+
+/**
+ * End-to-end receive, the way App.doRx drives it: 44.1 kHz audio through
+ * the front-end decimator, the waterfall and the current mode.  Throughput
+ * is in 44.1 kHz input samples/sec, so divide by 44100 for x-real-time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class ReceiveBench
+{
+    import Signals._
+
+    @Param(Array("psk31", "rtty", "packet"))
+    var modeName = ""
+
+    private val app    = new App
+    private val signal = tone(1000.0, AudioRate, AudioRate.toInt)
+    private var sptr   = 0
+
+    @Setup
+    def setup =
+        {
+        app.mode = modeName match
+            {
+            case "psk31"  => app.pskMode
+            case "rtty"   => app.rttyMode
+            case "packet" => app.packetMode
+            }
+        app.setFrequency(1000.0)
+        }
+
+    /**
+     * Feed the next block of one second of signal, wrapping around
+     */
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def receive =
+        {
+        if (sptr + Block > signal.length)
+            sptr = 0
+        app.receive(signal, sptr, Block)
+        sptr += Block
+        }
+}
+
+
+/**
+ * The PSK skimmer with many carriers in the passband, 50 Hz apart,
+ * decoded serially or on a pool.  Same units as ReceiveBench.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class SkimmerBench
+{
+    import Signals._
+
+    @Param(Array("1", "16", "50"))
+    var carriers = 0
+
+    @Param(Array("1", "4"))
+    var threads = 0
+
+    private val app    = new App
+    private var signal = Array.ofDim[Double](0)
+    private var sptr   = 0
+
+    @Setup
+    def setup =
+        {
+        val tones = (0 until carriers).map(i => tone(400.0 + 50.0 * i, AudioRate, AudioRate.toInt))
+        signal = Array.tabulate(AudioRate.toInt)(i => tones.map(_(i)).sum / carriers)
+        app.mode = app.skimMode
+        app.skimMode.threads = threads
+        //let the detector find them all before measuring
+        while (sptr + Block <= signal.length)
+            {
+            app.receive(signal, sptr, Block)
+            sptr += Block
+            }
+        }
+
+    @TearDown
+    def tearDown =
+        app.skimMode.threads = 1
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def receive =
+        {
+        if (sptr + Block > signal.length)
+            sptr = 0
+        app.receive(signal, sptr, Block)
+        sptr += Block
+        }
+}
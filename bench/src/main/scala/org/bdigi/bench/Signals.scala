@@ -0,0 +1,85 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+
+/**
+ * Canned test signals shared by the benchmarks.  Everything is generated
+ * once, up front, so that the benchmarks measure only the code under test.
+ */
+object Signals
+{
+    /**
+     * The number of samples processed by each benchmark invocation.  Benchmarks
+     * that loop over a block declare this as their OperationsPerInvocation, so
+     * that JMH reports samples/sec rather than blocks/sec.
+     */
+    final val Block = 4096
+
+    /**
+     * The full-rate audio input, as delivered by the sound card
+     */
+    final val AudioRate = 44100.0
+
+    /**
+     * The rate after App's front-end decimator, 44100 / 6
+     */
+    final val DecimatedRate = 7350.0
+
+    private val rand = new scala.util.Random(12345)
+
+    /**
+     * A sine tone plus a little gaussian noise
+     */
+    def tone(freq: Double, sampleRate: Double, len: Int, noise: Double = 0.1) : Array[Double] =
+        {
+        val omega = 2.0 * math.Pi * freq / sampleRate
+        Array.tabulate(len)(i => math.sin(omega * i) + rand.nextGaussian * noise)
+        }
+
+    /**
+     * The real and imaginary parts of a complex tone plus noise
+     */
+    def complexTone(freq: Double, sampleRate: Double, len: Int, noise: Double = 0.1) : (Array[Double], Array[Double]) =
+        {
+        val omega = 2.0 * math.Pi * freq / sampleRate
+        val r = Array.tabulate(len)(i => math.cos(omega * i) + rand.nextGaussian * noise)
+        val i = Array.tabulate(len)(i => math.sin(omega * i) + rand.nextGaussian * noise)
+        (r, i)
+        }
+
+    /**
+     * Random bytes, as Ints in 0..255
+     */
+    def bytes(len: Int) : Array[Int] =
+        Array.fill(len)(rand.nextInt(256))
+
+    /**
+     * Random bits
+     */
+    def bits(len: Int) : Array[Boolean] =
+        Array.fill(len)(rand.nextBoolean)
+}
@@ -0,0 +1,199 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.bdigi.{App, Averaging, Complex, Constants, DFft, FFTSR, Goertzel, SlidingComplexDft, WaterfallFactory}
+
+
+/**
+ * DFft.powerSpectrum against FFTSR.powerSpectrum.  Throughput is in
+ * transforms/sec; multiply by size for samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class FftBench
+{
+    import Signals._
+
+    @Param(Array("1024", "4096"))
+    var size = 0
+
+    private var dfft  : DFft  = _
+    private var fftsr : FFTSR = _
+    private var in    : Array[Double] = _
+    private var work  : Array[Double] = _
+
+    @Setup
+    def setup =
+        {
+        dfft  = new DFft(size)
+        fftsr = new FFTSR(size)
+        in    = tone(1000.0, DecimatedRate, size)
+        work  = Array.ofDim[Double](size)
+        }
+
+    /**
+     * DFft transforms in place, so give it a fresh copy each time
+     */
+    @Benchmark
+    def dfftPowerSpectrum : Array[Double] =
+        {
+        System.arraycopy(in, 0, work, 0, size)
+        dfft.powerSpectrum(work)
+        }
+
+    @Benchmark
+    def fftsrPowerSpectrum : Array[Double] =
+        fftsr.powerSpectrum(in)
+}
+
+
+/**
+ * The sliding transforms, which do their work per sample.
+ * Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class SlidingBench
+{
+    import Signals._
+
+    @Param(Array("16", "64"))
+    var bins = 0
+
+    private var goertzel : Goertzel          = _
+    private var sdft     : SlidingComplexDft = _
+
+    private val in         = tone(1000.0, DecimatedRate, Block)
+    private val (inr, ini) = complexTone(100.0, DecimatedRate, Block)
+    private val inx        = Array.tabulate(Block)(n => Complex(inr(n), ini(n)))
+
+    @Setup
+    def setup =
+        {
+        goertzel = Goertzel(bins, 300.0, 3000.0, DecimatedRate)
+        sdft     = new SlidingComplexDft(1024, bins)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def goertzelUpdate : Array[Double] =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            goertzel.update(in(n))
+            n += 1
+            }
+        goertzel.powerSpectrum
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def slidingComplexDftUpdate : Array[Double] =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            sdft.update(inx(n))
+            n += 1
+            }
+        sdft.powerSpectrum
+        }
+}
+
+
+/**
+ * WaterfallFactory.update, per sample and per block, at App's decimated
+ * rate, for a few FFT sizes and overlaps.  overlap is the hop as a
+ * fraction of N, and averaging is off, a 4-frame exponential or a max-hold
+ * at 30 rows/sec.  Throughput is in input samples/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class WaterfallBench
+{
+    import Signals._
+
+    @Param(Array("2048", "3072", "8192"))
+    var size = 0
+
+    @Param(Array("3", "8"))
+    var overlap = 0
+
+    @Param(Array("off", "exp", "hold"))
+    var averaging = ""
+
+    private val app = new App
+    private var wf  : WaterfallFactory = _
+    private val in  = tone(1000.0, DecimatedRate, Block)
+
+    @Setup
+    def setup =
+        {
+        val avg = averaging match
+            {
+            case "exp"  => Averaging.Exponential(4)
+            case "hold" => Averaging.MaxHold()
+            case _      => Averaging.Off
+            }
+        val rowRate = if (averaging == "hold") 30.0 else 0.0
+        wf = new WaterfallFactory(app, size, DecimatedRate, Constants.highFrequency,
+                 hop = size / overlap, averaging = avg, rowRate = rowRate)
+        }
+
+    private var rows = 0
+    private val sink = (pixels: Array[Int]) => rows += pixels(0)
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def update : Int =
+        {
+        var n = 0
+        while (n < Block)
+            {
+            wf.update(in(n))(sink)
+            n += 1
+            }
+        rows
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(Block)
+    def updateBlock : Int =
+        {
+        wf.update(in, 0, Block)(sink)
+        rows
+        }
+}
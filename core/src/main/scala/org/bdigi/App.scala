@@ -25,6 +25,8 @@
 
 package org.bdigi
 
+import java.util.concurrent.locks.LockSupport
+
 import scala.beans.BeanProperty
 
 import org.bdigi.mode._
@@ -93,7 +95,19 @@ class App
     //########################################
 
     
-    var inputDevice  : Option[AudioInputDevice]  = None
+    private var inputDeviceVal : Option[AudioInputDevice] = None
+    
+    def inputDevice = inputDeviceVal
+    
+    /**
+     * Setting a device also sets up the decimator for its rate
+     */
+    def inputDevice_=(dev: Option[AudioInputDevice]) =
+        {
+        inputDeviceVal = dev
+        decimator = RationalResampler.forRates(inputRate, sampleRate)
+        cicFrontEnd = makeCicFrontEnd
+        }
 
     def setInputDevice(deviceName: String) =
         {
@@ -108,7 +122,15 @@ class App
             }
         }
     
-    var outputDevice : Option[AudioOutputDevice] = None
+    private var outputDeviceVal : Option[AudioOutputDevice] = None
+    
+    def outputDevice = outputDeviceVal
+    
+    def outputDevice_=(dev: Option[AudioOutputDevice]) =
+        {
+        outputDeviceVal = dev
+        interpolator = RationalResampler.forRates(sampleRate, outputRate)
+        }
 
     def setOutputDevice(deviceName: String) =
         {
@@ -123,10 +145,22 @@ class App
             }
         }
     
-    //44100.0 / 6
+    /**
+     * The working rate of the waterfall and the modes.  Audio at the
+     * device's own rate is resampled to this, see decimator.
+     */
     @BeanProperty
     def sampleRate =
         7350.0
+        
+    /**
+     * The rates of the sound devices, or 44100 when there is none
+     */
+    def inputRate : Double =
+        inputDevice.map(_.sampleRate).getOrElse(44100.0)
+        
+    def outputRate : Double =
+        outputDevice.map(_.sampleRate).getOrElse(44100.0)
 		
     val wf = new WaterfallFactory(this, 3072,  sampleRate, Constants.highFrequency)
 
@@ -160,12 +194,30 @@ class App
     val pskMode    = new Psk31(this)
     val rttyMode   = new Rtty(this)
     val navtexMode = new Navtex(this)
+    val skimMode   = new PskSkimmer(this)
     
     @BeanProperty
-    val modes = Array(nullMode, packetMode, pskMode, rttyMode, navtexMode)
+    val modes = Array(nullMode, packetMode, pskMode, rttyMode, navtexMode, skimMode)
+	
+	private var modeVal : Mode = nullMode
+	
+	def mode = modeVal
+	
+	/**
+	 * The old mode is stopped, so that it lets go of any threads it has
+	 */
+	def mode_=(m: Mode) =
+	    {
+	    val old = modeVal
+	    modeVal = m
+	    if (old ne m)
+	        old.stop
+	    }
+	    
+	def getMode = mode
 	
-	@BeanProperty
-	var mode : Mode = nullMode
+	def setMode(m: Mode) =
+	    mode = m
     
     @BeanProperty
     def bandwidth =
@@ -267,7 +319,7 @@ class App
         def abort = 
             cont = false
             
-        var cont = false
+        @volatile var cont = false
 		        
         override def run =
             {
@@ -287,37 +339,243 @@ class App
     }//TRLoop
     
     
-    //val decimator    = new FirResampler(6)
-    //val interpolator = new FirResampler(6)
-    val decimator    = Resampler(6)
-    val interpolator = Resampler(6)
+    /**
+     * Reads the input device as fast as it delivers, and does nothing else,
+     * so that a slow decoder cannot make the sound line overrun.  The
+     * samples go into rxring, for the TRLoop to pick up.
+     */
+    class CaptureLoop extends Thread("digi-capture")
+    {
+        def abort = 
+            cont = false
+            
+        @volatile var cont = false
+		        
+        override def run =
+            {
+            cont = true
+            while (cont)
+                {
+                val dev = inputDevice
+                val fe  = cicFrontEnd
+                if (fixedPoint && fe.isDefined && !rxtx && dev.isDefined)
+                    {
+                    val n = dev.get.read(pcm, 0, pcm.length)
+                    if (n <= 0)
+                        {
+                        Thread.sleep(10)
+                        }
+                    else
+                        {
+                        val count = fe.get.decimate(pcm, 0, n, low)
+                        lowring.write(low, 0, count)
+                        LockSupport.unpark(trloop)
+                        }
+                    }
+                else
+                    {
+                    val n = if (rxtx || dev.isEmpty) 0 else dev.get.read(samples, 0, samples.length)
+                    if (n <= 0)
+                        {
+                        Thread.sleep(10)
+                        }
+                    else
+                        {
+                        rxring.write(samples, 0, n)
+                        LockSupport.unpark(trloop)
+                        }
+                    }
+                }
+            }
+            
+        private val samples = Array.ofDim[Double](4096)
+        private val pcm = Array.ofDim[Short](4096)
+        private val low = Array.ofDim[Double](pcm.length + 1)
+    }//CaptureLoop
+    
+    
+    /**
+     * Raw input samples between the capture thread and the TRLoop.
+     * 65536 is about 1.5 seconds at 44100.
+     */
+    val rxring = new SampleRing(65536)
+    
+    /**
+     * Samples already at sampleRate, from the fixed-point front end
+     */
+    val lowring = new SampleRing(16384)
+    
+    /**
+     * The ring that the capture thread is filling: lowring when the
+     * fixed-point front end is in use, else rxring
+     */
+    def activeRing : SampleRing =
+        if (fixedPoint && cicFrontEnd.isDefined) lowring else rxring
+    
+    def rxOverruns  = activeRing.overruns
+    def rxUnderruns = activeRing.underruns
+    def rxFill      = activeRing.fill
+    
+    //how long the TRLoop waits for the capture thread before calling it an underrun
+    private val rxWaitNanos = 20000000L
+    
+    
+    /**
+     * Between the devices' rates and sampleRate, in one stage each.  These
+     * are replaced when a device is opened at a different rate.
+     */
+    @volatile var decimator    = RationalResampler.forRates(inputRate, sampleRate)
+    @volatile var interpolator = RationalResampler.forRates(sampleRate, outputRate)
+    
+    /**
+     * Use the fixed-point CIC front end instead of decimator, for less CPU
+     * on phones and small boards.  This only works when the input rate is a
+     * whole multiple of sampleRate, such as 44100; otherwise decimator is used.
+     */
+    @BeanProperty
+    @volatile var fixedPoint = false
+    
+    private def makeCicFrontEnd : Option[CicFrontEnd] =
+        {
+        val ratio = inputRate / sampleRate
+        if (ratio >= 1.0 && math.abs(ratio - math.rint(ratio)) < 1.0e-9)
+            Some(new CicFrontEnd(math.rint(ratio).toInt))
+        else
+            None
+        }
+        
+    @volatile var cicFrontEnd = makeCicFrontEnd
+    
     val txbuf = Array.ofDim[Double](512)
     var txptr = 0
 
+    //decimated samples, grown as needed
+    private var rxbuf = Array.ofDim[Double](0)
+    
+    //what we drain from rxring at a time
+    private val rxblock = Array.ofDim[Double](4096)
+    
+    /**
+     * If set, this also gets every block of decimated samples, to feed
+     * the modes attached to it.  See Channelizer.
+     */
+    @volatile var channelizer : Option[Channelizer] = None
+    
+    /**
+     * Turn this off while no waterfall is showing, such as when a phone's
+     * screen is off, to save the power spent on FFTs.  Rows are then
+     * neither computed, shown nor recorded.
+     */
+    @BeanProperty
+    @volatile var spectrumEnabled = true
+    
+    /**
+     * If set, every waterfall row is also appended here, so a GUI can scroll
+     * back or repaint without recomputing.  See openHistory.
+     */
+    @volatile var history : Option[SpectrumHistory] = None
+    
+    /**
+     * Keep the given number of hours of waterfall rows in a ring file
+     */
+    def openHistory(fileName: String, hours: Double = 4.0) =
+        {
+        closeHistory
+        try
+            {
+            history = Some(SpectrumHistory(new java.io.File(fileName), wf, hours))
+            }
+        catch
+            {
+            case e: Exception => error("openHistory failed", e)
+            }
+        }
+        
+    def closeHistory =
+        {
+        val h = history
+        history = None
+        h.foreach(_.close)
+        }
+    
+    /**
+     * Append a waterfall row to the history, if there is one
+     */
+    def recordSpectrum(ps: Array[Int]) =
+        {
+        val h = history
+        if (h.isDefined)
+            h.get.append(ps)
+        }
+    
+    private val spectrumFunc = (ps: Array[Int]) => 
+        {
+        recordSpectrum(ps)
+        updateSpectrum(ps)
+        }
+    
+    /**
+     * Process whatever the capture thread has queued up, in blocks.  If there
+     * is nothing yet, wait for it to wake us.
+     */
     def doRx(loop: TRLoop) =
         {
-        if (inputDevice.isDefined)
+        if (inputDevice.isEmpty)
             {
-            val res = inputDevice.get.read
-            if (res.isEmpty)
-                {
-                //trace("empty")
-                //cont = false
-                }
-            else
+            Thread.sleep(10)
+            }
+        else
+            {
+            //only the active ring, so that the idle one counts no underruns
+            val ring = activeRing
+            if (ring.available == 0)
+                LockSupport.parkNanos(rxWaitNanos)
+            val count = ring.read(rxblock, 0, rxblock.length)
+            if (count > 0)
                 {
-                //trace("ok")
-                for (v <- res.get)
-                    {
-                    decimator.decimate(v)(iv =>
-                        {
-                        wf.update(iv)(ps => updateSpectrum(ps))
-                        mode.receive(iv)
-                        })
-                    }
+                if (ring eq lowring)
+                    receiveDecimated(rxblock, 0, count)
+                else
+                    receive(rxblock, 0, count)
                 }
             }
         }
+        
+    /**
+     * Decimate a block of samples from the audio input, and send it
+     * on to the waterfall and the current mode
+     */
+    def receive(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        val dec    = decimator
+        val needed = dec.outputSize(len)
+        if (rxbuf.length < needed)
+            rxbuf = Array.ofDim[Double](needed)
+        val count = dec.resample(data, off, len, rxbuf)
+        receiveDecimated(rxbuf, 0, count)
+        }
+        
+    /**
+     * Send a block of samples already at sampleRate on to the waterfall
+     * and the current mode
+     */
+    def receiveDecimated(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        val c = channelizer
+        if (c.isDefined)
+            c.get.update(data, off, len)
+        val p = pipeline
+        if (p.isDefined)
+            {
+            p.get.receive(data, off, len)
+            }
+        else
+            {
+            if (spectrumEnabled)
+                wf.update(data, off, len)(spectrumFunc)
+            mode.receive(data, off, len)
+            }
+        }
     
     
     def doTx(loop: TRLoop) =
@@ -326,7 +584,7 @@ class App
             {
             for (v <- buf)
                 {
-                interpolator.interpolate(v)( iv=>
+                interpolator.resample(v)( iv=>
                     {
                     txbuf(txptr) = iv
                     txptr += 1
@@ -360,20 +618,78 @@ class App
         
 
 
-    var trloop = new TRLoop
+    @volatile var trloop = new TRLoop
+    var captureLoop = new CaptureLoop
+    
+    /**
+     * Run the waterfall, the decoder and the spectrum callbacks on threads
+     * of their own.  See Pipeline.  This takes effect at the next startProcessing.
+     */
+    @BeanProperty
+    var pipelined = false
+    
+    @volatile var pipeline : Option[Pipeline] = None
+    
+    def startPipeline =
+        {
+        pipeline.foreach(_.stop)
+        pipeline = if (pipelined) Some(new Pipeline(this)) else None
+        pipeline.foreach(_.start)
+        }
+
+    def stopPipeline =
+        {
+        val p = pipeline
+        pipeline = None
+        p.foreach(_.stop)
+        }
+    
+    //how long to wait for an old loop, such as one blocked in a device read
+    private val joinMillis = 1000L
     
+    /**
+     * Wake t and wait for it to finish.
+     * @return true if it did
+     */
+    private def finish(t: Thread) : Boolean =
+        {
+        LockSupport.unpark(t)
+        t.join(joinMillis)
+        !t.isAlive
+        }
+    
+    /**
+     * (Re)start the loops.  The old ones are joined first, since the rings
+     * between them have only one producer and one consumer.
+     */
     def startProcessing =
         {
+        captureLoop.abort
         trloop.abort
-        trloop = new TRLoop
-        trloop.start
+        val capFinished = finish(captureLoop)
+        val trFinished  = finish(trloop)
+        if (!capFinished || !trFinished)
+            {
+            error("startProcessing: the old loops did not stop")
+            }
+        else
+            {
+            startPipeline
+            trloop = new TRLoop
+            captureLoop = new CaptureLoop
+            trloop.start
+            captureLoop.start
+            }
         }
 
     def stopProcessing =
         {
+        captureLoop.abort
         inputDevice.foreach(_.close)
         outputDevice.foreach(_.close)
         trloop.abort
+        stopPipeline
+        mode.stop
         }  
 
 
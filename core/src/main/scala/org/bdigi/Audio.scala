@@ -26,6 +26,8 @@
 package org.bdigi
 
 
+import java.nio.{ByteBuffer, ByteOrder}
+
 import javax.sound.sampled.{AudioFormat, AudioSystem, DataLine, 
     Line, Mixer, Port, SourceDataLine, TargetDataLine}
 
@@ -45,11 +47,34 @@ trait AudioDevice
 
 
 /**
- * Common aspects of all types of audio output devices (Java, Android, etc)
+ * Common aspects of all types of audio input devices (Java, Android, etc).
+ * The caller owns the buffers, so a device need not allocate per read.
  */
 trait AudioInputDevice extends AudioDevice
 {
-    def read : Option[Array[Double]]
+    /**
+     * Read up to len samples, -1.0 to 1.0, into buf at off
+     * @return the number of samples read, 0 if there are none
+     */
+    def read(buf: Array[Double], off: Int, len: Int) : Int
+    
+    /**
+     * Read up to len samples into buf at off, as 16-bit integers.
+     * This is for the fixed-point front end.
+     * @return the number of samples read, 0 if there are none
+     */
+    def read(buf: Array[Short], off: Int, len: Int) : Int
+
+    /**
+     * The older contract, a new packet per read.  This allocates, so the
+     * capture loop uses read(buf, off, len) instead.
+     */
+    def read : Option[Array[Double]] =
+        {
+        val buf = Array.ofDim[Double](AudioDevice.packetSize)
+        val count = read(buf, 0, buf.length)
+        if (count <= 0) None else Some(java.util.Arrays.copyOf(buf, count))
+        }
 }
 
 
@@ -58,7 +83,179 @@ trait AudioInputDevice extends AudioDevice
  */
 trait AudioOutputDevice extends AudioDevice
 {
-    def write(buf: Array[Double]) : Boolean
+    /**
+     * Write len samples, -1.0 to 1.0, from buf at off.  This blocks until
+     * the device has room for them.
+     */
+    def write(buf: Array[Double], off: Int, len: Int) : Boolean
+    
+    def write(buf: Array[Double]) : Boolean =
+        write(buf, 0, buf.length)
+}
+
+
+
+/**
+ * Converts between the bytes of a line and samples, -1.0 to 1.0, for
+ * signed 16- and 24-bit PCM and 32-bit float, in either byte order.  The
+ * byte array is viewed through ByteBuffers set to the format's order, so
+ * there is no per-byte assembly except for 24 bits, which has no view.
+ * Reads take the first channel; writes go to every channel.
+ *
+ * @param format the line's format
+ * @param bytes the line's buffer, which this wraps
+ */
+class SampleCodec(val format: AudioFormat, val bytes: Array[Byte])
+{
+    val channels    = math.max(1, format.getChannels)
+    val sampleBytes = (format.getSampleSizeInBits + 7) / 8
+    val frameBytes  = channels * sampleBytes
+    
+    private val isFloat   = format.getEncoding == AudioFormat.Encoding.PCM_FLOAT
+    private val bigEndian = format.isBigEndian
+    
+    require(if (isFloat) sampleBytes == 4 else 
+        (format.getEncoding == AudioFormat.Encoding.PCM_SIGNED && (sampleBytes == 2 || sampleBytes == 3)),
+        "unsupported audio format: " + format)
+    
+    private val buf    = ByteBuffer.wrap(bytes).order(if (bigEndian) ByteOrder.BIG_ENDIAN else ByteOrder.LITTLE_ENDIAN)
+    private val shorts = buf.asShortBuffer
+    private val floats = buf.asFloatBuffer
+    
+    /**
+     * The number of frames the buffer holds
+     */
+    val capacity = bytes.length / frameBytes
+    
+    private val shortToDouble = 1.0 / 32768.0
+    private val int24ToDouble = 1.0 / 8388608.0
+    
+    /**
+     * The 24-bit sample at byte p, sign extended
+     */
+    private def int24(p: Int) : Int =
+        if (bigEndian)
+            (bytes(p) << 16) | ((bytes(p + 1) & 0xff) << 8) | (bytes(p + 2) & 0xff)
+        else
+            (bytes(p + 2) << 16) | ((bytes(p + 1) & 0xff) << 8) | (bytes(p) & 0xff)
+    
+    /**
+     * Convert the first frames of the buffer into out at off
+     */
+    def decode(frames: Int, out: Array[Double], off: Int) : Unit =
+        {
+        var i = 0
+        if (sampleBytes == 2)
+            {
+            val sb = shorts
+            while (i < frames)
+                {
+                out(off + i) = sb.get(i * channels) * shortToDouble
+                i += 1
+                }
+            }
+        else if (isFloat)
+            {
+            val fb = floats
+            while (i < frames)
+                {
+                out(off + i) = fb.get(i * channels)
+                i += 1
+                }
+            }
+        else
+            {
+            while (i < frames)
+                {
+                out(off + i) = int24(i * frameBytes) * int24ToDouble
+                i += 1
+                }
+            }
+        }
+    
+    /**
+     * Convert the first frames of the buffer into out at off, as 16 bits
+     */
+    def decode(frames: Int, out: Array[Short], off: Int) : Unit =
+        {
+        var i = 0
+        if (sampleBytes == 2)
+            {
+            val sb = shorts
+            while (i < frames)
+                {
+                out(off + i) = sb.get(i * channels)
+                i += 1
+                }
+            }
+        else if (isFloat)
+            {
+            val fb = floats
+            while (i < frames)
+                {
+                val v = math.round(fb.get(i * channels) * 32768.0f)
+                out(off + i) = (if (v > 32767) 32767 else if (v < -32768) -32768 else v).toShort
+                i += 1
+                }
+            }
+        else
+            {
+            while (i < frames)
+                {
+                out(off + i) = (int24(i * frameBytes) >> 8).toShort
+                i += 1
+                }
+            }
+        }
+    
+    /**
+     * Convert frames samples from in at off into the start of the buffer,
+     * clipping them to the format's range.
+     * @return the number of bytes to write
+     */
+    def encode(in: Array[Double], off: Int, frames: Int) : Int =
+        {
+        var i = 0
+        while (i < frames)
+            {
+            val v = in(off + i)
+            var c = 0
+            while (c < channels)
+                {
+                val idx = i * channels + c
+                if (sampleBytes == 2)
+                    {
+                    val iv = math.round(v * 32767.0)
+                    shorts.put(idx, (if (iv > 32767) 32767 else if (iv < -32768) -32768 else iv).toShort)
+                    }
+                else if (isFloat)
+                    {
+                    floats.put(idx, v.toFloat)
+                    }
+                else
+                    {
+                    val iv0 = math.round(v * 8388607.0)
+                    val iv = (if (iv0 > 8388607) 8388607 else if (iv0 < -8388608) -8388608 else iv0).toInt
+                    val p = idx * 3
+                    if (bigEndian)
+                        {
+                        bytes(p)     = (iv >> 16).toByte
+                        bytes(p + 1) = (iv >> 8).toByte
+                        bytes(p + 2) = iv.toByte
+                        }
+                    else
+                        {
+                        bytes(p)     = iv.toByte
+                        bytes(p + 1) = (iv >> 8).toByte
+                        bytes(p + 2) = (iv >> 16).toByte
+                        }
+                    }
+                c += 1
+                }
+            i += 1
+            }
+        frames * frameBytes
+        }
 }
 
 
@@ -68,10 +265,8 @@ trait AudioOutputDevice extends AudioDevice
  */
 class JavaAudioInput(par: App, adi: AudioDeviceInfo) extends AudioInputDevice
 {
-    private val line      = AudioSystem.getTargetDataLine(adi.format, adi.mixerInfo)
-    private var bufsize   = line.getBufferSize
-    private val buf       = Array.ofDim[Byte](bufsize*2)
-    private val vbuf      = Array.ofDim[Double](bufsize)
+    private val line  = AudioSystem.getTargetDataLine(adi.format, adi.mixerInfo)
+    private val codec = new SampleCodec(adi.format, Array.ofDim[Byte](line.getBufferSize))
 
     def open : Boolean =
         {
@@ -92,50 +287,33 @@ class JavaAudioInput(par: App, adi: AudioDeviceInfo) extends AudioInputDevice
         }
         
     def sampleRate =
-        44100.0
+        adi.format.getSampleRate.toDouble
         
-    private val shortToDouble  = 1.0 / 32768.0
+    //read a quarter of the line's buffer at a time
+    private val readFrames = math.max(1, codec.capacity / 4)
     
     /**
-     * Table for taking a short sample from the input stream as two bytes, and
-     * using those bytes to look up a double value, rather than calculating it
+     * Read up to len frames into the codec's buffer
+     * @return the number of whole frames read
      */
-    private val bytesToDouble =
+    private def fill(len: Int) : Int =
         {
-        val arr = Array.ofDim[Double](256, 256)
-        for (hi <- 0 until 256)
-            {
-            for (lo <- 0 until 256)
-                {
-                val v = ((hi << 8) + lo).toDouble * shortToDouble
-                arr(hi)(lo) = v
-                }
-            }
-        arr
+        val numBytes = line.read(codec.bytes, 0, math.min(readFrames, len) * codec.frameBytes)
+        math.max(0, numBytes) / codec.frameBytes
         }
-
-    private val readsize = (bufsize / 4) & 0xfffe 
     
-    def read : Option[Array[Double]] =
+    def read(data: Array[Double], off: Int, len: Int) : Int =
         {
-        val numBytes = line.read(buf, 0, readsize)
-        if (numBytes <= 0)
-            {
-            None
-            }
-        else
-            {
-            var vptr = 0
-            for (i <- 0 until numBytes by 2)
-                {
-                val dval = bytesToDouble(buf(i) & 0xff)(buf(i+1) & 0xff)
-                vbuf(vptr) = dval
-                vptr += 1
-                }
-            val packet = Array.ofDim[Double](vptr)
-            System.arraycopy(vbuf, 0, packet, 0, vptr)
-            Some(packet)
-            }
+        val n = fill(len)
+        codec.decode(n, data, off)
+        n
+        }
+        
+    def read(sbuf: Array[Short], off: Int, len: Int) : Int =
+        {
+        val n = fill(len)
+        codec.decode(n, sbuf, off)
+        n
         }
 }//JavaAudioInput
 
@@ -147,18 +325,12 @@ class JavaAudioInput(par: App, adi: AudioDeviceInfo) extends AudioInputDevice
  */
 class JavaAudioOutput(par: App, adi: AudioDeviceInfo) extends AudioOutputDevice
 {
-    private val line            = AudioSystem.getSourceDataLine(adi.format, adi.mixerInfo)
-    private val frameSize       = adi.format.getFrameSize
-    private val framesPerBuffer = line.getBufferSize / 8
-    private val bufsize         = 4096 * frameSize
-    private val buf             = Array.ofDim[Byte](bufsize)
-    private var bptr            = 0
-
-    private val doubleToShort  = 32767.0
+    private val line  = AudioSystem.getSourceDataLine(adi.format, adi.mixerInfo)
+    private val codec = new SampleCodec(adi.format, Array.ofDim[Byte](4096 * adi.format.getFrameSize))
 
     def open : Boolean =
         {
-        line.open(adi.format, bufsize)
+        line.open(adi.format, codec.bytes.length)
         line.start
         true
         }
@@ -170,27 +342,20 @@ class JavaAudioOutput(par: App, adi: AudioDeviceInfo) extends AudioOutputDevice
         }
         
     def sampleRate =
-        44100.0
+        adi.format.getSampleRate.toDouble
         
     /*
      * What we expect is an array of doubles, -1.0 to 1.0
      */
-    def write(inbuf: Array[Double]) : Boolean =
+    def write(inbuf: Array[Double], off: Int, len: Int) : Boolean =
         {
-        for (ival <- inbuf)
+        var n = 0
+        while (n < len)
             {
-            val iv = (doubleToShort * ival).toInt
-            val hi = ((iv >> 8) & 0xff).toByte
-            val lo = ((iv     ) & 0xff).toByte
-            buf(bptr) = hi
-            bptr += 1
-            buf(bptr) = lo
-            bptr += 1
-            if (bptr >= bufsize)
-                {
-                line.write(buf, 0, bufsize)
-                bptr = 0
-                }
+            val frames = math.min(codec.capacity, len - n)
+            val bytes = codec.encode(inbuf, off + n, frames)
+            line.write(codec.bytes, 0, bytes)
+            n += frames
             }
         true
         }
@@ -213,44 +378,64 @@ case class AudioDeviceInfo(format: AudioFormat, mixerInfo: Mixer.Info)
 object AudioDevice
 {
     /**
-     * List conforming audio input devices
+     * The rates we ask the devices for, best first.  Most interfaces run
+     * natively at 48000 or a multiple, and App resamples from any of these
+     * in a single stage, so there is no need for the mixer to convert.
      */
-    val inputDevices : Map[String, AudioDeviceInfo] =
+    val rates = Array(48000.0f, 44100.0f, 96000.0f, 192000.0f)
+    
+    /**
+     * The mono formats we ask for at each rate, best first: 16 bits in the
+     * machine's own order, so the mixer need not swap, then the other
+     * order, then 24 bits and float for interfaces that offer nothing else
+     */
+    def formats(rate: Float) : Seq[AudioFormat] =
+        {
+        val native = ByteOrder.nativeOrder == ByteOrder.BIG_ENDIAN
+        Seq(new AudioFormat(rate, 16, 1, true, native),
+            new AudioFormat(rate, 16, 1, true, !native),
+            new AudioFormat(rate, 24, 1, true, native),
+            new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, 1, 4, rate, native))
+        }
+    
+    /**
+     * The number of samples in a packet from the older read
+     */
+    val packetSize = 4096
+    
+    /**
+     * Map each mixer with a line of the given class to the first of formats
+     * that it supports, at the first of rates that it takes
+     */
+    private def listDevices(lineClass: Class[_ <: DataLine]) : Map[String, AudioDeviceInfo] =
         {
-        val audioFormat = new AudioFormat(44100.0f, 16, 1, true, true)
-        val info = new DataLine.Info(classOf[TargetDataLine], audioFormat)
         val buf = scala.collection.mutable.Map[String, AudioDeviceInfo]()
         for (mixerInfo <- AudioSystem.getMixerInfo)
             {
             val m = AudioSystem.getMixer(mixerInfo)
-            if (m.isLineSupported(info))
+            val format = rates.flatMap(formats).find(f =>
+                m.isLineSupported(new DataLine.Info(lineClass, f)))
+            if (format.isDefined)
                 {
-                buf +=  mixerInfo.getName -> AudioDeviceInfo(audioFormat, mixerInfo)
+                buf +=  mixerInfo.getName -> AudioDeviceInfo(format.get, mixerInfo)
                 }
              }
         buf.toMap   
         }
 
+    /**
+     * List conforming audio input devices
+     */
+    val inputDevices : Map[String, AudioDeviceInfo] =
+        listDevices(classOf[TargetDataLine])
+
 
      
     /**
      * List conforming audio output devices
      */
     val outputDevices : Map[String, AudioDeviceInfo] =
-        {
-        val audioFormat = new AudioFormat(44100.0f, 16, 1, true, true)
-        val info = new DataLine.Info(classOf[SourceDataLine], audioFormat)
-        val buf = scala.collection.mutable.Map[String, AudioDeviceInfo]()
-        for (mixerInfo <- AudioSystem.getMixerInfo)
-            {
-            val m = AudioSystem.getMixer(mixerInfo)
-            if (m.isLineSupported(info))
-                {
-                buf +=  mixerInfo.getName -> AudioDeviceInfo(audioFormat, mixerInfo)
-                }
-             }
-        buf.toMap   
-        }
+        listDevices(classOf[SourceDataLine])
         
 
     /**
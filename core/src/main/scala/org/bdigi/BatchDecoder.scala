@@ -0,0 +1,210 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.io.File
+import java.util.concurrent.{Callable, ForkJoinPool}
+
+import org.bdigi.mode.Mode
+
+
+
+/**
+ * A piece of decoded output
+ * @param file the recording it came from
+ * @param time seconds from the start of the recording
+ * @param text what the mode passed to puttext
+ */
+case class Decoded(file: File, time: Double, text: String)
+
+
+/**
+ * A slice of a recording for one worker.  Output is kept only if it is
+ * timestamped in [start, end), but decoding begins at start - leadIn so
+ * that the mode has synced up by the time it reaches start.
+ * All three are in frames.
+ */
+case class Shard(file: File, start: Long, end: Long, leadIn: Long)
+
+
+
+/**
+ * Decodes a set of recordings on all cores.  Each file is cut into segments
+ * of about segmentSeconds, and each segment is decoded by its own App and
+ * Mode on a ForkJoinPool.  Segments overlap by overlapSeconds, so that
+ * nothing is lost at the seams, and the overlap is deduplicated by keeping
+ * each output only from the shard whose own segment it falls in.
+ *
+ * Shard boundaries are whole multiples of blockSize, which is in turn a
+ * multiple of the decimation, so two shards see the same block
+ * boundaries, and stamp the same output with the same time.
+ *
+ * @param newMode makes the mode for a shard's App
+ * @param frequency the frequency to tune each mode to
+ * @param segmentSeconds the length of each shard's own segment
+ * @param overlapSeconds how long each shard decodes before its segment starts
+ * @param parallelism the number of worker threads
+ */
+class BatchDecoder(newMode: App => Mode, frequency: Double,
+    segmentSeconds: Double = 600.0, overlapSeconds: Double = 30.0,
+    parallelism: Int = Runtime.getRuntime.availableProcessors)
+{
+    /**
+     * One App per shard.  Only the mode and the text are of interest here.
+     */
+    class ShardApp extends HeadlessApp
+    {
+        override def trace(msg: String) = {}
+    }
+
+    //6 * 256 = 1536 frames, ~35 ms at 44.1 kHz, the resolution of the timestamps
+    val blockSize = 1536
+    
+    private def align(frame: Long) =
+        frame / blockSize * blockSize
+    
+    /**
+     * Cut each of the files into shards
+     */
+    def shards(files: Seq[File]) : Seq[Shard] =
+        {
+        val app = new ShardApp
+        files.flatMap(file =>
+            {
+            val in = new FileAudioInput(app, file)
+            val frames = if (in.open) in.frames else 0L
+            val rate   = in.sampleRate
+            in.close
+            val segment = math.max(blockSize.toLong, align((segmentSeconds * rate).toLong))
+            val leadIn  = align((overlapSeconds * rate).toLong)
+            (0L until frames by segment).map(start =>
+                Shard(file, start, math.min(start + segment, frames), math.min(leadIn, start)))
+            })
+        }
+
+    /**
+     * Decode one shard on the calling thread
+     */
+    def decode(shard: Shard) : Seq[Decoded] =
+        {
+        val out = scala.collection.mutable.ArrayBuffer[Decoded]()
+        var input : FileAudioInput = null
+        val app = new ShardApp
+            {
+            override def puttext(msg: String) =
+                {
+                val pos = input.position
+                if (pos > shard.start && pos <= shard.end)
+                    out += Decoded(shard.file, pos / input.sampleRate, msg)
+                }
+            }
+        app.mode = newMode(app)
+        app.setFrequency(frequency)
+        input = new FileAudioInput(app, shard.file)
+        if (input.open)
+            {
+            input.seek(shard.start - shard.leadIn)
+            new OfflineDecoder(app, blockSize).decode(input, shard.end - input.position)
+            input.close
+            }
+        out
+        }
+
+    /**
+     * Decode all of the files, in parallel, and merge the output in
+     * file and time order
+     */
+    def decode(files: Seq[File]) : Seq[Decoded] =
+        {
+        val pool = new ForkJoinPool(parallelism)
+        try
+            {
+            val tasks = shards(files).map(shard => pool.submit(new Callable[Seq[Decoded]]
+                {
+                def call = decode(shard)
+                }))
+            //shards are in order, and each one's output is too
+            tasks.flatMap(_.get)
+            }
+        finally
+            {
+            pool.shutdown
+            }
+        }
+
+    /**
+     * Decode every .wav and .raw file in a directory, in name order
+     */
+    def decodeDirectory(dir: File) : Seq[Decoded] =
+        {
+        val files = Option(dir.listFiles).getOrElse(Array[File]()).filter(f =>
+            {
+            val name = f.getName.toLowerCase
+            f.isFile && (name.endsWith(".wav") || name.endsWith(".raw"))
+            })
+        decode(files.sortBy(_.getName).toSeq)
+        }
+}
+
+
+
+object BatchDecoder
+{
+    /**
+     * A BatchDecoder for one of App's standard modes, by name
+     */
+    def apply(modeName: String, frequency: Double) : BatchDecoder =
+        new BatchDecoder(app => app.modes.find(_.name == modeName).getOrElse(
+            throw new IllegalArgumentException("no mode named '" + modeName + "'")), frequency)
+
+    /**
+     * Usage:   BatchDecoder dir-or-file mode [frequency]
+     */
+    def main(args: Array[String]) : Unit =
+        {
+        if (args.length < 2)
+            {
+            println("usage: BatchDecoder dir-or-file mode [frequency]")
+            return
+            }
+        val path      = new File(args(0))
+        val frequency = if (args.length > 2) args(2).toDouble else 1000.0
+        val batch     = BatchDecoder(args(1), frequency)
+        val start     = System.nanoTime
+        val results   = if (path.isDirectory) batch.decodeDirectory(path) else batch.decode(Seq(path))
+        var file : File = null
+        for (d <- results)
+            {
+            if (d.file != file)
+                {
+                file = d.file
+                println("\n===== " + file)
+                }
+            print(d.text)
+            }
+        println("\n===== %d pieces in %.1f seconds".format(results.size, (System.nanoTime - start) * 1.0e-9))
+        }
+}
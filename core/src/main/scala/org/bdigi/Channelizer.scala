@@ -0,0 +1,309 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.util.concurrent.{Callable, ExecutorService}
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D
+
+import org.bdigi.mode.Mode
+
+
+
+/**
+ * A polyphase FFT filter bank.  This splits the real input into channels
+ * uniformly spaced sampleRate/channels apart, each mixed down to baseband and
+ * decimated, for the price of one windowed fold and one FFT per output
+ * sample, however many channels there are.
+ *
+ * Modes are attached to it instead of mixing and decimating the full-rate
+ * signal themselves.  Each one gets the channel nearest its frequency, plus a
+ * small NCO at the output rate for the rest of the way, and its
+ * update(rs, is, len) is called with the result, AGC and all.
+ *
+ * For output time t, channel k is
+ *
+ *   X(k,t) = sum(n) h(n) x(t-n) exp(-j 2 pi k (t-n) / M)
+ *
+ * Folding u(n) = h(n) x(t-n) into M bins modulo M, and rotating the fold by
+ * t mod M, turns this into a plain forward DFT of the rotated fold, so
+ * the phase stays locked to absolute time, for any decimation.
+ *
+ * @param par the parent App
+ * @param channels M, the number of bins around the circle.  Even, and a power
+ *     of two if possible, since that is what the FFT does fastest.
+ * @param decimation D, input samples per output sample.  Modes must match.
+ * @param tapsPerChannel the length of the prototype filter is this times channels
+ */
+class Channelizer(par: App, val channels: Int, val decimation: Int, tapsPerChannel: Int = 8)
+{
+    val sampleRate = par.sampleRate
+    val outputRate = sampleRate / decimation
+    val spacing    = sampleRate / channels
+    
+    private val M = channels
+    private val L = channels * tapsPerChannel
+    
+    /**
+     * The prototype low pass.  Its band reaches out to the neighbouring
+     * channel centers, so a signal anywhere between two centers is
+     * complete in the nearer one.
+     */
+    private val h = Fir.lowPassCoeffs(L, spacing, sampleRate, Window.Hann)
+    
+    //input history, written twice so that the last L samples are contiguous
+    private val hist = Array.ofDim[Double](2 * L)
+    private var hptr = 0
+    
+    //t mod M, and samples until the next output
+    private var tmod = M - 1
+    private var dctr = 0
+    
+    private val fft = new DoubleFFT_1D(M)
+    private val buf = Array.ofDim[Double](M)
+    
+    /**
+     * The latest output of each channel, 0 to channels/2
+     */
+    val outr = Array.ofDim[Double](M / 2 + 1)
+    val outi = Array.ofDim[Double](M / 2 + 1)
+    
+    /**
+     * The channel whose center is nearest to the given frequency
+     */
+    def channelOf(frequency: Double) : Int =
+        math.max(0, math.min(M / 2, math.round(frequency / spacing).toInt))
+    
+    /**
+     * If set, the attached modes demodulate their blocks concurrently on
+     * this, rather than one after the other on the caller's thread.
+     * update() still waits for all of them to finish.
+     */
+    @volatile var executor : Option[ExecutorService] = None
+    
+    /**
+     * An attached mode, with its residual mixer and output scratch
+     */
+    private class Tap(val mode: Mode) extends Callable[Unit]
+    {
+        def call =
+            mode.update(rs, is, count)
+        
+        var tuned   = Double.NaN
+        var channel = 0
+        var phase   = 0L
+        var freq    = 0L
+        var rs      = Array.ofDim[Double](16)
+        var is      = Array.ofDim[Double](16)
+        var count   = 0
+        
+        /**
+         * Follow the mode's frequency, which the user or the AFC may move
+         */
+        def retune =
+            {
+            val f = mode.frequency
+            if (f != tuned)
+                {
+                tuned   = f
+                channel = channelOf(f)
+                freq    = (4294967296.0 * (f - channel * spacing) / outputRate).toLong
+                }
+            }
+        
+        def add(r: Double, i: Double) =
+            {
+            if (count >= rs.length)
+                {
+                rs = java.util.Arrays.copyOf(rs, count * 2)
+                is = java.util.Arrays.copyOf(is, count * 2)
+                }
+            //times exp(-j phase)
+            phase += freq
+            val idx = (phase >> 16).toInt & 0xffff
+            val c   = Nco.cosTable(idx)
+            val s   = Nco.sinTable(idx)
+            rs(count) = r * c + i * s
+            is(count) = i * c - r * s
+            count += 1
+            }
+    }
+    
+    @volatile private var taps = Array[Tap]()
+    
+    //the same taps, in the form that invokeAll wants
+    @volatile private var tasks = new java.util.ArrayList[Callable[Unit]]()
+    
+    private def tapsChanged =
+        {
+        val xs = new java.util.ArrayList[Callable[Unit]]()
+        taps.foreach(xs.add)
+        tasks = xs
+        }
+    
+    /**
+     * Start feeding a mode from its channel
+     */
+    def attach(mode: Mode) : Unit = synchronized
+        {
+        require(mode.decimation == decimation, "mode " + mode.name + " decimates by " +
+            mode.decimation + ", but this channelizer by " + decimation)
+        if (!taps.exists(_.mode eq mode))
+            {
+            taps = taps :+ new Tap(mode)
+            tapsChanged
+            }
+        }
+    
+    def detach(mode: Mode) : Unit = synchronized
+        {
+        taps = taps.filterNot(_.mode eq mode)
+        tapsChanged
+        }
+    
+    def modes : Seq[Mode] =
+        taps.map(_.mode).toSeq
+    
+    private val fold = Array.ofDim[Double](M)
+    
+    /**
+     * Window, fold and transform the last L samples into outr and outi
+     */
+    private def analyze =
+        {
+        val base = hptr + L - 1   //the newest sample
+        java.util.Arrays.fill(fold, 0.0)
+        //fold(r) = sum(p) h(pM + r) x(t - pM - r), a branch at a time so that
+        //the inner loop walks both arrays in order
+        var pm = 0
+        while (pm < L)
+            {
+            val x0 = base - pm
+            var r = 0
+            while (r < M)
+                {
+                fold(r) += h(pm + r) * hist(x0 - r)
+                r += 1
+                }
+            pm += M
+            }
+        //rotate:  buf(s) = fold((t - s) mod M)
+        var s = 0
+        while (s <= tmod)
+            {
+            buf(s) = fold(tmod - s)
+            s += 1
+            }
+        while (s < M)
+            {
+            buf(s) = fold(tmod - s + M)
+            s += 1
+            }
+        fft.realForward(buf)
+        outr(0) = buf(0)
+        outi(0) = 0.0
+        outr(M / 2) = buf(1)
+        outi(M / 2) = 0.0
+        var k = 1
+        while (k < M / 2)
+            {
+            outr(k) = buf(2 * k)
+            outi(k) = buf(2 * k + 1)
+            k += 1
+            }
+        }
+    
+    /**
+     * Channelize a block of samples at par.sampleRate, and pass each
+     * attached mode the baseband samples from its channel
+     */
+    def update(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        val tp = taps
+        val tk = tasks
+        var t = 0
+        while (t < tp.length)
+            {
+            tp(t).retune
+            tp(t).count = 0
+            t += 1
+            }
+        var n = off
+        val end = off + len
+        while (n < end)
+            {
+            val v = data(n)
+            hist(hptr)     = v
+            hist(hptr + L) = v
+            hptr += 1
+            if (hptr >= L)
+                hptr = 0
+            tmod += 1
+            if (tmod >= M)
+                tmod = 0
+            dctr += 1
+            if (dctr >= decimation)
+                {
+                dctr = 0
+                analyze
+                t = 0
+                while (t < tp.length)
+                    {
+                    val tap = tp(t)
+                    tap.add(outr(tap.channel), outi(tap.channel))
+                    t += 1
+                    }
+                }
+            n += 1
+            }
+        val ex = executor
+        if (ex.isDefined && tp.length > 1)
+            {
+            //every tap has the same count, so they all have work to do
+            if (tp(0).count > 0)
+                {
+                val results = ex.get.invokeAll(tk)
+                t = 0
+                while (t < results.size)
+                    {
+                    results.get(t).get  //rethrow any failure here
+                    t += 1
+                    }
+                }
+            }
+        else
+            {
+            t = 0
+            while (t < tp.length)
+                {
+                val tap = tp(t)
+                if (tap.count > 0)
+                    tap.mode.update(tap.rs, tap.is, tap.count)
+                t += 1
+                }
+            }
+        }
+}
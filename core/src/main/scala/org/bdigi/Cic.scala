@@ -27,6 +27,7 @@
 
 package org.bdigi
 
+import org.apache.commons.math3.linear.{Array2DRowRealMatrix, ArrayRealVector, LUDecomposition}
 
 
 
@@ -162,13 +163,199 @@ class CicInterpolator(inRate: Int, outRate: Int)
 
 
 
+/**
+ * A fixed-point front end for integer PCM, for where battery and heat
+ * matter more than the last few dB.  16-bit samples go through a CIC
+ * decimator and a short compensation FIR, both in integer arithmetic, and
+ * only the low-rate output is converted to floating point.  Per input
+ * sample that is one add per CIC stage, and no multiplies at all.
+ *
+ * The integrators wrap around, which is fine, since the combs take
+ * differences.  What matters is that the output fits in an Int, which
+ * limits the number of stages for a given decimation, see stagesFor.
+ * All four integrators always run, in locals, and the combs take the
+ * one for the number of stages; that is cheaper than looping over them.
+ *
+ * The compensation FIR runs at the output rate.  It flattens the CIC's
+ * droop across the passband, and rolls off above it.  The CIC's output is
+ * shifted back down to 16 bits for it, so that it can work in Ints, with
+ * its symmetric taps folded.
+ *
+ * @param decimation R, input samples per output sample
+ * @param passband the width to keep flat, as a fraction of the output rate
+ * @param compTaps the length of the compensation FIR.  Odd.
+ */
+class CicFrontEnd(val decimation: Int, passband: Double = CicFrontEnd.defaultPassband,
+    compTaps: Int = CicFrontEnd.defaultTaps)
+{
+    val stages = CicFrontEnd.stagesFor(decimation)
+    
+    /**
+     * The compensation FIR, in floating point, with unity gain at DC
+     */
+    val coeffs = CicFrontEnd.compensation(decimation, stages, passband, compTaps)
+    
+    private val size = coeffs.length
+    private val half = size / 2
+    
+    //whole bits of gain the CIC adds, taken off again, rounding, before the FIR
+    private val shift = (stages * math.log(decimation) / math.log(2.0) + 1.0e-9).toInt
+    private val round = if (shift > 0) 1 << (shift - 1) else 0
+    
+    //as many fraction bits as the largest sum of the taps leaves room for in an Int
+    private val biggest = 32768.0 * math.pow(decimation, stages) / (1 << shift) * coeffs.map(math.abs).sum
+    private val qbits   = math.min(14, (math.log(Int.MaxValue / biggest) / math.log(2.0)).toInt)
+    
+    //symmetric, so only the first half and the center
+    private val qcoeffs = coeffs.take(half + 1).map(c => math.round(c * (1 << qbits)).toInt)
+    
+    //undo what is left of the CIC gain of R^N, the Q bits and the 16 bits of the input
+    private val scale = (1 << shift) / (math.pow(decimation, stages) * (1 << qbits) * 32768.0)
+    
+    private var i1   = 0
+    private var i2   = 0
+    private var i3   = 0
+    private var i4   = 0
+    private val comb = Array.ofDim[Int](stages)
+    private var ctr   = 0
+    
+    //the CIC outputs, mirrored as in Fir
+    private val dl   = Array.ofDim[Int](2 * size)
+    private var dptr = 0
+    
+    def outputSize(len: Int) : Int =
+        len / decimation + 1
+    
+    /**
+     * Decimate a block of 16-bit samples into out, which should have room for
+     * outputSize(len) values, scaled to -1.0 .. 1.0 as elsewhere.
+     * @return the number of values written to out
+     */
+    def decimate(in: Array[Short], off: Int, len: Int, out: Array[Double]) : Int =
+        {
+        var optr = 0
+        var n    = off
+        val end  = off + len
+        var s1   = i1
+        var s2   = i2
+        var s3   = i3
+        var s4   = i4
+        while (n < end)
+            {
+            s1 += in(n)
+            s2 += s1
+            s3 += s2
+            s4 += s3
+            ctr += 1
+            if (ctr >= decimation)
+                {
+                ctr = 0
+                var v = stages match
+                    {
+                    case 4 => s4
+                    case 3 => s3
+                    case 2 => s2
+                    case _ => s1
+                    }
+                var s = 0
+                while (s < stages)
+                    {
+                    val prev = comb(s)
+                    comb(s) = v
+                    v -= prev
+                    s += 1
+                    }
+                v = (v + round) >> shift
+                dl(dptr) = v
+                dl(dptr + size) = v
+                dptr += 1
+                if (dptr >= size)
+                    dptr = 0
+                var acc = 0
+                var k = 0
+                while (k < half)
+                    {
+                    acc += (dl(dptr + k) + dl(dptr + size - 1 - k)) * qcoeffs(k)
+                    k += 1
+                    }
+                acc += dl(dptr + half) * qcoeffs(half)
+                out(optr) = acc * scale
+                optr += 1
+                }
+            n += 1
+            }
+        i1 = s1
+        i2 = s2
+        i3 = s3
+        i4 = s4
+        optr
+        }
+}
 
 
 
+object CicFrontEnd
+{
+    /**
+     * Up to 2500 Hz at 7350, the top of the waterfall
+     */
+    val defaultPassband = 0.34
+    
+    val defaultTaps = 15
 
-
-
-
-
-
-
+    /**
+     * The most stages, up to 4, that keep 16-bit input plus the CIC's gain
+     * of R^N within an Int
+     */
+    def stagesFor(decimation: Int) : Int =
+        {
+        val bits = math.log(decimation) / math.log(2.0)
+        math.max(1, math.min(4, (15.0 / bits).toInt))
+        }
+        
+    /**
+     * The CIC's gain, relative to DC, at a frequency in cycles per output sample
+     */
+    def response(decimation: Int, stages: Int, freq: Double) : Double =
+        if (freq == 0.0)
+            1.0
+        else
+            math.pow(math.abs(math.sin(math.Pi * freq) /
+                (decimation * math.sin(math.Pi * freq / decimation))), stages)
+        
+    /**
+     * Least-squares design of a symmetric FIR of the given odd length that is
+     * the inverse of the CIC's droop up to passband, and zero from halfway
+     * between there and the output Nyquist frequency
+     */
+    def compensation(decimation: Int, stages: Int, passband: Double, taps: Int) : Array[Double] =
+        {
+        val half = taps / 2
+        val stop = (passband + 0.5) * 0.5
+        val grid = 256
+        val a = new Array2DRowRealMatrix(half + 1, half + 1)
+        val b = new ArrayRealVector(half + 1)
+        for (g <- 0 to grid)
+            {
+            val f = 0.5 * g / grid
+            val target = if (f <= passband) 1.0 / response(decimation, stages, f)
+                         else if (f >= stop) 0.0
+                         else -1.0
+            if (target >= 0.0)
+                {
+                //H(f) = a0 + 2 sum(k) ak cos(2 pi f k)
+                val basis = Array.tabulate(half + 1)(k => if (k == 0) 1.0 else 2.0 * math.cos(2.0 * math.Pi * f * k))
+                for (i <- 0 to half)
+                    {
+                    b.addToEntry(i, basis(i) * target)
+                    for (j <- 0 to half)
+                        a.addToEntry(i, j, basis(i) * basis(j))
+                    }
+                }
+            }
+        val x = new LUDecomposition(a).getSolver.solve(b)
+        val h = Array.tabulate(2 * half + 1)(k => x.getEntry(math.abs(k - half)))
+        val gain = 1.0 / h.sum
+        h.map(_ * gain)
+        }
+}
@@ -0,0 +1,434 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+
+/**
+ * How a Mode gets from par.sampleRate down to its own rate: the factor
+ * and the low pass for each stage, in order.  The first stage also does
+ * the mixing, see DecimationChain.
+ *
+ * @param inRate the rate into the first stage
+ * @param passband the one-sided width of the band to keep, around 0 Hz
+ * @param factors the decimation of each stage.  Empty for none.
+ * @param coeffs the low pass for each stage
+ */
+case class DecimationPlan(inRate: Double, passband: Double, factors: Seq[Int], coeffs: Seq[Array[Double]])
+{
+    val decimation = factors.product
+    
+    val outRate = inRate / decimation
+    
+    /**
+     * Multiply-accumulates for each input sample, all stages together.
+     * The first stage takes real samples, but its coefficients are complex,
+     * so every tap is two.  After that the samples are complex and the
+     * coefficients real, so again two.  Only half-bands after the first
+     * stage skip their zero taps.  Each output of the first stage costs 4
+     * more for the rotation.
+     */
+    val macsPerSample =
+        {
+        if (factors.isEmpty)
+            {
+            6.0
+            }
+        else
+            {
+            var macs = 0.0
+            var dec  = 1
+            for ((factor, h) <- factors zip coeffs)
+                {
+                val first = dec == 1
+                dec *= factor
+                val taps = if (!first && factor == 2) h.count(_ != 0.0) else h.length
+                macs += (if (first) 2 * taps + 4 else 2 * taps).toDouble / dec
+                }
+            macs
+            }
+        }
+        
+    override def toString =
+        "%.0f -> %.1f Hz as %s, taps %s, %.1f MACs/sample".format(inRate, outRate,
+            if (factors.isEmpty) "1" else factors.mkString("x"),
+            coeffs.map(_.length).mkString("/"), macsPerSample)
+}
+
+
+
+/**
+ * Designs the multistage decimation for each Mode.  Every ordered way of
+ * factoring the decimation is tried, each stage getting the widest
+ * transition band that keeps aliases out of the passband, and the plan
+ * with the fewest MACs per sample wins.  Usually this puts the biggest
+ * factor first, where the relative transition band is widest, and a
+ * half-band last.
+ */
+object DecimationPlanner
+{
+    /**
+     * All the ways to write d as an ordered product of factors > 1
+     */
+    def factorings(d: Int) : Seq[List[Int]] =
+        if (d <= 1)
+            Seq(Nil)
+        else
+            for (f <- 2 to d if d % f == 0 ; rest <- factorings(d / f)) yield f :: rest
+            
+    private def bessel0(x: Double) : Double =
+        {
+        var sum  = 1.0
+        var term = 1.0
+        var k    = 1
+        while (term > 1.0e-12 * sum)
+            {
+            val t = x / (2.0 * k)
+            term *= t * t
+            sum += term
+            k += 1
+            }
+        sum
+        }
+        
+    /**
+     * A Kaiser-windowed low pass for decimating by factor, with odd length
+     * and its cutoff halfway across the transition band.  That is
+     * rate / factor / 2 here, which makes every factor'th tap from the
+     * center zero, so they are set to exactly that.
+     */
+    def design(rate: Double, factor: Int, pass: Double, stop: Double, attenuation: Double) : Array[Double] =
+        {
+        val transition = (stop - pass) / rate
+        val n0     = math.ceil((attenuation - 7.95) / (14.36 * transition)).toInt + 1
+        val size   = math.max(3, n0 | 1)
+        val center = size / 2
+        val beta   = if (attenuation > 50.0) 0.1102 * (attenuation - 8.7)
+                     else if (attenuation > 21.0) 0.5842 * math.pow(attenuation - 21.0, 0.4) +
+                         0.07886 * (attenuation - 21.0)
+                     else 0.0
+        val denom  = bessel0(beta)
+        val cutoff = (pass + stop) * 0.5 / rate
+        val h = Array.tabulate(size)(k =>
+            {
+            val m = k - center
+            if (m == 0)
+                2.0 * cutoff
+            else if (m % factor == 0)
+                0.0
+            else
+                {
+                val r = m.toDouble / center
+                val w = bessel0(beta * math.sqrt(1.0 - r * r)) / denom
+                math.sin(2.0 * math.Pi * cutoff * m) / (math.Pi * m) * w
+                }
+            })
+        val gain = 1.0 / h.sum
+        h.map(_ * gain)
+        }
+        
+    /**
+     * Design the stages for the given factors.  Each stage's stop band
+     * starts where its aliases would reach the passband.
+     */
+    def design(inRate: Double, factors: Seq[Int], passband: Double, attenuation: Double) : DecimationPlan =
+        {
+        var rate = inRate
+        val coeffs = for (factor <- factors) yield
+            {
+            val h = design(rate, factor, passband, rate / factor - passband, attenuation)
+            rate /= factor
+            h
+            }
+        DecimationPlan(inRate, passband, factors, coeffs)
+        }
+        
+    /**
+     * The cheapest plan for decimating inRate by decimation, keeping
+     * everything within passband of the center
+     * @param attenuation how far down aliases must be, in dB
+     */
+    def plan(inRate: Double, decimation: Int, passband: Double, attenuation: Double = 60.0) : DecimationPlan =
+        {
+        require(passband < inRate / decimation * 0.5, "passband " + passband +
+            " is too wide for " + inRate + " / " + decimation)
+        factorings(decimation).map(design(inRate, _, passband, attenuation)).minBy(p =>
+            (p.macsPerSample, p.factors.size))
+        }
+}
+
+
+
+/**
+ * One stage after the first: a real low pass on split complex samples,
+ * computed only for every factor'th input.  A half-band's zero taps are
+ * stepped over; for other factors they are too few to be worth a gather.
+ */
+class DecimatorStage(val factor: Int, coeffs: Array[Double])
+{
+    private val size = coeffs.length
+    
+    //oldest first.  Symmetric anyway, but to be sure
+    private val cf = coeffs.reverse
+    
+    //for a half-band, the nonzero taps are the center and every other one from it
+    private val halfBand = factor == 2 && size > 3
+    private val center   = size / 2
+    private val first    = if (halfBand) (center + 1) % 2 else 0
+    private val stride   = if (halfBand) 2 else 1
+    
+    //mirrored delay lines, so the newest size values are always contiguous
+    private val dr   = Array.ofDim[Double](2 * size)
+    private val di   = Array.ofDim[Double](2 * size)
+    private var dptr = 0
+    private var ctr  = 0
+    
+    /**
+     * Take one sample.  When it completes an output, put it in out and
+     * return true.
+     */
+    def update(r: Double, i: Double, out: MutableComplex) : Boolean =
+        {
+        dr(dptr) = r
+        dr(dptr + size) = r
+        di(dptr) = i
+        di(dptr + size) = i
+        dptr += 1
+        if (dptr >= size)
+            dptr = 0
+        ctr += 1
+        if (ctr < factor)
+            {
+            false
+            }
+        else
+            {
+            ctr = 0
+            var sumr = 0.0
+            var sumi = 0.0
+            var k = first
+            while (k < size)
+                {
+                val c = cf(k)
+                sumr += dr(dptr + k) * c
+                sumi += di(dptr + k) * c
+                k += stride
+                }
+            if (halfBand)
+                {
+                sumr += dr(dptr + center) * cf(center)
+                sumi += di(dptr + center) * cf(center)
+                }
+            out.r = sumr
+            out.i = sumi
+            true
+            }
+        }
+        
+    private val tmp = new MutableComplex
+    
+    /**
+     * Decimate a block, in place if wanted, since the output never
+     * overtakes the input.
+     * @return the number of values written to outr and outi
+     */
+    def decimate(inr: Array[Double], ini: Array[Double], off: Int, len: Int,
+                 outr: Array[Double], outi: Array[Double]) : Int =
+        {
+        var optr = 0
+        var n    = off
+        val end  = off + len
+        while (n < end)
+            {
+            if (update(inr(n), ini(n), tmp))
+                {
+                outr(optr) = tmp.r
+                outi(optr) = tmp.i
+                optr += 1
+                }
+            n += 1
+            }
+        optr
+        }
+}
+
+
+
+/**
+ * A Mode's front end: mixes real samples at frequency down to 0 Hz and
+ * decimates them, as planned by DecimationPlanner.
+ *
+ * Instead of mixing every input sample and then filtering, the first
+ * stage filters the real input with the low pass shifted up to frequency,
+ *
+ *   y(m) = exp(-j w mD) sum(k) h(k) exp(j w k) x(mD-k)
+ *
+ * which is the same thing, but the rotation is only done for each output,
+ * at the decimated rate.  The complex taps are redone when the frequency
+ * changes.
+ */
+class DecimationChain(val plan: DecimationPlan)
+{
+    val decimation = plan.decimation
+    
+    private val h0     = if (plan.factors.isEmpty) Array(1.0) else plan.coeffs.head
+    private val factor = if (plan.factors.isEmpty) 1 else plan.factors.head
+    private val size   = h0.length
+    private val stages = (plan.factors.drop(1) zip plan.coeffs.drop(1)).map(p =>
+        new DecimatorStage(p._1, p._2)).toArray
+        
+    /**
+     * The first stage's taps shifted up to frequency, oldest first, and
+     * the 32-bit phase step per output.  A retune builds a new one, so the
+     * receive thread never sees half of each.
+     */
+    private class Tuning(val frequency: Double, val hr: Array[Double], val hi: Array[Double], val step: Long)
+    
+    private def tune(v: Double) : Tuning =
+        {
+        //32-bit phase per input sample, as in AdjustableNco
+        val freq  = (4294967296.0 * v / plan.inRate).toLong
+        val omega = 2.0 * math.Pi * freq / 4294967296.0
+        val hr = Array.tabulate(size)(k => h0(size - 1 - k) * math.cos(omega * (size - 1 - k)))
+        val hi = Array.tabulate(size)(k => h0(size - 1 - k) * math.sin(omega * (size - 1 - k)))
+        new Tuning(v, hr, hi, freq * factor)
+        }
+    
+    @volatile private var tuning = tune(0.0)
+    
+    private val dl   = Array.ofDim[Double](2 * size)
+    private var dptr = 0
+    private var ctr  = 0
+    
+    //the rotation so far, restarted when the tuning changes
+    private var phase  = 0L
+    private var phased = tuning
+    
+    def frequency = tuning.frequency
+    
+    def frequency_=(v: Double) =
+        tuning = tune(v)
+    
+    /**
+     * The first stage.  When v completes an output, put it in out and
+     * return true.
+     */
+    private def first(v: Double, out: MutableComplex) : Boolean =
+        {
+        dl(dptr) = v
+        dl(dptr + size) = v
+        dptr += 1
+        if (dptr >= size)
+            dptr = 0
+        ctr += 1
+        if (ctr < factor)
+            {
+            false
+            }
+        else
+            {
+            ctr = 0
+            val t = tuning
+            if (t ne phased)
+                {
+                phase  = 0L
+                phased = t
+                }
+            val hr = t.hr
+            val hi = t.hi
+            var sumr = 0.0
+            var sumi = 0.0
+            var k = 0
+            while (k < size)
+                {
+                val x = dl(dptr + k)
+                sumr += x * hr(k)
+                sumi += x * hi(k)
+                k += 1
+                }
+            phase += t.step
+            val idx = (phase >> 16).toInt & 0xffff
+            val cos = Nco.cosTable(idx)
+            val sin = Nco.sinTable(idx)
+            out.r = sumr * cos + sumi * sin
+            out.i = sumi * cos - sumr * sin
+            true
+            }
+        }
+        
+    private val tmp = new MutableComplex
+    
+    /**
+     * Mix and decimate one sample, calling f with each output
+     */
+    def update(v: Double)(f: (Double, Double) => Unit) : Unit =
+        {
+        if (first(v, tmp))
+            {
+            var s = 0
+            while (s < stages.length && stages(s).update(tmp.r, tmp.i, tmp))
+                s += 1
+            if (s == stages.length)
+                f(tmp.r, tmp.i)
+            }
+        }
+        
+    /**
+     * The most outputs that len input samples can produce
+     */
+    def outputSize(len: Int) : Int =
+        len / factor + 1
+        
+    /**
+     * Mix and decimate a block of real samples into outr and outi, which
+     * should have room for outputSize(len) values.  This shares its state
+     * with update(), so the two can be mixed.
+     * @return the number of values written to outr and outi
+     */
+    def decimate(in: Array[Double], off: Int, len: Int, outr: Array[Double], outi: Array[Double]) : Int =
+        {
+        var count = 0
+        var n     = off
+        val end   = off + len
+        while (n < end)
+            {
+            if (first(in(n), tmp))
+                {
+                outr(count) = tmp.r
+                outi(count) = tmp.i
+                count += 1
+                }
+            n += 1
+            }
+        var s = 0
+        while (s < stages.length)
+            {
+            count = stages(s).decimate(outr, outi, 0, count, outr, outi)
+            s += 1
+            }
+        count
+        }
+}
@@ -0,0 +1,307 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.io.{File, RandomAccessFile}
+import java.nio.{ByteBuffer, ByteOrder, ShortBuffer}
+import java.nio.channels.FileChannel
+
+
+
+/**
+ * An AudioInputDevice that plays back a recording, either a WAV file or raw
+ * 16-bit little-endian mono PCM.  The file is memory-mapped, and samples are
+ * converted straight out of the mapped ShortBuffer, with no byte[] copy.
+ * Large files are mapped a window at a time, so hours of audio are fine.
+ *
+ * Reads return as soon as the data is converted, so this runs at CPU speed,
+ * not at the audio clock.  Only the first channel of a multi-channel file is used.
+ *
+ * @param par the parent App, for error reporting
+ * @param file the file to read
+ * @param rawSampleRate the sample rate to assume for files with no WAV header
+ * @param blockSize the number of samples returned by read
+ * @param windowBytes the most of the file to map at once
+ */
+class FileAudioInput(par: App, val file: File, rawSampleRate: Double = 44100.0,
+    blockSize: Int = 4096, windowBytes: Long = 64L * 1024 * 1024) extends AudioInputDevice
+{
+    private var raf     : RandomAccessFile = null
+    private var channel : FileChannel      = null
+    private var shorts  : ShortBuffer      = null
+    
+    private var rate      = rawSampleRate
+    private var channels  = 1
+    private var dataStart = 0L
+    private var nrFrames  = 0L
+    
+    private var framePos  = 0L
+    private var mapStart  = 0L
+    private var mapFrames = 0L
+    private var runIndex  = 0   //where in shorts the run from nextRun begins
+    
+    private val shortToDouble = 1.0 / 32768.0
+    
+    private val vbuf = Array.ofDim[Double](blockSize)
+    
+    def sampleRate = rate
+    
+    /**
+     * The length of the recording, in frames
+     */
+    def frames = nrFrames
+    
+    /**
+     * The length of the recording, in seconds
+     */
+    def duration = nrFrames.toDouble / rate
+    
+    def position = framePos
+    
+    def eof = framePos >= nrFrames
+
+    def rewind =
+        framePos = 0L
+
+    /**
+     * Move to the given frame, which is clipped to the recording
+     */
+    def seek(frame: Long) =
+        framePos = math.max(0L, math.min(frame, nrFrames))
+
+    def open : Boolean =
+        {
+        close
+        try
+            {
+            raf     = new RandomAccessFile(file, "r")
+            channel = raf.getChannel
+            val ok  = parseHeader
+            if (!ok)
+                close
+            ok
+            }
+        catch
+            {
+            case e: java.io.IOException =>
+                par.error("FileAudioInput: could not open " + file, e)
+                close
+                false
+            }
+        }
+        
+    def close : Boolean =
+        {
+        shorts    = null
+        mapFrames = 0L
+        if (raf != null)
+            raf.close
+        raf     = null
+        channel = null
+        true
+        }
+    
+    /**
+     * Look for a RIFF/WAVE header.  If there is none, treat the whole
+     * file as raw mono samples.
+     */
+    private def parseHeader : Boolean =
+        {
+        val size = channel.size
+        val hdr  = ByteBuffer.allocate(math.min(size, 65536L).toInt).order(ByteOrder.LITTLE_ENDIAN)
+        val hlen = math.max(channel.read(hdr, 0L), 0)
+        
+        def tag(pos: Int) =
+            if (pos + 4 > hlen) "" else
+                new String(Array.tabulate(4)(i => hdr.get(pos + i).toChar))
+        
+        rate      = rawSampleRate
+        channels  = 1
+        dataStart = 0L
+        var dataBytes = size
+        
+        if (tag(0) == "RIFF" && tag(8) == "WAVE")
+            {
+            var pos = 12
+            var found = false
+            var bits = 16
+            var format = 1
+            while (!found && pos + 8 <= hlen)
+                {
+                val id  = tag(pos)
+                val len = hdr.getInt(pos + 4) & 0xffffffffL
+                if (id == "fmt ")
+                    {
+                    if (len < 16 || pos + 8 + 16 > hlen)
+                        {
+                        par.error("FileAudioInput: bad fmt chunk in " + file)
+                        return false
+                        }
+                    format   = hdr.getShort(pos + 8) & 0xffff
+                    channels = hdr.getShort(pos + 10) & 0xffff
+                    rate     = (hdr.getInt(pos + 12) & 0xffffffffL).toDouble
+                    bits     = hdr.getShort(pos + 22) & 0xffff
+                    }
+                else if (id == "data")
+                    {
+                    dataStart = pos + 8L
+                    //recorders that never finished the file leave this as 0 or -1
+                    dataBytes = if (len == 0L || dataStart + len > size) size - dataStart else len
+                    found = true
+                    }
+                if (!found)
+                    {
+                    //a chunk running past the end of the file would also
+                    //run past an Int, or walk back over earlier chunks
+                    val next = pos + 8L + ((len + 1) & ~1L)
+                    if (next > size)
+                        {
+                        par.error("FileAudioInput: chunk '" + id + "' runs past the end of " + file)
+                        return false
+                        }
+                    //past the header we read, which ends the walk
+                    pos = math.min(next, hlen.toLong).toInt
+                    }
+                }
+            if (!found)
+                {
+                par.error("FileAudioInput: no data chunk in " + file)
+                return false
+                }
+            //1 is PCM, 0xfffe is WAVE_FORMAT_EXTENSIBLE
+            if ((format != 1 && format != 0xfffe) || bits != 16 || channels < 1)
+                {
+                par.error("FileAudioInput: " + file + " is not 16-bit PCM")
+                return false
+                }
+            }
+        nrFrames  = dataBytes / (2 * channels)
+        framePos  = 0L
+        mapStart  = 0L
+        mapFrames = 0L
+        par.trace("FileAudioInput: " + file + " rate: " + rate + " channels: " + channels +
+            " seconds: " + duration)
+        true
+        }
+    
+    /**
+     * Map the window of the file that starts at the given frame
+     */
+    private def remap(frame: Long) =
+        {
+        val frameBytes  = 2L * channels
+        val offset      = dataStart + frame * frameBytes
+        val framesLeft  = nrFrames - frame
+        val windowFrame = math.max(1L, windowBytes / frameBytes)
+        mapFrames = math.min(framesLeft, windowFrame)
+        mapStart  = frame
+        shorts    = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapFrames * frameBytes).
+                        order(ByteOrder.LITTLE_ENDIAN).asShortBuffer
+        }
+
+    /**
+     * Claim the next run of up to want frames that lie in one window,
+     * mapping a new window if need be.  The run's first sample is at
+     * runIndex in shorts, and the next channels samples on are the next frame.
+     * @return the number of frames in the run, 0 at the end of the file
+     */
+    private def nextRun(want: Int) : Int =
+        {
+        if (channel == null || want <= 0 || framePos >= nrFrames)
+            return 0
+        if (shorts == null || framePos < mapStart || framePos >= mapStart + mapFrames)
+            remap(framePos)
+        val count = math.min(mapStart + mapFrames - framePos, want.toLong).toInt
+        runIndex  = ((framePos - mapStart) * channels).toInt
+        framePos += count
+        count
+        }
+
+    /**
+     * Convert up to len samples into data, with no allocation.
+     * @return the number of samples read, 0 at the end of the file
+     */
+    def read(data: Array[Double], off: Int, len: Int) : Int =
+        {
+        var n = 0
+        var count = nextRun(len)
+        while (count > 0)
+            {
+            val sb     = shorts
+            val stride = channels
+            var idx    = runIndex
+            var optr   = off + n
+            val end    = optr + count
+            while (optr < end)
+                {
+                data(optr) = sb.get(idx) * shortToDouble
+                idx  += stride
+                optr += 1
+                }
+            n += count
+            count = nextRun(len - n)
+            }
+        n
+        }
+
+    def read(data: Array[Short], off: Int, len: Int) : Int =
+        {
+        var n = 0
+        var count = nextRun(len)
+        while (count > 0)
+            {
+            val sb     = shorts
+            val stride = channels
+            var idx    = runIndex
+            var optr   = off + n
+            val end    = optr + count
+            while (optr < end)
+                {
+                data(optr) = sb.get(idx)
+                idx  += stride
+                optr += 1
+                }
+            n += count
+            count = nextRun(len - n)
+            }
+        n
+        }
+
+    override def read : Option[Array[Double]] =
+        {
+        val count = read(vbuf, 0, blockSize)
+        if (count <= 0)
+            {
+            None
+            }
+        else
+            {
+            val packet = Array.ofDim[Double](count)
+            System.arraycopy(vbuf, 0, packet, 0, count)
+            Some(packet)
+            }
+        }
+}//FileAudioInput
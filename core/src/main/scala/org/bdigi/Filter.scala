@@ -25,6 +25,8 @@
 
 package org.bdigi
 
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D
+
 
 /**
  * This file contains various filters for various purposes. New ones will
@@ -37,50 +39,404 @@ package org.bdigi
 //########################################################################
 
 
-class Fir(val coeffs: Array[Double])
+/**
+ * What the direct and fast convolution FIR filters have in common
+ */
+trait FirFilter
 {
-    private val size       = coeffs.size
+    def coeffs : Array[Double]
+
+    def update(sample: Double) : Double
+
+    def update(r: Double, i: Double, out: MutableComplex) : Unit
+
+    /**
+     * Filter len samples of in from off into the same places in out.
+     * in and out may be the same array.
+     */
+    def filter(in: Array[Double], out: Array[Double], off: Int, len: Int) : Unit
+
+    /**
+     * Complex filter() on split real and imaginary parts
+     */
+    def filter(inr: Array[Double], ini: Array[Double], outr: Array[Double], outi: Array[Double],
+               off: Int, len: Int) : Unit
+}
+
+
+/**
+ * A direct form FIR filter.
+ *
+ * The delay lines are written twice, size apart, so that the newest size
+ * samples are always contiguous and the inner loops need no wrapping.
+ * Real and complex samples each have their own primitive delay lines.  If
+ * the coefficients are symmetric, as for a linear-phase design, the taps
+ * are folded so that each multiply serves two of them.
+ *
+ * filter() does a whole block at a time, one tap across the block at a
+ * time, a loop the JIT can vectorize.  It shares its history with update(),
+ * so the two may be mixed.
+ */
+class Fir(val coeffs: Array[Double]) extends FirFilter
+{
+    private val size       = coeffs.length
     private val minus1     = size - 1
-    private val delayLine  = Array.fill(size)(0.0)
-    private val delayLineC = Array.fill(size)(Complex(0.0))
+    private val delayLine  = Array.ofDim[Double](2 * size)
+    private val delayLineR = Array.ofDim[Double](2 * size)
+    private val delayLineI = Array.ofDim[Double](2 * size)
     private var delayIndex = 0
+    private var delayIndexC = 0
     
+    /**
+     * True if coeffs(c) == coeffs(size-1-c) for all c
+     */
+    val symmetric =
+        (0 until size / 2).forall(c => coeffs(c) == coeffs(minus1 - c))
     
-    def update(sample: Double) : Double =
+    private val half = size / 2
+    private val odd  = (size & 1) != 0
+    
+    private def dot(line: Array[Double], idx: Int) : Double =
         {
-        delayIndex = (delayIndex + minus1) % size  //walk backward
-        delayLine(delayIndex) = sample
         var sum = 0.0
-        var idx = delayIndex
-        for (coeff <- coeffs)
+        if (symmetric)
+            {
+            var lo = idx
+            var hi = idx + minus1
+            var c  = 0
+            while (c < half)
+                {
+                sum += (line(lo) + line(hi)) * coeffs(c)
+                lo += 1
+                hi -= 1
+                c  += 1
+                }
+            if (odd)
+                sum += line(lo) * coeffs(half)
+            }
+        else
             {
-            val v = delayLine(idx)
-            idx = (idx + 1) % size
-            sum += v * coeff
+            var c = 0
+            while (c < size)
+                {
+                sum += line(idx + c) * coeffs(c)
+                c += 1
+                }
             }
         sum
         }
+    
+    def update(sample: Double) : Double =
+        {
+        delayIndex = if (delayIndex == 0) minus1 else delayIndex - 1  //walk backward
+        delayLine(delayIndex)        = sample
+        delayLine(delayIndex + size) = sample
+        dot(delayLine, delayIndex)
+        }
         
     def update(sample: Complex) : Complex =
         {
-        delayIndex = (delayIndex + minus1) % size
-        delayLineC(delayIndex) = sample
-        var realsum = 0.0
-        var imagsum = 0.0
-        var idx = delayIndex
-        for (coeff <- coeffs)
+        val out = new MutableComplex
+        update(sample.r, sample.i, out)
+        out.toComplex
+        }
+
+    /**
+     * Complex update without allocation.  The real and imaginary parts are
+     * kept in separate delay lines, and the result is written into out.
+     */
+    def update(r: Double, i: Double, out: MutableComplex) : Unit =
+        {
+        delayIndexC = if (delayIndexC == 0) minus1 else delayIndexC - 1
+        delayLineR(delayIndexC)        = r
+        delayLineR(delayIndexC + size) = r
+        delayLineI(delayIndexC)        = i
+        delayLineI(delayIndexC + size) = i
+        out.set(dot(delayLineR, delayIndexC), dot(delayLineI, delayIndexC))
+        }
+        
+    //history then input, oldest first, for filter()
+    private var work = Array.ofDim[Double](0)
+    
+    /**
+     * Filter len samples of in from off into the same places in out.
+     * in and out may be the same array.
+     */
+    def filter(in: Array[Double], out: Array[Double], off: Int, len: Int) : Unit =
+        {
+        if (len > 0)
+            {
+            val buf = load(delayLine, delayIndex, in, off, len)
+            convolve(buf, out, off, len)
+            store(delayLine, buf, len)
+            delayIndex = 0
+            }
+        }
+        
+    /**
+     * Complex filter() on split real and imaginary parts
+     */
+    def filter(inr: Array[Double], ini: Array[Double], outr: Array[Double], outi: Array[Double],
+               off: Int, len: Int) : Unit =
+        {
+        if (len > 0)
+            {
+            var buf = load(delayLineR, delayIndexC, inr, off, len)
+            convolve(buf, outr, off, len)
+            store(delayLineR, buf, len)
+            buf = load(delayLineI, delayIndexC, ini, off, len)
+            convolve(buf, outi, off, len)
+            store(delayLineI, buf, len)
+            delayIndexC = 0
+            }
+        }
+        
+    private def load(line: Array[Double], idx: Int, in: Array[Double], off: Int, len: Int) : Array[Double] =
+        {
+        if (work.length < minus1 + len)
+            work = Array.ofDim[Double](minus1 + len)
+        val buf = work
+        //line(idx + c) is c samples old
+        var j = 0
+        while (j < minus1)
+            {
+            buf(j) = line(idx + minus1 - 1 - j)
+            j += 1
+            }
+        System.arraycopy(in, off, buf, minus1, len)
+        buf
+        }
+    
+    /**
+     * out(n) = sum(c) coeffs(c) * x(n - c), one coefficient at a time
+     */
+    private def convolve(buf: Array[Double], out: Array[Double], off: Int, len: Int) =
+        {
+        java.util.Arrays.fill(out, off, off + len, 0.0)
+        var c = 0
+        while (c < size)
+            {
+            val h    = coeffs(c)
+            val base = minus1 - c - off
+            var n = off
+            val end = off + len
+            while (n < end)
+                {
+                out(n) += h * buf(base + n)
+                n += 1
+                }
+            c += 1
+            }
+        }
+
+    //the newest size samples back into the delay line, with the newest at 0
+    private def store(line: Array[Double], buf: Array[Double], len: Int) =
+        {
+        val last = minus1 + len - 1
+        var c = 0
+        while (c < size)
             {
-            val v = delayLineC(idx)
-            idx = (idx + 1) % size
-            realsum += v.r * coeff
-            imagsum += v.i * coeff
+            val v = if (last - c >= 0) buf(last - c) else 0.0
+            line(c)        = v
+            line(c + size) = v
+            c += 1
             }
-        Complex(realsum, imagsum)
         }
 }
 
 
 
+/**
+ * An FIR filter applied by overlap-save fast convolution, for long filters.
+ *
+ * Each block of up to fftSize - coeffs.length + 1 new samples is transformed
+ * together with the coeffs.length - 1 before it, multiplied by the filter's
+ * spectrum and transformed back, so the cost per sample grows with
+ * log(taps) rather than taps.  Output is not delayed, and matches Fir to
+ * rounding: a block is cut short at the end of each call, and blocks too
+ * short to be worth a transform are convolved directly.
+ *
+ * update() works, but runs directly and shifts the history every sample.
+ * This is meant for filter().
+ *
+ * @param fftSize a power of two, by default the first one at least 4 times
+ *     the length of the filter
+ */
+class FastFir(val coeffs: Array[Double], fftSize: Int = 0) extends FirFilter
+{
+    private val taps = coeffs.length
+    private val keep = taps - 1
+    
+    val N = if (fftSize > 0) fftSize else math.max(64, Integer.highestOneBit(4 * taps - 1) << 1)
+    require((N & (N - 1)) == 0 && N >= 2 * taps, "fftSize must be a power of two, at least twice the taps")
+    
+    /**
+     * New samples per transform
+     */
+    val blockSize = N - keep
+    
+    private val fft = new DoubleFFT_1D(N)
+    
+    //the filter spectrum, in realForward's packed form, and as full complex
+    private val hr =
+        {
+        val a = java.util.Arrays.copyOf(coeffs, N)
+        fft.realForward(a)
+        a
+        }
+    private val hc =
+        {
+        val a = Array.ofDim[Double](2 * N)
+        for (c <- 0 until taps)
+            a(2 * c) = coeffs(c)
+        fft.complexForward(a)
+        a
+        }
+    
+    //below this many new samples, convolve directly
+    private val direct = math.max(1, N * (31 - Integer.numberOfLeadingZeros(N)) / taps)
+    
+    //history then new samples, oldest first
+    private val lin  = Array.ofDim[Double](keep + blockSize)
+    private val linR = Array.ofDim[Double](keep + blockSize)
+    private val linI = Array.ofDim[Double](keep + blockSize)
+    private val work = Array.ofDim[Double](2 * N)
+    
+    private def dot(x: Array[Double], t: Int) : Double =
+        {
+        var sum = 0.0
+        var c = 0
+        while (c < taps)
+            {
+            sum += x(t - c) * coeffs(c)
+            c += 1
+            }
+        sum
+        }
+
+    private def shift(x: Array[Double], m: Int) =
+        System.arraycopy(x, m, x, 0, keep)
+    
+    def filter(in: Array[Double], out: Array[Double], off: Int, len: Int) : Unit =
+        {
+        var pos = off
+        val end = off + len
+        while (pos < end)
+            {
+            val m = math.min(blockSize, end - pos)
+            System.arraycopy(in, pos, lin, keep, m)
+            if (m < direct)
+                {
+                var j = 0
+                while (j < m)
+                    {
+                    out(pos + j) = dot(lin, keep + j)
+                    j += 1
+                    }
+                }
+            else
+                {
+                val a = work
+                System.arraycopy(lin, 0, a, 0, keep + m)
+                java.util.Arrays.fill(a, keep + m, N, 0.0)
+                fft.realForward(a)
+                //packed: a(0) and a(1) are the real dc and nyquist terms
+                a(0) *= hr(0)
+                a(1) *= hr(1)
+                var k = 2
+                while (k < N)
+                    {
+                    val xr = a(k)
+                    val xi = a(k + 1)
+                    a(k)     = xr * hr(k) - xi * hr(k + 1)
+                    a(k + 1) = xr * hr(k + 1) + xi * hr(k)
+                    k += 2
+                    }
+                fft.realInverse(a, true)
+                System.arraycopy(a, keep, out, pos, m)
+                }
+            shift(lin, m)
+            pos += m
+            }
+        }
+    
+    def filter(inr: Array[Double], ini: Array[Double], outr: Array[Double], outi: Array[Double],
+               off: Int, len: Int) : Unit =
+        {
+        var pos = off
+        val end = off + len
+        while (pos < end)
+            {
+            val m = math.min(blockSize, end - pos)
+            System.arraycopy(inr, pos, linR, keep, m)
+            System.arraycopy(ini, pos, linI, keep, m)
+            if (m < direct)
+                {
+                var j = 0
+                while (j < m)
+                    {
+                    outr(pos + j) = dot(linR, keep + j)
+                    outi(pos + j) = dot(linI, keep + j)
+                    j += 1
+                    }
+                }
+            else
+                {
+                //the coefficients are real, so both parts can share one transform
+                val a = work
+                var t = 0
+                while (t < keep + m)
+                    {
+                    a(2 * t)     = linR(t)
+                    a(2 * t + 1) = linI(t)
+                    t += 1
+                    }
+                java.util.Arrays.fill(a, 2 * (keep + m), 2 * N, 0.0)
+                fft.complexForward(a)
+                var k = 0
+                while (k < 2 * N)
+                    {
+                    val xr = a(k)
+                    val xi = a(k + 1)
+                    a(k)     = xr * hc(k) - xi * hc(k + 1)
+                    a(k + 1) = xr * hc(k + 1) + xi * hc(k)
+                    k += 2
+                    }
+                fft.complexInverse(a, true)
+                var j = 0
+                while (j < m)
+                    {
+                    outr(pos + j) = a(2 * (keep + j))
+                    outi(pos + j) = a(2 * (keep + j) + 1)
+                    j += 1
+                    }
+                }
+            shift(linR, m)
+            shift(linI, m)
+            pos += m
+            }
+        }
+        
+    private val one  = Array.ofDim[Double](1)
+    private val oneI = Array.ofDim[Double](1)
+        
+    def update(sample: Double) : Double =
+        {
+        one(0) = sample
+        filter(one, one, 0, 1)
+        one(0)
+        }
+
+    def update(r: Double, i: Double, out: MutableComplex) : Unit =
+        {
+        one(0)  = r
+        oneI(0) = i
+        filter(one, oneI, one, oneI, 0, 1)
+        out.set(one(0), oneI(0))
+        }
+}
+
+
 /**
  * Simply generates the coefficients for a given type and size
  */ 
@@ -164,6 +520,18 @@ object Fir
 
     val twopi = 2.0 * math.Pi
     
+    /**
+     * At this many taps and over, auto() uses fast convolution
+     */
+    val fastTaps = 48
+    
+    /**
+     * The cheaper way to apply these coefficients in blocks: Fir directly,
+     * or FastFir for long filters
+     */
+    def auto(coeffs: Array[Double]) : FirFilter =
+        if (coeffs.length >= fastTaps) new FastFir(coeffs) else new Fir(coeffs)
+
     def genCoeffs(size: Int, window: Window)(f: (Double)=> Double) : Array[Double] =
         {
         val center = size.toDouble * 0.5
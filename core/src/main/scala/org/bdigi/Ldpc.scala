@@ -72,134 +72,527 @@ object CRC32
 
 
 /**
- * Creates a Tanner diagram that can be used as a decoder
+ * A Tanner graph, kept as flat index arrays rather than objects.
+ * Each check node (row of H) is a run of edges in rowCols, CSR style:
+ * row r's edges are rowStart(r) until rowStart(r+1), and rowCols gives the
+ * variable node (column) of each.  colStart and colEdges are the same
+ * edges again by column, CSC style, as indices into rowCols.
  * @see http://en.wikipedia.org/wiki/Tanner_graph
- * 
  */ 
-class Tanner(H: ByteMatrix)
+class Tanner(val rows: Int, val cols: Int, val rowStart: Array[Int], val rowCols: Array[Int])
 {
-    trait Node
+    /**
+     * Build the graph from a full parity check matrix
+     */
+    def this(H: ByteMatrix) =
+        this(H.rows, H.cols, Tanner.rowStarts(H), Tanner.rowColumns(H))
+    
+    val edges = rowCols.length
+    
+    val (colStart, colEdges) =
+        {
+        val start = Array.ofDim[Int](cols + 1)
+        for (col <- rowCols)
+            start(col + 1) += 1
+        for (col <- 0 until cols)
+            start(col + 1) += start(col)
+        val fill = start.clone
+        val ed = Array.ofDim[Int](edges)
+        for (e <- 0 until edges)
+            {
+            val col = rowCols(e)
+            ed(fill(col)) = e
+            fill(col) += 1
+            }
+        (start, ed)
+        }
+        
+    /**
+     * The check node of each edge
+     */
+    val edgeRow =
+        {
+        val er = Array.ofDim[Int](edges)
+        for (r <- 0 until rows ; e <- rowStart(r) until rowStart(r + 1))
+            er(e) = r
+        er
+        }
+        
+    /**
+     * The widest check node, for sizing scratch space
+     */
+    val maxRowDegree = (0 until rows).map(r => rowStart(r + 1) - rowStart(r)).foldLeft(0)(_ max _)
+    
+    /**
+     * Views of the nodes, for looking at the graph.  The decoder uses only
+     * the arrays.
+     */
+    case class VNode(index: Int)
         {
-        val index : Int
-        val nodebuf = scala.collection.mutable.ListBuffer[Link]()
-        lazy val nodes = nodebuf.toArray            
+        def checks = (colStart(index) until colStart(index + 1)).map(e => edgeRow(colEdges(e)))
+        override def toString = "node(" + index + ") " + checks.mkString("[", ",", "]")
         }
-    class VNode(val index: Int = 0) extends Node
-        {            
-        override def toString : String =
+    case class CNode(index: Int)
+        {
+        def variables = (rowStart(index) until rowStart(index + 1)).map(rowCols)
+        override def toString = "node(" + index + ") " + variables.mkString("[", ",", "]")
+        }
+    
+    lazy val v = Array.tabulate(cols)(VNode)
+    lazy val c = Array.tabulate(rows)(CNode)
+    
+    /**
+     * True if the hard decisions in bits satisfy every check
+     */
+    def check(bits: Array[Byte]) : Boolean =
+        {
+        var r = 0
+        while (r < rows)
             {
-            val childstr = nodes.map(_.c.index).mkString("[", ",", "]")
-            "node(" + index + ") " + childstr
+            var parity = 0
+            var e = rowStart(r)
+            val end = rowStart(r + 1)
+            while (e < end)
+                {
+                parity ^= bits(rowCols(e))
+                e += 1
+                }
+            if ((parity & 1) != 0)
+                return false
+            r += 1
             }
+        true
         }
-    class CNode(val index: Int = 0) extends Node
-        {            
-        override def toString : String =
+        
+    /**
+     * Decode channel LLRs, log(P(0)/P(1)), with a fresh LdpcDecoder.
+     * @return the a posteriori LLRs
+     */
+    def decode(llr: Array[Double], iters: Int) : Array[Double] =
+        {
+        if (llr.size != cols)
             {
-            val childstr = nodes.map(_.v.index).mkString("[", ",", "]")
-            "node(" + index + ") " + childstr
+            throw new IllegalArgumentException("data size:" + llr.size + " does not match code size: " + cols)
             }
+        val dec = new LdpcDecoder(this, iters)
+        dec.decode(llr.map(_.toFloat), Array.ofDim[Byte](cols))
+        dec.posterior.map(_.toDouble)
+        }
+}
+
+
+object Tanner
+{
+    def rowStarts(H: ByteMatrix) : Array[Int] =
+        {
+        val start = Array.ofDim[Int](H.rows + 1)
+        for (row <- 0 until H.rows)
+            start(row + 1) = start(row) + (0 until H.cols).count(H(row, _) != 0)
+        start
         }
+        
+    def rowColumns(H: ByteMatrix) : Array[Int] =
+        (for (row <- 0 until H.rows ; col <- 0 until H.cols if H(row, col) != 0) yield col).toArray
     
-    case class Link(v: VNode, c: CNode)
+    /**
+     * Build the graph straight from a quasi-cyclic prototype, without
+     * expanding H.  Entry s >= 0 at (qrow, qcol) is the z x z identity
+     * shifted by s, so row i of the block has its 1 at column (i + s) mod z.
+     */
+    def fromQc(qc: ByteMatrix, z: Int) : Tanner =
         {
-        //probabilities from v nodes to c nodes
-        var v0 = 0.0
-        var v1 = 0.0
-        //probabilities from c nodes to v nodes
-        var c0 = 0.0
-        var c1 = 0.0
+        val rows = qc.rows * z
+        val cols = qc.cols * z
+        val start = Array.ofDim[Int](rows + 1)
+        val buf = scala.collection.mutable.ArrayBuilder.make[Int]
+        for (qrow <- 0 until qc.rows ; i <- 0 until z)
+            {
+            val row = qrow * z + i
+            var n = 0
+            for (qcol <- 0 until qc.cols)
+                {
+                val shift = qc(qrow, qcol)
+                if (shift >= 0)
+                    {
+                    buf += qcol * z + (i + shift) % z
+                    n += 1
+                    }
+                }
+            start(row + 1) = start(row) + n
+            }
+        new Tanner(rows, cols, start, buf.result)
+        }
+}
+
+
+
+/**
+ * A layered offset min-sum LDPC decoder.  Each check node is a layer:
+ * its incoming messages are the posteriors less what it sent last time,
+ * and its new messages go straight back into the posteriors, so later
+ * checks in the same iteration already see them.  This converges in about
+ * half the iterations of flooding.  After each iteration the hard decisions
+ * are checked, and decoding stops as soon as the syndrome is zero.
+ *
+ * LLRs are log(P(0)/P(1)), so positive means 0.  For BPSK over AWGN with
+ * 0 sent as +1, that is 2y/sigma^2.
+ *
+ * All state is allocated once, so decode allocates nothing, but an
+ * instance is for one thread.
+ *
+ * @param graph the code's Tanner graph
+ * @param maxIters the most iterations before giving up
+ * @param offset subtracted from each check message's magnitude, which
+ *    makes up for min-sum's overestimate of it
+ */
+class LdpcDecoder(val graph: Tanner, val maxIters: Int = 50, val offset: Float = 0.5f)
+{
+    private val rowStart = graph.rowStart
+    private val rowCols  = graph.rowCols
+    
+    /**
+     * The a posteriori LLR of each bit, after decode
+     */
+    val posterior = Array.ofDim[Float](graph.cols)
+    
+    //check to variable messages, one per edge
+    private val msg = Array.ofDim[Float](graph.edges)
+    //variable to check messages for the current row
+    private val tmp = Array.ofDim[Float](graph.maxRowDegree)
+    
+    /**
+     * Iterations used by the last decode
+     */
+    var iterations = 0
+    
+    /**
+     * Decode a codeword of channel LLRs from llr at off into hard bits in out.
+     * @return true if the result satisfies every check
+     */
+    def decode(llr: Array[Float], out: Array[Byte], off: Int = 0) : Boolean =
+        {
+        System.arraycopy(llr, off, posterior, 0, graph.cols)
+        java.util.Arrays.fill(msg, 0.0f)
+        iterations = 0
+        var ok = hardDecide(out)
+        while (!ok && iterations < maxIters)
+            {
+            layers
+            iterations += 1
+            ok = hardDecide(out)
+            }
+        ok
         }
         
-    val rows = H.rows
-    val cols = H.cols
-
-    //First make the nodes so we have something to point to
-    val v = Array.ofDim[VNode](cols)
-    for (i <- 0 until cols)
-        v(i) = new VNode(i)
-    val c = Array.ofDim[CNode](rows)
-    for (i <- 0 until rows)
-        c(i) = new CNode(i)
-
-    //Now for each 1 in H at the intersection of row and column,
-    //put a Link between them
-    for (row <- 0 until rows ; col <- 0 until cols)
-        {
-        if (H(row, col) != 0) 
+    /**
+     * The same, for doubles
+     */
+    def decode(llr: Array[Double], out: Array[Byte]) : Boolean =
+        {
+        var i = 0
+        while (i < graph.cols)
             {
-            val vn = v(col)
-            val cn = c(row)
-            val link = Link(vn, cn)
-            vn.nodebuf += link
-            cn.nodebuf += link
+            tmpIn(i) = llr(i).toFloat
+            i += 1
             }
+        decode(tmpIn, out)
         }
         
-    def decode(info: Array[Double], iters: Int) : Array[Double] =
+    private lazy val tmpIn = Array.ofDim[Float](graph.cols)
+    
+    /**
+     * One pass over every check
+     */
+    private def layers =
         {
-        if (info.size != cols)
+        val post = posterior
+        val m    = msg
+        val t    = tmp
+        val off  = offset
+        var r = 0
+        while (r < graph.rows)
             {
-            throw new IllegalArgumentException("data size:" + info.size + " does not match code size: " + cols)
+            val start = rowStart(r)
+            val end   = rowStart(r + 1)
+            var min1  = Float.MaxValue
+            var min2  = Float.MaxValue
+            var minAt = -1
+            var sign  = 0
+            var e = start
+            while (e < end)
+                {
+                val q = post(rowCols(e)) - m(e)
+                t(e - start) = q
+                val mag = math.abs(q)
+                if (mag < min1)
+                    {
+                    min2  = min1
+                    min1  = mag
+                    minAt = e
+                    }
+                else if (mag < min2)
+                    {
+                    min2 = mag
+                    }
+                sign ^= java.lang.Float.floatToRawIntBits(q)
+                e += 1
+                }
+            val mag1 = math.max(0.0f, min1 - off)
+            val mag2 = math.max(0.0f, min2 - off)
+            e = start
+            while (e < end)
+                {
+                val q = t(e - start)
+                val mag = if (e == minAt) mag2 else mag1
+                //the sign of the product of the others is the total sign times our own
+                val neg = ((sign ^ java.lang.Float.floatToRawIntBits(q)) & 0x80000000) != 0
+                val r2v = if (neg) -mag else mag
+                m(e) = r2v
+                post(rowCols(e)) = q + r2v
+                e += 1
+                }
+            r += 1
             }
+        }
+        
+    /**
+     * Slice the posteriors into out, and check the syndrome
+     */
+    private def hardDecide(out: Array[Byte]) : Boolean =
+        {
+        var i = 0
+        while (i < graph.cols)
+            {
+            out(i) = if (posterior(i) < 0.0f) 1 else 0
+            i += 1
+            }
+        graph.check(out)
+        }
+}
 
-        //Initial load.  Nothing else is known
-        for (i <- 0 until cols)
+
+/**
+ * A systematic encoder for the 802.11n quasi-cyclic codes, on bit-packed
+ * words.  H is never expanded: each z-bit block of the message is rotated
+ * by the prototype's circulant shifts, P^s taking bit i from bit (i+s) mod z.
+ *
+ * The parity half of these prototypes is one column with shifts (a, b, a)
+ * followed by a dual diagonal.  Summing all the block rows cancels the
+ * diagonal and leaves P^b p0 as the sum of the message's row syndromes,
+ * after which each row in turn gives the next parity block.
+ *
+ * Codeword bit k is bit (k & 63) of word (k >>> 6).  The scratch space is
+ * allocated once, so an instance is for one thread.
+ */
+class LdpcEncoder(val code: Code)
+{
+    private val z  = code.zSize
+    private val qc = code.qc
+    private val kb = code.infoSize / z
+    private val mb = qc.rows
+    private val W  = (z + 63) >>> 6
+    
+    /**
+     * Words needed for a message and for a codeword
+     */
+    val infoWords  = (code.infoSize + 63) >>> 6
+    val blockWords = (code.blockSize + 63) >>> 6
+
+    //the shift b at the middle of the first parity column
+    private val pivot =
+        {
+        if (kb * z != code.infoSize || qc.cols * z != code.blockSize || kb + mb != qc.cols)
+            throw new IllegalArgumentException("code sizes do not match its prototype")
+        val col  = (0 until mb).filter(qc(_, kb) >= 0)
+        val diag = for (j <- 1 until mb ; r <- 0 until mb) yield
+            qc(r, kb + j) == (if (r == j - 1 || r == j) 0 else -1)
+        if (col.size != 3 || col.head != 0 || col.last != mb - 1 ||
+            qc(0, kb) != qc(mb - 1, kb) || diag.contains(false))
+            throw new IllegalArgumentException("not a dual-diagonal quasi-cyclic code")
+        qc(col(1), kb).toInt
+        }
+    
+    //the message's circulants, by block row
+    private val rowStart = Array.ofDim[Int](mb + 1)
+    private val (infoCol, infoShift) =
+        {
+        val entries = for (r <- 0 until mb ; c <- 0 until kb if qc(r, c) >= 0) yield (c, qc(r, c).toInt)
+        for (r <- 0 until mb)
+            rowStart(r + 1) = rowStart(r) + (0 until kb).count(qc(r, _) >= 0)
+        (entries.map(_._1).toArray, entries.map(_._2).toArray)
+        }
+    
+    private val msg    = Array.ofDim[Long](kb * W)
+    private val lambda = Array.ofDim[Long](mb * W)
+    private val parity = Array.ofDim[Long](mb * W)
+    private val sum    = Array.ofDim[Long](W)
+    private val dbl    = Array.ofDim[Long](2 * W + 1)
+    
+    //bits in word k of a block
+    private def wordBits(k: Int) = math.min(64, z - 64 * k)
+    
+    /**
+     * Encode code.infoSize bits from info into code.blockSize bits in out
+     */
+    def encode(info: Array[Long], out: Array[Long]) : Unit =
+        {
+        var b = 0
+        while (b < kb)
+            {
+            getBlock(info, b * z, msg, b * W)
+            b += 1
+            }
+        java.util.Arrays.fill(lambda, 0L)
+        var r = 0
+        while (r < mb)
             {
-            val n = v(i)
-            for (link <- n.nodes)
+            var e = rowStart(r)
+            while (e < rowStart(r + 1))
                 {
-                link.v1 = info(i)
-                link.v0 = 1.0 - info(i)
+                rotateXor(msg, infoCol(e) * W, infoShift(e), lambda, r * W)
+                e += 1
                 }
+            r += 1
             }
+        //P^pivot p0 is the sum of the row syndromes
+        java.util.Arrays.fill(parity, 0L)
+        java.util.Arrays.fill(sum, 0L)
+        r = 0
+        while (r < mb)
+            {
+            var k = 0
+            while (k < W)
+                {
+                sum(k) ^= lambda(r * W + k)
+                k += 1
+                }
+            r += 1
+            }
+        rotateXor(sum, 0, (z - pivot) % z, parity, 0)
+        //then row r gives p(r+1)
+        r = 0
+        while (r < mb - 1)
+            {
+            var k = 0
+            while (k < W)
+                {
+                var v = lambda(r * W + k)
+                if (r > 0)
+                    v ^= parity(r * W + k)
+                parity((r + 1) * W + k) = v
+                k += 1
+                }
+            val shift = qc(r, kb)
+            if (shift >= 0)
+                rotateXor(parity, 0, shift, parity, (r + 1) * W)
+            r += 1
+            }
+        System.arraycopy(info, 0, out, 0, infoWords)
+        r = 0
+        while (r < mb)
+            {
+            putBlock(parity, r * W, out, code.infoSize + r * z)
+            r += 1
+            }
+        }
         
-        //Do our thinking
-        for (iter <- 0 until iters)
+    /**
+     * dst block ^= P^shift of src block
+     */
+    private def rotateXor(src: Array[Long], srcOff: Int, shift: Int, dst: Array[Long], dstOff: Int) =
+        {
+        if (W == 1)
+            {
+            val v = src(srcOff)
+            val rot = if (shift == 0) v else (v >>> shift) | (v << (z - shift))
+            dst(dstOff) ^= (if (z == 64) rot else rot & ((1L << z) - 1))
+            }
+        else
             {
-            /*
-            //from variable nodes to check nodes
-            for (cn <- c)
+            //two copies end to end, so the rotation is a plain read
+            val d = dbl
+            java.util.Arrays.fill(d, 0L)
+            System.arraycopy(src, srcOff, d, 0, W)
+            var k = 0
+            while (k < W)
                 {
-                var p1sum = 0.0
-                var p0sum = 0.0
-                val scale = cn.nodes.size.toDouble
-                for (n <- cn.nodes)
-                    {
-                    prsum += n.p1
-                    pisum += n.p0
-                    }
-                cn.p1 = p1sum / scale
-                cn.p0 = p0sum / scale
-                }                
-
-            //from check nodes to variable nodes
-            for (vn <- v)
+                LdpcEncoder.orBits(d, z + 64 * k, wordBits(k), src(srcOff + k))
+                k += 1
+                }
+            k = 0
+            while (k < W)
                 {
-                var p1sum = 0.0
-                var p0sum = 0.0
-                val scale = vn.nodes.size.toDouble
-                for (n <- vn.nodes)
-                    {
-                    p1sum += n.p1
-                    p0sum += n.p0
-                    }
-                vn.p1 = prsum / scale
-                vn.p0 = pisum / scale
+                dst(dstOff + k) ^= LdpcEncoder.getBits(d, shift + 64 * k, wordBits(k))
+                k += 1
                 }
-            */                
             }
+        }
+        
+    private def getBlock(src: Array[Long], bitOff: Int, dst: Array[Long], dstOff: Int) =
+        {
+        var k = 0
+        while (k < W)
+            {
+            dst(dstOff + k) = LdpcEncoder.getBits(src, bitOff + 64 * k, wordBits(k))
+            k += 1
+            }
+        }
+
+    private def putBlock(src: Array[Long], srcOff: Int, dst: Array[Long], bitOff: Int) =
+        {
+        var k = 0
+        while (k < W)
+            {
+            LdpcEncoder.putBits(dst, bitOff + 64 * k, wordBits(k), src(srcOff + k))
+            k += 1
+            }
+        }
+}
+
+
+object LdpcEncoder
+{
+    private def mask(n: Int) = if (n == 64) -1L else (1L << n) - 1
+
+    /**
+     * n <= 64 bits starting at bit off
+     */
+    def getBits(arr: Array[Long], off: Int, n: Int) : Long =
+        {
+        val w = off >>> 6
+        val o = off & 63
+        var v = arr(w) >>> o
+        if (o + n > 64)
+            v |= arr(w + 1) << (64 - o)
+        v & mask(n)
+        }
 
-        //Copy out the result
-        val res = Array.ofDim[Double](cols)        
-        //for (i <- 0 until w)
-        //    res(i) = v(i).pr
-        res
+    /**
+     * Overwrite n <= 64 bits starting at bit off
+     */
+    def putBits(arr: Array[Long], off: Int, n: Int, v: Long) =
+        {
+        val w = off >>> 6
+        val o = off & 63
+        val m = mask(n)
+        arr(w) = (arr(w) & ~(m << o)) | ((v & m) << o)
+        if (o + n > 64)
+            arr(w + 1) = (arr(w + 1) & ~(m >>> (64 - o))) | ((v & m) >>> (64 - o))
         }
 
+    def orBits(arr: Array[Long], off: Int, n: Int, v: Long) =
+        {
+        val w = off >>> 6
+        val o = off & 63
+        val m = v & mask(n)
+        arr(w) |= m << o
+        if (o + n > 64)
+            arr(w + 1) |= m >>> (64 - o)
+        }
 }
 
 
+
 /**
  * Simple utility class for handling blocks of bits, such as the
  * 27-,54- and 81-bit block sizes of the qc-ldpc matrices here.
@@ -252,6 +645,27 @@ object Bits
         bits
         }
     
+    /**
+     * Pack an array of bits into words, bit i going to bit (i & 63) of word (i >>> 6)
+     */
+    def pack(bitarr: Array[Byte], out: Array[Long]) : Array[Long] =
+        {
+        java.util.Arrays.fill(out, 0L)
+        for (i <- 0 until bitarr.size if bitarr(i) != 0)
+            out(i >>> 6) |= 1L << (i & 63)
+        out
+        }
+        
+    /**
+     * Unpack the first n bits of words into out
+     */
+    def unpack(words: Array[Long], n: Int, out: Array[Byte]) : Array[Byte] =
+        {
+        for (i <- 0 until n)
+            out(i) = ((words(i >>> 6) >>> (i & 63)) & 1L).toByte
+        out
+        }
+
     /**
      * Convert an array of bytes to an array of bits
      */
@@ -353,7 +767,7 @@ case class Code(qc: ByteMatrix, blockSize: Int, infoSize: Int, zSize: Int)
     /**
      * Generate the full-size matrix from the QC definition
      */         
-    val H =
+    lazy val H =
         {  
         //qrow and qcol are rows and columns in the input QC matrix
         //hrow and hcol are rows and columns in the output LDPC matrix
@@ -381,7 +795,13 @@ case class Code(qc: ByteMatrix, blockSize: Int, infoSize: Int, zSize: Int)
         newh
         }
 
-    val graph = new Tanner(H)
+    lazy val graph = Tanner.fromQc(qc, zSize)
+    
+    /**
+     * A decoder for this code.  Each thread needs its own.
+     */
+    def decoder(maxIters: Int = 50) : LdpcDecoder =
+        new LdpcDecoder(graph, maxIters)
 
 
     
@@ -404,18 +824,22 @@ case class Code(qc: ByteMatrix, blockSize: Int, infoSize: Int, zSize: Int)
     */
 
     /**
-     * Divide the parity check matrix H into a left
-     * matrix H1 = #databits x m  and right H2 = #checkbits x m .
-     * The first column of H2 is hT. 
-     *          
+     * An encoder for this code.  Each thread needs its own.
+     */
+    def encoder : LdpcEncoder =
+        new LdpcEncoder(this)
+
+    /**
+     * Encode up to infoSize bits, one per byte, padding with zeros.
+     * Divide H into H1, over the data, and H2, over the parity.
      * First make an array R(i) of blocks which is the result of H1(i) * sT
      * p0T = sum(R(i))
-     * p1T = R(1) + h0 * p0T
-     * p2T = R(2) + h1 * p0T + p1T
+     * p1T = R(0) + h0 * p0T
+     * p2T = R(1) + h1 * p0T + p1T
      * .
      * .
-     * p(m-1)T = R(m-1) + h(m-2) * p0T + p(m-2)T 
-     *       
+     * p(m-1)T = R(m-2) + h(m-2) * p0T + p(m-2)T 
+     * @see LdpcEncoder
      */        
     def encode(bitArr: Array[Byte]) : Array[Byte] =
         {
@@ -424,46 +848,10 @@ case class Code(qc: ByteMatrix, blockSize: Int, infoSize: Int, zSize: Int)
             {
             throw new IllegalArgumentException("Incorrect size: " + dataSize + "  Expected: " + infoSize)
             }
-        val dataBitArr = 
-            {
-            if (dataSize == infoSize)
-                bitArr
-            else
-                bitArr ++ Array.ofDim[Byte](infoSize - dataSize)
-            }
-        val m = blockSize - infoSize
-        val dataBits = Bits.fromBitArray(dataBitArr, zSize)
-        val R = Array.tabulate(qc.rows) (row =>
-            {
-            var rowttl = Bits(zSize)
-            for (i <- 0 until infoSize)
-                {
-                val shift = qc(row, i)
-                if (shift >= 0)
-                    rowttl = rowttl ^ (dataBits(i) >> shift)
-                }
-            rowttl
-            })
-        val p0 = R.foldLeft(Bits(zSize))(_ ^ _)
-        println(p0)
-
-        val parityBits = Array.ofDim[Bits](m)
-        parityBits(0) = p0
-        var prev = Bits(zSize)
-        for (i <- 1 until m)
-            {
-            val shift = qc(i-1, infoSize)
-            val v = if (shift >= 0)
-                R(i) ^ (prev >> shift)
-            else
-                R(i)
-            parityBits(i) = v
-            prev = v
-            }
-        
-        //done!
-        val result = (dataBits ++ parityBits).map(_.bits).flatten
-        result
+        val enc = encoder
+        val out = Array.ofDim[Long](enc.blockWords)
+        enc.encode(Bits.pack(bitArr, Array.ofDim[Long](enc.infoWords)), out)
+        Bits.unpack(out, blockSize, Array.ofDim[Byte](blockSize))
         }
     
     def encodeBytes(byteArr: Array[Byte]) : Array[Byte] =
@@ -473,12 +861,19 @@ case class Code(qc: ByteMatrix, blockSize: Int, infoSize: Int, zSize: Int)
         encoded
         }
     
-    def decode(bitArr: Array[Byte]) : Array[Byte] =
+    /**
+     * Hard-decision decode of a received codeword of bits
+     * @return the corrected information bits, or None if they could not be found
+     */
+    def decode(bitArr: Array[Byte]) : Option[Array[Byte]] =
         {
-        val size = bitArr.size
-        
-        val result = Array.ofDim[Byte](size)
-        result
+        if (bitArr.size != blockSize)
+            {
+            throw new IllegalArgumentException("Incorrect size: " + bitArr.size + "  Expected: " + blockSize)
+            }
+        val llr = Array.tabulate(blockSize)(i => if (bitArr(i) != 0) -1.0f else 1.0f)
+        val out = Array.ofDim[Byte](blockSize)
+        if (decoder().decode(llr, out)) Some(out.take(infoSize)) else None
         }
 }
 
@@ -50,86 +50,455 @@ class Rfc5170Rand(initialSeed: Long)
 
 
 
-class LdpcStaircase(k: Int, n: Int, N1: Int, seed: Int = 5170)
+/**
+ * The LDPC-Staircase erasure code of RFC 5170, for sending k source
+ * symbols as n, any of which may be lost.  H is (n-k) x n: N1 ones in each
+ * source column, spread evenly by the RFC's generator so that both ends
+ * build the same matrix from the seed, and a staircase over the repair
+ * columns.  It is kept only as a sparse Tanner graph, so k can run to
+ * tens of thousands.
+ *
+ * Symbols are packed into longs, words per symbol, symbol i taking
+ * words i * words until (i + 1) * words of a flat array.
+ *
+ * @see http://tools.ietf.org/html/rfc5170
+ */
+class LdpcStaircase(val k: Int, val n: Int, val N1: Int = 3, seed: Int = 5170)
 {
-    val MAX_K = 100 //REMOVE ME!
+    if (k <= 0 || n <= k || N1 > n - k)
+        throw new IllegalArgumentException("bad code size k:" + k + " n:" + n + " N1:" + N1)
+        
+    val rows = n - k
     
-    private def degree(arr: Array[Array[Byte]], row: Int) =
-        arr(row).count(b => b != 0.toByte)
-       
-    val pchm =
+    val graph =
         {
         val rand = new Rfc5170Rand(seed)
-        val pm = Array.ofDim[Byte](n-k, k)
-        val u = Array.ofDim[Int](N1*MAX_K) /* table used to have a homogeneous 1 distrib. */
-    
-        /* Initialize a list of all possible choices in order to
-         * guarantee a homogeneous "1" distribution */
-        for (h <- N1*k-1 to 0 by -1)
-            u(h) = h % (n-k)
+        val edgeRow  = scala.collection.mutable.ArrayBuilder.make[Int]
+        val edgeCol  = scala.collection.mutable.ArrayBuilder.make[Int]
+        val rowDeg   = Array.ofDim[Int](rows)
+        val rowFirst = Array.ofDim[Int](rows)
+        def insert(row: Int, col: Int) =
+            {
+            if (rowDeg(row) == 0)
+                rowFirst(row) = col
+            rowDeg(row) += 1
+            edgeRow += row
+            edgeCol += col
+            }
+            
+        /* table used to have a homogeneous 1 distrib. */
+        val u = Array.tabulate(N1 * k)(_ % rows)
+        //the rows already holding a 1 in this column
+        val colRows = Array.ofDim[Int](N1)
+        var colDeg = 0
+        def hasEntry(row: Int) =
+            {
+            var i = 0
+            while (i < colDeg && colRows(i) != row)
+                i += 1
+            i < colDeg
+            }
         
         /* Initialize the matrix with N1 "1s" per column, homogeneously */
         var t = 0
         for (col <- 0 until k) 
             {
+            colDeg = 0
             for (h <- 0 until N1) 
                 { /* add N1 "1s" */
                 /* check that valid available choices remain */
-                var row = t
-                while (row < N1*k && pm(u(row))(col) != 0)
-                    row += 1
-                if (row < N1*k)
+                var i = t
+                while (i < N1*k && hasEntry(u(i)))
+                    i += 1
+                val row = if (i < N1*k)
                     {
                     /* choose one index within the list of possible
                      * choices */
                     do {
-                        row = t + rand(N1*k-t)
-                        } while (pm(u(row))(col) != 0)
-                    pm(u(row))(col) = 1
-    
+                        i = t + rand(N1*k-t)
+                        } while (hasEntry(u(i)))
+                    val r = u(i)
                     /* replace with u[t] which has never been chosen */
-                    u(row) = u(t)
+                    u(i) = u(t)
                     t += 1
+                    r
                     } 
                 else 
                     {
+                    var r = 0
                     do {
-                       row = rand(n-k);
-                        } while (pm(row)(col) !=0 )
-                    pm(row)(col) = 1
+                        r = rand(rows)
+                        } while (hasEntry(r))
+                    r
                     }
+                insert(row, col)
+                colRows(colDeg) = row
+                colDeg += 1
                 }
             }
 
-    
         /* Add extra bits to avoid rows with less than two "1s".
          * This is needed when the code rate is smaller than 2/(2+N1) */
-        for (row <- 0 until n-k) 
+        for (row <- 0 until rows) 
             {
-            while (degree(pm, row) < 2) 
+            if (rowDeg(row) == 0)
+                insert(row, rand(k))
+            if (rowDeg(row) == 1)
                 {
                 var col = 0
                 do {
-                    col = rand(k);
-                    }
-                while (pm(row)(col) != 0)
-                pm(row)(col) = 1
+                    col = rand(k)
+                    } while (col == rowFirst(row))
+                insert(row, col)
                 }
             }
     
-    
-        
-        pm(0)(k) = 1
-        for (row <- 0 until n-k)
+        /* and the staircase */
+        for (row <- 0 until rows)
             {
-            pm(row)(k+row)   = 1
-            pm(row)(k+row-1) = 1
+            if (row > 0)
+                insert(row, k + row - 1)
+            insert(row, k + row)
             }
             
-        pm
+        //bucket the edges by row
+        val er = edgeRow.result
+        val ec = edgeCol.result
+        val start = Array.ofDim[Int](rows + 1)
+        for (r <- er)
+            start(r + 1) += 1
+        for (r <- 0 until rows)
+            start(r + 1) += start(r)
+        val fill = start.clone
+        val cols = Array.ofDim[Int](er.length)
+        for (e <- 0 until er.length)
+            {
+            cols(fill(er(e))) = ec(e)
+            fill(er(e)) += 1
+            }
+        new Tanner(rows, n, start, cols)
+        }
+        
+    /**
+     * Fill in the repair symbols, k until n, of symbols from the source
+     * symbols, 0 until k.  Each repair symbol is the one before it xor the
+     * source symbols in its row.
+     */
+    def encode(symbols: Array[Long], words: Int) : Unit =
+        {
+        val rowStart = graph.rowStart
+        val rowCols  = graph.rowCols
+        var r = 0
+        while (r < rows)
+            {
+            val dst = (k + r) * words
+            if (r == 0)
+                java.util.Arrays.fill(symbols, dst, dst + words, 0L)
+            else
+                System.arraycopy(symbols, dst - words, symbols, dst, words)
+            var e = rowStart(r)
+            val end = rowStart(r + 1)
+            while (e < end)
+                {
+                val col = rowCols(e)
+                if (col < k)
+                    LdpcStaircase.xor(symbols, col * words, symbols, dst, words)
+                e += 1
+                }
+            r += 1
+            }
         }
         
+    /**
+     * Encode byte symbols, all the same size
+     * @return the n-k repair symbols
+     */
+    def encode(source: Array[Array[Byte]]) : Array[Array[Byte]] =
+        {
+        if (source.size != k)
+            throw new IllegalArgumentException("Expected " + k + " symbols, got " + source.size)
+        val size  = source(0).size
+        val words = (size + 7) >>> 3
+        val symbols = Array.ofDim[Long](n * words)
+        for (i <- 0 until k)
+            LdpcStaircase.pack(source(i), symbols, i * words)
+        encode(symbols, words)
+        Array.tabulate(rows)(r => LdpcStaircase.unpack(symbols, (k + r) * words, Array.ofDim[Byte](size)))
+        }
+        
+    /**
+     * A decoder for symbols of this many words.  Each thread needs its own.
+     */
+    def decoder(words: Int) : LdpcStaircaseDecoder =
+        new LdpcStaircaseDecoder(this, words)
+        
+    /**
+     * Recover the source from the symbols received, in order, with null
+     * for those lost
+     * @return the k source symbols, or None if too many were lost
+     */
+    def decode(received: Array[Array[Byte]]) : Option[Array[Array[Byte]]] =
+        {
+        if (received.size != n)
+            throw new IllegalArgumentException("Expected " + n + " symbols, got " + received.size)
+        received.find(_ != null) match
+            {
+            case None => None
+            case Some(sym) =>
+                val size  = sym.size
+                val words = (size + 7) >>> 3
+                val symbols = Array.ofDim[Long](n * words)
+                val known = received.map(_ != null)
+                for (i <- 0 until n if known(i))
+                    LdpcStaircase.pack(received(i), symbols, i * words)
+                if (decoder(words).decode(symbols, known))
+                    Some(Array.tabulate(k)(i =>
+                        if (received(i) != null) received(i)
+                        else LdpcStaircase.unpack(symbols, i * words, Array.ofDim[Byte](size))))
+                else
+                    None
+            }
+        }
+}
+
 
+object LdpcStaircase
+{
+    /**
+     * dst(dstOff ..) ^= src(srcOff ..), for len words
+     */
+    def xor(src: Array[Long], srcOff: Int, dst: Array[Long], dstOff: Int, len: Int) =
+        {
+        var i = 0
+        while (i < len)
+            {
+            dst(dstOff + i) ^= src(srcOff + i)
+            i += 1
+            }
+        }
+
+    /**
+     * Pack bytes into words at off, little-endian
+     */
+    def pack(bytes: Array[Byte], words: Array[Long], off: Int) =
+        {
+        val nw = (bytes.size + 7) >>> 3
+        java.util.Arrays.fill(words, off, off + nw, 0L)
+        for (i <- 0 until bytes.size)
+            words(off + (i >>> 3)) |= (bytes(i) & 0xffL) << ((i & 7) << 3)
+        }
+
+    def unpack(words: Array[Long], off: Int, bytes: Array[Byte]) : Array[Byte] =
+        {
+        for (i <- 0 until bytes.size)
+            bytes(i) = (words(off + (i >>> 3)) >>> ((i & 7) << 3)).toByte
+        bytes
+        }
+}
+
+
+/**
+ * An erasure decoder for LdpcStaircase.  It first peels: a check with
+ * only one unknown symbol gives that symbol, which may leave another check
+ * with only one, and so on.  Each check keeps the xor of its known symbols
+ * and the sum of its unknown columns, so the last unknown is found without
+ * a search.  If that stalls with source symbols still missing, the checks
+ * left over are a small system in the unknowns, solved by Gauss-Jordan
+ * elimination on bit-packed rows, carrying the symbols along.
+ *
+ * The peeling state is allocated once; the elimination's only if needed.
+ */
+class LdpcStaircaseDecoder(val code: LdpcStaircase, val words: Int)
+{
+    private val graph = code.graph
+    private val rows  = code.rows
+    private val acc   = Array.ofDim[Long](rows * words)
+    private val count = Array.ofDim[Int](rows)
+    private val idSum = Array.ofDim[Int](rows)
+    private val queue = Array.ofDim[Int](rows)
+    
+    /**
+     * Fill in the missing symbols, as far as possible.  known(i) says whether
+     * symbol i is present, and is set for each symbol recovered.
+     * @return true if all the source symbols are known
+     */
+    def decode(symbols: Array[Long], known: Array[Boolean]) : Boolean =
+        {
+        val rowStart = graph.rowStart
+        val rowCols  = graph.rowCols
+        val colStart = graph.colStart
+        val colEdges = graph.colEdges
+        val edgeRow  = graph.edgeRow
+        var missing = 0
+        var i = 0
+        while (i < code.k)
+            {
+            if (!known(i))
+                missing += 1
+            i += 1
+            }
+        if (missing == 0)
+            return true
+        java.util.Arrays.fill(acc, 0L)
+        var qlen = 0
+        var r = 0
+        while (r < rows)
+            {
+            var cnt = 0
+            var ids = 0
+            var e = rowStart(r)
+            while (e < rowStart(r + 1))
+                {
+                val col = rowCols(e)
+                if (known(col))
+                    LdpcStaircase.xor(symbols, col * words, acc, r * words, words)
+                else
+                    {
+                    cnt += 1
+                    ids += col
+                    }
+                e += 1
+                }
+            count(r) = cnt
+            idSum(r) = ids
+            if (cnt == 1)
+                {
+                queue(qlen) = r
+                qlen += 1
+                }
+            r += 1
+            }
+        //peel
+        var q = 0
+        while (q < qlen && missing > 0)
+            {
+            val r = queue(q)
+            q += 1
+            if (count(r) == 1)
+                {
+                val col = idSum(r)
+                System.arraycopy(acc, r * words, symbols, col * words, words)
+                known(col) = true
+                if (col < code.k)
+                    missing -= 1
+                var e = colStart(col)
+                while (e < colStart(col + 1))
+                    {
+                    val r2 = edgeRow(colEdges(e))
+                    LdpcStaircase.xor(symbols, col * words, acc, r2 * words, words)
+                    count(r2) -= 1
+                    idSum(r2) -= col
+                    if (count(r2) == 1)
+                        {
+                        queue(qlen) = r2
+                        qlen += 1
+                        }
+                    e += 1
+                    }
+                }
+            }
+        missing == 0 || eliminate(symbols, known)
+        }
+        
+    /**
+     * Solve what peeling left by Gauss-Jordan elimination
+     */
+    private def eliminate(symbols: Array[Long], known: Array[Boolean]) : Boolean =
+        {
+        val rowStart = graph.rowStart
+        val rowCols  = graph.rowCols
+        //number the unknowns and the checks that still hold them
+        val varIndex = Array.fill(code.n)(-1)
+        val vars = scala.collection.mutable.ArrayBuilder.make[Int]
+        var nv = 0
+        val eqs = (0 until rows).filter(count(_) > 0).toArray
+        for (r <- eqs ; e <- rowStart(r) until rowStart(r + 1))
+            {
+            val col = rowCols(e)
+            if (!known(col) && varIndex(col) < 0)
+                {
+                varIndex(col) = nv
+                vars += col
+                nv += 1
+                }
+            }
+        val cols = vars.result
+        val m  = eqs.length
+        val mw = (nv + 63) >>> 6
+        val mat = Array.ofDim[Long](m * mw)
+        val rhs = Array.ofDim[Long](m * words)
+        for (i <- 0 until m)
+            {
+            val r = eqs(i)
+            for (e <- rowStart(r) until rowStart(r + 1))
+                {
+                val v = varIndex(rowCols(e))
+                if (v >= 0)
+                    mat(i * mw + (v >>> 6)) |= 1L << (v & 63)
+                }
+            System.arraycopy(acc, r * words, rhs, i * words, words)
+            }
+        val pivotRow = Array.fill(nv)(-1)
+        var top = 0
+        var v = 0
+        while (v < nv && top < m)
+            {
+            val w   = v >>> 6
+            val bit = 1L << (v & 63)
+            var p = top
+            while (p < m && (mat(p * mw + w) & bit) == 0)
+                p += 1
+            if (p < m)
+                {
+                if (p != top)
+                    {
+                    swap(mat, p * mw, top * mw, mw)
+                    swap(rhs, p * words, top * words, words)
+                    }
+                var i = 0
+                while (i < m)
+                    {
+                    if (i != top && (mat(i * mw + w) & bit) != 0)
+                        {
+                        LdpcStaircase.xor(mat, top * mw, mat, i * mw, mw)
+                        LdpcStaircase.xor(rhs, top * words, rhs, i * words, words)
+                        }
+                    i += 1
+                    }
+                pivotRow(v) = top
+                top += 1
+                }
+            v += 1
+            }
+        //an unknown is solved if its row has nothing else left in it
+        var ok = true
+        for (v <- 0 until nv)
+            {
+            val p = pivotRow(v)
+            val solved = p >= 0 && (0 until mw).forall(j =>
+                mat(p * mw + j) == (if (j == (v >>> 6)) 1L << (v & 63) else 0L))
+            if (solved)
+                {
+                System.arraycopy(rhs, p * words, symbols, cols(v) * words, words)
+                known(cols(v)) = true
+                }
+            else if (cols(v) < code.k)
+                ok = false
+            }
+        ok
+        }
+        
+    private def swap(arr: Array[Long], a: Int, b: Int, len: Int) =
+        {
+        var i = 0
+        while (i < len)
+            {
+            val t = arr(a + i)
+            arr(a + i) = arr(b + i)
+            arr(b + i) = t
+            i += 1
+            }
+        }
 }
 
 
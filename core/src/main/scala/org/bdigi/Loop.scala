@@ -226,6 +226,9 @@ class Agc(frequency: Double, sampleRate: Double)
 
     def update(v: Complex) : Complex =
         v * gain
+
+    def update(r: Double, i: Double, out: MutableComplex) : Unit =
+        out.set(r * gain, i * gain)
 }
 
 /**
@@ -260,6 +263,9 @@ class SlowAgc(milliseconds: Double, sampleRate: Double)
 
     def update(v: Complex) : Complex =
         v * gain
+
+    def update(r: Double, i: Double, out: MutableComplex) : Unit =
+        out.set(r * gain, i * gain)
 }
 
 
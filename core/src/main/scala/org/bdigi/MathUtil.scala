@@ -87,6 +87,29 @@ object Complex
 }
 
 
+/**
+ * A mutable complex value.  Use one of these as a reusable output slot
+ * in the per-sample paths, where making a new Complex for every sample
+ * would keep the garbage collector busy.
+ */
+final class MutableComplex(var r: Double = 0.0, var i: Double = 0.0)
+{
+    def set(nr: Double, ni: Double) : Unit =
+        {
+        r = nr
+        i = ni
+        }
+
+    def mag = r * r + i * i
+
+    def arg = FastMath.atan2(i, r)
+
+    def toComplex = Complex(r, i)
+
+    override def toString = "MutableComplex(" + r + "," + i + ")"
+}
+
+
 /**
  *  Place to put various math utilities
  */
@@ -41,6 +41,24 @@ class Nco(frequency: Double, sampleRate: Double)
         Nco.table((phase >> 16).toInt & 0xffff)
         }
         
+    /**
+     * The cosine and sine of the current phase, set by step.
+     */
+    var cos = 1.0
+    var sin = 0.0
+
+    /**
+     * Same as next, but leaves the result in cos and sin rather than
+     * returning a Complex.  Use this in the per-sample receive path.
+     */
+    def step : Unit =
+        {
+        phase += freq
+        val idx = (phase >> 16).toInt & 0xffff
+        cos = Nco.cosTable(idx)
+        sin = Nco.sinTable(idx)
+        }
+        
 }
 
 
@@ -67,6 +85,17 @@ class AdjustableNco(frequency: Double, maxErrInHz: Double, sampleRate: Double)
         Nco.table((phase >> 16).toInt & 0xffff)
         }
         
+    var cos = 1.0
+    var sin = 0.0
+
+    def step : Unit =
+        {
+        phase += freq
+        val idx = (phase >> 16).toInt & 0xffff
+        cos = Nco.cosTable(idx)
+        sin = Nco.sinTable(idx)
+        }
+        
 }
 
 
@@ -83,6 +112,12 @@ object Nco
         Complex( math.cos(angle), math.sin(angle) ) 
         })
 
+    /**
+     * The same values as table, split into primitive arrays
+     */
+    val cosTable = table.map(_.r)
+    val sinTable = table.map(_.i)
+
 }
 
 
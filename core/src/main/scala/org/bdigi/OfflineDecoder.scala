@@ -0,0 +1,135 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.io.File
+
+
+
+/**
+ * An App for decoding files, with no GUI and no sound devices.  The saved
+ * config is not loaded, since loading it would open the devices it names.
+ */
+class HeadlessApp extends App
+{
+    override def configLoad : Boolean =
+        false
+}
+
+
+
+/**
+ * Decodes a recording as fast as the CPU allows, through a decimator like
+ * par's and its current mode, the same chain that App.receive uses.  The
+ * waterfall is skipped, since nobody is watching.
+ *
+ * @param par the App whose mode to use
+ * @param blockSize the number of input samples handled at a time
+ */
+class OfflineDecoder(par: App, blockSize: Int = 8192)
+{
+    private val inbuf  = Array.ofDim[Double](blockSize)
+    
+    /**
+     * Run the rest of the input, or the next maxFrames of it, through the mode.
+     * @return the speed, in multiples of real time
+     */
+    def decode(input: FileAudioInput, maxFrames: Long = Long.MaxValue) : Double =
+        {
+        val decimator = RationalResampler.forRates(input.sampleRate, par.sampleRate)
+        val decbuf    = Array.ofDim[Double](decimator.outputSize(blockSize))
+        val startFrame = input.position
+        val start = System.nanoTime
+        var left  = maxFrames
+        var count = input.read(inbuf, 0, math.min(left, blockSize.toLong).toInt)
+        while (count > 0)
+            {
+            val dcount = decimator.resample(inbuf, 0, count, decbuf)
+            par.mode.receive(decbuf, 0, dcount)
+            left -= count
+            count = input.read(inbuf, 0, math.min(left, blockSize.toLong).toInt)
+            }
+        val seconds = (System.nanoTime - start) * 1.0e-9
+        val audioSeconds = (input.position - startFrame) / input.sampleRate
+        audioSeconds / math.max(seconds, 1.0e-9)
+        }
+}
+
+
+
+object OfflineDecoder
+{
+    /**
+     * Decode a file once with each of the named modes, each in a fresh HeadlessApp.
+     * @param text called with each mode's name and each piece of text it decodes
+     * @return the x-real-time for each mode, in order
+     */
+    def run(file: File, frequency: Double, modeNames: Seq[String])
+        (text: (String, String) => Unit) : Seq[(String, Double)] =
+        {
+        for (name <- modeNames) yield
+            {
+            val app = new HeadlessApp
+                {
+                override def puttext(msg: String) = text(name, msg)
+                }
+            val mode = app.modes.find(_.name == name)
+            if (mode.isEmpty)
+                {
+                app.error("OfflineDecoder: no mode named '" + name + "'")
+                (name, 0.0)
+                }
+            else
+                {
+                app.mode = mode.get
+                app.setFrequency(frequency)
+                val input = new FileAudioInput(app, file)
+                val speed = if (input.open) new OfflineDecoder(app).decode(input) else 0.0
+                input.close
+                (name, speed)
+                }
+            }
+        }
+
+    /**
+     * Usage:   OfflineDecoder file [frequency [mode ...]]
+     */
+    def main(args: Array[String]) : Unit =
+        {
+        if (args.length < 1)
+            {
+            println("usage: OfflineDecoder file [frequency [mode ...]]")
+            return
+            }
+        val file      = new File(args(0))
+        val frequency = if (args.length > 1) args(1).toDouble else 1000.0
+        val modeNames = if (args.length > 2) args.drop(2).toSeq else Seq("psk", "rtty", "packet", "navtex")
+        val results   = run(file, frequency, modeNames)((name, msg) => print(msg))
+        println
+        for ((name, speed) <- results)
+            println("%-8s %10.1f x real time".format(name, speed))
+        }
+}
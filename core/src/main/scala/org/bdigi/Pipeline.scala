@@ -0,0 +1,219 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.util.concurrent.locks.LockSupport
+
+
+
+/**
+ * One stage of the receive pipeline.  A thread with its own SampleRing,
+ * which it drains in blocks and hands to process().  Upstream calls offer(),
+ * which never blocks.  If a stage falls too far behind, its own ring overruns
+ * and it loses samples, but no other stage does.
+ *
+ * @param name the thread name
+ * @param size the size of the ring
+ */
+abstract class Stage(name: String, size: Int = 65536) extends Thread(name)
+{
+    setDaemon(true)
+    
+    val ring = new SampleRing(size)
+    
+    private val block     = Array.ofDim[Double](4096)
+    private val waitNanos = 20000000L
+    
+    @volatile var cont = true
+    
+    def abort =
+        {
+        cont = false
+        LockSupport.unpark(this)
+        }
+    
+    /**
+     * Do the work for a block of samples
+     */
+    def process(data: Array[Double], off: Int, len: Int) : Unit
+    
+    /**
+     * Queue up a block for this stage, and wake it.
+     * @return the number of samples that fit
+     */
+    def offer(data: Array[Double], off: Int, len: Int) : Int =
+        {
+        val count = ring.write(data, off, len)
+        LockSupport.unpark(this)
+        count
+        }
+    
+    override def run =
+        {
+        while (cont)
+            {
+            if (ring.available == 0)
+                LockSupport.parkNanos(waitNanos)
+            val count = ring.read(block, 0, block.length)
+            if (count > 0)
+                process(block, 0, count)
+            }
+        }
+}
+
+
+
+/**
+ * A staged receive pipeline, for spreading the work across cores.  The
+ * TRLoop decimates as before, then fans the samples out to one ring per
+ * stage:
+ *
+ *   - digi-spectrum runs the waterfall, records each row in par.history,
+ *     and queues it in a RowRing
+ *   - digi-decoder  runs the current mode
+ *   - any more stages attached with attach(), such as extra decoders
+ *
+ * and digi-ui wakes once per frame to pass all the rows waiting to
+ * par.updateSpectrum, so a slow GUI holds up nothing but itself.
+ * Throughput is then limited by the slowest stage, not by the sum of them.
+ *
+ * Threads cannot be restarted, so make a new Pipeline after stop.
+ */
+class Pipeline(par: App, frameMillis: Int = 40)
+{
+    val rows = new RowRing(64, par.wf.width)
+    
+    private val rowFunc = (row: Array[Int]) => 
+        {
+        par.recordSpectrum(row)
+        rows.write(row)
+        ()
+        }
+    
+    val spectrum = new Stage("digi-spectrum")
+        {
+        def process(data: Array[Double], off: Int, len: Int) =
+            if (par.spectrumEnabled)
+                par.wf.update(data, off, len)(rowFunc)
+        }
+    
+    val decoder = new Stage("digi-decoder")
+        {
+        def process(data: Array[Double], off: Int, len: Int) =
+            par.mode.receive(data, off, len)
+        }
+    
+    val ui = new Thread("digi-ui")
+        {
+        setDaemon(true)
+        
+        override def run =
+            {
+            while (running)
+                {
+                var row = rows.peek
+                while (row != null)
+                    {
+                    par.updateSpectrum(row)
+                    rows.release
+                    row = rows.peek
+                    }
+                Thread.sleep(frameMillis)
+                }
+            }
+        }
+    
+    @volatile private var stages  = Array[Stage](spectrum, decoder)
+    @volatile private var running = false
+    
+    //how long stop waits for each thread
+    private val joinMillis = 1000L + frameMillis
+    
+    /**
+     * Add another stage, which gets its own copy of every sample
+     */
+    def attach(stage: Stage) : Unit = synchronized
+        {
+        stages = stages :+ stage
+        if (running)
+            stage.start
+        }
+    
+    /**
+     * Remove and stop a stage added with attach()
+     */
+    def detach(stage: Stage) : Unit = synchronized
+        {
+        stages = stages.filterNot(_ eq stage)
+        stage.abort
+        }
+
+    def start : Unit = synchronized
+        {
+        running = true
+        stages.foreach(_.start)
+        ui.start
+        }
+    
+    /**
+     * Stop the threads and wait for them, so that a new Pipeline never runs
+     * the mode or the waterfall, neither of which is thread-safe, alongside
+     * this one
+     */
+    def stop : Unit = synchronized
+        {
+        running = false
+        stages.foreach(_.abort)
+        stages.foreach(_.join(joinMillis))
+        ui.join(joinMillis)
+        }
+    
+    /**
+     * Fan a block of decimated samples out to every stage
+     */
+    def receive(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        val s = stages
+        var i = 0
+        while (i < s.length)
+            {
+            s(i).offer(data, off, len)
+            i += 1
+            }
+        }
+    
+    /**
+     * Samples lost, by all stages, because they fell behind
+     */
+    def dropped : Long =
+        stages.map(_.ring.dropped).sum
+    
+    /**
+     * Waterfall rows lost because the GUI fell behind
+     */
+    def droppedRows : Long =
+        rows.overruns
+}
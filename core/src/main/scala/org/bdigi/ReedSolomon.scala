@@ -25,267 +25,28 @@
 
 package org.bdigi
 
-
-
-/*
-class GField(primitive: Int)
-{
-    private var x = 1
-    val expTable = Array.fill(256)
-        {
-        val v = x
-        x <<= 1
-        if (x >= 0x100)
-            x^= primitive
-        v
-        }
-        
-    val logTable = Array.ofDim[Int](256)
-    for (i <- 0 until 255)
-        logTable(expTable(i)) = i
-
-    val zero = new GPoly(this, Array(0))
-    val one  = new GPoly(this, Array(1))
-    
-    def monomial(degree:Int, coefficient: Int) =
-        {
-        if (coefficient == 0)
-            zero
-        else
-            {
-            val arr = Array.ofDim[Int](degree + 1)
-            arr(0) = coefficient
-            new GPoly(this, arr)
-            }
-        }
-        
-    def exp(a: Int) = expTable(a)
-    
-    def log(a: Int) = logTable(a)
-    
-    def inv(a: Int) = expTable(255 - logTable(a))
-    
-    def mul(a: Int, b: Int) =
-        {
-        if (a == 0 || b == 0)
-            0
-        else if (a == 1)
-            b
-        else if (b == 1)
-            a
-        else
-            expTable((logTable(a) + logTable(b)) % 255)
-        }
-    
-}
-
-object GField
-{
-    lazy val QR_CODE_FIELD = new GField(0x011D)
-    lazy val DATA_MATRIX_FIELD = new GField(0x012D)
-}
-
-class GPoly(val field: GField, val coefficients: Array[Int])
-{
-    val coeffs : Array[Int] = 
-        {
-        if (coefficients.size > 1 && coefficients(0)==0)
-            {
-            val firstNonZero = coefficients.indexWhere(_ != 0)
-            if (firstNonZero < 0) 
-                field.zero.coeffs
-            else
-                coefficients.takeRight(coefficients.size - firstNonZero)
-            }
-        else
-            coefficients
-        }
-        
-    val size = coeffs.size
-    val degree = size - 1
-    val isZero = coeffs(0) == 0
-    def coeff(degree: Int) = coeffs(size - 1 - degree)
-    
-    def eval(a: Int) =
-        {
-        if (a == 0)
-            coeff(0)
-        else if (a == 1)
-            {
-            coeffs.foldLeft(0)(_ ^ _)
-            }
-        else
-            {
-            coeffs.foldLeft(0)((acc,v) => field.mul(a, acc) ^ v)
-            }
-        }
-        
-    private def parcheck(other: GPoly) =
-        if (field != other.field)
-            throw new IllegalArgumentException("two GPolys do not have the same field")
-        
-    def addOrSubtract(other: GPoly) : GPoly =
-        {
-        parcheck(other)
-        if (isZero)
-            other
-        else if (other.isZero)
-            this
-        else
-            new GPoly(field, coeffs.zipAll(other.coeffs, 0, 0).map(p=>p._1 ^ p._2))
-        }
-        
-    def +(other: GPoly) = addOrSubtract(other)
-    def -(other: GPoly) = addOrSubtract(other)
-    
-    
-    def *(other: GPoly) : GPoly =
-        {
-        parcheck(other)
-        if (isZero || other.isZero)
-            field.zero
-        else
-            {
-            val product = Array.ofDim[Int](size + other.size - 1)
-            for (i <- 0 until size)
-                {
-                val coeff = coeffs(i)
-                for (j <- 0 until other.size)
-                    product(i+j) ^= field.mul(coeff, other.coeffs(j))
-                }
-            new GPoly(field, product)
-            }
-        }
-        
-    def *(scalar: Int) : GPoly =
-        {
-        if (scalar == 0)
-            field.zero
-        else if (scalar == 1)
-            this
-        else
-           new GPoly(field, coeffs.map(p=> field.mul(p, scalar)))
-        }
-
-    def *(degree: Int, coeff: Int) : GPoly =
-        {
-        if (coeff == 0)
-            field.zero
-        else
-            new GPoly(field, coeffs.map(p=> field.mul(p, coeff)).padTo(size + degree, 0))
-        }
-
-    def divide(other: GPoly) : (GPoly,GPoly) =
-        {
-        parcheck(other)
-        if (other.isZero)
-            throw new IllegalArgumentException("Divide by zero")
-        var quotient = field.zero
-        var remainder = this
-        val denominatorLeadingTerm = other.coeff(other.degree)
-        val inverseDenominatorLeadingTerm = field.inv(denominatorLeadingTerm)
-
-        while (remainder.degree >= other.degree && !remainder.isZero) 
-            {
-            val degreeDifference = remainder.degree - other.degree
-            val scale = field.mul(remainder.coeff(remainder.degree), inverseDenominatorLeadingTerm)
-            val term = other *(degreeDifference, scale)
-            val iterationQuotient = field.monomial(degreeDifference, scale)
-            quotient = quotient - iterationQuotient
-            remainder = remainder - term
-            }
-        (quotient, remainder)
-        }
-
-}
-
-
-class ReedSolomonEncoder(val primitive: Int)
-{
-    val field = new GField(primitive)
-    
-    private val generators = scala.collection.mutable.ListBuffer[GPoly]()
-    
-    def generator(degree: Int) : GPoly =
-        {
-        if (degree >= generators.size)
-            {
-            var last = generators.last
-            for (d <- generators.size to degree)
-                {
-                val next = last * (new GPoly(field, Array(1, field.exp(d-1))))
-                generators += next
-                last = next
-                }
-            }
-        generators(degree)
-        }
-        
-    def encode(data: Array[Int], nrCorr: Int) : Array[Int] =
-        {
-        val size = data.size
-        if (nrCorr == 0 || nrCorr >= size)
-            throw new IllegalArgumentException("Incorrect # correction bytes specified")
-        val gen       = generator(nrCorr)
-        val info      = new GPoly(field, data)
-        val info2     = info * (nrCorr, 1)
-        val remainder = info2.divide(gen)._2
-        val ecbytes   = remainder.coeffs
-        val pad       = nrCorr - ecbytes.size
-        data ++ Array.fill(pad)(0) ++ ecbytes
-        }
-        
-}
-
-
-class ReedSolomonDecoder(val primitive: Int)
-{
-    val field = new GField(primitive)
-    
-    def decode(in: Array[Int], nrCorr: Int) : Option[Array[Int]] =
-        {
-        val data = in.take(in.size - nrCorr)
-        val poly = new GPoly(field, in)
-        val synCoeffs = Array.tabulate(nrCorr)( i=> poly.eval(field.exp(nrCorr-i)))
-        if (synCoeffs.exists(_ !=0))
-            {
-            val syn = new GPoly(field, synCoeffs)
-            val sigmaOmega = euclidean(field.monomial(nrCoeffs, 1) syn, nrCoeff)
-            val sigma = sigmaOmega._1
-            val omega = sigmaOmega._2
-            val errLocs = findErrorLocations(sigma)
-            val errMags = findErrorMagnitudes(omega, errLocs)
-            for (i <- 0 until errLocs.size)
-                {
-                val pos = in.size - 1 -field.log(errLocs(i))
-                if (pos < 0)
-                   throw new Exception("Bad error location")
-                data(pos) ^= errMags(i)
-                }
-            }
-        data
-        }
-        
-    
-
-
-}
-
-*/
-
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService}
 
 
 
 /**
  * The 3 specifications for a Reed-Solomon code
  *  
- * Note, jt65 uses RS(63, 55) with a poly of 0x43: x^6 + x + 1
- * Instantiate this with params: (63, 55, 1, 1) 
+ * Note, jt65 uses RS(63, 12) with a poly of 0x43: x^6 + x + 1, fcr 3
+ * Instantiate this with params: (63, 12, 0x43, 3, 1) 
  * 
- * CCDSS is (255,223) is 0x87: x^8 + x^7 + x^2 + x^1 + 1
- * Instantiate this with params: (225, 223, 0x87, 112, 11) 
+ * CCDSS is (255,223) is 0x187: x^8 + x^7 + x^2 + x^1 + 1
+ * Instantiate this with params: (255, 223, 0x187, 112, 11) 
+ *
+ * Symbols are carried one per byte.  A codeword is its data followed by
+ * its checkSize parity symbols, and may be shortened: a codeword of len
+ * symbols has size - len implied zeros in front.
+ *
+ * The tables are built once and only read after, so an instance can be
+ * shared between threads.  Encoding needs no scratch; decoding needs a
+ * ReedSolomonDecoder for each thread.
  */
-class ReedSolomon(size: Int, dataSize: Int, gfPoly: Int, fcr: Int = 1, prim: Int = 1) 
+class ReedSolomon(val size: Int, val dataSize: Int, gfPoly: Int, val fcr: Int = 1, val prim: Int = 1) 
 {
     val power =   // order of the code
         {
@@ -295,12 +56,19 @@ class ReedSolomon(size: Int, dataSize: Int, gfPoly: Int, fcr: Int = 1, prim: Int
             { siz >>= 1 ; pwr += 1}
         pwr
         }
-    println("=== power:" + power)
     val bits       = power
+    
+    if (size != (1 << power) - 1 || power > 8)
+        throw new IllegalArgumentException("size must be 2^m-1, m <= 8: " + size)
 
-    val checkSize  = size - dataSize    //number of check bits
+    val checkSize  = size - dataSize    //number of check symbols
     val tt         = checkSize / 2      //errors that can be corrected
     
+    /**
+     * The log of zero, in index form
+     */
+    val A0 = size
+    
     //These tables describe the galois field according to
     //the primitivePoly
     val alphaTo    = Array.ofDim[Int](size + 1)
@@ -317,12 +85,13 @@ class ReedSolomon(size: Int, dataSize: Int, gfPoly: Int, fcr: Int = 1, prim: Int
             mask ^= gfPoly;  
         mask &= size 
         }
-    indexOf(0) = -1  //Error.  See encodeBlock() for how this is used
+    indexOf(0) = A0
+    alphaTo(A0) = 0
     
     if (mask != 1)
         throw new IllegalArgumentException("poly is not a primitive: " + gfPoly)
 
-    private def mod(x: Int) : Int =
+    def mod(x: Int) : Int =
         {
         var v = x
         while (v >= size)
@@ -368,12 +137,29 @@ class ReedSolomon(size: Int, dataSize: Int, gfPoly: Int, fcr: Int = 1, prim: Int
             gp(0) = alphaTo(mod(indexOf(gp(0)) + root))
             root += prim
             }
-
-        println("genPoly1: " + gp.mkString(", "))
         // convert genPoly to index form for quicker encoding
         gp.map(indexOf)
         }
-            
+        
+    /**
+     * x times each generator coefficient, in poly form: genMul(j * (size+1) + x)
+     * is g(j) * x, so that the encoder's shift register needs no logs.
+     */
+    val genMul = mulTable(checkSize, j => genPoly(j))
+    
+    /**
+     * The same for each root of the generator: rootMul(i * (size+1) + x)
+     * is x * alpha^((fcr+i)*prim), one Horner step of syndrome i.
+     */
+    val rootMul = mulTable(checkSize, i => mod((fcr + i) * prim))
+    
+    private def mulTable(n: Int, logOf: Int => Int) =
+        {
+        val tab = Array.ofDim[Int](n * (size + 1))
+        for (j <- 0 until n ; x <- 1 to size)
+            tab(j * (size + 1) + x) = alphaTo(mod(indexOf(x) + logOf(j)))
+        tab
+        }
  
     override def toString : String =
         {
@@ -391,323 +177,506 @@ class ReedSolomon(size: Int, dataSize: Int, gfPoly: Int, fcr: Int = 1, prim: Int
 
 
     /** 
-     * take the string of symbols in data[i], i=0..(k-1) and encode systematically
-     * to produce 2*tt parity symbols in bb[0]..bb[2*tt-1]
-     * data[] is input and bb[] is output in polynomial form.
-     * Encoding is done by using a feedback shift register with appropriate
-     * connections specified by the elements of gg[], which was generated above.
+     * Encode systematically, in place: the codeword's first len - checkSize
+     * symbols are the data, and its last checkSize symbols receive the parity.
+     * Symbol j of the codeword is cw(off + j * stride).
+     *
+     * Encoding is done by a feedback shift register with connections given
+     * by the generator, the parity slots themselves serving as the register.
      * Codeword is   c(X) = data(X)*X**(nn-kk)+ b(X)
      */
-    def encodeBlock(data: Array[Int]) : Array[Int] =
+    def encode(cw: Array[Byte], off: Int, len: Int, stride: Int = 1) : Unit =
         {
-        val csize = checkSize / 4
-        var feedback = 0
-        val check = Array.ofDim[Int](csize) 
-        
-        //
-        for (i <- 0 until data.size)
-            {  
-            feedback = indexOf(data(i) ^ check(0))
-            if (feedback != -1)
+        val dlen = len - checkSize
+        if (dlen < 0 || dlen > dataSize)
+            throw new IllegalArgumentException("Wrong codeword size: " + len)
+        val nn = size + 1
+        val pbase = off + dlen * stride
+        var j = 0
+        while (j < checkSize)
+            {
+            cw(pbase + j * stride) = 0
+            j += 1
+            }
+        var i = 0
+        while (i < dlen)
+            {
+            val fb = ((cw(off + i * stride) ^ cw(pbase)) & size)
+            var j = 1
+            while (j < checkSize)
                 {
-                //feedback = mod(size - genPoly(checkSize) + feedback)
-                for (j <- 1 until csize)
-                    check(j) ^= alphaTo(mod(feedback + genPoly(csize - j)))
+                val p = pbase + j * stride
+                cw(p - stride) = (cw(p) ^ genMul((checkSize - j) * nn + fb)).toByte
+                j += 1
                 }
-            //shift left
-            for (i <- 1 until csize)
-                check(i-1) = check(i)
-            //fill rightmost slot
-            if (feedback != -1)
-                check(csize-1) = alphaTo(mod(feedback + genPoly(0)))
-            else
-                check(csize-1) = 0
+            cw(pbase + (checkSize - 1) * stride) = genMul(fb).toByte
+            i += 1
             }
-        check
         }
-
-    /** 
+        
+    /**
+     * Encode up to dataSize data symbols
+     * @return the data, followed by the parity
      */
-    def encode(indata: Array[Int], append: Boolean = true) : Array[Int] =
+    def encode(data: Array[Byte]) : Array[Byte] =
         {
-        println("data size " + dataSize)
-        val pad = dataSize - indata.size - 1
-        val data = 
-            {
-            if (append)
-                indata ++ Array.fill(pad)(0)
-            else
-                Array.fill(pad)(0) ++ indata
-            }
-        encodeBlock(data) ++ indata
+        val cw = java.util.Arrays.copyOf(data, data.size + checkSize)
+        encode(cw, 0, cw.size)
+        cw
+        }
+        
+    /**
+     * Decode a codeword made by encode(data), with a fresh decoder
+     * @return the corrected data, or None if there were too many errors
+     */
+    def decode(cw: Array[Byte]) : Option[Array[Byte]] =
+        {
+        val fixed = cw.clone
+        if (new ReedSolomonDecoder(this).decode(fixed, 0, fixed.size) < 0)
+            None
+        else
+            Some(fixed.take(fixed.size - checkSize))
         }
+}
 
 
 
+/**
+ * The decoding half of a ReedSolomon code: syndromes, then Berlekamp-Massey
+ * for the error locator, a Chien search for its roots and Forney's
+ * formula for the values.  All of the working polynomials are allocated
+ * here once, so decoding allocates nothing, but an instance is for one
+ * thread.
+ *
+ * The procedure is that found in Lin and Costello, as arranged by Phil Karn.
+ */
+class ReedSolomonDecoder(val rs: ReedSolomon)
+{
+    import rs.{alphaTo, indexOf, mod, size, checkSize, A0}
+    
+    private val nn     = size + 1
+    private val syn    = Array.ofDim[Int](checkSize)
+    private val lambda = Array.ofDim[Int](checkSize + 1)
+    private val b      = Array.ofDim[Int](checkSize + 1)
+    private val t      = Array.ofDim[Int](checkSize + 1)
+    private val omega  = Array.ofDim[Int](checkSize + 1)
+    private val reg    = Array.ofDim[Int](checkSize + 1)
+    private val root   = Array.ofDim[Int](checkSize)
+    private val loc    = Array.ofDim[Int](checkSize)
+    
+    //syndromes for decodeBatch, grown as needed
+    private var batchSyn = Array.ofDim[Int](0)
+    
     /**
-     * Assume we have received bits grouped into mm-bit symbols in recd[i],
-     * i=0..(nn-1).
-     * We first compute the 2*tt syndromes by substituting alpha**i into rec(X) and
-     * evaluating, storing the syndromes in s[i], i=1..2tt (leave s[0] zero) .
-     *      
-     * Then we use the Berlekamp iteration to find the error location polynomial
-     * elp[i].   If the degree of the elp is >tt, we cannot correct all the errors
-     * and hence just put out the information symbols uncorrected. If the degree of
-     * elp is <=tt, we substitute alpha**i , i=1..n into the elp to get the roots,
-     * hence the inverse roots, the error location numbers. If the number of errors
-     * located does not equal the degree of the elp, we have more than tt errors
-     * and cannot correct them.  Otherwise, we then solve for the error value at
-     * the error location and correct the error.
-     * 
-     * The procedure is that found in Lin and Costello. For the cases where the
-     * number of errors is known to be too large to correct, the information 
-     * symbols as received are output (the advantage of systematic encoding is
-     * that hopefully some of the information symbols will be okay and that if
-     * we are in luck, the errors are in the parity part of the transmitted 
-     * codeword).  Of course, these insoluble cases can be returned as error
-     * flags to the calling routine if desired.
+     * Evaluate the codeword at each root of the generator, into
+     * s(soff until soff + checkSize), by Horner's rule on the tables.
+     * @return true if any is nonzero, that is, there are errors
      */
-    def decodeBlock(data: Array[Int], erasures: Array[Int]) : Option[Array[Int]] =
+    def syndromes(cw: Array[Byte], off: Int, len: Int, stride: Int, s: Array[Int], soff: Int) : Boolean =
         {
-        if (data.size != size)
-            throw new IllegalArgumentException("Wrong data size: " + data.size +
-            ".  Expected: " + size)
-            
-        val pad = 0 //fixme.  do we expect padded data, or do we account for a pad here?
-
-        // first form the syndromes
-        val d0 = data(0)
-        var s = Array.fill(checkSize)(d0)
-
-        for (j <- 1 until size)
+        val tab = rs.rootMul
+        val d0 = cw(off) & size
+        var i = 0
+        while (i < checkSize)
             {
-            for (i <- 0 until checkSize)
+            s(soff + i) = d0
+            i += 1
+            }
+        var j = 1
+        while (j < len)
+            {
+            val d = cw(off + j * stride) & size
+            var i = 0
+            while (i < checkSize)
                 {
-                if (s(i) == 0)
-                    s(i) = data(j)
-                else
-                    s(i) = data(j) ^ alphaTo(mod(indexOf(s(i)) + (fcr+i) * prim))
+                s(soff + i) = tab(i * nn + s(soff + i)) ^ d
+                i += 1
                 }
+            j += 1
             }
-
-        if (s.forall(_ == 0))
+        var any = 0
+        i = 0
+        while (i < checkSize)
             {
-            // no non-zero syndromes => no errors, nothing to correct
-            // output received codeword
-            println("no errors")
-            return Some(data)
+            any |= s(soff + i)
+            i += 1
             }
+        any != 0
+        }
 
-        s = s.map(indexOf)
-
-        var lambda = Array.ofDim[Int](checkSize+1)
+    /**
+     * Correct a codeword in place.  Symbol j is cw(off + j * stride).
+     * Erasures, if any, are the positions of symbols known to be bad.
+     * @return the number of symbols corrected, or -1 if there were too many
+     */
+    def decode(cw: Array[Byte], off: Int, len: Int, stride: Int = 1,
+               erasures: Array[Int] = null, nErasures: Int = 0) : Int =
+        {
+        if (len <= checkSize || len > size)
+            throw new IllegalArgumentException("Wrong codeword size: " + len)
+        if (syndromes(cw, off, len, stride, syn, 0) || nErasures > 0)
+            correct(cw, off, len, stride, syn, 0, erasures, nErasures)
+        else
+            0
+        }
+        
+    /**
+     * Decode count codewords of len symbols, one after another from off.
+     * Every syndrome is found first, in one pass over the batch, and only the
+     * codewords with errors go on to be corrected.
+     * @param results receives each codeword's decode result, if not null
+     * @return the number of codewords that could not be corrected
+     */
+    def decodeBatch(buf: Array[Byte], off: Int, len: Int, count: Int, results: Array[Int] = null) : Int =
+        {
+        if (batchSyn.length < count * checkSize)
+            batchSyn = Array.ofDim[Int](count * checkSize)
+        val s = batchSyn
+        var c = 0
+        while (c < count)
+            {
+            syndromes(buf, off + c * len, len, 1, s, c * checkSize)
+            c += 1
+            }
+        var failed = 0
+        c = 0
+        while (c < count)
+            {
+            var any = 0
+            var i = 0
+            while (i < checkSize)
+                {
+                any |= s(c * checkSize + i)
+                i += 1
+                }
+            val res = if (any == 0) 0 else correct(buf, off + c * len, len, 1, s, c * checkSize, null, 0)
+            if (res < 0)
+                failed += 1
+            if (results != null)
+                results(c) = res
+            c += 1
+            }
+        failed
+        }
+        
+    private def correct(cw: Array[Byte], off: Int, len: Int, stride: Int,
+                        s: Array[Int], soff: Int, erasures: Array[Int], nErasures: Int) : Int =
+        {
+        val pad = size - len
+        // Convert syndromes to index form
+        var i = 0
+        while (i < checkSize)
+            {
+            syn(i) = indexOf(s(soff + i))
+            i += 1
+            }
+        java.util.Arrays.fill(lambda, 0)
         lambda(0) = 1
 
-        if (erasures.size > 0)
+        if (nErasures > 0)
             {
             // Init lambda to be the erasure locator polynomial
-            lambda(1) = alphaTo(mod(prim * (size-1-erasures(0))))
-            for (i <- 0 until erasures.size)
+            lambda(1) = alphaTo(mod(rs.prim * (size - 1 - (erasures(0) + pad))))
+            var i = 1
+            while (i < nErasures)
                 {
-                val u = mod(prim * (size - 1 - erasures(i)))
-                for (j <- i+1 until 0 by -1)
+                val u = mod(rs.prim * (size - 1 - (erasures(i) + pad)))
+                var j = i + 1
+                while (j > 0)
                     {
                     val tmp = indexOf(lambda(j-1))
-                    if (tmp != -1)
+                    if (tmp != A0)
                         lambda(j) ^= alphaTo(mod(u + tmp))
+                    j -= 1
                     }
+                i += 1
                 }
             }
-
-        //initialize the output
-        val b = lambda.map(indexOf)
+        i = 0
+        while (i <= checkSize)
+            {
+            b(i) = indexOf(lambda(i))
+            i += 1
+            }
   
         /*
          * Begin Berlekamp-Massey algorithm to determine error+erasure
          * locator polynomial
          */
-        var discr_r = 0
-        var el = erasures.size
-        var r = 0
-        for (r <- erasures.size+1 to checkSize)
+        var el = nErasures
+        var r = nErasures + 1
+        while (r <= checkSize)
             {
             // Compute discrepancy at the r-th step in poly-form
-            discr_r = 0
-            for (i <- 0 until r)
+            var discr = 0
+            i = 0
+            while (i < r)
                 {
-                if ((lambda(i) != 0) && (s(r-i-1) != -1))
-                    discr_r ^= alphaTo(mod(indexOf(lambda(i)) + s(r-i-1)))
+                if (lambda(i) != 0 && syn(r-i-1) != A0)
+                    discr ^= alphaTo(mod(indexOf(lambda(i)) + syn(r-i-1)))
+                i += 1
                 }
-           }
-
-        discr_r = indexOf(discr_r)  // Index form
-        if (discr_r == -1) 
-            {
-            // 2 lines below: B(x) <-- x*B(x)
-            for (i <- 1 until b.size)
-                b(i) = b(i-1)
-            b(0) = -1
-            }
-        else 
-            {
-            // 7 lines below: T(x) <-- lambda(x) - discr_r*x*b(x)
-            val t = Array.ofDim[Int](lambda.size)
-            t(0) = lambda(0)
-            for (i <- 0 until checkSize) 
-                {
-	            if (b(i) != -1)
-	                t(i+1) = lambda(i+1) ^ alphaTo(mod(discr_r + b(i)))
-	            else
-	                t(i+1) = lambda(i+1)
-                }
-            if (2 * el <= r + erasures.size - 1)
+            discr = indexOf(discr)  // Index form
+            if (discr == A0) 
                 {
-	            el = r + erasures.size - el
-	            // 2 lines below: B(x) <-- inv(discr_r) * lambda(x)
-	            for (i <- 0 to checkSize)
-	                b(i) = if (lambda(i) == 0) -1 else mod(indexOf(lambda(i)) - discr_r + size)
+                // B(x) <-- x*B(x)
+                System.arraycopy(b, 0, b, 1, checkSize)
+                b(0) = A0
                 }
-            else
+            else 
                 {
-                // 2 lines below: B(x) <-- x*B(x) 
-                for (i <- 1 until b.size)
-                    b(i) = b(i-1)
-                b(0) = -1
+                // T(x) <-- lambda(x) - discr*x*b(x)
+                t(0) = lambda(0)
+                i = 0
+                while (i < checkSize)
+                    {
+                    t(i+1) = if (b(i) != A0) lambda(i+1) ^ alphaTo(mod(discr + b(i))) else lambda(i+1)
+                    i += 1
+                    }
+                if (2 * el <= r + nErasures - 1)
+                    {
+                    el = r + nErasures - el
+                    // B(x) <-- inv(discr) * lambda(x)
+                    i = 0
+                    while (i <= checkSize)
+                        {
+                        b(i) = if (lambda(i) == 0) A0 else mod(indexOf(lambda(i)) - discr + size)
+                        i += 1
+                        }
+                    }
+                else
+                    {
+                    // B(x) <-- x*B(x) 
+                    System.arraycopy(b, 0, b, 1, checkSize)
+                    b(0) = A0
+                    }
+                System.arraycopy(t, 0, lambda, 0, checkSize + 1)
                 }
-            lambda = t
+            r += 1
             }
 
-
         // Convert lambda to index form and find deg(lambda(x)) 
-        lambda = lambda.map(indexOf)
-        val deg_lambda = lambda.indexWhere(_ != (-1))
+        var degLambda = 0
+        i = 0
+        while (i <= checkSize)
+            {
+            lambda(i) = indexOf(lambda(i))
+            if (lambda(i) != A0)
+                degLambda = i
+            i += 1
+            }
     
         // Find roots of the error+erasure locator polynomial by Chien search 
-        val root = scala.collection.mutable.ListBuffer[Int]()
-        val loc  = scala.collection.mutable.ListBuffer[Int]()
-        val reg = lambda.clone
-        reg(0)  = 0
-        var count   = 0        // Number of roots of lambda(x) 
-        var k   = iprim -1
-        for (i <- 1 to size)
+        System.arraycopy(lambda, 0, reg, 0, checkSize + 1)
+        var count = 0        // Number of roots of lambda(x) 
+        var k     = rs.iprim - 1
+        i = 1
+        while (i <= size && count < degLambda)
             {
             var q = 1 // lambda(0) is always 0 
-            for (j <- deg_lambda until 0 by -1)
+            var j = degLambda
+            while (j > 0)
                 {
-                if (reg(j) != -1)
+                if (reg(j) != A0)
                     {
                     reg(j) = mod(reg(j) + j)
                     q ^= alphaTo(reg(j))
                     }
+                j -= 1
                 }
             if (q == 0) //is this a root?
                 {
                 // store root (index-form) and error location number 
-                println("count: " + count + " root: " + i + " loc: " + k)
-                root.append(i)
-                loc.append(k)
+                root(count) = i
+                loc(count)  = k
                 count += 1    
-                // If we've already found max possible roots, abort the search to save time
-                //if(count == deg_lambda) break
                 }
-            k = mod(k+iprim)
+            k = mod(k + rs.iprim)
+            i += 1
             }
     
         //deg(lambda) unequal to number of roots => uncorrectable error detected
-        if (deg_lambda != count)
+        if (degLambda != count)
+            return -1
+        //so is an error in the implied zeros of a shortened code
+        i = 0
+        while (i < count)
             {
-            count = -1
-            return None
+            if (loc(i) < pad)
+                return -1
+            i += 1
             }
 
         // @see http://en.wikipedia.org/wiki/Forney_algorithm
         //  omega is the error evaluator polynomial, calculated by:
         //  omega(x) = s(x)*lambda(x) (modulo x**checkSize). 
         //  in index form. Also find deg(omega).   
-        var deg_omega = deg_lambda-1
-        val omega = Array.ofDim[Int](deg_omega+1)
-        for (i <- 0 to deg_omega)
+        val degOmega = degLambda - 1
+        i = 0
+        while (i <= degOmega)
             {
             var sum = 0
-            for(j <- i to 0 by -1)
+            var j = i
+            while (j >= 0)
                 {
-                if ((s(i - j) != -1) && (lambda(j) != -1))
-                    sum ^= alphaTo(mod(s(i - j) + lambda(j)))
+                if (syn(i - j) != A0 && lambda(j) != A0)
+                    sum ^= alphaTo(mod(syn(i - j) + lambda(j)))
+                j -= 1
                 }
             omega(i) = indexOf(sum)
+            i += 1
             }
 
         // Compute error values in poly-form. num1 = omega(inv(X(l))), num2 =
         // inv(X(l))**(FCR-1) and den = lambda_pr(inv(X(l))) all in poly-form
-        for (j <- count-1 to 0 by -1)
+        var j = count - 1
+        while (j >= 0)
             {
             var num1 = 0
-            for (i <- deg_omega to 0 by -1)
+            i = degOmega
+            while (i >= 0)
                 {
-                if (omega(i) != -1)
-                    num1  ^= alphaTo(mod(omega(i) + i * root(j)))
+                if (omega(i) != A0)
+                    num1 ^= alphaTo(mod(omega(i) + i * root(j)))
+                i -= 1
                 }
-            var num2 = alphaTo(mod(root(j) * (fcr - 1) + size))
+            val num2 = alphaTo(mod(root(j) * (rs.fcr - 1) + size))
             var den = 0
-        
             // lambda(i+1) for i even is the formal derivative lambda_pr of lambda(i) 
-            val start = deg_lambda min (checkSize-1)
-            for (i <- start to 0 by -2)
+            i = math.min(degLambda, checkSize - 1) & ~1
+            while (i >= 0)
                 {
-                if (lambda(i+1) != -1)
+                if (lambda(i+1) != A0)
                     den ^= alphaTo(mod(lambda(i+1) + i * root(j)))
+                i -= 2
                 }
-    
             // Apply error to data 
-            if (num1 != 0 && loc(j) >= pad)
+            if (num1 != 0)
                 {
-                data(loc(j) - pad) ^= alphaTo(mod(indexOf(num1) +
-                     indexOf(num2) + size - indexOf(den)))
+                val p = off + (loc(j) - pad) * stride
+                cw(p) = (cw(p) ^ alphaTo(mod(indexOf(num1) + indexOf(num2) + size - indexOf(den)))).toByte
                 }
-            
+            j -= 1
             }
-        
-        println("fixed errors:" + count)
-        
-        Some(data)
-        }// decodeBlock
+        count
+        }
+}
 
 
-    /** 
-     * Remember that if we pad in encode(), then we must do it
-     * the same way here.         
+
+/**
+ * Interleaved Reed-Solomon: depth codewords of len symbols, with symbol j
+ * of codeword i at buf(off + j * depth + i), so that a burst of errors on
+ * the channel is spread across many codewords.  The codewords are
+ * independent, so they are decoded in place in parallel: they are split
+ * into one group per worker, each with its own decoder.
+ */
+class InterleavedReedSolomon(val rs: ReedSolomon, val depth: Int,
+                             val workers: Int = Runtime.getRuntime.availableProcessors)
+{
+    /**
+     * If set, the groups are decoded concurrently on this, rather than
+     * one after the other on the caller's thread.  decode() still waits
+     * for all of them to finish.
      */
-    def decode(indata: Array[Int], append: Boolean = true) : Option[Array[Int]] =
+    @volatile var executor : Option[ExecutorService] = None
+    
+    private class Group(val first: Int, val last: Int) extends Callable[Unit]
+    {
+        val decoder = new ReedSolomonDecoder(rs)
+        var buf     : Array[Byte] = _
+        var off     = 0
+        var len     = 0
+        var results : Array[Int] = _
+        var failed  = 0
+        
+        def call =
+            {
+            failed = 0
+            var i = first
+            while (i < last)
+                {
+                val res = decoder.decode(buf, off + i, len, depth)
+                if (res < 0)
+                    failed += 1
+                if (results != null)
+                    results(i) = res
+                i += 1
+                }
+            }
+    }
+    
+    private val groups =
+        {
+        val n = math.max(1, math.min(workers, depth))
+        Array.tabulate(n)(g => new Group(g * depth / n, (g + 1) * depth / n))
+        }
+        
+    private val tasks =
         {
-        val pad = size - indata.size
-        val dsize = dataSize - pad
-        val data = if (append)
-                indata.take(dsize) ++ Array.fill(pad)(0) ++ indata.takeRight(checkSize)
-            else
-                Array.fill(pad)(0) ++ indata
-        val res = decodeBlock(data, Array.ofDim[Int](0))
-        if (res.isDefined)
+        val xs = new java.util.ArrayList[Callable[Unit]]()
+        groups.foreach(xs.add)
+        xs
+        }
+    
+    /**
+     * Fill in the parity of every codeword
+     */
+    def encode(buf: Array[Byte], off: Int, len: Int) : Unit =
+        for (i <- 0 until depth)
+            rs.encode(buf, off + i, len, depth)
+    
+    /**
+     * Correct every codeword in place
+     * @param results receives each codeword's decode result, if not null
+     * @return the number of codewords that could not be corrected
+     * @throws IllegalArgumentException if len does not fit the code, from
+     *  either path
+     */
+    def decode(buf: Array[Byte], off: Int, len: Int, results: Array[Int] = null) : Int = synchronized
+        {
+        for (g <- groups)
             {
-            val out = if (append) res.get.take(dsize) else res.get.slice(pad, dsize)
-            Some(out)
+            g.buf     = buf
+            g.off     = off
+            g.len     = len
+            g.results = results
+            g.failed  = 0
+            }
+        try
+            {
+            executor match
+                {
+                case Some(ex) =>
+                    val futures = ex.invokeAll(tasks)
+                    var t = 0
+                    while (t < futures.size)
+                        {
+                        try
+                            {
+                            futures.get(t).get  //rethrow any failure here
+                            }
+                        catch
+                            {
+                            case e: ExecutionException => throw e.getCause
+                            }
+                        t += 1
+                        }
+                case None =>
+                    groups.foreach(_.call)
+                }
+            var failed = 0
+            for (g <- groups)
+                failed += g.failed
+            failed
+            }
+        finally
+            {
+            for (g <- groups)
+                {
+                g.buf     = null
+                g.results = null
+                }
             }
-        else
-            None
         }
-
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
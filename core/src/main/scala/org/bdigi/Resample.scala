@@ -284,6 +284,19 @@ object Resampler
     private val c0719 = -0.000571381
     private val c0720 = -0.00000
 
+    /**
+     * The same coefficients as above, gathered into one array per decimation
+     * for the table-driven block methods in Resampler
+     */
+    private val coeffTable = Map(
+        2 -> Array(c0200, c0201, c0202, c0203, c0204, c0205),
+        3 -> Array(c0300, c0301, c0302, c0303, c0304, c0305, c0306, c0307, c0308),
+        4 -> Array(c0400, c0401, c0402, c0403, c0404, c0405, c0406, c0407, c0408, c0409, c0410, c0411),
+        5 -> Array(c0500, c0501, c0502, c0503, c0504, c0505, c0506, c0507, c0508, c0509, c0510, c0511, c0512, c0513, c0514),
+        6 -> Array(c0600, c0601, c0602, c0603, c0604, c0605, c0606, c0607, c0608, c0609, c0610, c0611, c0612, c0613, c0614, c0615, c0616, c0617),
+        7 -> Array(c0700, c0701, c0702, c0703, c0704, c0705, c0706, c0707, c0708, c0709, c0710, c0711, c0712, c0713, c0714, c0715, c0716, c0717, c0718, c0719, c0720)
+        )
+
     abstract class Resampler(val decimation: Int)
     {
         var d0 = 0.0
@@ -303,6 +316,52 @@ object Resampler
         def decimate(v: Double)(f: (Double) => Unit) : Unit
         
         def interpolate(v: Double)(f: (Double) => Unit) : Unit
+
+        //########################################
+        //# Block version.  This keeps its own
+        //# state, so do not mix it with calls to
+        //# the per-sample decimate() above
+        //########################################
+        
+        private val coeffs = coeffTable.getOrElse(decimation, Array(0.0, 1.0, 0.0))
+        private val twice  = decimation * 2
+        private val dl     = Array.ofDim[Double](decimation + 2)
+        private var dptr   = 2
+        
+        /**
+         * Decimate a block of samples into out, which should have room for
+         * at least len / decimation + 1 values.
+         * @return the number of values written to out
+         */
+        def decimate(in: Array[Double], off: Int, len: Int, out: Array[Double]) : Int =
+            {
+            var optr = 0
+            var n    = off
+            val end  = off + len
+            while (n < end)
+                {
+                dl(dptr) = in(n)
+                dptr += 1
+                n += 1
+                if (dptr >= decimation + 2)
+                    {
+                    dptr = 2
+                    var sum = 0.0
+                    var p = 0
+                    while (p < decimation)
+                        {
+                        sum += dl(p) * coeffs(p) + dl(p+1) * coeffs(p + decimation) +
+                               dl(p+2) * coeffs(p + twice)
+                        p += 1
+                        }
+                    dl(0) = dl(decimation)
+                    dl(1) = dl(decimation + 1)
+                    out(optr) = sum
+                    optr += 1
+                    }
+                }
+            optr
+            }
     }
 
 
@@ -310,6 +369,11 @@ object Resampler
     {
         def decimate(v: Double)(f: Double => Unit) = f(v)
         def interpolate(v: Double)(f: Double => Unit) = f(v)
+        override def decimate(in: Array[Double], off: Int, len: Int, out: Array[Double]) : Int =
+            {
+            System.arraycopy(in, off, out, 0, len)
+            len
+            }
     }//Resampler1
         
     class Resampler2 extends Resampler(2)
@@ -647,6 +711,19 @@ object ResamplerX
     private val c0719 = -0.000571381
     private val c0720 = -0.00000
 
+    /**
+     * The same coefficients as above, gathered into one array per decimation
+     * for the table-driven primitive methods in Resampler
+     */
+    private val coeffTable = Map(
+        2 -> Array(c0200, c0201, c0202, c0203, c0204, c0205),
+        3 -> Array(c0300, c0301, c0302, c0303, c0304, c0305, c0306, c0307, c0308),
+        4 -> Array(c0400, c0401, c0402, c0403, c0404, c0405, c0406, c0407, c0408, c0409, c0410, c0411),
+        5 -> Array(c0500, c0501, c0502, c0503, c0504, c0505, c0506, c0507, c0508, c0509, c0510, c0511, c0512, c0513, c0514),
+        6 -> Array(c0600, c0601, c0602, c0603, c0604, c0605, c0606, c0607, c0608, c0609, c0610, c0611, c0612, c0613, c0614, c0615, c0616, c0617),
+        7 -> Array(c0700, c0701, c0702, c0703, c0704, c0705, c0706, c0707, c0708, c0709, c0710, c0711, c0712, c0713, c0714, c0715, c0716, c0717, c0718, c0719, c0720)
+        )
+
     abstract class Resampler(val decimation: Int)
     {
         var d0 = Complex(0.0)
@@ -666,12 +743,129 @@ object ResamplerX
         def decimate(v: Complex)(f: (Complex) => Unit) : Unit
         
         def interpolate(v: Complex)(f: (Complex) => Unit) : Unit
+
+        //########################################
+        //# Split real/imaginary versions.  These
+        //# compute the same sums as the hand-coded
+        //# ones, but with no Complex allocations
+        //########################################
+        
+        private val coeffs = coeffTable.getOrElse(decimation, Array(0.0, 1.0, 0.0))
+        private val twice  = decimation * 2
+        private val dr     = Array.ofDim[Double](decimation + 2)
+        private val di     = Array.ofDim[Double](decimation + 2)
+        private var dptr   = 2
+        
+        def decimate(r: Double, i: Double)(f: (Double, Double) => Unit) : Unit =
+            {
+            dr(dptr) = r
+            di(dptr) = i
+            dptr += 1
+            if (dptr >= decimation + 2)
+                {
+                dptr = 2
+                var sumr = 0.0
+                var sumi = 0.0
+                var p = 0
+                while (p < decimation)
+                    {
+                    val c0 = coeffs(p)
+                    val c1 = coeffs(p + decimation)
+                    val c2 = coeffs(p + twice)
+                    sumr += dr(p) * c0 + dr(p+1) * c1 + dr(p+2) * c2
+                    sumi += di(p) * c0 + di(p+1) * c1 + di(p+2) * c2
+                    p += 1
+                    }
+                dr(0) = dr(decimation)
+                dr(1) = dr(decimation + 1)
+                di(0) = di(decimation)
+                di(1) = di(decimation + 1)
+                f(sumr, sumi)
+                }
+            }
+
+        /**
+         * Decimate a block of split complex samples into outr and outi, which
+         * should have room for at least len / decimation + 1 values.  This shares
+         * its state with decimate(r, i), so the two can be mixed.  The output
+         * arrays may be the same as the input arrays.
+         * @return the number of values written to the output arrays
+         */
+        def decimate(inr: Array[Double], ini: Array[Double], off: Int, len: Int,
+                     outr: Array[Double], outi: Array[Double]) : Int =
+            {
+            var optr = 0
+            var n    = off
+            val end  = off + len
+            while (n < end)
+                {
+                dr(dptr) = inr(n)
+                di(dptr) = ini(n)
+                dptr += 1
+                n += 1
+                if (dptr >= decimation + 2)
+                    {
+                    dptr = 2
+                    var sumr = 0.0
+                    var sumi = 0.0
+                    var p = 0
+                    while (p < decimation)
+                        {
+                        val c0 = coeffs(p)
+                        val c1 = coeffs(p + decimation)
+                        val c2 = coeffs(p + twice)
+                        sumr += dr(p) * c0 + dr(p+1) * c1 + dr(p+2) * c2
+                        sumi += di(p) * c0 + di(p+1) * c1 + di(p+2) * c2
+                        p += 1
+                        }
+                    dr(0) = dr(decimation)
+                    dr(1) = dr(decimation + 1)
+                    di(0) = di(decimation)
+                    di(1) = di(decimation + 1)
+                    outr(optr) = sumr
+                    outi(optr) = sumi
+                    optr += 1
+                    }
+                }
+            optr
+            }
+
+        private var ir0 = 0.0
+        private var ir1 = 0.0
+        private var ir2 = 0.0
+        private var ii0 = 0.0
+        private var ii1 = 0.0
+        private var ii2 = 0.0
+        
+        def interpolate(r: Double, i: Double)(f: (Double, Double) => Unit) : Unit =
+            {
+            ir0 = ir1 ; ir1 = ir2 ; ir2 = r
+            ii0 = ii1 ; ii1 = ii2 ; ii2 = i
+            var p = 0
+            while (p < decimation)
+                {
+                val c0 = coeffs(p)
+                val c1 = coeffs(p + decimation)
+                val c2 = coeffs(p + twice)
+                f(ir0 * c0 + ir1 * c1 + ir2 * c2, ii0 * c0 + ii1 * c1 + ii2 * c2)
+                p += 1
+                }
+            }
     }
 
     class Resampler1 extends Resampler(1)
     {
         def decimate(v: Complex)(f: Complex => Unit) = f(v)
         def interpolate(v: Complex)(f: Complex => Unit) = f(v)
+        override def decimate(r: Double, i: Double)(f: (Double, Double) => Unit) = f(r, i)
+        override def interpolate(r: Double, i: Double)(f: (Double, Double) => Unit) = f(r, i)
+        override def decimate(inr: Array[Double], ini: Array[Double], off: Int, len: Int,
+                     outr: Array[Double], outi: Array[Double]) : Int =
+            {
+            System.arraycopy(inr, off, outr, 0, len)
+            System.arraycopy(ini, off, outi, 0, len)
+            len
+            }
     }//Resampler1
         
     class Resampler2 extends Resampler(2)
@@ -939,3 +1133,237 @@ class Decimator(size: Int, inRate: Double, outRate: Double)
         
 }
 
+
+
+
+/**
+ * Resamples by any rational factor up/down, with a polyphase filter whose
+ * coefficients are generated here, rather than hand-coded like the ones in
+ * Resampler and ResamplerX.  App uses this to go from whatever rate the
+ * sound device runs at to its own working rate in one step.
+ *
+ * The prototype is a Blackman-windowed sinc with its cutoff at the lower of
+ * the two Nyquist frequencies, split into up phases of taps coefficients.
+ * Only the phases that land on an output sample are ever computed.
+ * Tables are shared between instances, see RationalResampler.table.
+ *
+ * The real and complex methods keep separate histories, so one instance
+ * can do both.  The per-sample and block versions of each share theirs.
+ *
+ * @param interpolation L, the upsampling factor
+ * @param decimation M, the downsampling factor
+ * @param quality the filter half-length, in samples at the lower of the two
+ *     rates.  Higher is a sharper cutoff, for proportionally more work.
+ */
+class RationalResampler(interpolation: Int, decimation: Int, val quality: Int = RationalResampler.defaultQuality)
+{
+    require(interpolation > 0 && decimation > 0, "resampling factors must be positive: " +
+        interpolation + "/" + decimation)
+
+    private val g = BigInt(interpolation).gcd(BigInt(decimation)).toInt
+    
+    val up   = interpolation / g
+    val down = decimation / g
+    
+    /**
+     * Output samples per input sample
+     */
+    val ratio = up.toDouble / down
+    
+    private val table = RationalResampler.table(up, down, quality)
+    
+    val taps = table.length / up
+    
+    /**
+     * The most samples that len input samples can produce.  Size output
+     * arrays for the block methods with this.
+     */
+    def outputSize(len: Int) : Int =
+        ((len.toLong * up + down - 1) / down).toInt + 1
+    
+    //the phase of the next output sample, relative to the newest input sample
+    private var phase  = 0
+    private var phaseC = 0
+    
+    //mirrored delay lines, as in Fir, so that the newest taps are always contiguous
+    private val dl     = Array.ofDim[Double](taps * 2)
+    private val dlr    = Array.ofDim[Double](taps * 2)
+    private val dli    = Array.ofDim[Double](taps * 2)
+    private var dptr   = 0
+    private var dptrC  = 0
+    
+    private def dot(line: Array[Double], start: Int, p: Int) : Double =
+        {
+        var sum = 0.0
+        var t   = p * taps
+        var i   = start
+        val end = start + taps
+        while (i < end)
+            {
+            sum += line(i) * table(t)
+            t += 1
+            i += 1
+            }
+        sum
+        }
+        
+    //########################################
+    //# Real
+    //########################################
+    
+    def resample(v: Double)(f: Double => Unit) : Unit =
+        {
+        dl(dptr) = v
+        dl(dptr + taps) = v
+        dptr += 1
+        if (dptr >= taps)
+            dptr = 0
+        while (phase < up)
+            {
+            f(dot(dl, dptr, phase))
+            phase += down
+            }
+        phase -= up
+        }
+        
+    /**
+     * Resample a block of samples into out, which should have room for
+     * outputSize(len) values.  When up <= down, out may be the same array
+     * as in, with off = 0.
+     * @return the number of values written to out
+     */
+    def resample(in: Array[Double], off: Int, len: Int, out: Array[Double]) : Int =
+        {
+        var optr = 0
+        var n    = off
+        val end  = off + len
+        while (n < end)
+            {
+            val v = in(n)
+            dl(dptr) = v
+            dl(dptr + taps) = v
+            dptr += 1
+            if (dptr >= taps)
+                dptr = 0
+            while (phase < up)
+                {
+                out(optr) = dot(dl, dptr, phase)
+                optr += 1
+                phase += down
+                }
+            phase -= up
+            n += 1
+            }
+        optr
+        }
+        
+    //########################################
+    //# Complex, split into real and imaginary
+    //########################################
+    
+    def resample(r: Double, i: Double)(f: (Double, Double) => Unit) : Unit =
+        {
+        dlr(dptrC) = r
+        dlr(dptrC + taps) = r
+        dli(dptrC) = i
+        dli(dptrC + taps) = i
+        dptrC += 1
+        if (dptrC >= taps)
+            dptrC = 0
+        while (phaseC < up)
+            {
+            f(dot(dlr, dptrC, phaseC), dot(dli, dptrC, phaseC))
+            phaseC += down
+            }
+        phaseC -= up
+        }
+        
+    /**
+     * Resample a block of split complex samples into outr and outi, which
+     * should have room for outputSize(len) values.  When up <= down, the
+     * output arrays may be the input arrays, with off = 0.
+     * @return the number of values written to the output arrays
+     */
+    def resample(inr: Array[Double], ini: Array[Double], off: Int, len: Int,
+                 outr: Array[Double], outi: Array[Double]) : Int =
+        {
+        var optr = 0
+        var n    = off
+        val end  = off + len
+        while (n < end)
+            {
+            val r = inr(n)
+            val i = ini(n)
+            dlr(dptrC) = r
+            dlr(dptrC + taps) = r
+            dli(dptrC) = i
+            dli(dptrC + taps) = i
+            dptrC += 1
+            if (dptrC >= taps)
+                dptrC = 0
+            while (phaseC < up)
+                {
+                outr(optr) = dot(dlr, dptrC, phaseC)
+                outi(optr) = dot(dli, dptrC, phaseC)
+                optr += 1
+                phaseC += down
+                }
+            phaseC -= up
+            n += 1
+            }
+        optr
+        }
+}
+
+
+
+object RationalResampler
+{
+    val defaultQuality = 12
+
+    private val tables = scala.collection.mutable.Map[(Int, Int, Int), Array[Double]]()
+    
+    /**
+     * The polyphase coefficients for resampling by up/down, which should be in
+     * lowest terms.  Phase p is the taps values starting at p * taps, in
+     * oldest-first order, and includes the gain of up.  These are generated
+     * once for each (up, down, quality), and shared, so do not modify them.
+     */
+    def table(up: Int, down: Int, quality: Int) : Array[Double] = tables.synchronized
+        {
+        tables.getOrElseUpdate((up, down, quality), genTable(up, down, quality))
+        }
+        
+    private def genTable(up: Int, down: Int, quality: Int) : Array[Double] =
+        {
+        val widest = math.max(up, down)
+        val taps   = math.max(1, (2 * quality * widest + up - 1) / up)
+        val size   = taps * up
+        val cutoff = 0.5 / widest
+        val center = (size - 1) * 0.5
+        val window = Window.Blackman(size)
+        val h = Array.tabulate(size)(k =>
+            {
+            val x = 2.0 * cutoff * (k - center)
+            val sinc = if (math.abs(x) < 1.0e-12) 1.0 else math.sin(math.Pi * x) / (math.Pi * x)
+            sinc * window(k)
+            })
+        val gain = up / h.sum
+        val t = Array.ofDim[Double](size)
+        for (p <- 0 until up ; i <- 0 until taps)
+            t(p * taps + taps - 1 - i) = h(p + i * up) * gain
+        t
+        }
+        
+    /**
+     * A resampler from inRate to outRate.  The rates are rounded to whole
+     * samples/sec, which covers every sound device we know of.
+     */
+    def forRates(inRate: Double, outRate: Double, quality: Int = defaultQuality) : RationalResampler =
+        {
+        val in  = math.round(inRate)
+        val out = math.round(outRate)
+        val g   = BigInt(in).gcd(BigInt(out)).toLong
+        new RationalResampler((out / g).toInt, (in / g).toInt, quality)
+        }
+}
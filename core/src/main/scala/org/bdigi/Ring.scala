@@ -0,0 +1,234 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.util.concurrent.atomic.AtomicLong
+
+
+
+/**
+ * A lock-free ring of samples between exactly one producer thread and
+ * exactly one consumer thread, such as audio capture and the DSP loop.
+ * Everything is preallocated, so neither side allocates or blocks.
+ *
+ * Each side owns one of the two positions.  They only ever grow, and we mask
+ * them into the array.  A side publishes its position with lazySet, after
+ * it has copied the samples, so the other side never sees a slot before
+ * its data is there.
+ *
+ * If the producer finds the ring full, it drops the samples that do not fit
+ * and counts an overrun.  If the consumer finds it empty, it counts an underrun.
+ *
+ * @param size the requested capacity, rounded up to a power of two
+ */
+class SampleRing(size: Int)
+{
+    val capacity =
+        {
+        var c = 1
+        while (c < size)
+            c <<= 1
+        c
+        }
+    
+    private val mask = capacity - 1
+    private val buf  = Array.ofDim[Double](capacity)
+    
+    private val writePos = new AtomicLong(0L)
+    private val readPos  = new AtomicLong(0L)
+    
+    //each is written by only one side, but may be read by anyone
+    @volatile private var overrunCount  = 0L
+    @volatile private var droppedCount  = 0L
+    @volatile private var underrunCount = 0L
+    
+    /**
+     * The number of writes that did not fit completely
+     */
+    def overruns : Long = overrunCount
+    
+    /**
+     * The number of samples lost to overruns
+     */
+    def dropped : Long = droppedCount
+
+    /**
+     * The number of reads that found the ring empty
+     */
+    def underruns : Long = underrunCount
+    
+    /**
+     * The number of samples waiting to be read.  This is a snapshot, and is
+     * only exact when called from one of the two sides.
+     */
+    def available : Int =
+        (writePos.get - readPos.get).toInt
+    
+    /**
+     * The room left for writing
+     */
+    def free : Int =
+        capacity - available
+    
+    /**
+     * How full the ring is, 0.0 to 1.0.  Use this for backpressure decisions.
+     */
+    def fill : Double =
+        available.toDouble / capacity
+    
+    /**
+     * Producer side.  Copy up to len samples in, dropping any that do not fit.
+     * @return the number of samples written
+     */
+    def write(data: Array[Double], off: Int, len: Int) : Int =
+        {
+        val wp    = writePos.get
+        val room  = capacity - (wp - readPos.get).toInt
+        val count = if (len < room) len else room
+        if (count < len)
+            {
+            overrunCount += 1
+            droppedCount += len - count
+            }
+        if (count > 0)
+            {
+            val start = (wp & mask).toInt
+            val first = math.min(count, capacity - start)
+            System.arraycopy(data, off, buf, start, first)
+            if (first < count)
+                System.arraycopy(data, off + first, buf, 0, count - first)
+            writePos.lazySet(wp + count)
+            }
+        count
+        }
+
+    /**
+     * Consumer side.  Copy up to len waiting samples out.
+     * @return the number of samples read, which is 0 on an underrun
+     */
+    def read(data: Array[Double], off: Int, len: Int) : Int =
+        {
+        val rp    = readPos.get
+        val avail = (writePos.get - rp).toInt
+        val count = if (len < avail) len else avail
+        if (count <= 0)
+            {
+            underrunCount += 1
+            0
+            }
+        else
+            {
+            val start = (rp & mask).toInt
+            val first = math.min(count, capacity - start)
+            System.arraycopy(buf, start, data, off, first)
+            if (first < count)
+                System.arraycopy(buf, 0, data, off + first, count - first)
+            readPos.lazySet(rp + count)
+            count
+            }
+        }
+
+    /**
+     * Consumer side.  Throw away everything waiting.
+     */
+    def clear : Unit =
+        readPos.lazySet(writePos.get)
+}
+
+
+
+/**
+ * A lock-free ring of fixed-width Int rows, such as waterfall lines, between
+ * one producer and one consumer thread.  The rows are preallocated and
+ * reused, so the producer claims a row, fills it and publishes it, and the
+ * consumer peeks at the oldest row and releases it when done.  A full ring
+ * drops the new row and counts an overrun.
+ *
+ * @param size the requested number of rows, rounded up to a power of two
+ * @param width the length of each row
+ */
+class RowRing(size: Int, val width: Int)
+{
+    val capacity =
+        {
+        var c = 1
+        while (c < size)
+            c <<= 1
+        c
+        }
+    
+    private val mask = capacity - 1
+    private val rows = Array.ofDim[Int](capacity, width)
+    
+    private val writePos = new AtomicLong(0L)
+    private val readPos  = new AtomicLong(0L)
+    
+    @volatile private var overrunCount = 0L
+    
+    /**
+     * The number of rows dropped because the ring was full
+     */
+    def overruns : Long = overrunCount
+    
+    def available : Int =
+        (writePos.get - readPos.get).toInt
+
+    /**
+     * Producer side.  Copy a row in, or drop it if there is no room.
+     * @return true if the row was queued
+     */
+    def write(row: Array[Int]) : Boolean =
+        {
+        val wp = writePos.get
+        if (wp - readPos.get >= capacity)
+            {
+            overrunCount += 1
+            false
+            }
+        else
+            {
+            System.arraycopy(row, 0, rows((wp & mask).toInt), 0, math.min(row.length, width))
+            writePos.lazySet(wp + 1)
+            true
+            }
+        }
+
+    /**
+     * Consumer side.  The oldest row, or null if there is none.  The row
+     * belongs to the consumer until release is called.
+     */
+    def peek : Array[Int] =
+        {
+        val rp = readPos.get
+        if (rp == writePos.get) null else rows((rp & mask).toInt)
+        }
+    
+    /**
+     * Consumer side.  Give the row from peek back to the ring.
+     */
+    def release : Unit =
+        readPos.lazySet(readPos.get + 1)
+}
@@ -0,0 +1,260 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+import java.io.{File, RandomAccessFile}
+import java.nio.{ByteOrder, MappedByteBuffer}
+import java.nio.channels.FileChannel
+
+
+
+/**
+ * A history of waterfall rows, kept in a memory-mapped ring file, so hours
+ * of spectra cost the heap nothing but one row of scratch.  Each row is
+ * stored as 8-bit levels with its timestamp, and rows are numbered from 0
+ * in the order they were appended.  Once the ring is full the oldest rows
+ * are overwritten, so the rows held are [first, count).
+ *
+ * The count lives in the file header, so reopening a file with the same
+ * width and capacity picks up where it left off.  Any other file is
+ * started afresh.
+ *
+ * One thread appends (the spectrum thread) while others read; all methods
+ * are synchronized, and each holds the lock for one row at most.
+ *
+ * @param file the ring file
+ * @param width the length of each row, see WaterfallFactory.width
+ * @param capacity the number of rows to keep
+ */
+class SpectrumHistory(val file: File, val width: Int, val capacity: Int)
+{
+    import SpectrumHistory._
+    
+    require(width > 0 && capacity > 0, "width and capacity must be positive")
+    
+    /**
+     * Each slot is an 8-byte timestamp and the row, padded to 8 bytes
+     */
+    private val slot = (8 + width + 7) & ~7
+    private val size = headerSize.toLong + slot.toLong * capacity
+    require(size <= Int.MaxValue, "history of " + size + " bytes is too large to map")
+    
+    private val raf = new RandomAccessFile(file, "rw")
+    private val fresh = raf.length != size
+    raf.setLength(size)
+    private val buf : MappedByteBuffer = raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+    buf.order(ByteOrder.LITTLE_ENDIAN)
+    
+    private val scratch = Array.ofDim[Byte](width)
+    
+    private var nrRows   = 0L
+    private var lastTime = Long.MinValue
+
+    if (fresh || buf.getInt(0) != magic || buf.getInt(4) != width || buf.getInt(8) != capacity)
+        {
+        buf.putInt(0, magic)
+        buf.putInt(4, width)
+        buf.putInt(8, capacity)
+        buf.putLong(16, 0L)
+        }
+    else
+        {
+        nrRows = buf.getLong(16)
+        if (nrRows > 0)
+            lastTime = timeOf(nrRows - 1)
+        }
+        
+    private def offsetOf(index: Long) =
+        headerSize + (index % capacity).toInt * slot
+        
+    private def timeOf(index: Long) =
+        buf.getLong(offsetOf(index))
+    
+    /**
+     * The number of rows ever appended, which is also the index of the next
+     */
+    def count : Long = synchronized { nrRows }
+    
+    /**
+     * The index of the oldest row still held
+     */
+    def first : Long = synchronized { math.max(0L, nrRows - capacity) }
+    
+    /**
+     * Add a row of levels, which are clamped to 0..255.  Timestamps are kept
+     * in order, so a clock that steps back repeats the last time instead.
+     */
+    def append(row: Array[Int], time: Long = System.currentTimeMillis) : Unit = synchronized
+        {
+        val t = math.max(time, lastTime)
+        val n = math.min(width, row.length)
+        var i = 0
+        while (i < n)
+            {
+            val v = row(i)
+            scratch(i) = (if (v < 0) 0 else if (v > 255) 255 else v).toByte
+            i += 1
+            }
+        while (i < width)
+            {
+            scratch(i) = 0
+            i += 1
+            }
+        val pos = offsetOf(nrRows)
+        buf.putLong(pos, t)
+        buf.position(pos + 8)
+        buf.put(scratch, 0, width)
+        nrRows += 1
+        lastTime = t
+        buf.putLong(16, nrRows)
+        }
+    
+    /**
+     * Copy a row into out, which must hold width levels.
+     * @return the row's timestamp, or -1 if the row is not held
+     */
+    def read(index: Long, out: Array[Int]) : Long = synchronized
+        {
+        if (index < math.max(0L, nrRows - capacity) || index >= nrRows)
+            -1L
+        else
+            {
+            val pos = offsetOf(index)
+            val t = buf.getLong(pos)
+            buf.position(pos + 8)
+            buf.get(scratch, 0, width)
+            var i = 0
+            while (i < width)
+                {
+                out(i) = scratch(i) & 0xff
+                i += 1
+                }
+            t
+            }
+        }
+    
+    /**
+     * The timestamp of a row, or -1 if the row is not held
+     */
+    def time(index: Long) : Long = synchronized
+        {
+        if (index < math.max(0L, nrRows - capacity) || index >= nrRows)
+            -1L
+        else
+            timeOf(index)
+        }
+    
+    /**
+     * The index of the first row held at or after time, or count if none is.
+     * A binary search on the timestamps, so O(log capacity).
+     */
+    def indexAt(time: Long) : Long = synchronized
+        {
+        var lo = math.max(0L, nrRows - capacity)
+        var hi = nrRows
+        while (lo < hi)
+            {
+            val mid = (lo + hi) >>> 1
+            if (timeOf(mid) < time)
+                lo = mid + 1
+            else
+                hi = mid
+            }
+        lo
+        }
+    
+    /**
+     * Pass the rows in [from, to) that are still held to f, oldest first,
+     * with their timestamps.  The row array is reused, so copy it to keep it.
+     * @return the number of rows passed
+     */
+    def rows(from: Long, to: Long)(f: (Long, Array[Int]) => Unit) : Int =
+        {
+        val row = Array.ofDim[Int](width)
+        var index = math.max(from, first)
+        val end = math.min(to, count)
+        var n = 0
+        while (index < end)
+            {
+            val t = read(index, row)
+            if (t >= 0)
+                {
+                f(t, row)
+                n += 1
+                }
+            index += 1
+            }
+        n
+        }
+    
+    /**
+     * Pass the rows timestamped in [start, end) to f, oldest first
+     */
+    def between(start: Long, end: Long)(f: (Long, Array[Int]) => Unit) : Int =
+        rows(indexAt(start), indexAt(end))(f)
+    
+    /**
+     * Pass the newest n rows to f, oldest first.  This is what a waterfall
+     * needs to repaint itself after a resize.
+     */
+    def latest(n: Int)(f: (Long, Array[Int]) => Unit) : Int =
+        {
+        val end = count
+        rows(end - n, end)(f)
+        }
+    
+    /**
+     * Write the mapped pages out to the file
+     */
+    def flush : Unit = synchronized
+        {
+        buf.force
+        }
+    
+    def close : Unit = synchronized
+        {
+        buf.force
+        raf.close
+        }
+}
+
+
+object SpectrumHistory
+{
+    val magic      = 0x42445746   //"BDWF"
+    val headerSize = 64
+    
+    /**
+     * Open a history that holds the given number of hours of rows from a
+     * waterfall
+     */
+    def apply(file: File, wf: WaterfallFactory, hours: Double) : SpectrumHistory =
+        {
+        val rowsPerSecond = wf.frameRate / wf.rowEvery
+        new SpectrumHistory(file, wf.width, math.max(1, (hours * 3600.0 * rowsPerSecond).toInt))
+        }
+}
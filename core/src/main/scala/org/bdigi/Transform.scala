@@ -683,8 +683,6 @@ class FFTSR(N: Int) {
               xi(i2) = ti0 // .mul(w1);
               xr(i3) = tr1 // .mul(w3);
               xi(i3) = ti1 // .mul(w3);
-              n2 >>= 1
-              n4 >>= 1
             }
           ix = (id << 1) - n2
           id <<= 2
@@ -743,6 +741,9 @@ class FFTSR(N: Int) {
                 id <<= 2
                 }
             }
+
+        n2 >>= 1
+        n4 >>= 1
         }
 
         id=4
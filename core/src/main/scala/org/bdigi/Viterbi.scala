@@ -75,253 +75,251 @@ trait Convolutional
 
 /**
  * Viterbi convolutional code decoder
- * @param k the constraint of the convolutional code
+ *
+ * The path metrics are two flat Int arrays, swapped every step, and the
+ * survivor decisions are packed one bit per state into a ring of Longs
+ * depth steps long.  Each step is a run of branchless add-compare-select
+ * butterflies.  Every chunkSize steps it traces back from the best state
+ * and delivers the oldest chunkSize bits of the window, so output lags
+ * input by depth - chunkSize bits.
+ *
+ * @param k the constraint of the convolutional code, 2 to 9 or so
  * @param poly1 the left-hand generator polynomial
  * @param poly2 the right-hand generator polynomial   
+ * @param chunkSize bits delivered per traceback.  The window is 8 times this.
  */
 class ViterbiDecoder(val k: Int, val poly1: Int, val poly2: Int, chunkSize: Int = 8)
      extends Convolutional
 {
+    require(k >= 2, "constraint length must be at least 2")
 
-
+    /**
+     * How much the best path metric grew over the last chunk.  Lower is better.
+     */
     var lastMetric       = 0
 
     private val depth    = chunkSize * 8
     private val size     = 1 << k
     private val nrStates = 1 << (k - 1)
-    private var currPtr  = 0
-    private var prevPtr  = depth - 1
-    private var metrics  = Array.ofDim[Int](depth, nrStates) //error metrics
-    private var history  = Array.ofDim[Int](depth, nrStates) //the state history table
-    private val seq      = Array.ofDim[Int](depth)
+    private val half     = nrStates >> 1
+    private val words    = (nrStates + 63) >> 6
+    private var prev     = Array.ofDim[Int](nrStates)  //error metrics of the last step
+    private var curr     = Array.ofDim[Int](nrStates)  //and of this one
+    private val surv     = Array.ofDim[Long](depth * words) //survivor bits, words per step
+    private var ptr      = 0   //the step being written
+    private var steps    = 0   //steps since the last traceback
+    private val bm       = Array.ofDim[Int](4)
+    private val chunk    = Array.ofDim[Boolean](chunkSize)
 
     val output = Array.tabulate(size)(i => 
         { (parity(poly1 & i) << 1) | (parity(poly2 & i)) })
 
+    //for new state n, the output on the way from n>>1, and from (n>>1) + half
+    private val outLo = Array.tabulate(nrStates)(n => output(n))
+    private val outHi = Array.tabulate(nrStates)(n => output(n + nrStates))
+
     def printMetrics(distance: Int = 8) =
         {
         println("==== Metrics/History ====")
-        var pp = prevPtr
-        for (i <- 0 until distance)
+        println(prev.map("%5d".format(_)).mkString(" "))
+        var p = ptr
+        for (i <- 0 until math.min(distance, depth))
             {
-            for (j <- 0 until nrStates)
-                {
-                print("(%5d %5d) ".format(metrics(pp)(j), history(pp)(j)))                
-                }
-            println
-            pp -= 1
-            if (pp < 0)
-                pp = depth - 1
+            p = if (p == 0) depth - 1 else p - 1
+            val base = p * words
+            println((0 until nrStates).map(s => (surv(base + (s >> 6)) >>> (s & 63)) & 1).mkString)
             }            
         }
     
     def reset =
         {
-        metrics = Array.ofDim[Int](depth, nrStates)
-        history = Array.ofDim[Int](depth, nrStates)
-        currPtr = 0
-        prevPtr = depth - 1
+        java.util.Arrays.fill(prev, 0)
+        java.util.Arrays.fill(curr, 0)
+        java.util.Arrays.fill(surv, 0L)
+        ptr   = 0
+        steps = 0
         }
     
     /**
-     * Used to provide a good Euclidean distance for symbols with values 0..255
-     * The table is square, and is created for the origin 0,0 so
-     * distance(00 -> xy) = table(x)(y).  
-     * To get distances to the other three poles, just reverse the corresponding
-     * values.     
-     * So...
-     * distance(01 -> xy) = output(x)(255-y)  
-     * distance(10 -> xy) = output(255-x)(y)  
-     * distance(11 -> xy) = output(255-x)(255-y)  
-     *                              
+     * Select the state having the smallest accumulated error metric, and
+     * follow its survivors back through the window.  The inputs that led to
+     * the chunkSize oldest states on that path are the decoded bits.
      */
-    val distanceTable =
+    private def traceback(out: Array[Boolean], off: Int) : Int =
         {
-        val arr = Array.ofDim[Short](256, 256)
-        for (i <- 0 until 256 ; j <- 0 until 256)
-            {
-            val dist : Short = math.round(math.sqrt((i * i) + (j * j)).toDouble).toShort
-            arr(i)(j) = dist
-            }
-        arr
-        }
-    
-    def traceback() : Seq[Boolean] =
-        {
-        /**
-         * First, select the state having the smallest accumulated
-         * error metric and save the state number of that state.
-         * Since currPtr has been incremented after the last sample,
-         * prevPtr points at the last recorded values.                  
-         */         
         var min  = Int.MaxValue
         var best = 0
-        for (i <- 0 until nrStates)
+        var i = 0
+        while (i < nrStates)
             {
-            val v = metrics(prevPtr)(i)
+            val v = prev(i)
             if (v < min) 
                 {
                 min  = v
                 best = i
                 }
+            i += 1
             }
-        //println("p: " + prevPtr + " best: " + best)
-        
-        /**
-         * Working backward through the state history table, for the
-         * selected state, select a new state which is listed in the
-         * state history table as being the predecessor to that state.
-         * Save the state number of each selected state. This step is
-         * called traceback.      
-         */
-        var p = prevPtr
-        var ps = best
-        seq(p) = best
-        for (i <- 1 until depth-1)
+        lastMetric = min
+        //keep the metrics small.  Only their differences matter.
+        i = 0
+        while (i < nrStates)
             {
-            ps = history(p)(ps)
-            //println("p: " + p + " ps:" + ps)
-            seq(p) = ps
-            p -= 1
-            if (p < 0)
-                p = depth-1
+            prev(i) -= min
+            i += 1
             }
 
-        lastMetric = metrics(prevPtr)(best) - metrics(p)(ps)
-        
-        /**
-         * Now work forward through the list of selected states saved in
-         * the previous steps. Look up what input bit corresponds to a
-         * transition from each predecessor state to its successor state.
-         * That is the bit that must have been encoded by the convolutional
-         * encoder.
-         */                 
-        val res = Array.fill(chunkSize)
+        val shift = k - 2
+        var s = best
+        var p = if (ptr == 0) depth - 1 else ptr - 1  //the newest step
+        var n = 0
+        while (n < depth - 1)
             {
-            val bval = ((seq(p) & 1) != 0)
-            p += 1
-            if (p >= depth)
-                p = 0
-            bval
+            if (n >= depth - chunkSize)
+                out(off + depth - 1 - n) = (s & 1) != 0
+            val d = (surv(p * words + (s >> 6)) >>> (s & 63)).toInt & 1
+            s = (s >> 1) | (d << shift)
+            p = if (p == 0) depth - 1 else p - 1
+            n += 1
             }
-        
-        res
+        out(off) = (s & 1) != 0
+        chunkSize
         }
 
+    /**
+     * One trellis step on the branch metrics in bm
+     */
+    private def step(out: Array[Boolean], off: Int) : Int =
+        {
+        val pm   = prev
+        val cm   = curr
+        val b    = bm
+        val base = ptr * words
+        var w    = 0L
+        var i    = 0
+        /**
+         * New states 2i and 2i+1 both come from old states i and i+half.
+         * Take the smaller sum, ties going to the upper predecessor, and
+         * record a 1 in the survivors when that is the one chosen.
+         */
+        while (i < half)
+            {
+            val a   = pm(i)
+            val c   = pm(i + half)
+            val n   = i << 1
+            val m00 = a + b(outLo(n))
+            val m01 = c + b(outHi(n))
+            val df0 = m01 - m00
+            val d0  = (df0 - 1) >>> 31
+            cm(n) = m00 + (df0 & -d0)
+            val m10 = a + b(outLo(n + 1))
+            val m11 = c + b(outHi(n + 1))
+            val df1 = m11 - m10
+            val d1  = (df1 - 1) >>> 31
+            cm(n + 1) = m10 + (df1 & -d1)
+            w |= (d0.toLong << (n & 63)) | (d1.toLong << ((n + 1) & 63))
+            if (((n + 2) & 63) == 0)
+                {
+                surv(base + (n >> 6)) = w
+                w = 0L
+                }
+            i += 1
+            }
+        if (nrStates < 64)
+            surv(base) = w
+        prev = cm
+        curr = pm
+        ptr += 1
+        if (ptr >= depth)
+            ptr = 0
+        steps += 1
+        if (steps >= chunkSize)
+            {
+            steps = 0
+            traceback(out, off)
+            }
+        else
+            0
+        }
 
     /**
+     * Decode one symbol pair into a caller's buffer.
      * @param sym0 bit with range 0..255
      * @param sym1 bit with range 0..255
-     * @param output function to call with metrics info
-     * @return decoded symbol if successful, else -1          
+     * @param out gets the decoded bits, if any, starting at off
+     * @return the number of bits written, 0 or chunkSize
      */         
-    def decodeOne(sym0: Int, sym1: Int) : Seq[Boolean] =
+    def decodeOne(sym0: Int, sym1: Int, out: Array[Boolean], off: Int) : Int =
         {
-
-        /**
-         * The decoding process begins with building the accumulated error
-         * metric for some number of received channel symbol pairs, and the
-         * history of what states preceded the states at each time instant t
-         * with the smallest accumulated error metric. Once this information
-         * is built up, the Viterbi decoder is ready to recreate the sequence
-         * of bits that were input to the convolutional encoder when the
-         * message was encoded for transmission.
-         *          
-         * Note that in our metric tables, larger number means smaller error.   
-         * The output table is twice the size of nrStates, so check lower and upper
-         * half and record the better value.                        
-         */                 
         /**
          * For a soft decision decoder, a branch metric is measured using the
          * Euclidean distance. 
-         *
          */
-        val branchMetric = Array[Int](
-            distanceTable(    sym0)(    sym1),
-            distanceTable(    sym0)(255-sym1),
-            distanceTable(255-sym0)(    sym1),
-            distanceTable(255-sym0)(255-sym1)
-            )       
-            
-        decodeOne(branchMetric)
+        val t = Viterbi.distanceTable
+        val x = sym0 << 8
+        val y = (255 - sym0) << 8
+        bm(0) = t(x | sym1)
+        bm(1) = t(x | (255 - sym1))
+        bm(2) = t(y | sym1)
+        bm(3) = t(y | (255 - sym1))
+        step(out, off)
         }
-  
+
     /**
      * @param branchMetric.  An array with a positive integer distance
      * from each of 00, 01, 10, and 11
-     * @param output function to call with metrics info
-     * @return decoded symbol if successful, else -1          
+     * @param out gets the decoded bits, if any, starting at off
+     * @return the number of bits written, 0 or chunkSize
      */         
-    def decodeOne(branchMetric: Array[Int]) : Seq[Boolean] =
-        {  
-        //println("(%3d,%3d) : %4d %4d %4d %4d".format(sym0, sym1,
-        //    branchMetric(0), branchMetric(1), branchMetric(2), branchMetric(3)))
-
-        /**
-         * For each state at this point in time, add the branch metric to
-         * the metrics of two incoming states at the previous call.  Choose the lesser
-         * of the two.  Record the metric, and indicate which incoming state was
-         * chosen.
-         */                  
-        for (n <- 0 until nrStates)
-            {
-            val s0      = n
-            val s1      = n + nrStates
-            val p0      = s0 >> 1
-            val p1      = s1 >> 1
-            val metric0 = metrics(prevPtr)(p0) + branchMetric(output(s0))
-            val metric1 = metrics(prevPtr)(p1) + branchMetric(output(s1))
-
-            //println("p0: %d : %5d  p1: %d : %5d".format(p0, metric0, p1, metric1))
-            if (metric0 < metric1)
-                {
-                metrics(currPtr)(n) = metric0
-                history(currPtr)(n) = p0
-                }
-            else
-                {
-                metrics(currPtr)(n) = metric1
-                history(currPtr)(n) = p1
-                }
-            
-            }
-
-        //advance to record these values
-        prevPtr = currPtr
-        currPtr = (currPtr + 1) % depth
+    def decodeOne(branchMetric: Array[Int], out: Array[Boolean], off: Int) : Int =
+        {
+        bm(0) = branchMetric(0)
+        bm(1) = branchMetric(1)
+        bm(2) = branchMetric(2)
+        bm(3) = branchMetric(3)
+        step(out, off)
+        }
 
-        //have we received a complete chunk? Then process it and
-        //return the decoded bits
-        val res = if ((currPtr % chunkSize) == 0)
-            {
-            traceback()
-            }
-        else
+    /**
+     * Decode a block of symbol pairs into a caller's buffer, which needs
+     * room for len + chunkSize bits.
+     * @return the number of bits written
+     */
+    def decode(sym0: Array[Int], sym1: Array[Int], off: Int, len: Int,
+               out: Array[Boolean], outOff: Int) : Int =
+        {
+        var o = outOff
+        var n = off
+        val end = off + len
+        while (n < end)
             {
-            //check if values are growing too large. if so, then adjust
-            val halfMax = Int.MaxValue / 2
-        
-            if (metrics(currPtr)(0) > halfMax)
-                {
-                for (i <- 0 until depth; j <- 0 until nrStates)
-                    metrics(i)(j) -= halfMax
-                }
-            if (metrics(currPtr)(0) < -halfMax)
-                {
-                for (i <- 0 until depth; j <- 0 until nrStates)
-                    metrics(i)(j) += halfMax
-                }
-            List[Boolean]()
+            o += decodeOne(sym0(n), sym1(n), out, o)
+            n += 1
             }
-    
-        res
+        o - outOff
         }
     
+    private def chunkOf(count: Int) : Seq[Boolean] =
+        if (count == 0) Nil else chunk.clone
 
+    /**
+     * @param sym0 bit with range 0..255
+     * @param sym1 bit with range 0..255
+     * @return the decoded bits, if this completed a chunk
+     */         
+    def decodeOne(sym0: Int, sym1: Int) : Seq[Boolean] =
+        chunkOf(decodeOne(sym0, sym1, chunk, 0))
+  
+    /**
+     * @param branchMetric.  An array with a positive integer distance
+     * from each of 00, 01, 10, and 11
+     * @return the decoded bits, if this completed a chunk
+     */         
+    def decodeOne(branchMetric: Array[Int]) : Seq[Boolean] =
+        chunkOf(decodeOne(branchMetric, chunk, 0))
 
     /**
      * @param syms, seq of sym0, sym1 typles
-     * @param finish whether we want to flush the buffer
      * @return decoded bits
      */         
     def decode(syms: Seq[(Int,Int)]) : Seq[Boolean] =
@@ -331,8 +329,7 @@ class ViterbiDecoder(val k: Int, val poly1: Int, val poly2: Int, chunkSize: Int
     
     /**
      * @param dibit two bits in the 0 and 1 position
-     * @param finish whether we want to flush the buffer
-     * @return decoded symbol if mod of chunkSize or we want to flush          
+     * @return decoded bits, if this completed a chunk
      */         
     def decodeOneHard(dibit: Int) : Seq[Boolean] =
         {
@@ -415,6 +412,27 @@ class ConvolutionalEncoder(val k: Int, val poly1: Int, val poly2: Int)
 
 object Viterbi
 {
+    /**
+     * Used to provide a good Euclidean distance for symbols with values 0..255
+     * The table is square, and is created for the origin 0,0 so
+     * distance(00 -> xy) = table(x << 8 | y).  
+     * To get distances to the other three poles, just reverse the corresponding
+     * values.     
+     * So...
+     * distance(01 -> xy) = table(x << 8 | 255-y)  
+     * distance(10 -> xy) = table(255-x << 8 | y)  
+     * distance(11 -> xy) = table(255-x << 8 | 255-y)  
+     *
+     * It is read only, so every decoder shares this one.
+     */
+    val distanceTable =
+        Array.tabulate(65536)(i =>
+            {
+            val x = i >> 8
+            val y = i & 255
+            math.round(math.sqrt((x * x) + (y * y)).toDouble).toShort
+            })
+
     def encoder(k: Int, poly1: Int, poly2: Int) =
         new ConvolutionalEncoder(k, poly1, poly2)
 
@@ -26,77 +26,198 @@
 package org.bdigi
 
 
-import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D                 
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D
+
+
+
+/**
+ * How successive power spectra are combined before they become a row.
+ * Exponential(n) smooths each bin with a time constant of n frames;
+ * MaxHold(n) does the same, but a row shows the peak of the smoothed
+ * spectrum since the previous row, so short bursts survive row decimation.
+ */
+sealed abstract class Averaging(val frames: Int)
+
+object Averaging
+{
+    case object Off extends Averaging(1)
+    case class Exponential(n: Int) extends Averaging(math.max(1, n))
+    case class MaxHold(n: Int = 1) extends Averaging(math.max(1, n))
+}
 
 
 /**
- * This is a GUI-less waterfall that can be used for various purposes
+ * This is a GUI-less waterfall that can be used for various purposes.
+ *
+ * Each hop of input samples windows the last N, transforms them in single
+ * precision, averages the power spectrum, and, every rowEvery frames,
+ * scales it through a log table into the next row of a small row ring.
+ * Nothing is allocated after construction; callers that keep a row past
+ * the next few updates must copy it.
+ *
+ * @param N the FFT size
+ * @param hop samples between transforms.  N/3 is 67% overlap
+ * @param averaging how frames are combined, see Averaging
+ * @param rowRate the most rows per second to emit, or 0 for one row per frame
  */
-class WaterfallFactory(par: App, N: Int, sampleRate: Double, maxFreq: Double)
+class WaterfallFactory(par: App, N: Int, sampleRate: Double, maxFreq: Double,
+    val hop: Int = 0, val averaging: Averaging = Averaging.Off, val rowRate: Double = 0.0)
 {
-    private val frame = Array.fill(N)(0.0)
-    private val bins = (maxFreq / sampleRate * N).toInt
-    par.trace("wf samplerate: " + sampleRate + "  bins:" + bins)
-    private val window = Window.Hann(N)
+    private val bins = math.min(N / 2, (maxFreq / sampleRate * N).toInt)
+    private val step = if (hop > 0) math.min(hop, N) else N / 3
+    
+    /**
+     * Frames per second, and frames folded into each row
+     */
+    val frameRate = sampleRate / step
+    val rowEvery  = if (rowRate <= 0.0) 1 else math.max(1, (frameRate / rowRate).toInt)
+    par.trace("wf samplerate: " + sampleRate + "  bins:" + bins + "  hop:" + step + "  rows/frame:" + rowEvery)
+    
+    /**
+     * The length of each row passed to the update callback
+     */
+    def width = bins
+
+    /**
+     * Mirrored delay line: every sample is written at p and p+N, so the last
+     * N samples are always contiguous at framePtr
+     */
+    private val frame  = Array.ofDim[Float](N * 2)
+    private val window = Window.Hann(N).map(_.toFloat)
+    private val buf    = Array.ofDim[Float](N)
+    private val trans  = new FloatFFT_1D(N)
+    
+    private val alpha = 1.0f / averaging.frames
+    private val hold  = averaging.isInstanceOf[Averaging.MaxHold]
+    private val avg   = Array.ofDim[Float](bins)
+    private val peak  = Array.ofDim[Float](bins)
 
     private val length = 5
     private val wf = Array.ofDim[Int](length, bins)
     private var wfptr = 0     
-        
-    /**
-     * Make a palette. tweak this often
-     */                 
-    private val colors = Array.tabulate(256)( i =>
-        {
-        val r = if (i < 170) 0 else (i-170) * 3
-        val g = if (i <  85) 0 else if (i < 170) (i-85) * 3 else 255
-        val b = if (i <  85) i * 3 else 255
-        var col = 0xff
-        col = (col << 8) + r
-        col = (col << 8) + g
-        col = (col << 8) + b
-        col
-        })
-     
-    private val trans = new DoubleFFT_1D(N)
     
     private var framePtr = 0
     private var frameCtr = 0
-    private val SUBN = N/3
-    
-    private val slidingbuf = Array.ofDim[Double](N)
+    private var rowCtr   = 0
     
     def update(v: Double)(f: (Array[Int]) => Unit) =
+        {
+        push(v.toFloat, f)
+        }   
+        
+    /**
+     * Same as above, but for a whole block of samples at once
+     */
+    def update(data: Array[Double], off: Int, len: Int)(f: (Array[Int]) => Unit) : Unit =
+        {
+        var n = off
+        val end = off + len
+        while (n < end)
+            {
+            push(data(n).toFloat, f)
+            n += 1
+            }
+        }
+        
+    private def push(v: Float, f: (Array[Int]) => Unit) =
         {
         frame(framePtr) = v
-        framePtr = (framePtr + 1) % N
+        frame(framePtr + N) = v
+        framePtr += 1
+        if (framePtr >= N)
+            framePtr = 0
         frameCtr += 1
-        if (frameCtr >= SUBN)
+        if (frameCtr >= step)
             {
             frameCtr = 0
-            //var fp = (framePtr + 1) % N
-            var fp = framePtr
-            for (i <- 0 until N)
+            nextFrame
+            rowCtr += 1
+            if (rowCtr >= rowEvery)
                 {
-                slidingbuf(i) = frame(fp)  *  window(i)
-                fp = (fp + 1) % N
+                rowCtr = 0
+                f(nextRow)
                 }
-            val row = wf(wfptr)
-            wfptr = (wfptr + 1) % length
-            trans.realForward(slidingbuf)
-            var idx = 0
-            for (rowptr <- 0 until bins)
-                {
-                val r = slidingbuf(idx)
-                idx += 1
-                val i = slidingbuf(idx)
-                idx += 1
-                //val v = MathUtil.log1p(r * r + i * i) * 15.0
-                val v = MathUtil.log2_1p((r * r + i * i).toFloat) * 20.0
-                row(rowptr) = v.toInt & 0xff
-                }
-            f(row)
             }
-        }   
+        }
+        
+    /**
+     * Window the last N samples, transform them, and fold the power
+     * spectrum into the averages
+     */
+    private def nextFrame =
+        {
+        val fr = frame
+        val w  = window
+        val b  = buf
+        var fp = framePtr
+        var i  = 0
+        while (i < N)
+            {
+            b(i) = fr(fp) * w(i)
+            fp += 1
+            i  += 1
+            }
+        trans.realForward(b)
+        val a = alpha
+        var idx = 0
+        var bin = 0
+        while (bin < bins)
+            {
+            val r = b(idx)
+            val im = if (bin == 0) 0.0f else b(idx + 1)   //b(1) is the Nyquist term
+            idx += 2
+            val p = r * r + im * im
+            val v = avg(bin) + a * (p - avg(bin))
+            avg(bin) = v
+            if (hold && v > peak(bin))
+                peak(bin) = v
+            bin += 1
+            }
+        }
+
+    /**
+     * Scale the averaged spectrum into the next row of the wf ring
+     */
+    private def nextRow : Array[Int] =
+        {
+        val row = wf(wfptr)
+        wfptr = (wfptr + 1) % length
+        val src = if (hold) peak else avg
+        val lut = WaterfallFactory.logTable
+        var bin = 0
+        while (bin < bins)
+            {
+            row(bin) = lut(java.lang.Float.floatToRawIntBits(src(bin)) >>> WaterfallFactory.lutShift)
+            bin += 1
+            }
+        if (hold)
+            java.util.Arrays.fill(peak, 0.0f)
+        row
+        }
 }
 
+
+object WaterfallFactory
+{
+    /**
+     * Powers are looked up by their float sign, exponent and the top 7 mantissa
+     * bits, which keeps the table at 64k entries and the error under 0.2 of
+     * a level.  Levels are 20 * log2(1 + p), clamped to 0..255.
+     */
+    val lutShift = 16
+    
+    val logTable : Array[Int] = Array.tabulate(1 << (32 - lutShift))( i =>
+        {
+        val p = java.lang.Float.intBitsToFloat((i << lutShift) | (1 << (lutShift - 1)))
+        if (p.isNaN || p <= 0.0f)
+            0
+        else
+            math.min(255, (20.0 * math.log1p(p) / math.log(2.0)).toInt)
+        })
+    
+    /**
+     * The level a power would be drawn at
+     */
+    def level(p: Float) : Int =
+        logTable(java.lang.Float.floatToRawIntBits(p) >>> lutShift)
+}
@@ -124,7 +124,7 @@ class Mfsk(par: App) extends Mode(par, 250.0)
 		val sig    = dataFilter.update(comp)
 		//println("sig:" + sig + "  comp:" + comp)
 
-		par.updateScope(sig, 0)
+		updateScope(sig, 0)
 
         //println("sig:" + sig)
 		if (sig > hiHys)
@@ -306,20 +306,20 @@ class Mfsk(par: App) extends Mode(par, 250.0)
                 shifted = false
             else if (code == Baudot.BAUD_SPACE)
                 {
-                par.puttext(" ")
+                puttext(" ")
                 if (unshiftOnSpace)
                     shifted = false
                 }
             else if (code == Baudot.BAUD_CR || code == Baudot.BAUD_LF)
                 {
-                par.puttext("\n")
+                puttext("\n")
                 if (unshiftOnSpace)
                     shifted = false
                 }
             val v = Baudot.baudCodeToSym(code)
             val c = if (shifted) v._2 else v._1
             if (c != 0)
-                par.puttext(c.toChar.toString)
+                puttext(c.toChar.toString)
             }
             
         }
@@ -66,8 +66,19 @@ class Mode(var par: App, val sampleRateHint: Double)
     def status(msg: String) =
         par.status(msg)
 
+    /**
+     * Decoded text and scope points go through these, so that a mode
+     * that is not the App's main one, such as a skimmer channel, can
+     * send them somewhere else.
+     */
+    def puttext(msg: String) =
+        par.puttext(msg)
+        
+    def updateScope(x: Double, y: Double) =
+        par.updateScope(x, y)
+
 
-    protected var frequencyVal = 0.0
+    @volatile protected var frequencyVal = 0.0
     
     def frequency =
         frequencyVal
@@ -77,6 +88,8 @@ class Mode(var par: App, val sampleRateHint: Double)
        {
        frequencyVal = v
        nco = new AdjustableNco(v, 20.0, par.sampleRate)
+       if (frontEndMade)
+           frontEnd.frequency = v
        //trace("freq:" + v + "  fs:"+par.sampleRate)
        }
         
@@ -92,34 +105,76 @@ class Mode(var par: App, val sampleRateHint: Double)
     
     val sampleRate = par.sampleRate / decimation
     
-    private val decimator    = ResamplerX(decimation)
-    private val interpolator = ResamplerX(decimation)
+    @volatile private var frontEndMade = false
+    
+    /**
+     * The mixer and decimator, designed for this mode's rate.  Their cost
+     * is frontEnd.plan.macsPerSample.  A quarter of the decimated rate each
+     * side of the center is kept, which is wider than any mode here, and
+     * aliases are 50 dB down before the modes' own filters trim the rest.
+     * It is only designed when first used, since a mode fed by a
+     * Channelizer never needs one.
+     */
+    lazy val frontEnd =
+        {
+        val fe = new DecimationChain(DecimationPlanner.plan(par.sampleRate, decimation,
+            0.25 * sampleRate, 50.0))
+        //set before reading frequencyVal, so that a retune meanwhile is not lost
+        frontEndMade = true
+        fe.frequency = frequencyVal
+        fe
+        }
+        
+    private lazy val interpolator = ResamplerX(decimation)
     
     //trace("requested fs:" + sampleRateHint + "  decimation: " +
     //    decimation + "   sampleRate:" + sampleRate)
     
     
+    private val agcOut = new MutableComplex
+    
+    /**
+     * Called with each decimated baseband sample.  Keep this as a val,
+     * so that receive() does not make a new closure for every sample.
+     */
+    private val receiveDecimated : (Double, Double) => Unit = (r, i) =>
+        {
+        if (useAgc)
+            {
+            agc.update(r, i, agcOut)
+            val v = update(agcOut.r, agcOut.i)
+            agc.feedback(v)
+            }
+        else
+            {
+            update(r, i)
+            }
+        }
+    
     def receive(iv: Double)
         {
-        val cs = nco.next
-        val vi =  iv * cs.r
-        val vq = -iv * cs.i
-        val incpx = Complex(vi, vq)
+        frontEnd.update(iv)(receiveDecimated)
+        }
+        
+    //scratch space for the block methods.  Grown as needed
+    private var mixr = Array.ofDim[Double](0)
+    private var mixi = Array.ofDim[Double](0)
     
-        decimator.decimate(incpx) ( cpx =>
-            {  
-            //trace("cpx: " + cpx)
-            if (useAgc)
-                {
-                val v = update(agc.update(cpx))
-                agc.feedback(v)
-                }
-            else
-                {
-                update(cpx)
-                }
-            })
-
+    /**
+     * Block version of receive(Double).  This mixes the whole block down
+     * to baseband and decimates it, then hands the result to
+     * update(Array[Double], Array[Double], Int).
+     */
+    def receive(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        val needed = frontEnd.outputSize(len)
+        if (mixr.length < needed)
+            {
+            mixr = Array.ofDim[Double](needed)
+            mixi = Array.ofDim[Double](needed)
+            }
+        val count = frontEnd.decimate(data, off, len, mixr, mixi)
+        update(mixr, mixi, count)
         }
  
 
@@ -133,8 +188,45 @@ class Mode(var par: App, val sampleRateHint: Double)
      */                     
     def update(data: Complex) : Double = 1.0
     
+    /**
+     * Same as update(Complex), but with the baseband sample split into its
+     * real and imaginary parts.  This is what receive() calls.  By default
+     * it wraps the values and calls update(Complex), so override this one
+     * instead in modes that should not allocate for every sample.
+     */
+    def update(r: Double, i: Double) : Double =
+        update(Complex(r, i))
+        
+    /**
+     * Block version of update(r, i), called by receive(Array[Double], Int, Int)
+     * with len decimated baseband samples.  The default applies the AGC and calls
+     * update(r, i) for each sample.  Busy modes can override this with a tight
+     * loop of their own, using agcGain and agcFeedback.
+     */
+    def update(rs: Array[Double], is: Array[Double], len: Int) : Unit =
+        {
+        var n = 0
+        while (n < len)
+            {
+            receiveDecimated(rs(n), is(n))
+            n += 1
+            }
+        }
+        
+    /**
+     * The current AGC gain, or 1.0 if the AGC is off
+     */
+    protected def agcGain : Double =
+        if (useAgc) agc.gain else 1.0
+        
+    /**
+     * Feed the value returned by update back into the AGC
+     */
+    protected def agcFeedback(v: Double) : Unit =
+        if (useAgc) agc.feedback(v)
         
 
+
     //#######################################
     //# Rate
     //#######################################    
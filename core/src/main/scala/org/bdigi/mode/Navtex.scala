@@ -28,6 +28,8 @@ package org.bdigi.mode
 
 import org.bdigi._
 
+import org.apache.commons.math3.util.FastMath
+
 
 
 /**
@@ -56,8 +58,32 @@ class Navtex(par: App) extends Mode(par, 1000.0)
     override def bandwidth =
         shift
         
-    val sf = Fir.bandPass(13, -0.5*(shift+rate), -0.5*(shift-rate), sampleRate)
-    val mf = Fir.bandPass(13,  0.5*(shift-rate),  0.5*(shift+rate), sampleRate)
+    /**
+     * Taps in the space and mark channel filter.  Past Fir.fastTaps the
+     * filter runs by fast convolution, so steep ones are cheap.
+     */
+    def channelTaps = channelTapsVal
+    
+    def channelTaps_=(v: Int) =
+        {
+        channelTapsVal = v
+        channel = mkChannel
+        }
+        
+    private var channelTapsVal = 13
+    
+    /**
+     * The space and mark filters.  Their outputs are only ever used summed,
+     * so they are applied as one filter, with the sum of their coefficients.
+     */
+    def mkChannel =
+        {
+        val s = Fir.bandPassCoeffs(channelTaps, -0.5*(shift+rate), -0.5*(shift-rate), sampleRate)
+        val m = Fir.bandPassCoeffs(channelTaps,  0.5*(shift-rate),  0.5*(shift+rate), sampleRate)
+        Fir.auto(Array.tabulate(channelTaps)(c => s(c) + m(c)))
+        }
+    
+    var channel = mkChannel
 
     val dataFilter = Fir.boxcar(samplesPerSymbol.toInt)
  
@@ -72,7 +98,13 @@ class Navtex(par: App) extends Mode(par, 1000.0)
     var samplesSinceTransition = 0
     
     //this is our single delay element used for FM demod
-    var lastVal = Complex(0.0)
+    private var lastr = 0.0
+    private var lasti = 0.0
+    
+    private val filtered = new MutableComplex
+    
+    override def update(isample:  Complex) : Double =
+        update(isample.r, isample.i)
     
 	/**
 	 * Overridden from Mode for processing incoming
@@ -82,18 +114,48 @@ class Navtex(par: App) extends Mode(par, 1000.0)
 	 * of the previous sample to get the instantaneous
 	 * frequency shift of the baseband signal.
 	 */
-    override def update(isample:  Complex) : Double =
+    override def update(r: Double, i: Double) : Double =
+        {
+        channel.update(r, i, filtered)
+        discriminate(filtered.r, filtered.i)
+        }
+        
+    //the channel filter output for a block
+    private var chr = Array.ofDim[Double](0)
+    private var chi = Array.ofDim[Double](0)
+    
+    /**
+     * Process a whole block of baseband samples in one tight loop.  The
+     * channel filter runs over the whole block first.  The discriminator
+     * does not care about scale, so the AGC gain is not applied.
+     */
+    override def update(rs: Array[Double], is: Array[Double], len: Int) : Unit =
+        {
+        if (chr.length < len)
+            {
+            chr = Array.ofDim[Double](len)
+            chi = Array.ofDim[Double](len)
+            }
+        channel.filter(rs, is, chr, chi, 0, len)
+        var n = 0
+        while (n < len)
+            {
+            agcFeedback(discriminate(chr(n), chi(n)))
+            n += 1
+            }
+        }
+        
+    private def discriminate(sr: Double, si: Double) : Double =
         {
-        val space  = sf.update(isample)
-        val mark   = mf.update(isample)
-        val sample = space + mark
-		val prod   = sample * lastVal.conj
-		lastVal    = sample
-		val demod  = prod.arg
+		val prodr  = sr * lastr + si * lasti
+		val prodi  = si * lastr - sr * lasti
+		lastr      = sr
+		lasti      = si
+		val demod  = FastMath.atan2(prodi, prodr)
 		val comp   = math.signum(demod) * 10.0
 		val sig    = dataFilter.update(comp)
 		
-		par.updateScope(sig, 0)
+		updateScope(sig, 0)
 
 		if (sig > hiHys)
 			bit = true
@@ -318,7 +380,7 @@ class Navtex(par: App) extends Mode(par, 1000.0)
             }
         else if (code < 0)
             {
-            //par.puttext("_")
+            //puttext("_")
             res = '_'
             }
         else if (code == Baudot.CCIR_ALPHA || code == Baudot.CCIR_REPEAT)
@@ -335,11 +397,11 @@ class Navtex(par: App) extends Mode(par, 1000.0)
             }
         else if (code == Baudot.CCIR_SPACE)
             {
-            par.puttext(" ")
+            puttext(" ")
             }
         else if (code == Baudot.CCIR_CR || code == Baudot.CCIR_LF)
             {
-            par.puttext("\n")
+            puttext("\n")
             }
         else
             {
@@ -349,7 +411,7 @@ class Navtex(par: App) extends Mode(par, 1000.0)
                 val v = ch.get
                 val c = if (shifted) v._2 else v._1
                 if (c > 0)
-                    par.puttext(c.toChar.toString)
+                    puttext(c.toChar.toString)
                 res = c.toChar
                 }
             }
@@ -28,18 +28,95 @@ package org.bdigi.mode
 
 import org.bdigi._
 
+import org.apache.commons.math3.util.FastMath
 
 
 
 
 /**
  * CRC-CCITT-16 calculator, that handles both big and little-endian byte
- * streams
+ * streams.  Whole buffers go 8 bytes per step, slicing-by-8.
  */
 class CrcCCITT
 {
-    
-	private val crcTable = Array(
+    import CrcCCITT._
+
+	private var crc = 0xffff
+	
+	def update(c: Int) =
+	    {
+	    val j = (c ^ (crc >> 8)) & 0xff
+	    crc = crcTable(j) ^ (crc << 8)
+	    }
+	    
+	def value =
+	    (crc ^ 0) & 0xffff
+	        
+	def updateLE(byte8: Int) =
+	    crc = ((crc >> 8) ^ crcTabLE((crc ^ byte8) & 0xff)) & 0xffff
+	    
+	def valueLE =
+	    crc
+
+    def reset = 
+        crc = 0xffff
+        
+    /**
+     * Big-endian update with len bytes of buf from off
+     */
+    def update(buf: Array[Byte], off: Int, len: Int) : Unit =
+        {
+        var c   = crc & 0xffff
+        var i   = off
+        val end = off + len
+        while (i + 8 <= end)
+            {
+            val x0 = (buf(i) ^ (c >>> 8)) & 0xff
+            val x1 = (buf(i + 1) ^ c) & 0xff
+            c = sliceBE(7 * 256 + x0) ^ sliceBE(6 * 256 + x1) ^
+                sliceBE(5 * 256 + (buf(i + 2) & 0xff)) ^ sliceBE(4 * 256 + (buf(i + 3) & 0xff)) ^
+                sliceBE(3 * 256 + (buf(i + 4) & 0xff)) ^ sliceBE(2 * 256 + (buf(i + 5) & 0xff)) ^
+                sliceBE(256 + (buf(i + 6) & 0xff)) ^ sliceBE(buf(i + 7) & 0xff)
+            i += 8
+            }
+        while (i < end)
+            {
+            c = (crcTable((buf(i) ^ (c >>> 8)) & 0xff) ^ (c << 8)) & 0xffff
+            i += 1
+            }
+        crc = c
+        }
+        
+    /**
+     * Little-endian update with len bytes of buf from off, as AX.25 uses
+     */
+    def updateLE(buf: Array[Byte], off: Int, len: Int) : Unit =
+        {
+        var c   = crc
+        var i   = off
+        val end = off + len
+        while (i + 8 <= end)
+            {
+            val x = c ^ (buf(i) & 0xff) ^ ((buf(i + 1) & 0xff) << 8)
+            c = sliceLE(7 * 256 + (x & 0xff)) ^ sliceLE(6 * 256 + (x >>> 8)) ^
+                sliceLE(5 * 256 + (buf(i + 2) & 0xff)) ^ sliceLE(4 * 256 + (buf(i + 3) & 0xff)) ^
+                sliceLE(3 * 256 + (buf(i + 4) & 0xff)) ^ sliceLE(2 * 256 + (buf(i + 5) & 0xff)) ^
+                sliceLE(256 + (buf(i + 6) & 0xff)) ^ sliceLE(buf(i + 7) & 0xff)
+            i += 8
+            }
+        while (i < end)
+            {
+            c = (c >>> 8) ^ crcTabLE((c ^ buf(i)) & 0xff)
+            i += 1
+            }
+        crc = c
+        }
+}
+
+
+object CrcCCITT
+{
+    val crcTable = Array(
         0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7,
         0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef,
         0x1231, 0x0210, 0x3273, 0x2252, 0x52b5, 0x4294, 0x72f7, 0x62d6,
@@ -74,7 +151,7 @@ class CrcCCITT
         0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
         )
 
-	private val crcTabLE = Array(
+    val crcTabLE = Array(
         0x0000, 0x1189, 0x2312, 0x329b, 0x4624, 0x57ad, 0x6536, 0x74bf,
         0x8c48, 0x9dc1, 0xaf5a, 0xbed3, 0xca6c, 0xdbe5, 0xe97e, 0xf8f7,
         0x1081, 0x0108, 0x3393, 0x221a, 0x56a5, 0x472c, 0x75b7, 0x643e,
@@ -109,25 +186,261 @@ class CrcCCITT
         0x7bc7, 0x6a4e, 0x58d5, 0x495c, 0x3de3, 0x2c6a, 0x1ef1, 0x0f78
         )
 
-	private var crc = 0xffff
-	
-	def update(c: Int) =
-	    {
-	    val j = (c ^ (crc >> 8)) & 0xff
-	    crc = crcTable(j) ^ (crc << 8)
-	    }
-	    
-	def value =
-	    (crc ^ 0) & 0xffff
-	        
-	def updateLE(byte8: Int) =
-	    crc = ((crc >> 8) ^ crcTabLE((crc ^ byte8) & 0xff)) & 0xffff
-	    
-	def valueLE =
-	    crc
+    /**
+     * Table k, at k * 256, is the effect of a byte followed by k zero bytes,
+     * so that 8 bytes can be folded in at once
+     */
+    val sliceBE =
+        {
+        val t = Array.ofDim[Int](8 * 256)
+        for (i <- 0 until 256)
+            t(i) = crcTable(i)
+        for (k <- 1 until 8 ; i <- 0 until 256)
+            {
+            val prev = t((k - 1) * 256 + i)
+            t(k * 256 + i) = ((prev << 8) & 0xffff) ^ crcTable((prev >>> 8) & 0xff)
+            }
+        t
+        }
+        
+    val sliceLE =
+        {
+        val t = Array.ofDim[Int](8 * 256)
+        for (i <- 0 until 256)
+            t(i) = crcTabLE(i)
+        for (k <- 1 until 8 ; i <- 0 until 256)
+            {
+            val prev = t((k - 1) * 256 + i)
+            t(k * 256 + i) = (prev >>> 8) ^ crcTabLE(prev & 0xff)
+            }
+        t
+        }
+}
 
-    def reset = 
-        crc = 0xffff
+
+
+/**
+ * HDLC receiver, for the bits after NRZI decoding.  Flags, aborts and
+ * bit-stuffing are handled 8 bits at a time: the state is the run of
+ * ones so far, and a table built from step() gives, for each state and
+ * 8 bits, the data bits left after unstuffing, where a flag fell among
+ * them, an abort, and the state after.  A byte with two of those events,
+ * which is rare, is replayed a bit at a time.  Since bits are taken 8 at a
+ * time, a frame is delivered up to 7 bits after its closing flag.
+ *
+ * Frames whose FCS checks are handed to frameFunc as the receive buffer
+ * and the length less the FCS.  The buffer is reused, so it is only valid
+ * during the call.  Nothing is allocated after construction.
+ *
+ * @param frameFunc receives each good frame
+ */
+class HdlcDeframer(maxFrame: Int = 4096)(frameFunc: (Array[Byte], Int) => Unit)
+{
+    import HdlcDeframer._
+    
+    private var ones    = 0
+    private var raw     = 0
+    private var rawBits = 0
+    private var inFrame = false
+    private var acc     = 0
+    private var accBits = 0
+    private val rxbuf   = Array.ofDim[Byte](maxFrame)
+    private var len     = 0
+    private val crc     = new CrcCCITT
+    
+    /**
+     * Good frames received, and those dropped for a bad FCS
+     */
+    var frames    = 0
+    var badFrames = 0
+    
+    def reset =
+        {
+        ones    = 0
+        raw     = 0
+        rawBits = 0
+        inFrame = false
+        }
+    
+    /**
+     * Receive one bit
+     */
+    def update(bit: Boolean) : Unit =
+        {
+        if (bit)
+            raw |= 1 << rawBits
+        rawBits += 1
+        if (rawBits == 8)
+            {
+            update8(raw)
+            raw     = 0
+            rawBits = 0
+            }
+        }
+        
+    /**
+     * Receive 8 bits, the first in the lowest bit
+     */
+    def update8(bits: Int) : Unit =
+        {
+        val e = table((ones << 8) | (bits & 0xff))
+        val value = e & 0xff
+        val n     = (e >>> 8) & 15
+        (e >>> 19) & 3 match
+            {
+            case NONE =>
+                push(value, n)
+            case FLAG =>
+                val before = (e >>> 12) & 15
+                push(value & ((1 << before) - 1), before)
+                flag
+                push(value >>> before, n - before)
+            case ABORT =>
+                inFrame = false
+            case _ =>
+                var i = 0
+                var s = ones
+                while (i < 8)
+                    {
+                    val st = step(s, (bits >>> i) & 1)
+                    s = st & 7
+                    (st >>> 3) match
+                        {
+                        case EMIT0 => push(0, 1)
+                        case EMIT1 => push(1, 1)
+                        case SFLAG => flag
+                        case SABORT => inFrame = false
+                        case _ =>
+                        }
+                    i += 1
+                    }
+            }
+        ones = (e >>> 16) & 7
+        }
+        
+    private def push(v: Int, n: Int) =
+        {
+        if (inFrame && n > 0)
+            {
+            acc |= v << accBits
+            accBits += n
+            if (accBits >= 8)
+                {
+                if (len >= rxbuf.length)
+                    inFrame = false
+                else
+                    {
+                    rxbuf(len) = acc.toByte
+                    len += 1
+                    acc >>>= 8
+                    accBits -= 8
+                    }
+                }
+            }
+        }
+        
+    /**
+     * A flag ends one frame and starts the next.  The flag's own leading
+     * bits are in the partial octet, and are dropped with it.
+     */
+    private def flag =
+        {
+        if (inFrame && len > 2)
+            {
+            crc.reset
+            crc.updateLE(rxbuf, 0, len)
+            if (crc.valueLE == GoodFcs)
+                {
+                frames += 1
+                frameFunc(rxbuf, len - 2)
+                }
+            else
+                badFrames += 1
+            }
+        inFrame = true
+        len     = 0
+        acc     = 0
+        accBits = 0
+        }
+}
+
+
+object HdlcDeframer
+{
+    /**
+     * The CRC over a frame and its FCS, if both are good
+     */
+    val GoodFcs = 0xf0b8
+
+    //table events
+    private final val NONE  = 0
+    private final val FLAG  = 1
+    private final val ABORT = 2
+    private final val MANY  = 3
+    
+    //step actions
+    private final val NOTHING = 0
+    private final val EMIT0   = 1
+    private final val EMIT1   = 2
+    private final val SFLAG   = 3
+    private final val SABORT  = 4
+
+    /**
+     * One bit of HDLC: the state is the run of ones, up to 7 for an abort.
+     * A 1 is data while the run is 5 or less; a 0 after five ones was
+     * stuffed, after six ends a flag.
+     * @return the new state, plus the action times 8
+     */
+    def step(ones: Int, bit: Int) : Int =
+        {
+        if (bit != 0)
+            {
+            val n = math.min(ones + 1, 7)
+            val act = if (n <= 5) EMIT1 else if (n == 7 && ones == 6) SABORT else NOTHING
+            n | (act << 3)
+            }
+        else
+            {
+            val act = if (ones == 5) NOTHING else if (ones == 6) SFLAG else if (ones == 7) NOTHING else EMIT0
+            act << 3
+            }
+        }
+        
+    /**
+     * For each state and 8 bits: the data bits (0-7), how many (8-11),
+     * how many came before a flag (12-15), the new state (16-18) and the
+     * event (19-20)
+     */
+    private val table =
+        {
+        val t = Array.ofDim[Int](8 * 256)
+        for (state <- 0 until 8 ; bits <- 0 until 256)
+            {
+            var s      = state
+            var value  = 0
+            var n      = 0
+            var before = 0
+            var events = 0
+            var event  = NONE
+            for (i <- 0 until 8)
+                {
+                val st = step(s, (bits >>> i) & 1)
+                s = st & 7
+                (st >>> 3) match
+                    {
+                    case EMIT0 => n += 1
+                    case EMIT1 => value |= 1 << n ; n += 1
+                    case SFLAG => before = n ; events += 1 ; event = FLAG
+                    case SABORT => events += 1 ; event = ABORT
+                    case _ =>
+                    }
+                }
+            if (events > 1)
+                event = MANY
+            t((state << 8) | bits) = value | (n << 8) | (before << 12) | (s << 16) | (event << 19)
+            }
+        t
+        }
 }
 
 
@@ -203,7 +516,7 @@ case class Packet(
             val infos = new String(info.map(_.toByte))
             buf.append(infos)
             }
-        else
+        else if (info.size > 0)
             {
             //for (v <- info)
             //    buf.append(",").append(v.toString)
@@ -283,6 +596,9 @@ object Packet
         }
 
 
+    def apply(data : Array[Byte], len: Int) : Packet =
+        apply(Array.tabulate(len)(data(_) & 0xff))
+
     def apply(data : Array[Int]) : Packet =
         {
         var pos = 0
@@ -346,6 +662,8 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
         new RadioProperty("shift", "Shift", shifts.map(_._1), "Spacing in hertz between mark and space", 0) ( idx => shift = shifts(idx)._2 )
     )
         
+    private var channelTapsVal = 13
+    
     private var shiftVal = 200.0
     
     def shift = shiftVal
@@ -370,8 +688,30 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
     var spaceFreq = Complex(twopi * (-shift * 0.5) / sampleRate)
     var markFreq  = Complex(twopi * ( shift * 0.5) / sampleRate)
     
-    var sf = Fir.bandPass(13, -0.75 * shift, -0.25 * shift, sampleRate)
-    var mf = Fir.bandPass(13,  0.25 * shift,  0.75 * shift, sampleRate)
+    /**
+     * Taps in the space and mark channel filter.  Past Fir.fastTaps the
+     * filter runs by fast convolution, so steep ones are cheap.
+     */
+    def channelTaps = channelTapsVal
+    
+    def channelTaps_=(v: Int) =
+        {
+        channelTapsVal = v
+        adjust
+        }
+        
+    /**
+     * The space and mark filters.  Their outputs are only ever used summed,
+     * so they are applied as one filter, with the sum of their coefficients.
+     */
+    def mkChannel =
+        {
+        val s = Fir.bandPassCoeffs(channelTaps, -0.75 * shift, -0.25 * shift, sampleRate)
+        val m = Fir.bandPassCoeffs(channelTaps,  0.25 * shift,  0.75 * shift, sampleRate)
+        Fir.auto(Array.tabulate(channelTaps)(c => s(c) + m(c)))
+        }
+    
+    var channel = mkChannel
     //var dataFilter = Iir2.lowPass(rate, sampleRate)
     var dataFilter = Fir.boxcar(samplesPerSymbol.toInt)
     var txlpf = Fir.lowPass(31,  shift * 0.5, sampleRate)
@@ -381,8 +721,7 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
 
     def adjust =
         {
-        sf = Fir.bandPass(13, -0.75 * shift, -0.25 * shift, sampleRate)
-        mf = Fir.bandPass(13,  0.25 * shift,  0.75 * shift, sampleRate)
+        channel = mkChannel
         spaceFreq = Complex(twopi * (-shift * 0.5) / sampleRate)
         markFreq  = Complex(twopi * ( shift * 0.5) / sampleRate)
         //dataFilter = Iir2.lowPass(rate, sampleRate)
@@ -399,24 +738,63 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
     var lastSym = false   
     var samplesSinceTransition = 0
 
-    var lastVal = Complex(0.0)
+    private val filtered = new MutableComplex
+    private var lastr = 0.0
+    private var lasti = 0.0
+    
+    override def update(isample: Complex) : Double =
+        update(isample.r, isample.i)
     
+    override def update(r: Double, i: Double) : Double =
+        demodulate(r, i)
+        
+    //the channel filter output for a block
+    private var chr = Array.ofDim[Double](0)
+    private var chi = Array.ofDim[Double](0)
+    
+    /**
+     * Process a whole block of baseband samples in one tight loop.  The
+     * channel filter runs over the whole block first.  The discriminator
+     * does not care about scale, so the AGC gain is not applied.
+     */
+    override def update(rs: Array[Double], is: Array[Double], len: Int) : Unit =
+        {
+        if (chr.length < len)
+            {
+            chr = Array.ofDim[Double](len)
+            chi = Array.ofDim[Double](len)
+            }
+        channel.filter(rs, is, chr, chi, 0, len)
+        var n = 0
+        while (n < len)
+            {
+            agcFeedback(discriminate(chr(n), chi(n)))
+            n += 1
+            }
+        }
+        
     /**
      * Basic receive function for all modes
      */         
-    override def update(isample: Complex) : Double =
+    private def demodulate(r: Double, i: Double) : Double =
         {
-        val space  = sf.update(isample)
-        val mark   = mf.update(isample)
-        val sample = space + mark
-        val prod   = sample * lastVal.conj
-        lastVal    = sample
-        val demod  = prod.arg
+        channel.update(r, i, filtered)
+        discriminate(filtered.r, filtered.i)
+        }
+        
+    private def discriminate(sr: Double, si: Double) : Double =
+        {
+        //sample * lastVal.conj
+        val prodr  = sr * lastr + si * lasti
+        val prodi  = si * lastr - sr * lasti
+        lastr      = sr
+        lasti      = si
+        val demod  = FastMath.atan2(prodi, prodr)
         val comp   = math.signum(demod) * 10.0
         val sig    = dataFilter.update(comp)
         //trace("sig:" + sig + "  comp:" + comp)
 
-        par.updateScope(sig, 0)
+        updateScope(sig, 0)
 
         //trace("sig:" + sig)
         if (sig > hiHys)
@@ -441,31 +819,16 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
 		}
  
     
-    trait RxState
-    //the initial state
-    case object RxStart extends RxState
-    //after the first flag, wait until no more flags
-    case object RxTxd   extends RxState
-    //after the flag.  all octets until another flag
-    case object RxData  extends RxState
-    //Test whether we have a flag or a stuffed bit
-    case object RxFlag1  extends RxState
-    //It was a flag.  grab the last bit
-    case object RxFlag2  extends RxState
-    
-    var state : RxState = RxStart
-   
-    val FLAG = 0x7e   // 01111110 , the start/stop flag
-    
-    var bitcount = 0
-    var octet    = 0
-    var ones     = 0
-
+    var lastBit = false
     
-    var bufPtr = 0
-    val rxbuf = Array.ofDim[Int](4096)
+    /**
+     * If set, receives every frame whose FCS checks, as the receive buffer
+     * and the frame's length without the FCS.  The buffer is only valid
+     * during the call.
+     */
+    @volatile var frameListener : Option[(Array[Byte], Int) => Unit] = None
     
-    var lastBit = false
+    val deframer = new HdlcDeframer()(processFrame)
 
     /**
      * Attempt to decode a packet.  It will be in NRZI form, so when
@@ -479,119 +842,37 @@ class PacketMode(par: App) extends Mode(par, 4800.0)
         {
         val symbollen = samplesPerSymbol.toInt
         val halflen   = symbollen >> 1
-        //trace("symbollen: " + symbollen + "  halflen:" + halflen)
-            
         val period = samplesSinceTransition % symbollen
-        //trace("period: " + period + "  halflen:" + halflen)
         if (period == halflen)
             {
-            octet = (octet >> 1) & 0xff
             val bit = (inBit == lastBit) //nrzi
             lastBit = inBit
-            if (bit) 
-                { ones += 1 ; octet |= 128 }
-            else
-                ones = 0
-
-            state match
-                {
-                case RxStart => 
-                    //trace("RxStart")
-                    //trace("st octet: %02x".format(octet))
-                    if (octet == FLAG)
-                        {
-                        state    = RxTxd
-                        bitcount = 0
-                        }
-                case RxTxd => 
-                    //trace("RxTxd")
-                    bitcount += 1
-                    if (bitcount >= 8)
-                        {
-                        //trace("txd octet: %02x".format(octet))
-                        bitcount = 0
-                        if (octet != FLAG)
-                            {
-                            state    = RxData
-                            rxbuf(0) = octet & 255
-                            bufPtr   = 1
-                            }
-                        }
-                case RxData => 
-                    //trace("RxData")
-                    if (ones == 5) // 111110nn, next bit will determine
-                        {
-                        state = RxFlag1
-                        }
-                    else
-                        {
-                        bitcount += 1
-                        if (bitcount >= 8)
-                            {
-                            bitcount = 0
-                            if (bufPtr >= rxbuf.size)
-                                {
-                                //trace("drop")
-                                state = RxStart
-                                }
-                            else
-                                {
-                                rxbuf(bufPtr) = octet & 255
-                                bufPtr += 1
-                                }
-                            }
-                        }
-                case RxFlag1 =>
-                    //trace("RxFlag")
-                    if (bit) //was really a 6th bit. 
-                        {
-                        state = RxFlag2
-                        }
-                    else //was a zero.  drop it and continue
-                        {
-                        octet = octet << 1
-                        state = RxData
-                        }
-                case RxFlag2 =>
-                    //we simply wanted that last bit
-                    val outbuf = rxbuf.take(bufPtr)
-                    processPacket(outbuf)
-                    for (i <- 0 until rxbuf.size)
-                        rxbuf(i) = 0
-                    state = RxStart                   
-                }
+            deframer.update(bit)
             }
         }
     
-    
-    
-    val crc = new CrcCCITT
-    
     def intToStr(ibytes: Array[Int], offset: Int, len: Int) : String =
         {
         val bytes = Array.tabulate(len) { i=> ibytes(i+offset).toChar }
         new String(bytes)
         }        
     
-    def processPacket(data: Array[Int]) : Boolean =
-        {
-        val len = data.size
-        //trace("raw:" + len)
-        if (len < 14)
-            return true
-        //val str = intToStr(data, 14, len-2)
-        //trace("txt: " + str)
-        crc.reset
-        for (i <- 0 until len)
-            crc.updateLE(data(i))
-        val v = crc.valueLE
-        //trace("crc: %04x".format(v))
-        if (v == 0xf0b8)
+    /**
+     * A frame with a good FCS
+     */
+    def processFrame(data: Array[Byte], len: Int) : Unit =
+        {
+        frameListener match
+            {
+            case Some(f) => f(data, len)
+            case None    =>
+            }
+        //two addresses and control.  S and U frames have no pid
+        if (len >= 15)
             {
-            val p = Packet(data)
-            par.puttext(p.toString + "\n")
+            val p = Packet(data, len)
+            puttext(p.toString + "\n")
             }
-        false
         }
     
     //################################################
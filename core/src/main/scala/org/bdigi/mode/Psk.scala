@@ -29,6 +29,7 @@ package org.bdigi.mode
 
 import org.bdigi._
 
+import org.apache.commons.math3.util.FastMath
 
 object Psk
 {
@@ -386,12 +387,34 @@ class Psk31(par: App) extends Mode(par, 1200.0)
     private var symCounter = 0
     private var halfSym = samplesPerSymbol / 2
     
+    private val z = new MutableComplex
+    
     override def update(sample: Complex) : Double =
+        update(sample.r, sample.i)
+    
+    override def update(r: Double, iv: Double) : Double =
+        demodulate(r, iv)
+        
+    /**
+     * Process a whole block of baseband samples in one tight loop
+     */
+    override def update(rs: Array[Double], is: Array[Double], len: Int) : Unit =
+        {
+        var n = 0
+        while (n < len)
+            {
+            val g = agcGain
+            agcFeedback(demodulate(rs(n) * g, is(n) * g))
+            n += 1
+            }
+        }
+        
+    private def demodulate(r: Double, iv: Double) : Double =
         {
-        val z = lpf.update(sample)
-        var i = z.r
+        lpf.update(r, iv, z)
+        val i = z.r
         val q = z.i
-        par.updateScope(i, q)
+        updateScope(i, q)
         var sign = if (i>0) 1 else -1
         //var zscope = z * 2.0;
         if (sign != lastSign)
@@ -400,8 +423,8 @@ class Psk31(par: App) extends Mode(par, 1200.0)
             symCounter += 1
         lastSign = sign
         if ((symCounter % samplesPerSymbol) == halfSym)
-            processSymbol(z)
-        z.r
+            processSymbol(i, q)
+        i
         }
     
     
@@ -410,6 +433,8 @@ class Psk31(par: App) extends Mode(par, 1200.0)
     //####################################################
 
     val decoder = Viterbi.decoder(5, 0x17, 0x19)
+    private val qbm   = Array.ofDim[Int](4)
+    private val qbits = Array.ofDim[Boolean](8)
     
     var qpskMode = false
     
@@ -445,29 +470,39 @@ class Psk31(par: App) extends Mode(par, 1200.0)
     var lastBit   = false
     
     
-    def processSymbol(v: Complex) =
+    def processSymbol(v: Complex) : Unit =
+        processSymbol(v.r, v.i)
+
+    def processSymbol(r: Double, i: Double) : Unit =
         {
         if (qpskMode)
             {
             /**/
-            val vn  = v.arg
+            val vn  = FastMath.atan2(i, r)
             val dv  = angleDiff(vn,  lastv)
             val d00 = distance(dv, math.Pi)
             val d01 = distance(dv,  halfpi)
             val d10 = distance(dv, -halfpi)
             val d11 = distance(dv,     0.0)
-            val bm = Array(d00, d01, d10, d11)
+            qbm(0) = d00
+            qbm(1) = d01
+            qbm(2) = d10
+            qbm(3) = d11
             //println("%6.3f %6.3f %6.3f  :  %3d %3d %3d %3d".format(lastv, vn, dv, d00, d01, d10, d11))
-            val bits = decoder.decodeOne(bm) 
-            for (bit <- bits)
-                processBit(bit)
+            val nbits = decoder.decodeOne(qbm, qbits, 0)
+            var b = 0
+            while (b < nbits)
+                {
+                processBit(qbits(b))
+                b += 1
+                }
             lastv = vn
             /**/               
             }
         else //bpsk
             {
             /**/
-            val vn  = v.arg
+            val vn  = FastMath.atan2(i, r)
             val dv  = angleDiff(vn,  lastv)
             val d00 = distance(dv, math.Pi)
             val d11 = distance(dv,     0.0)
@@ -494,9 +529,9 @@ class Psk31(par: App) extends Mode(par, 1200.0)
                     {
                     val chr = ascii.get.toChar
                     if (chr == 10 || chr == 13)
-                        par.puttext("\n")
+                        puttext("\n")
                     else
-                        par.puttext(chr.toString)
+                        puttext(chr.toString)
                     code = 0
                     }                        
                 }
@@ -0,0 +1,381 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.mode
+
+
+
+import java.util.concurrent.ForkJoinPool
+
+import org.bdigi._
+
+
+
+/**
+ * One decoder of a PskSkimmer.  It is an ordinary Psk31, but its text goes
+ * to the skimmer, and its scope nowhere.
+ */
+class SkimChannel(skimmer: PskSkimmer, par: App) extends Psk31(par)
+{
+    /**
+     * When the skimmer last saw this carrier, in samples
+     */
+    var lastSeen = 0L
+    
+    val text = new StringBuilder
+    
+    override def puttext(msg: String) =
+        skimmer.channelText(this, msg)
+        
+    override def updateScope(x: Double, y: Double) =
+        {}
+}
+
+
+
+/**
+ * Decodes every PSK31 or PSK63 signal in the passband at once.
+ *
+ * Every hop, it takes the power spectrum of the last fftSize samples,
+ * smooths it across a little more than one symbol rate, and looks for
+ * carriers standing well clear of the noise floor.  Each new carrier gets a SkimChannel
+ * of its own, and a channel is torn down once its carrier has been gone
+ * for holdSeconds.
+ *
+ * The channels all hang off one Channelizer, so adding one costs little
+ * more than its demodulator, and they demodulate concurrently on a pool.
+ * Each line of text is passed to par.puttext prefixed with its frequency.
+ */
+class PskSkimmer(par: App) extends Mode(par, 1200.0)
+{
+    override val name = "pskskim"
+    override val tooltip = "Decode all PSK signals in the passband"
+    
+    rate = 31.25
+    
+    private val rates = List(
+         ("31", 31.25),
+         ("63",  62.5)
+    )
+    
+    override val properties = new PropertyGroup(name, 
+        new RadioProperty("rate", "Rate", rates.map(_._1), "PSK bit rate") (idx => rate = rates(idx)._2 )
+    )
+    
+    override def bandwidth = Constants.bandwidth
+
+    //########################################
+    //# Settings
+    //########################################
+    
+    var maxChannels  = 64
+    var holdSeconds  = 15.0
+    //how far, in dB, a carrier must be above the median to count
+    var thresholdDb  = 10.0
+    var lineLength   = 64
+    var lowFrequency = 200.0
+    var highFrequency = Constants.highFrequency
+    
+    //########################################
+    //# Channels
+    //########################################
+    
+    val channelizer = new Channelizer(par, 32, decimation)
+    
+    private var nrThreads = Runtime.getRuntime.availableProcessors
+    private var pool : Option[ForkJoinPool] = None
+    private var running = false
+    
+    /**
+     * Demodulate on this many threads.  1 means on the receive thread.
+     */
+    def threads_=(n: Int) =
+        synchronized
+            {
+            nrThreads = n
+            if (running)
+                start
+            }
+        
+    def threads = nrThreads
+    
+    /**
+     * Make the pool.  Receiving does this too, if it needs to.
+     */
+    override def start =
+        synchronized
+            {
+            pool.foreach(_.shutdown)
+            pool = if (nrThreads > 1) Some(new ForkJoinPool(nrThreads)) else None
+            channelizer.executor = pool
+            running = true
+            }
+        
+    /**
+     * Let go of the pool's threads, such as when this is no longer the mode
+     */
+    override def stop =
+        synchronized
+            {
+            running = false
+            channelizer.executor = None
+            pool.foreach(_.shutdown)
+            pool = None
+            }
+    
+    @volatile private var chans = Vector[SkimChannel]()
+    
+    def channels : Seq[SkimChannel] = chans
+    
+    /**
+     * Called by the channels with each piece of decoded text.  By default,
+     * this collects it into lines and sends each finished line to par.
+     */
+    def channelText(ch: SkimChannel, msg: String) : Unit =
+        {
+        val line = ch.text.synchronized
+            {
+            ch.text.append(msg)
+            if (msg == "\n" || ch.text.length >= lineLength)
+                {
+                val s = ch.text.toString.trim
+                ch.text.clear
+                s
+                }
+            else
+                ""
+            }
+        if (line.length > 0)
+            putline(ch, line)
+        }
+        
+    private def putline(ch: SkimChannel, line: String) =
+        par.synchronized
+            {
+            par.puttext("%7.1f: %s\n".format(ch.frequency, line))
+            }
+    
+    private def spawn(freq: Double) =
+        {
+        val ch = new SkimChannel(this, par)
+        ch.rate      = rate
+        ch.frequency = freq
+        ch.lastSeen  = clock
+        channelizer.attach(ch)
+        chans = chans :+ ch
+        }
+    
+    private def teardown(ch: SkimChannel) =
+        {
+        channelizer.detach(ch)
+        chans = chans.filterNot(_ eq ch)
+        val rest = ch.text.synchronized
+            {
+            val s = ch.text.toString.trim
+            ch.text.clear
+            s
+            }
+        if (rest.length > 0)
+            putline(ch, rest)
+        }
+
+    override def rateChanged(v: Double) =
+        {
+        if (chans != null)
+            {
+            chans.foreach(_.rate = v)
+            kernel = smoother(v)
+            }
+        }
+
+    //########################################
+    //# Detection
+    //########################################
+    
+    val fftSize = 4096
+    private val hop     = fftSize / 2
+    private val binHz   = par.sampleRate / fftSize
+    private val fft     = new DFft(fftSize)
+    private val window  = Window.Hann(fftSize)
+    private val frame   = Array.ofDim[Double](fftSize)
+    private val work    = Array.ofDim[Double](fftSize)
+    private val avg     = Array.ofDim[Double](fftSize / 2)
+    private val smooth  = Array.ofDim[Double](fftSize / 2)
+    private var framePtr = 0
+    private var hopCtr   = 0
+    
+    //samples seen so far
+    private var clock = 0L
+    
+    /**
+     * A Hann kernel a little wider than the baud rate.  An idle PSK signal
+     * is a pair of tones at +-rate/2, and anything narrower than this leaves
+     * a dip between them instead of one peak at the carrier.
+     */
+    private def smoother(baud: Double) : Array[Double] =
+        {
+        val w = math.max(1, (1.25 * baud / binHz).toInt)
+        Array.tabulate(w + 1)(j => 0.5 + 0.5 * math.cos(math.Pi * j / (w + 1)))
+        }
+    
+    @volatile private var kernel = smoother(rate)
+    
+    /**
+     * Update the spectrum, find the carriers in it, and start and
+     * stop channels to match
+     */
+    private def detect =
+        {
+        var fp = framePtr
+        var i = 0
+        while (i < fftSize)
+            {
+            work(i) = frame(fp) * window(i)
+            fp += 1
+            if (fp >= fftSize)
+                fp = 0
+            i += 1
+            }
+        val ps = fft.powerSpectrum(work, fftSize / 2)
+        i = 0
+        while (i < avg.length)
+            {
+            avg(i) = avg(i) * 0.7 + ps(i) * 0.3
+            i += 1
+            }
+        val k  = kernel
+        val halfWidth = k.length - 1
+        val lo = math.max(halfWidth, (lowFrequency / binHz).toInt)
+        val hi = math.min(avg.length - halfWidth - 1, (highFrequency / binHz).toInt)
+        if (hi > lo)
+            {
+            i = lo
+            while (i <= hi)
+                {
+                var sum = avg(i) * k(0)
+                var j = 1
+                while (j <= halfWidth)
+                    {
+                    sum += (avg(i - j) + avg(i + j)) * k(j)
+                    j += 1
+                    }
+                smooth(i) = sum
+                i += 1
+                }
+            //on a busy band most of the smoothed spectrum is signal, so take
+            //the floor from a low percentile of the unsmoothed one
+            val sorted = java.util.Arrays.copyOfRange(avg, lo, hi + 1)
+            java.util.Arrays.sort(sorted)
+            val floor     = sorted(sorted.length / 5) * (2.0 * k.sum - k(0))
+            val threshold = floor * math.pow(10.0, thresholdDb / 10.0)
+            val reach     = halfWidth
+            i = lo + 1
+            while (i < hi)
+                {
+                val v = smooth(i)
+                if (v > threshold && isPeak(i, lo, hi, reach))
+                    {
+                    //parabolic interpolation between the neighbouring bins
+                    val a = smooth(i-1)
+                    val c = smooth(i+1)
+                    val denom = a - 2.0 * v + c
+                    val delta = if (denom == 0.0) 0.0 else 0.5 * (a - c) / denom
+                    found((i + delta) * binHz)
+                    }
+                i += 1
+                }
+            }
+        val hold = (holdSeconds * par.sampleRate).toLong
+        for (ch <- chans)
+            if (clock - ch.lastSeen > hold)
+                teardown(ch)
+        }
+    
+    private def isPeak(i: Int, lo: Int, hi: Int, reach: Int) : Boolean =
+        {
+        val v = smooth(i)
+        var j = math.max(lo, i - reach)
+        val end = math.min(hi, i + reach)
+        while (j <= end)
+            {
+            //ties go to the lower bin
+            if (smooth(j) > v || (smooth(j) == v && j < i))
+                return false
+            j += 1
+            }
+        true
+        }
+    
+    /**
+     * A carrier at freq.  Refresh its channel, or start one.
+     */
+    private def found(freq: Double) =
+        {
+        val near = chans.find(ch => math.abs(ch.frequency - freq) < 0.5 * rate)
+        if (near.isDefined)
+            near.get.lastSeen = clock
+        else if (chans.size < maxChannels)
+            spawn(freq)
+        }
+
+    //########################################
+    //# Receive
+    //########################################
+    
+    private val one = Array.ofDim[Double](1)
+    
+    override def receive(iv: Double) =
+        {
+        one(0) = iv
+        receive(one, 0, 1)
+        }
+    
+    override def receive(data: Array[Double], off: Int, len: Int) : Unit =
+        {
+        var n = off
+        val end = off + len
+        while (n < end)
+            {
+            frame(framePtr) = data(n)
+            framePtr += 1
+            if (framePtr >= fftSize)
+                framePtr = 0
+            clock += 1
+            hopCtr += 1
+            if (hopCtr >= hop)
+                {
+                hopCtr = 0
+                detect
+                }
+            n += 1
+            }
+        synchronized
+            {
+            if (!running)
+                start
+            channelizer.update(data, off, len)
+            }
+        }
+}
@@ -28,6 +28,7 @@ package org.bdigi.mode
 
 import org.bdigi._
 
+import org.apache.commons.math3.util.FastMath
 
 /**
  * These are the ITU codes for 5-bit Baudot code and 7-bit SITOR
@@ -155,6 +156,8 @@ class Rtty(par: App) extends Mode(par, 1000.0)
 
     var inverted = false
     
+    private var channelTapsVal = 13
+    
     private var shiftVal = 170.0
     
     def shift = shiftVal
@@ -178,8 +181,30 @@ class Rtty(par: App) extends Mode(par, 1000.0)
     var spaceFreq = Complex(twopi * (-shift * 0.5) / sampleRate)
     var markFreq  = Complex(twopi * ( shift * 0.5) / sampleRate)
     
-    var sf = Fir.bandPass(13, -0.75 * shift, -0.25 * shift, sampleRate)
-    var mf = Fir.bandPass(13,  0.25 * shift,  0.75 * shift, sampleRate)
+    /**
+     * Taps in the space and mark channel filter.  Past Fir.fastTaps the
+     * filter runs by fast convolution, so steep ones are cheap.
+     */
+    def channelTaps = channelTapsVal
+    
+    def channelTaps_=(v: Int) =
+        {
+        channelTapsVal = v
+        adjust
+        }
+        
+    /**
+     * The space and mark filters.  Their outputs are only ever used summed,
+     * so they are applied as one filter, with the sum of their coefficients.
+     */
+    def mkChannel =
+        {
+        val s = Fir.bandPassCoeffs(channelTaps, -0.75 * shift, -0.25 * shift, sampleRate)
+        val m = Fir.bandPassCoeffs(channelTaps,  0.25 * shift,  0.75 * shift, sampleRate)
+        Fir.auto(Array.tabulate(channelTaps)(c => s(c) + m(c)))
+        }
+    
+    var channel = mkChannel
     //var dataFilter = Iir2.lowPass(rate, sampleRate)
     var dataFilter = Fir.boxcar(samplesPerSymbol.toInt)
     var txlpf = Fir.lowPass(31,  shift * 0.5, sampleRate)
@@ -189,8 +214,7 @@ class Rtty(par: App) extends Mode(par, 1000.0)
 
     def adjust =
         {
-        sf = Fir.bandPass(13, -0.75 * shift, -0.25 * shift, sampleRate)
-        mf = Fir.bandPass(13,  0.25 * shift,  0.75 * shift, sampleRate)
+        channel = mkChannel
         spaceFreq = Complex(twopi * (-shift * 0.5) / sampleRate)
         markFreq  = Complex(twopi * ( shift * 0.5) / sampleRate)
         //dataFilter = Iir2.lowPass(rate, sampleRate)
@@ -210,8 +234,40 @@ class Rtty(par: App) extends Mode(par, 1000.0)
     
     val debug = false
 
-    var lastVal = Complex(0.0)
+    private val filtered = new MutableComplex
+    private var lastr = 0.0
+    private var lasti = 0.0
+    
+    override def update(isample:  Complex) : Double =
+        update(isample.r, isample.i)
+        
+    override def update(r: Double, i: Double) : Double =
+        demodulate(r, i)
+        
+    //the channel filter output for a block
+    private var chr = Array.ofDim[Double](0)
+    private var chi = Array.ofDim[Double](0)
     
+    /**
+     * Process a whole block of baseband samples in one tight loop.  The
+     * channel filter runs over the whole block first.  The discriminator
+     * does not care about scale, so the AGC gain is not applied.
+     */
+    override def update(rs: Array[Double], is: Array[Double], len: Int) : Unit =
+        {
+        if (chr.length < len)
+            {
+            chr = Array.ofDim[Double](len)
+            chi = Array.ofDim[Double](len)
+            }
+        channel.filter(rs, is, chr, chi, 0, len)
+        var n = 0
+        while (n < len)
+            {
+            agcFeedback(discriminate(chr(n), chi(n)))
+            n += 1
+            }
+        }
         
     /**
      * note: multiplying one complex sample of an
@@ -219,19 +275,25 @@ class Rtty(par: App) extends Mode(par, 1000.0)
      * value gives the instantaneous frequency change of
      * the signal.  This is called a polar discrminator.
      */             
-    override def update(isample:  Complex) : Double =
+    private def demodulate(r: Double, i: Double) : Double =
+        {
+        channel.update(r, i, filtered)
+        discriminate(filtered.r, filtered.i)
+        }
+        
+    private def discriminate(sr: Double, si: Double) : Double =
         {
-        val space  = sf.update(isample)
-        val mark   = mf.update(isample)
-        val sample = space + mark
-        val prod   = sample * lastVal.conj
-        lastVal    = sample
-        val demod  = prod.arg
+        //sample * lastVal.conj
+        val prodr  = sr * lastr + si * lasti
+        val prodi  = si * lastr - sr * lasti
+        lastr      = sr
+        lasti      = si
+        val demod  = FastMath.atan2(prodi, prodr)
         val comp   = math.signum(demod) * 10.0
         val sig    = dataFilter.update(comp)
         //trace("sig:" + sig + "  comp:" + comp)
 
-        par.updateScope(sig, 0)
+        updateScope(sig, 0)
 
         //trace("sig:" + sig)
         if (sig > hiHys)
@@ -413,20 +475,20 @@ class Rtty(par: App) extends Mode(par, 1000.0)
                 shifted = false
             else if (code == Baudot.BAUD_SPACE)
                 {
-                par.puttext(" ")
+                puttext(" ")
                 if (unshiftOnSpace)
                     shifted = false
                 }
             else if (code == Baudot.BAUD_CR || code == Baudot.BAUD_LF)
                 {
-                par.puttext("\n")
+                puttext("\n")
                 if (unshiftOnSpace)
                     shifted = false
                 }
             val v = Baudot.baudCodeToSym(code)
             val c = if (shifted) v._2 else v._1
             if (c != 0)
-                par.puttext(c.toChar.toString)
+                puttext(c.toChar.toString)
             }
             
         }
@@ -0,0 +1,62 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (c) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+
+/**
+ * For the tests that check a hot path allocates nothing
+ */
+object AllocationProbe
+{
+    private val threadBean = java.lang.management.ManagementFactory.getThreadMXBean.
+        asInstanceOf[com.sun.management.ThreadMXBean]
+
+    /**
+     * Bytes allocated by this thread so far
+     */
+    def allocated : Long =
+        threadBean.getThreadAllocatedBytes(Thread.currentThread.getId)
+
+    /**
+     * Run f a few times, and return the fewest bytes that one run allocated.
+     * The first runs include JIT warmup, so we want the steady state.
+     */
+    def steadyAllocations(f: => Unit) : Long =
+        {
+        var best = Long.MaxValue
+        for (round <- 0 until 5)
+            {
+            //measure how much allocated() itself costs
+            val b0 = allocated
+            val b1 = allocated
+            f
+            val b2 = allocated
+            best = best min ((b2 - b1) - (b1 - b0))
+            }
+        best
+        }
+}
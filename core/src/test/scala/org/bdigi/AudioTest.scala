@@ -0,0 +1,164 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+
+import javax.sound.sampled.AudioFormat
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+
+@RunWith(classOf[JUnitRunner])
+class AudioTest extends FeatureSpec with Matchers
+{
+    val rate = 48000.0f
+    
+    def pcm(bits: Int, bigEndian: Boolean, channels: Int = 1) =
+        new AudioFormat(rate, bits, channels, true, bigEndian)
+        
+    def float32(bigEndian: Boolean) =
+        new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, 1, 4, rate, bigEndian)
+        
+    val ramp = Array.tabulate(256)(i => (i - 128) / 128.0)
+    
+    def roundTrip(format: AudioFormat, tolerance: Double) =
+        {
+        val codec = new SampleCodec(format, Array.ofDim[Byte](1024 * format.getFrameSize))
+        codec.encode(ramp, 0, ramp.length) shouldEqual ramp.length * format.getFrameSize
+        val out = Array.ofDim[Double](ramp.length + 2)
+        codec.decode(ramp.length, out, 2)
+        for (i <- ramp.indices)
+            out(i + 2) should be (ramp(i) +- tolerance)
+        }
+
+    feature("Sample conversion")
+        {
+        scenario("Every format round-trips, in both byte orders")
+            {
+            for (be <- Seq(true, false))
+                {
+                roundTrip(pcm(16, be), 1.0 / 32767.0)
+                roundTrip(pcm(24, be), 1.0 / 8388607.0)
+                roundTrip(float32(be), 1.0e-7)
+                roundTrip(pcm(16, be, 2), 1.0 / 32767.0)
+                }
+            }
+            
+        scenario("Bytes are read in the format's own order, and signed")
+            {
+            val le = new SampleCodec(pcm(16, false), Array[Byte](0x00, 0xc0.toByte, 0x00, 0x40))
+            val be = new SampleCodec(pcm(16, true),  Array[Byte](0xc0.toByte, 0x00, 0x40, 0x00))
+            val l = Array.ofDim[Double](2)
+            val b = Array.ofDim[Double](2)
+            le.decode(2, l, 0)
+            be.decode(2, b, 0)
+            l.toList shouldEqual List(-0.5, 0.5)
+            b.toList shouldEqual List(-0.5, 0.5)
+            
+            val le24 = new SampleCodec(pcm(24, false), Array[Byte](0x00, 0x00, 0xc0.toByte))
+            val be24 = new SampleCodec(pcm(24, true),  Array[Byte](0xc0.toByte, 0x00, 0x00))
+            le24.decode(1, l, 0)
+            be24.decode(1, b, 0)
+            l(0) shouldEqual -0.5
+            b(0) shouldEqual -0.5
+            }
+            
+        scenario("Only the first channel is read, and writes go to every channel")
+            {
+            val codec = new SampleCodec(pcm(16, false, 2), Array.ofDim[Byte](16))
+            codec.encode(Array(0.25, -0.25), 0, 2)
+            val s = java.nio.ByteBuffer.wrap(codec.bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN).asShortBuffer
+            (0 until 4).map(s.get(_)) shouldEqual Seq(8192, 8192, -8192, -8192)
+            codec.bytes(0) = 0
+            codec.bytes(1) = 0x20
+            codec.bytes(2) = 0
+            codec.bytes(3) = 0x7f
+            val out = Array.ofDim[Double](1)
+            codec.decode(1, out, 0)
+            out(0) shouldEqual 0.25
+            }
+            
+        scenario("Writes clip instead of wrapping")
+            {
+            for (format <- Seq(pcm(16, true), pcm(24, false)))
+                {
+                val codec = new SampleCodec(format, Array.ofDim[Byte](64))
+                codec.encode(Array(1.5, -1.5), 0, 2)
+                val out = Array.ofDim[Double](2)
+                codec.decode(2, out, 0)
+                out(0) should be (1.0 +- 1.0e-4)
+                out(1) should be (-1.0 +- 1.0e-4)
+                }
+            }
+            
+        scenario("16-bit reads for the fixed-point front end")
+            {
+            val shorts = Array.ofDim[Short](ramp.length)
+            for (format <- Seq(pcm(16, false), pcm(24, true), float32(false)))
+                {
+                val codec = new SampleCodec(format, Array.ofDim[Byte](1024 * format.getFrameSize))
+                codec.encode(ramp, 0, ramp.length)
+                codec.decode(ramp.length, shorts, 0)
+                for (i <- ramp.indices)
+                    shorts(i).toDouble should be (ramp(i) * 32768.0 +- 1.0)
+                }
+            }
+            
+        scenario("Unsupported formats are refused")
+            {
+            an [IllegalArgumentException] should be thrownBy
+                new SampleCodec(new AudioFormat(rate, 8, 1, false, false), Array.ofDim[Byte](16))
+            }
+        }
+        
+    feature("Caller-owned buffers")
+        {
+        scenario("The older read is built on the buffer read")
+            {
+            val dev = new AudioInputDevice
+                {
+                var left = 5000
+                def sampleRate = 8000.0
+                def open = true
+                def close = true
+                def read(buf: Array[Double], off: Int, len: Int) =
+                    {
+                    val n = math.min(left, len)
+                    java.util.Arrays.fill(buf, off, off + n, 0.5)
+                    left -= n
+                    n
+                    }
+                def read(buf: Array[Short], off: Int, len: Int) = 0
+                }
+            dev.read.get.length shouldEqual AudioDevice.packetSize
+            dev.read.get.length shouldEqual 5000 - AudioDevice.packetSize
+            dev.read shouldEqual None
+            }
+        }
+}
@@ -0,0 +1,112 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.io.{File, FileOutputStream}
+import java.nio.{ByteBuffer, ByteOrder}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.mode.Mode
+
+
+@RunWith(classOf[JUnitRunner])
+class BatchDecoderTest extends FeatureSpec with Matchers
+{
+    /**
+     * Says "p" at the start of each pulse
+     */
+    class PulseMode(par: App) extends Mode(par, 1000.0)
+    {
+        var high = false
+        override def receive(data: Array[Double], off: Int, len: Int) =
+            {
+            for (i <- off until off + len)
+                {
+                if (!high && data(i) > 0.5)
+                    {
+                    high = true
+                    par.puttext("p")
+                    }
+                else if (high && data(i) < 0.25)
+                    high = false
+                }
+            }
+    }
+
+    /**
+     * A mono WAV with a 20ms pulse every half second, starting at 0.25s
+     */
+    def pulseFile(seconds: Int) : File =
+        {
+        val rate = 44100
+        val samples = Array.tabulate(seconds * rate)(i =>
+            {
+            val t = i % (rate / 2)
+            if (t >= rate / 4 && t < rate / 4 + 882) 29000.toShort else 0.toShort
+            })
+        val file = File.createTempFile("bdigi", ".wav")
+        file.deleteOnExit
+        val buf = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN)
+        buf.put("RIFF".getBytes).putInt(36 + samples.length * 2).put("WAVE".getBytes)
+        buf.put("fmt ".getBytes).putInt(16).putShort(1.toShort).putShort(1.toShort)
+        buf.putInt(rate).putInt(rate * 2).putShort(2.toShort).putShort(16.toShort)
+        buf.put("data".getBytes).putInt(samples.length * 2)
+        samples.foreach(buf.putShort)
+        val out = new FileOutputStream(file)
+        out.write(buf.array)
+        out.close
+        file
+        }
+
+    feature("Parallel batch decoding")
+        {
+        
+        scenario("Overlapping shards give each pulse once, in time order")
+            {
+            val file  = pulseFile(10)
+            val batch = new BatchDecoder(app => new PulseMode(app), 1000.0, 1.3, 0.4, 4)
+            val shards = batch.shards(Seq(file))
+            shards.size shouldEqual 8
+            shards.head.leadIn shouldEqual 0
+            shards(1).start shouldEqual shards(0).end
+            shards(1).leadIn should be > 0L
+            
+            val out = batch.decode(Seq(file, file))
+            out.size shouldEqual 40
+            out.forall(_.text == "p") shouldBe true
+            for (pieces <- out.grouped(20))
+                {
+                val times = pieces.map(_.time)
+                times shouldEqual times.sorted
+                for ((t, n) <- times.zipWithIndex)
+                    t shouldEqual (0.25 + n * 0.5) +- 0.05
+                }
+            }
+        }
+}
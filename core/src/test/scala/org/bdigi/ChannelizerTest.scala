@@ -0,0 +1,103 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.mode.Mode
+
+
+@RunWith(classOf[JUnitRunner])
+class ChannelizerTest extends FeatureSpec with Matchers
+{
+    val app = new App
+    
+    class RecordingMode extends Mode(app, 1200.0)
+    {
+        val rs = scala.collection.mutable.ArrayBuffer[Double]()
+        val is = scala.collection.mutable.ArrayBuffer[Double]()
+        override def update(r: Array[Double], i: Array[Double], len: Int) =
+            {
+            rs ++= r.take(len)
+            is ++= i.take(len)
+            }
+    }
+    
+    def tone(freq: Double, len: Int) =
+        Array.tabulate(len)(i => math.cos(2.0 * math.Pi * freq * i / app.sampleRate))
+    
+    def feed(ch: Channelizer, data: Array[Double]) =
+        for (block <- data.grouped(1000))
+            ch.update(block, 0, block.length)
+
+    feature("Polyphase channelizer")
+        {
+
+        scenario("A tone at a channel center comes out of that channel only")
+            {
+            val mode = new RecordingMode
+            val ch = new Channelizer(app, 24, mode.decimation)
+            ch.spacing shouldEqual app.sampleRate / 24
+            val k = 5
+            feed(ch, tone(k * ch.spacing, 20000))
+            def mag(j: Int) = math.hypot(ch.outr(j), ch.outi(j))
+            info("own: " + mag(k) + "  next: " + mag(k + 1) + "  two over: " + mag(k + 2))
+            mag(k) shouldEqual 0.5 +- 0.01
+            mag(k + 2) should be < 0.001
+            mag(k - 2) should be < 0.001
+            }
+
+        scenario("An attached mode gets its frequency at baseband")
+            {
+            val mode = new RecordingMode
+            mode.frequency = 1000.0
+            val ch = new Channelizer(app, 24, mode.decimation)
+            ch.attach(mode)
+            ch.modes shouldEqual Seq(mode)
+            //10 Hz above the mode's frequency, and well away from a channel center
+            ch.channelOf(1000.0) shouldEqual 3
+            feed(ch, tone(1010.0, 30000))
+            mode.rs.size shouldEqual 30000 / mode.decimation
+            val expected = 2.0 * math.Pi * 10.0 / ch.outputRate
+            for (n <- 1000 until mode.rs.size)
+                {
+                math.hypot(mode.rs(n), mode.is(n)) shouldEqual 0.5 +- 0.01
+                val z = Complex(mode.rs(n), mode.is(n)) * Complex(mode.rs(n-1), -mode.is(n-1))
+                z.arg shouldEqual expected +- 0.01
+                }
+            ch.detach(mode)
+            ch.modes shouldBe empty
+            }
+
+        scenario("Modes must decimate by the same amount")
+            {
+            val ch = new Channelizer(app, 24, 2)
+            an [IllegalArgumentException] should be thrownBy ch.attach(new RecordingMode)
+            }
+        }
+}
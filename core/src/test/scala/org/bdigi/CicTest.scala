@@ -61,5 +61,108 @@ class CicTest extends FeatureSpec with Matchers
             }
   
         }        
+
+    feature("Fixed-point front end")
+        {
+        val fs = 44100.0
+        
+        def tone(freq: Double) =
+            Array.tabulate(44100)(n => 0.5 * math.sin(2.0 * math.Pi * freq * n / fs))
+            
+        def viaCic(x: Array[Double]) =
+            {
+            val cic = new CicFrontEnd(6)
+            val pcm = x.map(v => math.round(v * 32767.0).toShort)
+            val out = Array.ofDim[Double](cic.outputSize(pcm.length))
+            out.take(cic.decimate(pcm, 0, pcm.length, out))
+            }
+            
+        def viaResampler(x: Array[Double]) =
+            {
+            val r   = Resampler(6)
+            val out = Array.ofDim[Double](x.length / 6 + 1)
+            out.take(r.decimate(x, 0, x.length, out))
+            }
+            
+        //gain in dB of a 0.5 amplitude tone, after the filters settle
+        def gain(out: Array[Double]) =
+            {
+            val tail = out.drop(500)
+            20.0 * math.log10(math.sqrt(tail.map(v => v * v).sum / tail.length) / (0.5 / math.sqrt(2.0)))
+            }
+
+        scenario("Keeps the registers within an Int")
+            {
+            CicFrontEnd.stagesFor(2) shouldEqual 4
+            CicFrontEnd.stagesFor(6) shouldEqual 4
+            CicFrontEnd.stagesFor(12) shouldEqual 4
+            CicFrontEnd.stagesFor(24) shouldEqual 3
+            val cic = new CicFrontEnd(24)
+            val pcm = Array.fill(24 * 200)(Short.MaxValue)
+            val out = Array.ofDim[Double](cic.outputSize(pcm.length))
+            val count = cic.decimate(pcm, 0, pcm.length, out)
+            count shouldEqual 200
+            out(count - 1) shouldEqual (32767.0 / 32768.0) +- 1.0e-3
+            }
+
+        scenario("Flatter than Resampler(6) across the passband")
+            {
+            var worstCic = 0.0
+            var worstRes = 0.0
+            for (freq <- Seq(100.0, 500.0, 1000.0, 1500.0, 2000.0, 2500.0))
+                {
+                val x = tone(freq)
+                val c = gain(viaCic(x))
+                val r = gain(viaResampler(x))
+                info("%6.0f Hz:  cic %6.2f dB   Resampler(6) %6.2f dB".format(freq, c, r))
+                worstCic = math.max(worstCic, math.abs(c))
+                worstRes = math.max(worstRes, math.abs(r))
+                }
+            worstCic should be < 1.0
+            worstCic should be < worstRes
+            }
+
+        scenario("Rejects aliases better than Resampler(6)")
+            {
+            //these land on 1000, 1500 and 2000 Hz after decimating to 7350
+            for (freq <- Seq(6350.0, 8850.0, 13700.0, 15700.0))
+                {
+                val x = tone(freq)
+                val c = gain(viaCic(x))
+                val r = gain(viaResampler(x))
+                info("%6.0f Hz:  cic %6.2f dB   Resampler(6) %6.2f dB".format(freq, c, r))
+                c should be < -45.0
+                c should be < r
+                }
+            }
+
+        scenario("Quantization stays near the 16-bit floor")
+            {
+            //fit the 1000 Hz tone and measure what is left
+            val out = viaCic(tone(1000.0)).drop(500)
+            val w   = 2.0 * math.Pi * 1000.0 / 7350.0
+            val s   = out.indices.map(n => out(n) * math.sin(w * n)).sum * 2.0 / out.length
+            val c   = out.indices.map(n => out(n) * math.cos(w * n)).sum * 2.0 / out.length
+            val residual = out.indices.map(n => out(n) - s * math.sin(w * n) - c * math.cos(w * n))
+            val noise = math.sqrt(residual.map(v => v * v).sum / out.length)
+            val snr = 20.0 * math.log10(0.5 / math.sqrt(2.0) / noise)
+            info("SNR: %.1f dB".format(snr))
+            snr should be > 80.0
+            }
+
+        scenario("Any block size gives the same output")
+            {
+            val pcm = tone(1234.0).map(v => math.round(v * 32767.0).toShort)
+            val c1  = new CicFrontEnd(6)
+            val c2  = new CicFrontEnd(6)
+            val whole = Array.ofDim[Double](c1.outputSize(pcm.length))
+            val count = c1.decimate(pcm, 0, pcm.length, whole)
+            val parts = scala.collection.mutable.ArrayBuffer[Double]()
+            val buf   = Array.ofDim[Double](c2.outputSize(1000))
+            for (off <- 0 until pcm.length by 1000)
+                parts ++= buf.take(c2.decimate(pcm, off, math.min(1000, pcm.length - off), buf))
+            parts.toList shouldEqual whole.take(count).toList
+            }
+        }
 }
 
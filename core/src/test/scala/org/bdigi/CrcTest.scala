@@ -83,6 +83,49 @@ class CrcTest extends FeatureSpec with Matchers
             v shouldEqual 0xea0b
             }
         }
+        
+    feature("Slicing by 8")
+        {
+        scenario("Buffers give the same CRC as a byte at a time, both ways")
+            {
+            val rand = new scala.util.Random(8)
+            for (len <- 0 until 40 ; off <- 0 until 3)
+                {
+                val buf = Array.ofDim[Byte](len + off)
+                rand.nextBytes(buf)
+                val one = new CrcCCITT
+                val oneLE = new CrcCCITT
+                for (i <- off until off + len)
+                    {
+                    one.update(buf(i) & 0xff)
+                    oneLE.updateLE(buf(i) & 0xff)
+                    }
+                val all = new CrcCCITT
+                all.update(buf, off, len)
+                all.value shouldEqual one.value
+                val allLE = new CrcCCITT
+                allLE.updateLE(buf, off, len)
+                allLE.valueLE shouldEqual oneLE.valueLE
+                }
+            }
+            
+        scenario("Calculates '123456789' from a buffer")
+            {
+            val crc = new CrcCCITT
+            crc.update("123456789".getBytes, 0, 9)
+            crc.value shouldEqual 0x29b1
+            }
+            
+        scenario("A buffer and its FCS leave the AX.25 residue")
+            {
+            val data = "the quick brown fox jumps over the lazy dog".getBytes
+            val crc = new CrcCCITT
+            crc.updateLE(data, 0, data.size)
+            val fcs = crc.valueLE ^ 0xffff
+            crc.updateLE(Array((fcs & 0xff).toByte, (fcs >> 8).toByte), 0, 2)
+            crc.valueLE shouldEqual 0xf0b8
+            }
+        }
 
 }
 
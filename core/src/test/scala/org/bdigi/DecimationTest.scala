@@ -0,0 +1,225 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class DecimationTest extends FeatureSpec with Matchers
+{
+    val rate = 7350.0
+    
+    //magnitude response of h at freq, in dB
+    def response(h: Array[Double], freq: Double, fs: Double) : Double =
+        {
+        val w = 2.0 * math.Pi * freq / fs
+        var re = 0.0
+        var im = 0.0
+        for (k <- 0 until h.length)
+            {
+            re += h(k) * math.cos(w * k)
+            im -= h(k) * math.sin(w * k)
+            }
+        20.0 * math.log10(math.sqrt(re * re + im * im))
+        }
+
+    feature("Planning")
+        {
+
+        scenario("Tries every ordered factoring")
+            {
+            DecimationPlanner.factorings(1) shouldEqual Seq(Nil)
+            DecimationPlanner.factorings(7) shouldEqual Seq(List(7))
+            DecimationPlanner.factorings(12).toSet shouldEqual Set(List(2, 2, 3), List(2, 3, 2),
+                List(3, 2, 2), List(2, 6), List(6, 2), List(3, 4), List(4, 3), List(12))
+            }
+
+        scenario("Picks the cheapest, and beats a single stage")
+            {
+            for (d <- Seq(6, 12, 20))
+                {
+                val pass = 0.25 * rate / d
+                val plan = DecimationPlanner.plan(rate, d, pass, 50.0)
+                info(plan.toString)
+                plan.decimation shouldEqual d
+                for (f <- DecimationPlanner.factorings(d))
+                    plan.macsPerSample should be <= DecimationPlanner.design(rate, f, pass, 50.0).macsPerSample
+                plan.macsPerSample should be < DecimationPlanner.design(rate, Seq(d), pass, 50.0).macsPerSample
+                }
+            }
+
+        scenario("Each stage keeps the passband and rejects its aliases")
+            {
+            val pass = 0.25 * rate / 12
+            val plan = DecimationPlanner.plan(rate, 12, pass, 50.0)
+            var fs = rate
+            for ((factor, h) <- plan.factors zip plan.coeffs)
+                {
+                val stop = fs / factor - pass
+                for (i <- 0 to 20)
+                    assert(math.abs(response(h, pass * i / 20, fs)) < 0.1)
+                for (i <- 0 to 100)
+                    response(h, stop + (fs * 0.5 - stop) * i / 100, fs) should be < -49.0
+                fs /= factor
+                }
+            }
+
+        }//feature Planning
+
+    feature("Fused mixing")
+        {
+
+        def run(chain: DecimationChain, freq: Double, len: Int) =
+            {
+            val in   = Array.tabulate(len)(n => math.cos(2.0 * math.Pi * freq * n / rate))
+            val outr = Array.ofDim[Double](chain.outputSize(len))
+            val outi = Array.ofDim[Double](chain.outputSize(len))
+            val count = chain.decimate(in, 0, len, outr, outi)
+            (outr.take(count), outi.take(count))
+            }
+
+        scenario("Brings a tone near the frequency down to the same offset")
+            {
+            val plan  = DecimationPlanner.plan(rate, 6, 0.25 * rate / 6, 50.0)
+            val chain = new DecimationChain(plan)
+            chain.frequency = 2000.0
+            val (rs, is) = run(chain, 2030.0, 14700)
+            rs.length shouldEqual 2450
+            //half the amplitude, since the image at -4030 Hz is filtered out
+            val outRate = rate / 6
+            var maxErr = 0.0
+            for (n <- 1 until rs.length if n > 200)
+                {
+                val mag = math.sqrt(rs(n) * rs(n) + is(n) * is(n))
+                assert(math.abs(mag - 0.5) < 0.005)
+                //the phase advances by 30 Hz worth each output
+                val dr = rs(n) * rs(n-1) + is(n) * is(n-1)
+                val di = is(n) * rs(n-1) - rs(n) * is(n-1)
+                maxErr = math.max(maxErr, math.abs(math.atan2(di, dr) - 2.0 * math.Pi * 30.0 / outRate))
+                }
+            maxErr should be < 1.0e-3
+            }
+
+        scenario("Rejects tones that would alias into the passband")
+            {
+            val plan  = DecimationPlanner.plan(rate, 6, 0.25 * rate / 6, 50.0)
+            val chain = new DecimationChain(plan)
+            chain.frequency = 1000.0
+            //1225 Hz above lands on the center after decimating
+            val (rs, is) = run(chain, 2225.0, 14700)
+            val peak = rs.indices.drop(200).map(n => math.sqrt(rs(n) * rs(n) + is(n) * is(n))).max
+            20.0 * math.log10(peak / 0.5) should be < -49.0
+            }
+
+        scenario("Matches mixing first, then filtering")
+            {
+            val plan  = DecimationPlanner.plan(rate, 12, 0.25 * rate / 12, 50.0)
+            val chain = new DecimationChain(plan)
+            chain.frequency = 1234.5
+            val data = Array.tabulate(6000)(n => math.sin(n * 0.37) + 0.3 * math.cos(n * 1.9))
+            val (rs, is) = (Array.ofDim[Double](chain.outputSize(data.length)), Array.ofDim[Double](chain.outputSize(data.length)))
+            val count = chain.decimate(data, 0, data.length, rs, is)
+            
+            //the slow way: mix every sample, then convolve and keep every factor'th
+            val w = 2.0 * math.Pi * (4294967296.0 * 1234.5 / rate).toLong / 4294967296.0
+            var xr = data.indices.map(n => data(n) * math.cos(w * n)).toArray
+            var xi = data.indices.map(n => -data(n) * math.sin(w * n)).toArray
+            for ((factor, h) <- plan.factors zip plan.coeffs)
+                {
+                def conv(x: Array[Double], n: Int) =
+                    (0 until h.length).map(k => if (n - k >= 0) h(k) * x(n - k) else 0.0).sum
+                val idx = (factor - 1) until xr.length by factor
+                val yr = idx.map(conv(xr, _)).toArray
+                val yi = idx.map(conv(xi, _)).toArray
+                xr = yr
+                xi = yi
+                }
+            count shouldEqual xr.length
+            //the same but for one constant phase, from where the NCO starts
+            val rot = math.atan2(is(count - 1), rs(count - 1)) - math.atan2(xi(count - 1), xr(count - 1))
+            for (n <- 0 until count)
+                {
+                val er = xr(n) * math.cos(rot) - xi(n) * math.sin(rot)
+                val ei = xr(n) * math.sin(rot) + xi(n) * math.cos(rot)
+                assert(math.abs(er - rs(n)) < 1.0e-3 && math.abs(ei - is(n)) < 1.0e-3)
+                }
+            }
+
+        scenario("Block and per-sample agree")
+            {
+            val plan = DecimationPlanner.plan(rate, 12, 0.25 * rate / 12, 50.0)
+            val c1 = new DecimationChain(plan)
+            val c2 = new DecimationChain(plan)
+            c1.frequency = 800.0
+            c2.frequency = 800.0
+            val data = Array.tabulate(5000)(n => math.sin(n * 0.2) + 0.5 * math.cos(n * 0.9))
+            val res1 = scala.collection.mutable.ArrayBuffer[Double]()
+            for (v <- data)
+                c1.update(v)((r, i) => { res1 += r ; res1 += i })
+            val rs = Array.ofDim[Double](c2.outputSize(700))
+            val is = Array.ofDim[Double](c2.outputSize(700))
+            val res2 = scala.collection.mutable.ArrayBuffer[Double]()
+            for (off <- 0 until data.length by 700)
+                {
+                val count = c2.decimate(data, off, math.min(700, data.length - off), rs, is)
+                for (n <- 0 until count)
+                    {
+                    res2 += rs(n)
+                    res2 += is(n)
+                    }
+                }
+            res2 shouldEqual res1
+            }
+
+        scenario("A retune takes effect whole, between outputs")
+            {
+            val plan = DecimationPlanner.plan(rate, 12, 0.25 * rate / 12, 50.0)
+            val c1 = new DecimationChain(plan)
+            val c2 = new DecimationChain(plan)
+            c1.frequency = 800.0
+            c2.frequency = 1500.0
+            val data = Array.tabulate(6000)(n => math.sin(n * 0.2) + 0.5 * math.cos(n * 1.3))
+            val mags1 = scala.collection.mutable.ArrayBuffer[Double]()
+            val mags2 = scala.collection.mutable.ArrayBuffer[Double]()
+            for (n <- data.indices)
+                {
+                if (n == 3001)
+                    c1.frequency = 1500.0
+                c1.update(data(n))((r, i) => mags1 += math.hypot(r, i))
+                c2.update(data(n))((r, i) => mags2 += math.hypot(r, i))
+                }
+            c1.frequency shouldEqual 1500.0
+            //once the later stages have flushed, only the phase differs, and the
+            //sine table rounds the two a little differently
+            val settled = mags1.length / 2 + 100
+            for (n <- settled until mags1.length)
+                mags1(n) shouldEqual mags2(n) +- 1.0e-4
+            }
+
+        }//feature Fused mixing
+}
@@ -0,0 +1,192 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import java.io.{File, FileOutputStream}
+import java.nio.{ByteBuffer, ByteOrder}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.mode.Mode
+
+
+@RunWith(classOf[JUnitRunner])
+class FileAudioTest extends FeatureSpec with Matchers
+{
+    val app = new App
+
+    /**
+     * Write interleaved 16-bit samples to a temp file, with a WAV header if rate > 0
+     */
+    def writeFile(samples: Array[Short], channels: Int, rate: Int) : File =
+        {
+        val file = File.createTempFile("bdigi", if (rate > 0) ".wav" else ".raw")
+        file.deleteOnExit
+        val dataBytes = samples.length * 2
+        val hdrBytes  = if (rate > 0) 44 else 0
+        val buf = ByteBuffer.allocate(hdrBytes + dataBytes).order(ByteOrder.LITTLE_ENDIAN)
+        if (rate > 0)
+            {
+            buf.put("RIFF".getBytes).putInt(36 + dataBytes).put("WAVE".getBytes)
+            buf.put("fmt ".getBytes).putInt(16).putShort(1.toShort).putShort(channels.toShort)
+            buf.putInt(rate).putInt(rate * channels * 2).putShort((channels * 2).toShort).putShort(16.toShort)
+            buf.put("data".getBytes).putInt(dataBytes)
+            }
+        samples.foreach(buf.putShort)
+        val out = new FileOutputStream(file)
+        out.write(buf.array)
+        out.close
+        file
+        }
+
+    def readAll(in: FileAudioInput, blockSize: Int) : Array[Double] =
+        {
+        val out = scala.collection.mutable.ArrayBuffer[Double]()
+        val buf = Array.ofDim[Double](blockSize)
+        var count = in.read(buf, 0, blockSize)
+        while (count > 0)
+            {
+            out ++= buf.take(count)
+            count = in.read(buf, 0, blockSize)
+            }
+        out.toArray
+        }
+
+    val samples = Array.tabulate(10000)(i => ((i * 37) % 65536 - 32768).toShort)
+    val expected = samples.map(_ / 32768.0)
+
+    feature("Memory-mapped file input")
+        {
+        
+        scenario("Mono WAV")
+            {
+            val in = new FileAudioInput(app, writeFile(samples, 1, 8000))
+            in.open shouldBe true
+            in.sampleRate shouldEqual 8000.0
+            in.frames shouldEqual samples.length
+            readAll(in, 777).toList shouldEqual expected.toList
+            in.eof shouldBe true
+            in.read.isEmpty shouldBe true
+            in.close
+            }
+
+        scenario("Damaged headers are refused, not thrown on")
+            {
+            def header(body: ByteBuffer => Unit) =
+                {
+                val buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN)
+                buf.put("RIFF".getBytes).putInt(1016).put("WAVE".getBytes)
+                body(buf)
+                val file = File.createTempFile("bdigi", ".wav")
+                file.deleteOnExit
+                val out = new FileOutputStream(file)
+                out.write(buf.array)
+                out.close
+                new FileAudioInput(app, file)
+                }
+            //a chunk length of 2^31 and more
+            for (len <- List(0x80000000, 0xfffffff8, 0xffffffff))
+                header(_.put("LIST".getBytes).putInt(len)).open shouldBe false
+            //a fmt chunk too short to hold the format
+            header(_.put("fmt ".getBytes).putInt(8).putShort(1.toShort).putShort(1.toShort).
+                putInt(8000).put("data".getBytes).putInt(100)).open shouldBe false
+            }
+
+        scenario("Stereo WAV uses the first channel")
+            {
+            val stereo = samples.flatMap(v => Array(v, (-v).toShort))
+            val in = new FileAudioInput(app, writeFile(stereo, 2, 44100))
+            in.open shouldBe true
+            in.frames shouldEqual samples.length
+            readAll(in, 1000).toList shouldEqual expected.toList
+            in.close
+            }
+
+        scenario("Raw PCM, read through several small mapping windows")
+            {
+            val in = new FileAudioInput(app, writeFile(samples, 1, 0), 11025.0, 4096, 3000L)
+            in.open shouldBe true
+            in.sampleRate shouldEqual 11025.0
+            readAll(in, 4096).toList shouldEqual expected.toList
+            in.rewind
+            in.read.get.toList shouldEqual expected.take(4096).toList
+            in.close
+            }
+
+        scenario("16-bit samples as they are, for the fixed-point front end")
+            {
+            val stereo = samples.flatMap(v => Array(v, (-v).toShort))
+            val in = new FileAudioInput(app, writeFile(stereo, 2, 44100), 44100.0, 4096, 3000L)
+            in.open shouldBe true
+            val out = scala.collection.mutable.ArrayBuffer[Short]()
+            val buf = Array.ofDim[Short](333)
+            var count = in.read(buf, 0, buf.length)
+            while (count > 0)
+                {
+                out ++= buf.take(count)
+                count = in.read(buf, 0, buf.length)
+                }
+            out.toList shouldEqual samples.toList
+            in.close
+            }
+        }
+
+    class CountingMode(par: App) extends Mode(par, 1000.0)
+    {
+        var samples = 0
+        override def receive(data: Array[Double], off: Int, len: Int) =
+            samples += len
+    }
+
+    feature("Offline decoding")
+        {
+        
+        scenario("Every sample reaches the mode, faster than real time")
+            {
+            val file = writeFile(Array.tabulate(441000)(i => (10000.0 * math.sin(i * 0.1)).toShort), 1, 44100)
+            val dec  = new App
+            val mode = new CountingMode(dec)
+            dec.mode = mode
+            val in = new FileAudioInput(dec, file)
+            in.open shouldBe true
+            val speed = new OfflineDecoder(dec).decode(in)
+            in.close
+            info("x real time: " + speed)
+            mode.samples shouldEqual 441000 / 6
+            speed should be > 1.0
+            
+            val results = OfflineDecoder.run(file, 1000.0, Seq("psk", "rtty"))((name, msg) => ())
+            results.map(_._1) shouldEqual Seq("psk", "rtty")
+            for ((name, speed) <- results)
+                {
+                info(name + ": " + speed + " x real time")
+                speed should be > 1.0
+                }
+            }
+        }
+}
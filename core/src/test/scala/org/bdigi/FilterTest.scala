@@ -32,6 +32,42 @@ import org.scalatest.{FeatureSpec,Matchers}
 @RunWith(classOf[JUnitRunner])
 class FilterTest extends FeatureSpec with Matchers
 {
+    /**
+     * The original circular-buffer Fir, as the reference for the new one
+     */
+    class ReferenceFir(coeffs: Array[Double])
+    {
+        private val size      = coeffs.length
+        private val delayLine = Array.fill(size)(0.0)
+        private var delayIndex = 0
+        
+        def update(sample: Double) : Double =
+            {
+            delayIndex = (delayIndex + size - 1) % size
+            delayLine(delayIndex) = sample
+            var sum = 0.0
+            var idx = delayIndex
+            for (c <- 0 until size)
+                {
+                sum += delayLine(idx) * coeffs(c)
+                idx = (idx + 1) % size
+                }
+            sum
+            }
+    }
+    
+    def designs = List(
+        "lowPass"     -> Fir.lowPass(21, 1000.0, 7350.0),
+        "bandPass"    -> Fir.bandPass(13, 100.0, 300.0, 1225.0),
+        "raisedCos"   -> Fir.raisedCosine(41, 0.35, 31.25, 1225.0),
+        "boxcar"      -> Fir.boxcar(39),
+        "symmetric"   -> new Fir(Array(0.1, 0.2, 0.4, 0.2, 0.1)),
+        "symmetric16" -> new Fir(Array.tabulate(16)(i => math.min(i, 15 - i) + 1.0))
+        )
+    
+    val rand  = new scala.util.Random(5)
+    val input = Array.fill(3000)(rand.nextGaussian)
+
     feature("FIR Filters")
         {
 
@@ -102,5 +138,134 @@ class FilterTest extends FeatureSpec with Matchers
                 }
             }
 
+        scenario("Same output as the reference, sample by sample")
+            {
+            for ((name, f) <- designs)
+                {
+                val ref = new ReferenceFir(f.coeffs)
+                for (v <- input)
+                    f.update(v) shouldEqual ref.update(v) +- 1.0e-12
+                }
+            }
+
+        scenario("Symmetric designs are folded")
+            {
+            designs.filter(_._2.symmetric).map(_._1) shouldEqual List("boxcar", "symmetric", "symmetric16")
+            }
+
+        scenario("Complex update matches the real one on each part")
+            {
+            for ((name, f) <- designs)
+                {
+                val re  = new ReferenceFir(f.coeffs)
+                val im  = new ReferenceFir(f.coeffs)
+                val out = new MutableComplex
+                for (n <- 1 until input.length)
+                    {
+                    f.update(input(n), input(n-1), out)
+                    out.r shouldEqual re.update(input(n))   +- 1.0e-12
+                    out.i shouldEqual im.update(input(n-1)) +- 1.0e-12
+                    }
+                }
+            }
+
+        scenario("Block filtering in odd sized pieces, mixed with update")
+            {
+            for ((name, f) <- designs)
+                {
+                val ref = new ReferenceFir(f.coeffs)
+                val expected = input.map(ref.update)
+                val out = Array.ofDim[Double](input.length)
+                var pos = 0
+                var len = 1
+                while (pos < input.length)
+                    {
+                    val n = math.min(len, input.length - pos)
+                    if (n == 1)
+                        out(pos) = f.update(input(pos))
+                    else
+                        f.filter(input, out, pos, n)
+                    pos += n
+                    len = len * 3 % 97 + 1
+                    }
+                for (i <- 0 until out.length)
+                    out(i) shouldEqual expected(i) +- 1.0e-12
+                }
+            }
+
+        scenario("Complex block filtering, in place")
+            {
+            val f   = Fir.lowPass(31, 500.0, 7350.0)
+            val re  = new ReferenceFir(f.coeffs)
+            val im  = new ReferenceFir(f.coeffs)
+            val r   = input.clone
+            val i   = input.reverse
+            val er  = r.map(re.update)
+            val ei  = i.map(im.update)
+            for (off <- 0 until input.length by 500)
+                f.filter(r, i, r, i, off, math.min(500, input.length - off))
+            for (n <- 0 until input.length)
+                {
+                r(n) shouldEqual er(n) +- 1.0e-12
+                i(n) shouldEqual ei(n) +- 1.0e-12
+                }
+            }
+
         }//feature FIR
+
+    feature("Fast convolution FIR")
+        {
+        scenario("Same output as Fir, for short and long filters, in any size blocks")
+            {
+            for (taps <- List(5, 33, 64, 255, 1001))
+                {
+                val h   = Fir.bandPassCoeffs(taps, 100.0, 300.0, 1225.0)
+                val ref = new Fir(h)
+                val f   = new FastFir(h)
+                val expected = Array.ofDim[Double](input.length)
+                ref.filter(input, expected, 0, input.length)
+                val scale = expected.map(math.abs).max
+                val out = Array.ofDim[Double](input.length)
+                var pos = 0
+                var len = 1
+                while (pos < input.length)
+                    {
+                    val n = math.min(len, input.length - pos)
+                    f.filter(input, out, pos, n)
+                    pos += n
+                    len = len * 7 % 1501 + 1
+                    }
+                for (i <- 0 until out.length)
+                    out(i) shouldEqual expected(i) +- (scale * 1.0e-12)
+                }
+            }
+
+        scenario("Complex, and per sample")
+            {
+            val h   = Fir.lowPassCoeffs(200, 300.0, 7350.0, Window.Hann)
+            val ref = new Fir(h)
+            val f   = new FastFir(h)
+            val r   = input.clone
+            val i   = input.reverse
+            val out = new MutableComplex
+            for (off <- 0 until input.length by 700)
+                f.filter(r, i, r, i, off, math.min(700, input.length - off))
+            for (n <- 0 until input.length)
+                {
+                ref.update(input(n), input(input.length - 1 - n), out)
+                r(n) shouldEqual out.r +- 1.0e-12
+                i(n) shouldEqual out.i +- 1.0e-12
+                }
+            val g = new FastFir(h)
+            val ref2 = new Fir(h)
+            for (v <- input.take(500))
+                g.update(v) shouldEqual ref2.update(v) +- 1.0e-12
+            }
+
+        scenario("Fir.auto picks by length")
+            {
+            Fir.auto(Array.fill(Fir.fastTaps - 1)(1.0)) shouldBe a [Fir]
+            Fir.auto(Array.fill(Fir.fastTaps)(1.0)) shouldBe a [FastFir]
+            }
+        }
 }
@@ -0,0 +1,190 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (c) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi.mode
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.AllocationProbe.steadyAllocations
+
+
+@RunWith(classOf[JUnitRunner])
+class HdlcTest extends FeatureSpec with Matchers
+{
+    /**
+     * The bits of a frame, with its FCS, stuffed, and without flags
+     */
+    def stuffed(data: Array[Byte]) : Seq[Boolean] =
+        {
+        val crc = new CrcCCITT
+        crc.updateLE(data, 0, data.size)
+        val fcs = crc.valueLE ^ 0xffff
+        val bytes = data ++ Array((fcs & 0xff).toByte, (fcs >> 8).toByte)
+        val out = scala.collection.mutable.ArrayBuffer[Boolean]()
+        var ones = 0
+        for (b <- bytes ; i <- 0 until 8)
+            {
+            val bit = ((b >> i) & 1) != 0
+            out += bit
+            ones = if (bit) ones + 1 else 0
+            if (ones == 5)
+                {
+                out += false
+                ones = 0
+                }
+            }
+        out
+        }
+        
+    val flag = Seq(false, true, true, true, true, true, true, false)
+    
+    def frame(n: Int, seed: Int) =
+        {
+        val arr = Array.ofDim[Byte](n)
+        new scala.util.Random(seed).nextBytes(arr)
+        arr
+        }
+        
+    class Recorder
+        {
+        val frames = scala.collection.mutable.ArrayBuffer[List[Byte]]()
+        val deframer = new HdlcDeframer()((buf, len) => frames += buf.take(len).toList)
+        def feed(bits: Seq[Boolean]) = bits.foreach(deframer.update)
+        }
+
+    feature("Byte-wise deframing")
+        {
+        scenario("Frames are found at every bit alignment")
+            {
+            for (lead <- 0 until 8)
+                {
+                val r = new Recorder
+                val data = frame(40, lead)
+                r.feed(Seq.fill(lead)(true) ++ flag ++ flag ++ stuffed(data) ++ flag ++ Seq.fill(16)(false))
+                r.frames.toList shouldEqual List(data.toList)
+                }
+            }
+            
+        scenario("Frames with long runs of ones are unstuffed")
+            {
+            val r = new Recorder
+            val data = Array.fill(30)(0xff.toByte) ++ Array.fill(10)(0x7e.toByte) ++ Array.fill(10)(0xfc.toByte)
+            r.feed(flag ++ stuffed(data) ++ flag ++ flag)
+            r.frames.toList shouldEqual List(data.toList)
+            }
+            
+        scenario("Back to back frames, with shared flags and with shared zeros")
+            {
+            val a = frame(20, 1)
+            val b = frame(33, 2)
+            val c = frame(17, 3)
+            val r = new Recorder
+            //the closing flag's zero can open the next flag
+            r.feed(flag ++ stuffed(a) ++ flag ++ stuffed(b) ++ flag.take(7) ++ flag ++ stuffed(c) ++ flag ++ flag)
+            r.frames.toList shouldEqual List(a.toList, b.toList, c.toList)
+            }
+            
+        scenario("Bad frames and aborted frames are dropped")
+            {
+            val good = frame(25, 4)
+            val bad  = stuffed(frame(25, 5)).toArray
+            bad(50) = !bad(50)
+            val r = new Recorder
+            r.feed(flag ++ bad ++ flag ++ stuffed(frame(25, 6)).take(100) ++ Seq.fill(9)(true) ++
+                   flag ++ stuffed(good) ++ flag ++ flag)
+            r.frames.toList shouldEqual List(good.toList)
+            r.deframer.badFrames shouldEqual 1
+            }
+            
+        scenario("Every state and byte matches the bit at a time rules")
+            {
+            //feed a long random stream with frames in it, and check
+            //it against the bit-level step function
+            val rand = new scala.util.Random(7)
+            val bits = (0 until 200).flatMap(i =>
+                if (rand.nextInt(4) == 0) flag ++ stuffed(frame(10 + rand.nextInt(20), i)) ++ flag
+                else Seq.fill(rand.nextInt(30))(rand.nextBoolean))
+            val r = new Recorder
+            r.feed(bits)
+            //the reference: one bit at a time
+            val ref = scala.collection.mutable.ArrayBuffer[List[Byte]]()
+            var ones = 0
+            var cur  = scala.collection.mutable.ArrayBuffer[Boolean]()
+            var in   = false
+            for (b <- bits.take(bits.size / 8 * 8))
+                {
+                val st = HdlcDeframer.step(ones, if (b) 1 else 0)
+                ones = st & 7
+                (st >>> 3) match
+                    {
+                    case 1 => cur += false
+                    case 2 => cur += true
+                    case 3 =>
+                        if (in && cur.size >= 24)
+                            {
+                            val bytes = cur.take(cur.size / 8 * 8).grouped(8).map(g =>
+                                g.zipWithIndex.map(p => if (p._1) 1 << p._2 else 0).sum.toByte).toArray
+                            val crc = new CrcCCITT
+                            crc.updateLE(bytes, 0, bytes.size)
+                            if (crc.valueLE == HdlcDeframer.GoodFcs)
+                                ref += bytes.take(bytes.size - 2).toList
+                            }
+                        in = true
+                        cur.clear
+                    case 4 => in = false
+                    case _ =>
+                    }
+                }
+            ref.size should be > 30
+            r.frames.toList shouldEqual ref.toList
+            }
+            
+        scenario("Receiving allocates nothing")
+            {
+            var count = 0
+            val deframer = new HdlcDeframer()((buf, len) => count += len)
+            val bits = (flag ++ stuffed(frame(60, 9)) ++ flag).toArray
+            def round =
+                {
+                var k = 0
+                while (k < 50)
+                    {
+                    var i = 0
+                    while (i < bits.length)
+                        {
+                        deframer.update(bits(i))
+                        i += 1
+                        }
+                    k += 1
+                    }
+                }
+            round
+            steadyAllocations(round) shouldEqual 0L
+            count should be > 0
+            }
+        }
+}
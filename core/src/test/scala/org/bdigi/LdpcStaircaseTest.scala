@@ -0,0 +1,143 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (c) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+
+@RunWith(classOf[JUnitRunner])
+class LdpcStaircaseTest extends FeatureSpec with Matchers
+{
+    def symbols(count: Int, size: Int, seed: Int) =
+        {
+        val rand = new scala.util.Random(seed)
+        Array.fill(count)
+            {
+            val arr = Array.ofDim[Byte](size)
+            rand.nextBytes(arr)
+            arr
+            }
+        }
+        
+    /**
+     * All n symbols, with a random fraction of them lost
+     */
+    def lossy(code: LdpcStaircase, source: Array[Array[Byte]], loss: Double, seed: Int) =
+        {
+        val rand = new scala.util.Random(seed)
+        (source ++ code.encode(source)).map(sym => if (rand.nextDouble < loss) null else sym)
+        }
+
+    feature("RFC 5170 parity check matrix")
+        {
+        scenario("Each source column has N1 ones, and each row at least two")
+            {
+            val code = new LdpcStaircase(1000, 1500, 3)
+            val g = code.graph
+            for (col <- 0 until code.k)
+                g.colStart(col + 1) - g.colStart(col) should equal (3)
+            for (r <- 0 until code.rows)
+                (g.rowStart(r) until g.rowStart(r + 1)).count(g.rowCols(_) < code.k) should be >= (2)
+            //the staircase
+            g.v(code.k).checks.toList should equal (List(0, 1))
+            g.v(code.n - 1).checks.toList should equal (List(code.rows - 1))
+            }
+            
+        scenario("The same seed gives the same matrix")
+            {
+            val a = new LdpcStaircase(500, 700, 3, 1234).graph
+            val b = new LdpcStaircase(500, 700, 3, 1234).graph
+            val c = new LdpcStaircase(500, 700, 3, 4321).graph
+            a.rowCols.toList should equal (b.rowCols.toList)
+            a.rowCols.toList should not equal (c.rowCols.toList)
+            }
+        }
+        
+    feature("Encoding and decoding")
+        {
+        scenario("Encoded symbols satisfy every check")
+            {
+            val code = new LdpcStaircase(300, 450)
+            val words = 4
+            val rand = new scala.util.Random(1)
+            val syms = Array.fill(code.n * words)(rand.nextLong)
+            code.encode(syms, words)
+            val g = code.graph
+            for (r <- 0 until code.rows ; w <- 0 until words)
+                {
+                var x = 0L
+                for (e <- g.rowStart(r) until g.rowStart(r + 1))
+                    x ^= syms(g.rowCols(e) * words + w)
+                x should equal (0L)
+                }
+            }
+            
+        scenario("Lost symbols are recovered")
+            {
+            val code = new LdpcStaircase(1000, 1500)
+            val source = symbols(code.k, 100, 2)
+            for (seed <- 0 until 5)
+                {
+                val received = lossy(code, source, 0.2, seed)
+                val res = code.decode(received)
+                res.isDefined should be (true)
+                res.get.map(_.toList).toList should equal (source.map(_.toList).toList)
+                }
+            }
+            
+        scenario("Heavy loss is recovered by elimination when peeling stalls")
+            {
+            val code = new LdpcStaircase(1000, 2000)
+            val source = symbols(code.k, 16, 3)
+            val received = lossy(code, source, 0.45, 4)
+            info(received.count(_ == null) + " of " + code.n + " lost")
+            val res = code.decode(received)
+            res.isDefined should be (true)
+            res.get.map(_.toList).toList should equal (source.map(_.toList).toList)
+            }
+            
+        scenario("Losing more than n-k symbols cannot be recovered")
+            {
+            val code = new LdpcStaircase(200, 300)
+            val received = lossy(code, symbols(code.k, 8, 5), 0.5, 6)
+            code.decode(received) should equal (None)
+            }
+            
+        scenario("Large k encodes and decodes")
+            {
+            val code = new LdpcStaircase(20000, 30000)
+            val source = symbols(code.k, 64, 7)
+            val received = lossy(code, source, 0.25, 8)
+            val t0 = System.nanoTime
+            val res = code.decode(received)
+            info("decoded in " + (System.nanoTime - t0) / 1000000 + "ms")
+            res.isDefined should be (true)
+            res.get.map(_.toList).toList should equal (source.map(_.toList).toList)
+            }
+        }
+}
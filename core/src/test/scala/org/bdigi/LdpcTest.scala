@@ -29,6 +29,8 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{FeatureSpec,Matchers}
 
+import org.bdigi.AllocationProbe.steadyAllocations
+
 @RunWith(classOf[JUnitRunner])
 class CRC32Test extends FeatureSpec with Matchers
 {
@@ -182,17 +184,216 @@ class LdpcTest extends FeatureSpec with Matchers
        
         scenario("encoding and decoding")
             {
-            val plain = for (i <- 0 until 648) yield (i & 0x01).toByte
+            val plain = (for (i <- 0 until 324) yield (i & 0x01).toByte).toArray
             val origCrc = CRC32(plain)
             val code = Ldpc.code0648_27_1_2
-            val encoded = code.encode(plain.toArray)
+            val encoded = code.encode(plain)
+            encoded.size should equal (code.blockSize)
+            encoded(200) = (1 - encoded(200)).toByte
+            encoded(500) = (1 - encoded(500)).toByte
             val decoded = code.decode(encoded)
-            val finalCrc = CRC32(plain)
-            if (origCrc == finalCrc)
-                info("Test passed")
-            else
-                info("Test failed")
+            decoded.isDefined should be (true)
+            CRC32(decoded.get) should equal (origCrc)
             }
 
         }//feature LDPC
 }
+
+
+
+@RunWith(classOf[JUnitRunner])
+class LdpcDecoderTest extends FeatureSpec with Matchers
+{
+    /**
+     * LLRs for the all-zero codeword, sent as BPSK +1 through white noise
+     */
+    def noisyZeros(n: Int, sigma: Double, seed: Int) : Array[Float] =
+        {
+        val rand = new scala.util.Random(seed)
+        Array.fill(n)((2.0 * (1.0 + sigma * rand.nextGaussian) / (sigma * sigma)).toFloat)
+        }
+
+    feature("Sparse Tanner graph")
+        {
+        scenario("Building from the QC prototype matches building from H")
+            {
+            val code = Ldpc.code0648_27_1_2
+            val dense = new Tanner(code.H)
+            val qc = code.graph
+            qc.rows should equal (dense.rows)
+            qc.cols should equal (dense.cols)
+            qc.rowStart.toList should equal (dense.rowStart.toList)
+            qc.rowCols.toList should equal (dense.rowCols.toList)
+            val protoEdges = (for (r <- 0 until code.qc.rows ; c <- 0 until code.qc.cols if code.qc(r, c) >= 0) yield 1).size
+            qc.edges should equal (protoEdges * code.zSize)
+            }
+            
+        scenario("Column index covers every edge once")
+            {
+            val g = Ldpc.code1944_81_5_6.graph
+            g.colStart(g.cols) should equal (g.edges)
+            g.colEdges.sorted.toList should equal ((0 until g.edges).toList)
+            for (col <- 0 until g.cols ; e <- g.colStart(col) until g.colStart(col + 1))
+                g.rowCols(g.colEdges(e)) should equal (col)
+            }
+        }
+        
+    feature("Layered min-sum decoding")
+        {
+        scenario("A clean codeword needs no iterations")
+            {
+            val code = Ldpc.code0648_27_1_2
+            val dec = code.decoder()
+            val out = Array.ofDim[Byte](code.blockSize)
+            dec.decode(Array.fill(code.blockSize)(4.0f), out) should be (true)
+            dec.iterations should equal (0)
+            out.forall(_ == 0) should be (true)
+            }
+            
+        scenario("Noisy codewords decode, stopping early")
+            {
+            for (code <- List(Ldpc.code0648_27_1_2, Ldpc.code1296_54_2_3, Ldpc.code1944_81_1_2))
+                {
+                val dec = code.decoder()
+                val out = Array.ofDim[Byte](code.blockSize)
+                for (seed <- 0 until 10)
+                    {
+                    val llr = noisyZeros(code.blockSize, 0.6, seed)
+                    val errors = llr.count(_ < 0)
+                    dec.decode(llr, out) should be (true)
+                    out.forall(_ == 0) should be (true)
+                    dec.iterations should be < (dec.maxIters)
+                    if (seed == 0)
+                        info(code.blockSize + "/" + code.infoSize + ": " + errors + " channel errors in " + dec.iterations + " iterations")
+                    }
+                }
+            }
+            
+        scenario("Double LLRs give the same result")
+            {
+            val code = Ldpc.code0648_27_1_2
+            val dec = code.decoder()
+            val llr = noisyZeros(code.blockSize, 0.6, 7)
+            val out = Array.ofDim[Byte](code.blockSize)
+            dec.decode(llr.map(_.toDouble), out) should be (true)
+            val iters = dec.iterations
+            dec.decode(llr, out) should be (true)
+            dec.iterations should equal (iters)
+            }
+            
+        scenario("Hopeless input gives up after maxIters")
+            {
+            val code = Ldpc.code0648_27_1_2
+            val dec = code.decoder(20)
+            val rand = new scala.util.Random(3)
+            val llr = Array.fill(code.blockSize)((rand.nextGaussian * 0.1).toFloat)
+            dec.decode(llr, Array.ofDim[Byte](code.blockSize)) should be (false)
+            dec.iterations should equal (20)
+            }
+            
+        scenario("Hard decisions with a few flipped bits are corrected")
+            {
+            val code = Ldpc.code1944_81_1_2
+            val received = Array.ofDim[Byte](code.blockSize)
+            for (i <- List(5, 300, 1000, 1700))
+                received(i) = 1
+            val res = code.decode(received)
+            res.isDefined should be (true)
+            res.get.size should equal (code.infoSize)
+            res.get.forall(_ == 0) should be (true)
+            }
+            
+        scenario("Decoding does not allocate")
+            {
+            val code = Ldpc.code0648_27_1_2
+            val dec = code.decoder()
+            val llr = noisyZeros(code.blockSize, 0.6, 1)
+            val out = Array.ofDim[Byte](code.blockSize)
+            for (i <- 0 until 200) dec.decode(llr, out)
+            val bytes = steadyAllocations
+                {
+                var i = 0
+                while (i < 100)
+                    {
+                    dec.decode(llr, out)
+                    i += 1
+                    }
+                }
+            bytes shouldEqual 0L
+            }
+        }
+}
+
+
+
+@RunWith(classOf[JUnitRunner])
+class LdpcEncoderTest extends FeatureSpec with Matchers
+{
+    val codes = List(
+        Ldpc.code0648_27_1_2, Ldpc.code0648_27_2_3, Ldpc.code0648_27_3_4, Ldpc.code0648_27_5_6,
+        Ldpc.code1296_54_1_2, Ldpc.code1296_54_2_3, Ldpc.code1296_54_3_4, Ldpc.code1296_54_5_6,
+        Ldpc.code1944_81_1_2, Ldpc.code1944_81_2_3, Ldpc.code1944_81_3_4, Ldpc.code1944_81_5_6)
+
+    feature("Packed QC encoder")
+        {
+        scenario("Every codeword satisfies H, and carries its message")
+            {
+            val rand = new scala.util.Random(1)
+            for (code <- codes ; n <- 0 until 5)
+                {
+                val msg = Array.fill(code.infoSize)(rand.nextInt(2).toByte)
+                val cw = code.encode(msg)
+                code.graph.check(cw) should be (true)
+                cw.take(code.infoSize).toList should equal (msg.toList)
+                }
+            }
+            
+        scenario("Packed words match the bit at a time API")
+            {
+            val rand = new scala.util.Random(2)
+            for (code <- List(Ldpc.code0648_27_2_3, Ldpc.code1944_81_3_4))
+                {
+                val enc = code.encoder
+                val msg = Array.fill(code.infoSize)(rand.nextInt(2).toByte)
+                val out = Array.fill(enc.blockWords)(-1L)
+                enc.encode(Bits.pack(msg, Array.ofDim[Long](enc.infoWords)), out)
+                Bits.unpack(out, code.blockSize, Array.ofDim[Byte](code.blockSize)).toList should equal (code.encode(msg).toList)
+                }
+            }
+            
+        scenario("Noisy codewords decode back to the message")
+            {
+            val rand = new scala.util.Random(3)
+            val code = Ldpc.code1296_54_1_2
+            val dec  = code.decoder()
+            val out  = Array.ofDim[Byte](code.blockSize)
+            for (n <- 0 until 5)
+                {
+                val msg = Array.fill(code.infoSize)(rand.nextInt(2).toByte)
+                val cw  = code.encode(msg)
+                val llr = cw.map(b => (2.0 * ((if (b != 0) -1.0 else 1.0) + 0.6 * rand.nextGaussian) / 0.36).toFloat)
+                dec.decode(llr, out) should be (true)
+                out.take(code.infoSize).toList should equal (msg.toList)
+                }
+            }
+            
+        scenario("Encoding does not allocate")
+            {
+            val code = Ldpc.code1944_81_5_6
+            val enc  = code.encoder
+            val info = Array.fill(enc.infoWords)(0x5a5a5a5a5a5a5a5aL)
+            val out  = Array.ofDim[Long](enc.blockWords)
+            for (i <- 0 until 200) enc.encode(info, out)
+            val bytes = steadyAllocations
+                {
+                var i = 0
+                while (i < 100)
+                    {
+                    enc.encode(info, out)
+                    i += 1
+                    }
+                }
+            bytes shouldEqual 0L
+            }
+        }
+}
@@ -0,0 +1,200 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (c) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.AllocationProbe.steadyAllocations
+import org.bdigi.mode.{Mode,PacketMode,Psk31,Rtty}
+
+
+@RunWith(classOf[JUnitRunner])
+class ModeTest extends FeatureSpec with Matchers
+{
+    val app = new App
+    
+    /**
+     * Feed a steady tone at the mode's frequency through receive(), and
+     * return the number of bytes allocated after warming up
+     */
+    def allocationsOf(mode: Mode, count: Int) : Long =
+        {
+        val omega = 2.0 * math.Pi * mode.frequency / app.sampleRate
+        var phase = 0.0
+        steadyAllocations
+            {
+            var i = 0
+            while (i < count)
+                {
+                mode.receive(math.cos(phase))
+                phase += omega
+                i += 1
+                }
+            }
+        }
+        
+    class SinkMode extends Mode(app, 1000.0)
+    {
+        var sum = 0.0
+        override def update(r: Double, i: Double) : Double =
+            {
+            sum += r * r + i * i
+            1.0
+            }
+    }
+
+    feature("Allocation-free receive path")
+        {
+        scenario("Nco, mixer, decimator and agc")
+            {
+            val mode = new SinkMode
+            mode.frequency = 1000.0
+            val bytes = allocationsOf(mode, 200000)
+            info("bytes allocated: " + bytes)
+            bytes should be <= 0L
+            mode.sum should be > 0.0
+            }
+
+        scenario("Demodulators")
+            {
+            val psk = new Psk31(app)
+            psk.frequency = 1000.0
+            val rtty = new Rtty(app)
+            rtty.frequency = 1000.0
+            val packet = new PacketMode(app)
+            packet.frequency = 1000.0
+            for (mode <- Seq(psk, rtty, packet))
+                {
+                val bytes = allocationsOf(mode, 200000)
+                info(mode.name + " bytes allocated: " + bytes)
+                bytes should be <= 0L
+                }
+            }
+        }
+
+    class RecordingMode extends Mode(app, 1000.0)
+    {
+        val values = scala.collection.mutable.ArrayBuffer[Double]()
+        override def update(r: Double, i: Double) : Double =
+            {
+            values += r
+            values += i
+            r
+            }
+    }
+
+    feature("Block receive")
+        {
+        scenario("Gives the same results as per-sample receive")
+            {
+            val m1 = new RecordingMode
+            m1.frequency = 1000.0
+            val m2 = new RecordingMode
+            m2.frequency = 1000.0
+            val data = Array.tabulate(10000)(n => math.cos(n * 0.9) + 0.1 * math.sin(n * 0.02))
+            for (v <- data)
+                m1.receive(v)
+            var off = 0
+            val rnd = new scala.util.Random(1234)
+            while (off < data.size)
+                {
+                val len = math.min(rnd.nextInt(700), data.size - off)
+                m2.receive(data, off, len)
+                off += len
+                }
+            m1.values.size shouldEqual m2.values.size
+            m1.values shouldEqual m2.values
+            }
+
+        scenario("The front end, made on first use, starts at the mode's frequency")
+            {
+            val m = new RecordingMode
+            m.frequency = 1500.0
+            m.frequency = 1234.5
+            m.frontEnd.frequency shouldEqual 1234.5
+            m.frequency = 800.0
+            m.frontEnd.frequency shouldEqual 800.0
+            }
+
+        scenario("Allocates nothing in the steady state")
+            {
+            val psk = new Psk31(app)
+            psk.frequency = 1000.0
+            val data = Array.tabulate(1024)(n => math.cos(2.0 * math.Pi * 1000.0 * n / app.sampleRate))
+            val bytes = steadyAllocations
+                {
+                var i = 0
+                while (i < 200)
+                    {
+                    psk.receive(data, 0, data.length)
+                    i += 1
+                    }
+                }
+            info("bytes allocated: " + bytes)
+            bytes should be <= 0L
+            }
+        }
+
+    feature("Primitive paths match the Complex ones")
+        {
+        scenario("Fir")
+            {
+            val f1 = Fir.bandPass(13, 100.0, 300.0, 1225.0)
+            val f2 = Fir.bandPass(13, 100.0, 300.0, 1225.0)
+            val out = new MutableComplex
+            for (n <- 0 until 100)
+                {
+                val v = Complex(math.cos(n * 0.3), math.sin(n * 0.7))
+                val a = f1.update(v)
+                f2.update(v.r, v.i, out)
+                a.r shouldEqual out.r
+                a.i shouldEqual out.i
+                }
+            }
+
+        scenario("ResamplerX")
+            {
+            for (decimation <- 1 to 7)
+                {
+                val r1 = ResamplerX(decimation)
+                val r2 = ResamplerX(decimation)
+                val res1 = scala.collection.mutable.ArrayBuffer[Complex]()
+                val res2 = scala.collection.mutable.ArrayBuffer[Complex]()
+                for (n <- 0 until 210)
+                    {
+                    val v = Complex(math.cos(n * 0.1), math.sin(n * 0.05))
+                    r1.decimate(v)(c => res1 += c)
+                    r2.decimate(v.r, v.i)((r, i) => res2 += Complex(r, i))
+                    }
+                res1.size shouldEqual res2.size
+                for ((a, b) <- res1.zip(res2))
+                    assert(a.equals(b, 1.0e-12))
+                }
+            }
+        }
+}
@@ -29,7 +29,7 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{FeatureSpec,Matchers}
 
-import org.bdigi.mode.{PacketAddr}
+import org.bdigi.mode.{PacketAddr,PacketMode}
 
 @RunWith(classOf[JUnitRunner])
 class PacketTest extends FeatureSpec with Matchers
@@ -48,6 +48,23 @@ class PacketTest extends FeatureSpec with Matchers
             for (b <-exp) info("%02X ".format(b))
             res shouldEqual exp
             }
+            
+        scenario("Frames with no pid or info, such as UA, are shown")
+            {
+            val text = scala.collection.mutable.ArrayBuffer[String]()
+            val app  = new HeadlessApp
+                {
+                override def puttext(msg: String) = text += msg
+                }
+            val mode = new PacketMode(app)
+            val src  = PacketAddr("WB4JFI", 1).encoded
+            src(6) |= 1  //last address
+            val ua = (PacketAddr("N0CALL", 0).encoded ++ src :+ 0x63).map(_.toByte)
+            mode.processFrame(ua, 14)
+            text shouldBe empty
+            mode.processFrame(ua, 15)
+            text.toList shouldEqual List("WB4JFI-1=>N0CALL-0 [0]: \n")
+            }
     
 
         }
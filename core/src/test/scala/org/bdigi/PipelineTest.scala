@@ -0,0 +1,189 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.mode.Mode
+
+
+@RunWith(classOf[JUnitRunner])
+class PipelineTest extends FeatureSpec with Matchers
+{
+    class CountingApp extends App
+    {
+        @volatile var rows = 0
+        override def updateSpectrum(pixels: Array[Int]) =
+            rows += 1
+    }
+
+    class CountingMode(par: App) extends Mode(par, 1000.0)
+    {
+        @volatile var samples = 0
+        @volatile var sum = 0.0
+        override def receive(data: Array[Double], off: Int, len: Int) =
+            {
+            for (i <- off until off + len)
+                sum += data(i)
+            samples += len
+            }
+    }
+
+    /**
+     * Push a couple of seconds of a tone through App.receive
+     */
+    def feed(app: App) =
+        {
+        val block = Array.tabulate(4410)(i => math.sin(2.0 * math.Pi * 1000.0 * i / 44100.0))
+        for (i <- 0 until 20)
+            app.receive(block, 0, block.length)
+        }
+    
+    def waitFor(cond: => Boolean) =
+        {
+        val deadline = System.currentTimeMillis + 5000
+        while (!cond && System.currentTimeMillis < deadline)
+            Thread.sleep(10)
+        }
+
+    feature("Staged receive pipeline")
+        {
+        
+        scenario("Stages see the same samples and rows as the serial path")
+            {
+            val serial = new CountingApp
+            val smode  = new CountingMode(serial)
+            serial.mode = smode
+            feed(serial)
+            
+            val staged = new CountingApp
+            val pmode  = new CountingMode(staged)
+            staged.mode = pmode
+            staged.pipelined = true
+            staged.startPipeline
+            staged.pipeline.isDefined shouldBe true
+            feed(staged)
+            waitFor(pmode.samples == smode.samples && staged.rows == serial.rows)
+            val p = staged.pipeline.get
+            staged.stopPipeline
+            
+            smode.samples should be > 0
+            serial.rows should be > 0
+            pmode.samples shouldEqual smode.samples
+            pmode.sum shouldEqual smode.sum
+            staged.rows shouldEqual serial.rows
+            p.dropped shouldEqual 0
+            p.droppedRows shouldEqual 0
+            }
+
+        scenario("An attached stage gets its own copy of the samples")
+            {
+            val app = new CountingApp
+            app.mode = new CountingMode(app)
+            app.pipelined = true
+            app.startPipeline
+            @volatile var extra = 0
+            val stage = new Stage("test-extra")
+                {
+                def process(data: Array[Double], off: Int, len: Int) =
+                    extra += len
+                }
+            app.pipeline.get.attach(stage)
+            feed(app)
+            val expected = app.mode.asInstanceOf[CountingMode]
+            waitFor(extra > 0 && extra == expected.samples)
+            app.pipeline.get.detach(stage)
+            app.stopPipeline
+            extra should be > 0
+            extra shouldEqual expected.samples
+            }
+
+        scenario("With the spectrum off, the mode still runs but no rows are computed")
+            {
+            val serial = new CountingApp
+            val smode  = new CountingMode(serial)
+            serial.mode = smode
+            serial.setSpectrumEnabled(false)
+            feed(serial)
+            smode.samples should be > 0
+            serial.rows shouldEqual 0
+            serial.setSpectrumEnabled(true)
+            feed(serial)
+            serial.rows should be > 0
+
+            val staged = new CountingApp
+            val pmode  = new CountingMode(staged)
+            staged.mode = pmode
+            staged.pipelined = true
+            staged.setSpectrumEnabled(false)
+            staged.startPipeline
+            feed(staged)
+            val p = staged.pipeline.get
+            waitFor(pmode.samples == smode.samples / 2 && p.spectrum.ring.available == 0)
+            //give the spectrum stage and digi-ui time to show any rows
+            Thread.sleep(200)
+            pmode.samples shouldEqual smode.samples / 2
+            staged.rows shouldEqual 0
+            staged.setSpectrumEnabled(true)
+            feed(staged)
+            waitFor(staged.rows > 0)
+            staged.stopPipeline
+            staged.rows should be > 0
+            }
+
+        scenario("Stopping waits for every thread to finish")
+            {
+            val app = new CountingApp
+            app.mode = new CountingMode(app)
+            app.pipelined = true
+            app.startPipeline
+            val p = app.pipeline.get
+            feed(app)
+            app.startPipeline
+            p.spectrum.isAlive shouldBe false
+            p.decoder.isAlive shouldBe false
+            p.ui.isAlive shouldBe false
+            app.stopPipeline
+            }
+
+        scenario("A restart finishes the old loops before starting new ones")
+            {
+            val app = new HeadlessApp
+            app.startProcessing
+            val oldTr  = app.trloop
+            val oldCap = app.captureLoop
+            Thread.sleep(50)
+            app.startProcessing
+            oldTr.isAlive shouldBe false
+            oldCap.isAlive shouldBe false
+            app.trloop should not be theSameInstanceAs (oldTr)
+            app.trloop.isAlive shouldBe true
+            app.stopProcessing
+            }
+        }
+}
@@ -0,0 +1,159 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.mode.{PskSkimmer, Varicode}
+
+
+@RunWith(classOf[JUnitRunner])
+class PskSkimmerTest extends FeatureSpec with Matchers
+{
+    val out = new StringBuilder
+    val app = new App
+        {
+        override def puttext(msg: String) = synchronized { out.append(msg) }
+        }
+    
+    /**
+     * BPSK31 audio for a message, with idle before and after.
+     * A zero bit is a phase reversal, with raised cosine transitions.
+     */
+    def bpsk(text: String, freq: Double, amp: Double, phase0: Double) : Array[Double] =
+        {
+        val bits = scala.collection.mutable.ArrayBuffer[Boolean]()
+        for (i <- 0 until 40) bits += false
+        for (c <- text) { bits ++= Varicode.encodeTable(c.toInt) ; bits += false ; bits += false }
+        for (i <- 0 until 40) bits += false
+        val syms = scala.collection.mutable.ArrayBuffer[Double](1.0)
+        for (b <- bits) syms += (if (b) syms.last else -syms.last)
+        //key up and down over a symbol, or the click lands in every channel
+        syms.prepend(0.0)
+        syms += 0.0
+        val sps = app.sampleRate / 31.25
+        Array.tabulate((syms.size * sps).toInt)(i =>
+            {
+            val k    = (i / sps).toInt
+            val tau  = i / sps - k
+            val prev = if (k == 0) 0.0 else syms(k - 1)
+            val b    = prev * (1.0 + math.cos(math.Pi * tau)) / 2.0 + syms(k) * (1.0 - math.cos(math.Pi * tau)) / 2.0
+            amp * b * math.cos(2.0 * math.Pi * freq * i / app.sampleRate + phase0)
+            })
+        }
+
+    def mix(sigs: Array[Double]*) =
+        {
+        val rand = new scala.util.Random(7)
+        Array.tabulate(sigs.map(_.length).max + 2000)(i =>
+            sigs.map(s => if (i < s.length) s(i) else 0.0).sum + rand.nextGaussian * 0.02)
+        }
+
+    /**
+     * The skimmer's lines for the carrier near freq, without their prefix
+     */
+    def linesAt(freq: Double) =
+        out.toString.split("\n").map(_.split(": ", 2)).filter(f =>
+            f.length == 2 && math.abs(f(0).trim.toDouble - freq) < 5.0).map(_(1))
+
+    /**
+     * Most of the words of msg made it.  The demodulator's symbol timing
+     * depends on where it comes in, so allow the odd bad character.
+     */
+    def heard(freq: Double, msg: String) =
+        {
+        val text  = linesAt(freq).mkString(" ")
+        val words = msg.split(" ")
+        words.count(text.contains) should be >= (words.length * 2 / 3)
+        }
+
+    feature("PSK skimmer")
+        {
+        val sk = app.skimMode
+        val signal = mix(
+            bpsk("cq cq de w1aw k\n",           700.0, 0.30, 0.3),
+            bpsk("the quick brown fox\n",      1234.0, 0.25, 1.1),
+            bpsk("now is the time for all\n",  1800.0, 0.25, 2.0))
+
+        scenario("Find every carrier and decode each one on its own line")
+            {
+            out.clear
+            for (block <- signal.grouped(700))
+                sk.receive(block, 0, block.length)
+            val freqs = sk.channels.map(_.frequency).sorted
+            freqs.size shouldEqual 3
+            freqs(0) shouldEqual  700.0 +- 2.0
+            freqs(1) shouldEqual 1234.0 +- 2.0
+            freqs(2) shouldEqual 1800.0 +- 2.0
+            heard( 700.0, "cq cq de w1aw k")
+            heard(1234.0, "the quick brown fox")
+            heard(1800.0, "now is the time for all")
+            }
+
+        scenario("Tear down channels after the hold time")
+            {
+            val hold = sk.holdSeconds
+            sk.holdSeconds = 0.0
+            val rand  = new scala.util.Random(11)
+            val quiet = Array.fill(app.sampleRate.toInt * 10)(rand.nextGaussian * 0.02)
+            sk.receive(quiet, 0, quiet.length)
+            sk.holdSeconds = hold
+            sk.channels.size shouldEqual 0
+            sk.channelizer.modes.size shouldEqual 0
+            }
+            
+        scenario("Decode the same carriers with a thread pool")
+            {
+            out.clear
+            sk.threads = 4
+            for (block <- signal.grouped(700))
+                sk.receive(block, 0, block.length)
+            sk.threads = 1
+            sk.channels.size shouldEqual 3
+            heard( 700.0, "cq cq de w1aw k")
+            heard(1234.0, "the quick brown fox")
+            heard(1800.0, "now is the time for all")
+            }
+            
+        scenario("The pool only lives while the skimmer is the mode")
+            {
+            val a = new HeadlessApp
+            val skim = a.skimMode
+            skim.threads = 2
+            skim.channelizer.executor shouldBe None
+            a.mode = skim
+            val quiet = Array.ofDim[Double](1000)
+            skim.receive(quiet, 0, quiet.length)
+            val pool = skim.channelizer.executor
+            pool.isDefined shouldBe true
+            a.mode = a.pskMode
+            skim.channelizer.executor shouldBe None
+            pool.get.isShutdown shouldBe true
+            }
+        }
+}
@@ -29,6 +29,8 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{FeatureSpec,Matchers}
 
+import org.bdigi.AllocationProbe.steadyAllocations
+
 @RunWith(classOf[JUnitRunner])
 class ReedSolomonTest extends FeatureSpec with Matchers
 {
@@ -97,8 +99,8 @@ class ReedSolomonTest extends FeatureSpec with Matchers
         scenario("Test 1")
             {
             val poly = 0x011d  // x8+x4+x3+x2+1
-            val rs = new ReedSolomon(255, 239, poly)  //239 data bytes, 16 parity, 8 corrections
-            info(rs.toString)
+            //802.16 roots start at alpha^0
+            val rs = new ReedSolomon(255, 239, poly, 0)  //239 data bytes, 16 parity, 8 corrections
             val rawdata = Array(0xD4,0xBA,0xA1,0x12,0xF2,0x74,0x96,0x30,
                                 0x27,0xD4,0x88,0x9C,0x96,0xE3,0xA9,0x52,
                                 0xB3,0x15,0xAB,0xFD,0x92,0x53,0x07,0x32,
@@ -112,20 +114,16 @@ class ReedSolomonTest extends FeatureSpec with Matchers
                                 0x19,0x22,0xE0,0x91,0x62,0x1A,0xC1,0x00)
     
     
-            val enc = rs.encode(rawdata, false)
-            for (v <- enc)
-                info("%02x".format(v))
-            enc shouldEqual encdata
+            //802.16 appends a zero byte, then keeps only the first 4 parity bytes
+            val data = rawdata.map(_.toByte) :+ 0.toByte
+            val enc = rs.encode(data)
+            val punctured = enc.takeRight(rs.checkSize).take(4) ++ data
+            punctured.map(_ & 0xff) shouldEqual encdata
+            for (i <- List(0, 10, 20, 30, 36, 40, 45, 50))
+                enc(i) = (enc(i) ^ 0x5a).toByte
             val dec = rs.decode(enc)
-            if (dec.isDefined)
-                {
-                for (v <- dec.get)
-                    info(v.toHexString)
-                }
-            else
-                {
-                info("failure")
-                }
+            dec.isDefined shouldEqual true
+            dec.get.toList shouldEqual data.toList
             }
     
         /*
@@ -191,46 +189,153 @@ class ReedSolomonTest extends FeatureSpec with Matchers
 
         scenario("JT65")
             {
-            def c8to6(arr: Array[Int]) : Array[Int] =
+            //RS(63,12) over GF(64), roots from alpha^3, corrects 25
+            val rs = new ReedSolomon(63, 12, 0x43, 3)
+            val message = Array(61, 37, 30, 28,  9, 27, 61, 58, 26,  3, 49, 16).map(_.toByte)
+            val enc = rs.encode(message)
+            enc.size shouldEqual 63
+            enc.forall(s => s >= 0 && s < 64) shouldEqual true
+            val rand = new scala.util.Random(65)
+            for (i <- rand.shuffle((0 until 63).toList).take(25))
+                enc(i) = (enc(i) ^ (1 + rand.nextInt(63))).toByte
+            rs.decode(enc).map(_.toList) shouldEqual Some(message.toList)
+            }
+            
+        scenario("Shortened codewords with up to tt errors are corrected")
+            {
+            val rs   = new ReedSolomon(255, 223, 0x187, 112, 11)
+            val dec  = new ReedSolomonDecoder(rs)
+            val rand = new scala.util.Random(1)
+            for (n <- 0 until 200)
                 {
-                val buf = scala.collection.mutable.ListBuffer[Int]()
-                for (i <- 0 until arr.size by 3)
-                    {
-                    val b0 = arr(i  )
-                    val b1 = arr(i+1)
-                    val b2 = arr(i+2)
-                    buf += b0 >>> 2
-                    buf += ((b0 & 0x03) << 4) | ((b1 & 0xf0) >>> 4)
-                    buf += ((b1 & 0x0f) << 2) | ((b2 & 0xc0) >>> 6)
-                    buf += b2 & 0x3f
-                    }
-                buf.toArray     
+                val data = Array.fill(20 + rand.nextInt(200))(rand.nextInt(256).toByte)
+                val cw   = rs.encode(data)
+                val errs = rand.nextInt(rs.tt + 1)
+                for (p <- rand.shuffle(cw.indices.toList).take(errs))
+                    cw(p) = (cw(p) ^ (1 + rand.nextInt(255))).toByte
+                dec.decode(cw, 0, cw.size) shouldEqual errs
+                cw.take(data.size).toList shouldEqual data.toList
                 }
-
-            def c6to8(arr: Array[Int]) : Array[Int] =
+            }
+            
+        scenario("Too many errors are reported, not miscorrected into the padding")
+            {
+            val rs   = new ReedSolomon(255, 239, 0x11d)
+            val dec  = new ReedSolomonDecoder(rs)
+            val rand = new scala.util.Random(2)
+            var failed = 0
+            for (n <- 0 until 100)
+                {
+                val cw = rs.encode(Array.fill(40)(rand.nextInt(256).toByte))
+                for (p <- 0 until 20)
+                    cw(p) = (cw(p) ^ 0x33).toByte
+                if (dec.decode(cw, 0, cw.size) < 0)
+                    failed += 1
+                }
+            failed shouldEqual 100
+            }
+            
+        scenario("Erasures count half what errors do")
+            {
+            val rs   = new ReedSolomon(255, 239, 0x11d)
+            val dec  = new ReedSolomonDecoder(rs)
+            val data = "the quick brown fox jumped over the lazy dog".getBytes
+            val cw   = rs.encode(data)
+            val eras = Array(1, 5, 9, 13, 17, 21, 25, 29, 33, 37, 41, 45, 49, 53)
+            for (p <- eras)
+                cw(p) = 0
+            cw(3) = (cw(3) ^ 0x77).toByte
+            dec.decode(cw, 0, cw.size, 1, eras, eras.size) should be >= 0
+            cw.take(data.size).toList shouldEqual data.toList
+            }
+            
+        scenario("A batch decodes like one at a time")
+            {
+            val rs   = new ReedSolomon(255, 223, 0x11d)
+            val dec  = new ReedSolomonDecoder(rs)
+            val rand = new scala.util.Random(3)
+            val len  = 100
+            val clean = Array.ofDim[Byte](len * 50)
+            for (c <- 0 until 50)
+                {
+                for (j <- 0 until len - rs.checkSize)
+                    clean(c * len + j) = rand.nextInt(256).toByte
+                rs.encode(clean, c * len, len)
+                }
+            val buf = clean.clone
+            for (c <- 0 until 50 by 3 ; e <- 0 until 5)
+                {
+                val p = c * len + rand.nextInt(len)
+                buf(p) = (buf(p) ^ 0x0f).toByte
+                }
+            for (e <- 0 until 20)
+                buf(7 * len + e) = (buf(7 * len + e) ^ 0x55).toByte
+            val results = Array.ofDim[Int](50)
+            dec.decodeBatch(buf, 0, len, 50, results) shouldEqual 1
+            results(7) shouldEqual -1
+            for (c <- 0 until 50 if c != 7)
+                buf.slice(c * len, (c + 1) * len).toList shouldEqual clean.slice(c * len, (c + 1) * len).toList
+            }
+            
+        scenario("Interleaved codewords survive a burst, decoded in parallel")
+            {
+            val rs    = new ReedSolomon(255, 239, 0x11d)
+            val depth = 16
+            val len   = 200
+            val irs   = new InterleavedReedSolomon(rs, depth, 4)
+            val rand  = new scala.util.Random(4)
+            val clean = Array.ofDim[Byte](depth * len)
+            for (j <- 0 until len - rs.checkSize ; i <- 0 until depth)
+                clean(j * depth + i) = rand.nextInt(256).toByte
+            irs.encode(clean, 0, len)
+            for (i <- 0 until depth)
+                {
+                val cw = Array.tabulate(len)(j => clean(j * depth + i))
+                new ReedSolomonDecoder(rs).decode(cw, 0, len) shouldEqual 0
+                }
+            //a burst of 8 * depth bytes is 8 errors in each codeword
+            val buf = clean.clone
+            for (p <- 500 until 500 + 8 * depth)
+                buf(p) = (buf(p) ^ 0xa5).toByte
+            val pool = java.util.concurrent.Executors.newFixedThreadPool(4)
+            try
+                {
+                irs.executor = Some(pool)
+                val results = Array.ofDim[Int](depth)
+                irs.decode(buf, 0, len, results) shouldEqual 0
+                results.forall(_ == 8) shouldEqual true
+                buf.toList shouldEqual clean.toList
+                //a failure in a worker reaches the caller, as it would serially
+                an [IllegalArgumentException] should be thrownBy irs.decode(buf, 0, 256)
+                }
+            finally
+                {
+                pool.shutdown
+                }
+            }
+            
+        scenario("Encoding and decoding do not allocate")
+            {
+            val rs  = new ReedSolomon(255, 239, 0x11d)
+            val dec = new ReedSolomonDecoder(rs)
+            val cw  = rs.encode(Array.fill(200)(0x42.toByte))
+            val bad = cw.clone
+            bad(3) = 0
+            bad(99) = 1
+            val work = cw.clone
+            def round =
                 {
-                val buf = scala.collection.mutable.ListBuffer[Int]()
-                var count = 0
-                var out = 0
-                for (i <- 0 until arr.size by 4)
+                var i = 0
+                while (i < 100)
                     {
-                    val b0 = arr(i  )
-                    val b1 = arr(i+1)
-                    val b2 = arr(i+2)
-                    val b3 = arr(i+3)
-                    buf += ((b0       ) << 2) | ((b1 & 0x30) >>> 4)
-                    buf += ((b1 & 0x0f) << 4) | ((b2 & 0x3c) >>> 2)
-                    buf += ((b2 & 0x03) << 6) | ((b3       )      )
+                    rs.encode(work, 0, work.length)
+                    System.arraycopy(bad, 0, work, 0, bad.length)
+                    dec.decode(work, 0, work.length, 1, null, 0)
+                    i += 1
                     }
-                buf.toArray     
                 }
-                
-            val rsenc = new ReedSolomon(63, 12, 0x43)
-            val message1 = Array(61, 37, 30, 28,  9, 27, 61, 58, 26,  3, 49, 16)
-            val msg8 = c6to8(message1)
-            val enc = rsenc.encode(msg8)
-            val enc6 = c8to6(enc)
-            enc6.foreach(e=> info(e.toString))
+            round
+            steadyAllocations(round) shouldEqual 0L
             }
 
         }
@@ -75,4 +75,122 @@ class ResampleTest extends FeatureSpec with Matchers
     
 
         }//feature FirInterpolator
+
+    feature("Block decimation")
+        {
+
+        scenario("Matches the hand-coded decimators")
+            {
+            val data = Array.tabulate(4200)(n => math.sin(n * 0.01) + 0.5 * math.cos(n * 0.7))
+            for (decimation <- 2 to 7)
+                {
+                val r1 = Resampler(decimation)
+                val r2 = Resampler(decimation)
+                val res1 = scala.collection.mutable.ArrayBuffer[Double]()
+                for (v <- data)
+                    r1.decimate(v)(res1 += _)
+                val res2 = Array.ofDim[Double](data.size / decimation + 1)
+                val count = r2.decimate(data, 0, data.size, res2)
+                count shouldEqual res1.size
+                for (i <- 0 until count)
+                    assert(math.abs(res1(i) - res2(i)) < 1.0e-12)
+                }
+            }
+
+        }//feature Block decimation
+
+    feature("Rational resampling")
+        {
+        
+        //rms of a block of samples, skipping the filter's settling time
+        def rms(v: Array[Double], from: Int, to: Int) =
+            math.sqrt(v.slice(from, to).map(x => x * x).sum / (to - from))
+            
+        def tone(freq: Double, rate: Double, len: Int) =
+            Array.tabulate(len)(n => math.sin(2.0 * math.Pi * freq * n / rate))
+
+        scenario("Generates each table once, in lowest terms")
+            {
+            val r1 = RationalResampler.forRates(48000.0, 7350.0)
+            val r2 = new RationalResampler(98, 640)
+            r1.up shouldEqual 49
+            r1.down shouldEqual 320
+            r2.up shouldEqual 49
+            r2.down shouldEqual 320
+            assert(RationalResampler.table(49, 320, r1.quality) eq RationalResampler.table(49, 320, r2.quality))
+            }
+
+        scenario("Keeps passband tones and rejects what would alias")
+            {
+            for (rate <- Seq(44100.0, 48000.0, 96000.0, 192000.0))
+                {
+                val len  = rate.toInt
+                val pass = RationalResampler.forRates(rate, 7350.0)
+                val out  = Array.ofDim[Double](pass.outputSize(len))
+                val count = pass.resample(tone(1000.0, rate, len), 0, len, out)
+                count shouldEqual math.ceil(len * 7350.0 / rate).toInt
+                assert(math.abs(rms(out, 1000, count) - math.sqrt(0.5)) < 0.005)
+                
+                val stop = RationalResampler.forRates(rate, 7350.0)
+                val count2 = stop.resample(tone(5000.0, rate, len), 0, len, out)
+                assert(rms(out, 1000, count2) < 1.0e-3)
+                }
+            }
+
+        scenario("Interpolates up to the device rate")
+            {
+            val r   = RationalResampler.forRates(7350.0, 48000.0)
+            val in  = tone(1000.0, 7350.0, 7350)
+            val out = Array.ofDim[Double](r.outputSize(in.length))
+            val count = r.resample(in, 0, in.length, out)
+            count shouldEqual 48000
+            assert(math.abs(rms(out, 5000, count) - math.sqrt(0.5)) < 0.005)
+            }
+
+        scenario("Block, per-sample and complex versions agree")
+            {
+            val data = Array.tabulate(5000)(n => math.sin(n * 0.01) + 0.5 * math.cos(n * 0.7))
+            val r1 = new RationalResampler(3, 7)
+            val r2 = new RationalResampler(3, 7)
+            val res1 = scala.collection.mutable.ArrayBuffer[Double]()
+            val res3 = scala.collection.mutable.ArrayBuffer[Double]()
+            for (v <- data)
+                {
+                r1.resample(v)(res1 += _)
+                r1.resample(v, -v)((r, i) => { i shouldEqual -r ; res3 += r })
+                }
+            val res2 = Array.ofDim[Double](r2.outputSize(data.length))
+            var count = 0
+            var off   = 0
+            for (len <- Iterator.continually(Seq(1, 17, 256, 1000)).flatten.takeWhile(_ => off < data.length))
+                {
+                val n = math.min(len, data.length - off)
+                val buf = Array.ofDim[Double](r2.outputSize(n))
+                val c = r2.resample(data, off, n, buf)
+                System.arraycopy(buf, 0, res2, count, c)
+                count += c
+                off += n
+                }
+            count shouldEqual res1.size
+            res3.size shouldEqual res1.size
+            for (i <- 0 until count)
+                {
+                assert(math.abs(res1(i) - res2(i)) < 1.0e-12)
+                res3(i) shouldEqual res1(i)
+                }
+            
+            //in place, splitting complex
+            val r4  = new RationalResampler(3, 7)
+            val inr = data.clone
+            val ini = data.map(-_)
+            val c4  = r4.resample(inr, ini, 0, inr.length, inr, ini)
+            c4 shouldEqual count
+            for (i <- 0 until count)
+                {
+                inr(i) shouldEqual res1(i)
+                ini(i) shouldEqual -res1(i)
+                }
+            }
+
+        }//feature Rational resampling
 }
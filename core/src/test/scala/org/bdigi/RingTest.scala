@@ -0,0 +1,166 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+
+@RunWith(classOf[JUnitRunner])
+class RingTest extends FeatureSpec with Matchers
+{
+
+    feature("Single producer, single consumer sample ring")
+        {
+        
+        scenario("Capacity is rounded up to a power of two")
+            {
+            new SampleRing(1000).capacity shouldEqual 1024
+            new SampleRing(1024).capacity shouldEqual 1024
+            }
+    
+        scenario("Samples come out in order across the wrap")
+            {
+            val ring = new SampleRing(16)
+            val out  = Array.ofDim[Double](16)
+            var next = 0.0
+            var expected = 0.0
+            for (round <- 0 until 10)
+                {
+                val in = Array.tabulate(11){ i => next += 1.0 ; next }
+                ring.write(in, 0, 11) shouldEqual 11
+                ring.available shouldEqual 11
+                ring.read(out, 2, 7) shouldEqual 7
+                ring.read(out, 9, 7) shouldEqual 4
+                for (i <- 2 until 13)
+                    {
+                    expected += 1.0
+                    out(i) shouldEqual expected
+                    }
+                }
+            ring.overruns shouldEqual 0
+            ring.underruns shouldEqual 0
+            }
+
+        scenario("A full ring drops and counts the overflow")
+            {
+            val ring = new SampleRing(8)
+            val in   = Array.tabulate(6)(_.toDouble)
+            ring.write(in, 0, 6) shouldEqual 6
+            ring.fill shouldEqual 0.75
+            ring.write(in, 0, 6) shouldEqual 2
+            ring.free shouldEqual 0
+            ring.overruns shouldEqual 1
+            ring.dropped shouldEqual 4
+            val out = Array.ofDim[Double](8)
+            ring.read(out, 0, 8) shouldEqual 8
+            out.toList shouldEqual List(0.0, 1.0, 2.0, 3.0, 4.0, 5.0, 0.0, 1.0)
+            }
+
+        scenario("Reading an empty ring counts an underrun")
+            {
+            val ring = new SampleRing(8)
+            val out  = Array.ofDim[Double](8)
+            ring.read(out, 0, 8) shouldEqual 0
+            ring.underruns shouldEqual 1
+            ring.write(Array(1.0, 2.0), 0, 2)
+            ring.clear
+            ring.available shouldEqual 0
+            ring.read(out, 0, 8) shouldEqual 0
+            ring.underruns shouldEqual 2
+            }
+
+        scenario("A producer thread and a consumer thread lose nothing")
+            {
+            val ring  = new SampleRing(1024)
+            val total = 500000
+            val producer = new Thread
+                {
+                override def run =
+                    {
+                    val block = Array.ofDim[Double](100)
+                    var next = 0
+                    while (next < total)
+                        {
+                        val len = math.min(block.length, total - next)
+                        for (i <- 0 until len)
+                            block(i) = (next + i).toDouble
+                        var done = 0
+                        while (done < len)
+                            {
+                            val room = math.min(ring.free, len - done)
+                            if (room > 0)
+                                done += ring.write(block, done, room)
+                            else
+                                Thread.`yield`
+                            }
+                        next += len
+                        }
+                    }
+                }
+            producer.start
+            val out = Array.ofDim[Double](333)
+            var expected = 0
+            var ok = true
+            while (expected < total)
+                {
+                val count = ring.read(out, 0, out.length)
+                for (i <- 0 until count)
+                    {
+                    if (out(i) != expected.toDouble)
+                        ok = false
+                    expected += 1
+                    }
+                }
+            producer.join
+            ok shouldBe true
+            ring.overruns shouldEqual 0
+            ring.available shouldEqual 0
+            }
+        }
+
+    feature("Ring of Int rows")
+        {
+        
+        scenario("Rows come out in order, and a full ring drops new rows")
+            {
+            val ring = new RowRing(4, 3)
+            ring.peek shouldBe null
+            for (i <- 0 until 5)
+                ring.write(Array(i, i, i)) shouldEqual (i < 4)
+            ring.overruns shouldEqual 1
+            for (i <- 0 until 4)
+                {
+                ring.peek.toList shouldEqual List(i, i, i)
+                ring.release
+                }
+            ring.peek shouldBe null
+            ring.write(Array(9, 9, 9)) shouldBe true
+            ring.available shouldEqual 1
+            }
+        }
+}
@@ -0,0 +1,167 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.AllocationProbe.steadyAllocations
+
+
+@RunWith(classOf[JUnitRunner])
+class SpectrumHistoryTest extends FeatureSpec with Matchers
+{
+    val width = 100
+    
+    def tempFile =
+        {
+        val f = java.io.File.createTempFile("bdigi", ".spectrum")
+        f.deleteOnExit
+        f
+        }
+        
+    def rowOf(n: Int) =
+        Array.tabulate(width)(i => (n + i) & 0xff)
+
+    feature("Rows in a ring file")
+        {
+        scenario("Rows read back as written, clamped to 8 bits")
+            {
+            val h = new SpectrumHistory(tempFile, width, 50)
+            h.append(rowOf(3), 1000L)
+            h.append(Array.fill(width)(300), 1001L)
+            h.append(Array.fill(width)(-5), 1002L)
+            h.count shouldEqual 3
+            val out = Array.ofDim[Int](width)
+            h.read(0, out) shouldEqual 1000L
+            out shouldEqual rowOf(3)
+            h.read(1, out) shouldEqual 1001L
+            out.forall(_ == 255) shouldEqual true
+            h.read(2, out) shouldEqual 1002L
+            out.forall(_ == 0) shouldEqual true
+            h.read(3, out) shouldEqual -1L
+            h.close
+            }
+            
+        scenario("Once full, only the newest capacity rows are kept")
+            {
+            val h = new SpectrumHistory(tempFile, width, 50)
+            for (n <- 0 until 175)
+                h.append(rowOf(n), 1000L + n)
+            h.count shouldEqual 175
+            h.first shouldEqual 125
+            val out = Array.ofDim[Int](width)
+            h.read(124, out) shouldEqual -1L
+            h.read(125, out) shouldEqual 1125L
+            out shouldEqual rowOf(125)
+            val seen = scala.collection.mutable.ArrayBuffer[Long]()
+            h.latest(10)((t, row) => seen += t)
+            seen shouldEqual (1165L until 1175L)
+            h.close
+            }
+            
+        scenario("Rows are found by time")
+            {
+            val h = new SpectrumHistory(tempFile, width, 1000)
+            for (n <- 0 until 1500)
+                h.append(rowOf(n), 10000L + n * 10)
+            h.indexAt(0L) shouldEqual h.first
+            h.indexAt(10000L + 700 * 10) shouldEqual 700
+            h.indexAt(10000L + 700 * 10 - 5) shouldEqual 700
+            h.indexAt(Long.MaxValue) shouldEqual h.count
+            var n = 0
+            h.between(10000L + 1000 * 10, 10000L + 1020 * 10)((t, row) =>
+                {
+                row shouldEqual rowOf(1000 + n)
+                n += 1
+                })
+            n shouldEqual 20
+            //a clock that steps back keeps the order
+            h.append(rowOf(0), 5L)
+            h.time(h.count - 1) shouldEqual 10000L + 1499 * 10
+            h.close
+            }
+            
+        scenario("A reopened file picks up where it left off")
+            {
+            val f = tempFile
+            val a = new SpectrumHistory(f, width, 64)
+            for (n <- 0 until 80)
+                a.append(rowOf(n), 1000L + n)
+            a.close
+            val b = new SpectrumHistory(f, width, 64)
+            b.count shouldEqual 80
+            b.first shouldEqual 16
+            val out = Array.ofDim[Int](width)
+            b.read(79, out) shouldEqual 1079L
+            out shouldEqual rowOf(79)
+            b.close
+            //a different shape starts afresh
+            val c = new SpectrumHistory(f, width + 1, 64)
+            c.count shouldEqual 0
+            c.close
+            }
+        
+        scenario("Appending and reading allocate nothing")
+            {
+            val h = new SpectrumHistory(tempFile, width, 256)
+            val row = rowOf(7)
+            val out = Array.ofDim[Int](width)
+            val bytes = steadyAllocations
+                {
+                var n = 0
+                while (n < 1000)
+                    {
+                    h.append(row, 1000L)
+                    h.read(h.count - 1, out)
+                    n += 1
+                    }
+                }
+            bytes shouldEqual 0L
+            h.close
+            }
+        }
+        
+    feature("App integration")
+        {
+        scenario("Waterfall rows from the App are recorded")
+            {
+            val app = new App
+            val f = tempFile
+            app.openHistory(f.getPath, 0.01)
+            val h = app.history.get
+            h.width shouldEqual app.wf.width
+            val sig = Array.tabulate(7350)(i => 0.1 * math.sin(2.0 * math.Pi * 1000.0 * i / 7350.0))
+            app.receiveDecimated(sig, 0, sig.length)
+            h.count shouldEqual sig.length / 1024
+            app.closeHistory
+            app.history shouldEqual None
+            }
+        }
+}
@@ -82,6 +82,24 @@ class TransformTest extends FeatureSpec with Matchers
     
             
         }
+
+    feature("Split radix FFT")
+        {
+        
+        scenario("FFTSR power spectrum matches DFft")
+            {
+            for (N <- List(16, 1024, 4096))
+                {
+                val in  = Array.tabulate(N)(i => math.sin(i * 0.37) + 0.3 * math.cos(i * 1.9))
+                val ps1 = new DFft(N).powerSpectrum(in.clone)
+                val ps2 = new FFTSR(N).powerSpectrum(in)
+                val peak = ps1.max
+                //DFft packs the Nyquist value into bin 0, so skip it
+                for (j <- 1 until N / 2)
+                    assert(math.abs(ps1(j) - ps2(j)) < peak * 1e-12, "N:" + N + " j:" + j +
+                        " p1:" + ps1(j) + " did not equal p2:" + ps2(j))
+                }
+            }
+        }
         
 }
-
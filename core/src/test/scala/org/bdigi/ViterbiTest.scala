@@ -113,6 +113,62 @@ class ViterbiTest extends FeatureSpec with Matchers
                 }
             }
 
+        scenario("k = 7, soft decisions with noise, into a caller's buffer")
+            {
+            val encoder = Viterbi.encoder(7, 0x6d, 0x4f)
+            val decoder = Viterbi.decoder(7, 0x6d, 0x4f)
+            val rand  = new scala.util.Random(1)
+            val bits  = Array.fill(4000)(rand.nextBoolean)
+            val enc   = encoder.encodeBits(bits ++ Array.fill(56)(false)).toArray
+            def soft(bit: Boolean) =
+                math.max(0, math.min(255, (if (bit) 200 else 55) + (rand.nextGaussian * 40).toInt))
+            val sym0  = enc.map(d => soft((d & 2) != 0))
+            val sym1  = enc.map(d => soft((d & 1) != 0))
+            //and a burst of hard errors
+            for (i <- 1000 until 1003)
+                sym0(i) = 255 - sym0(i)
+            val out = Array.ofDim[Boolean](enc.length + 8)
+            val n = decoder.decode(sym0, sym1, 0, enc.length, out, 0)
+            n shouldEqual enc.length
+            out.slice(56, 56 + bits.length).toSeq shouldEqual bits.toSeq
+            }
+
+        scenario("k = 9, whose 256 states need several survivor words per step")
+            {
+            val encoder = Viterbi.encoder(9, 0x1af, 0x11d)
+            val decoder = Viterbi.decoder(9, 0x1af, 0x11d)
+            val rand  = new scala.util.Random(2)
+            val bits  = Array.fill(4000)(rand.nextBoolean)
+            val enc   = encoder.encodeBits(bits ++ Array.fill(56)(false)).toArray
+            def soft(bit: Boolean) =
+                math.max(0, math.min(255, (if (bit) 200 else 55) + (rand.nextGaussian * 40).toInt))
+            val sym0  = enc.map(d => soft((d & 2) != 0))
+            val sym1  = enc.map(d => soft((d & 1) != 0))
+            for (i <- 2000 until 2004)
+                sym1(i) = 255 - sym1(i)
+            val out = Array.ofDim[Boolean](enc.length + 8)
+            val n = decoder.decode(sym0, sym1, 0, enc.length, out, 0)
+            n shouldEqual enc.length
+            out.slice(56, 56 + bits.length).toSeq shouldEqual bits.toSeq
+            }
+
+        scenario("The buffer and Seq interfaces agree")
+            {
+            val encoder = Viterbi.encoder(5, 0x17, 0x19)
+            val d1 = Viterbi.decoder(5, 0x17, 0x19)
+            val d2 = Viterbi.decoder(5, 0x17, 0x19)
+            val enc = encoder.encodeStr("now is the time for all good men").toArray
+            enc(20) ^= 3
+            val seq = d1.decodeHard(enc)
+            val out = Array.ofDim[Boolean](enc.length + 8)
+            var n = 0
+            for (d <- enc)
+                n += d2.decodeOne(if ((d & 2) != 0) 255 else 0, if ((d & 1) != 0) 255 else 0, out, n)
+            out.take(n).toSeq shouldEqual seq
+            d2.reset
+            d2.decodeHard(enc) shouldEqual seq
+            }
+
         }
     
 
@@ -0,0 +1,172 @@
+/**
+ * Scala SDR tool
+ *
+ * Authors:
+ *   Bob Jamison
+ *
+ * Copyright (C) 2014 Bob Jamison
+ * 
+ *  This file is part of the Scala SDR library.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.bdigi
+
+
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec,Matchers}
+
+import org.bdigi.AllocationProbe.steadyAllocations
+
+
+@RunWith(classOf[JUnitRunner])
+class WaterfallTest extends FeatureSpec with Matchers
+{
+    val app  = new App
+    val rate = 7350.0
+    val N    = 2048
+    
+    def tone(freq: Double, amp: Double, len: Int) =
+        Array.tabulate(len)(i => amp * math.sin(2.0 * math.Pi * freq * i / rate))
+        
+    def peakOf(row: Array[Int]) =
+        row.indices.maxBy(row(_))
+
+    feature("Waterfall rows")
+        {
+        scenario("A tone peaks in its own bin, at one row per hop")
+            {
+            val wf  = new WaterfallFactory(app, N, rate, 3000.0, hop = 512)
+            val sig = tone(1000.0, 0.05, N * 4)
+            var rows = 0
+            var last : Array[Int] = null
+            wf.update(sig, 0, sig.length)(row => { rows += 1; last = row.clone })
+            rows shouldEqual sig.length / 512
+            last.length shouldEqual wf.width
+            wf.width shouldEqual (3000.0 / rate * N).toInt
+            peakOf(last) shouldEqual math.round(1000.0 / rate * N).toInt
+            last(10) should be < 64
+            //strong signals saturate instead of wrapping around
+            val loud = tone(1000.0, 0.5, N * 2)
+            wf.update(loud, 0, loud.length)(row => last = row.clone)
+            last(peakOf(last)) shouldEqual 255
+            }
+            
+        scenario("Per-sample and block updates agree")
+            {
+            val a = new WaterfallFactory(app, N, rate, 3000.0)
+            val b = new WaterfallFactory(app, N, rate, 3000.0)
+            val sig = tone(700.0, 0.01, N * 2)
+            val ra = scala.collection.mutable.ArrayBuffer[Array[Int]]()
+            val rb = scala.collection.mutable.ArrayBuffer[Array[Int]]()
+            sig.foreach(v => a.update(v)(ra += _.clone))
+            b.update(sig, 0, sig.length)(rb += _.clone)
+            ra.size shouldEqual rb.size
+            for (i <- ra.indices)
+                ra(i) shouldEqual rb(i)
+            }
+
+        scenario("Rows are decimated to the requested row rate")
+            {
+            val wf = new WaterfallFactory(app, N, rate, 3000.0, hop = 256, rowRate = 10.0)
+            wf.rowEvery shouldEqual (rate / 256 / 10.0).toInt
+            val sig = tone(1000.0, 0.5, rate.toInt * 2)
+            var rows = 0
+            wf.update(sig, 0, sig.length)(row => rows += 1)
+            rows shouldEqual sig.length / 256 / wf.rowEvery
+            }
+        }
+
+    feature("Averaging")
+        {
+        scenario("Max-hold keeps a burst that exponential averaging smooths away")
+            {
+            //a short burst in the middle of one row's worth of frames
+            val sig = Array.ofDim[Double](N * 8)
+            val burst = tone(1500.0, 0.5, 600)
+            System.arraycopy(burst, 0, sig, N * 4, burst.length)
+            val bin = math.round(1500.0 / rate * N).toInt
+            def run(avg: Averaging) =
+                {
+                val wf = new WaterfallFactory(app, N, rate, 3000.0, hop = N / 4, averaging = avg,
+                             rowRate = rate / N / 4.0)
+                var best = 0
+                wf.update(sig, 0, sig.length)(row => best = best max row(bin))
+                best
+                }
+            val plain = run(Averaging.Off)
+            val exp   = run(Averaging.Exponential(8))
+            val held  = run(Averaging.MaxHold())
+            info("plain: " + plain + "  exp: " + exp + "  held: " + held)
+            held should be > plain
+            exp should be < held
+            }
+
+        scenario("Exponential averaging converges on a steady tone")
+            {
+            val plain = new WaterfallFactory(app, N, rate, 3000.0)
+            val avg   = new WaterfallFactory(app, N, rate, 3000.0, averaging = Averaging.Exponential(4))
+            val sig = tone(1000.0, 0.01, N * 20)
+            var a : Array[Int] = null
+            var b : Array[Int] = null
+            plain.update(sig, 0, sig.length)(row => a = row.clone)
+            avg.update(sig, 0, sig.length)(row => b = row.clone)
+            val bin = peakOf(a)
+            peakOf(b) shouldEqual bin
+            math.abs(a(bin) - b(bin)) should be <= 1
+            }
+        }
+
+    feature("Steady state")
+        {
+        scenario("The log table matches 20 * log2(1 + p)")
+            {
+            for (p <- Seq(0.0f, 0.5f, 1.0f, 10.0f, 1000.0f, 5000.0f))
+                {
+                val exact = math.min(255.0, 20.0 * math.log1p(p) / math.log(2.0))
+                math.abs(WaterfallFactory.level(p) - exact) should be <= 1.0
+                }
+            WaterfallFactory.level(1.0e9f) shouldEqual 255
+            }
+            
+        scenario("Updates allocate nothing once running")
+            {
+            val wf  = new WaterfallFactory(app, N, rate, 3000.0, hop = 512,
+                          averaging = Averaging.MaxHold(2), rowRate = 5.0)
+            val sig = tone(1000.0, 0.2, 4096)
+            var sum = 0
+            val sink = (row: Array[Int]) => sum += row(0)
+            val bytes = steadyAllocations
+                {
+                var k = 0
+                while (k < 8)
+                    {
+                    wf.update(sig, 0, sig.length)(sink)
+                    k += 1
+                    }
+                var i = 0
+                while (i < sig.length)
+                    {
+                    wf.update(sig(i))(sink)
+                    i += 1
+                    }
+                }
+            bytes shouldEqual 0L
+            }
+        }
+}
@@ -275,7 +275,7 @@ class MainController(stage: Stage) extends App
         
         
     
-    def doClose      (evt : Event) = { stopProcessing ; Platform.exit }
+    def doClose      (evt : Event) = { stopProcessing ; closeHistory ; Platform.exit }
     def doClear      (evt : Event) = { consoleText.clear ; inputText.clear }
     def doLog        (evt : Event) = logDialog.show
     def doAbout      (evt : Event) = aboutDialog.show
@@ -367,6 +367,7 @@ class MainController(stage: Stage) extends App
             tuningPanel.updateScope(x, y)
         }
 
+    openHistory("bdigi.spectrum")
     startProcessing        
 }
 
@@ -29,11 +29,10 @@ package org.bdigi.fx
 //import java.awt.{Color,Dimension,Image,Point,RenderingHints}
 //import java.awt.geom.{Rectangle2D}
 
-import org.bdigi.{App, Complex, Constants, DFft, MathUtil, Window}
+import org.bdigi.{App, Complex, Constants, DFft, MathUtil, RowRing, Window}
 
 import javafx.application.Platform
-import javafx.animation.{Animation, KeyFrame, TimelineBuilder}
-import javafx.util.Duration
+import javafx.animation.AnimationTimer
 import javafx.beans.value.{ChangeListener,ObservableValue}
 import javafx.scene.layout.{AnchorPane, BorderPane, HBox,VBox,Pane}
 import javafx.scene.canvas.{Canvas, GraphicsContext}
@@ -55,75 +54,20 @@ class TuningPanel(par: App) extends AnchorPane
 
     class WaterfallArea(width: Int, height: Int)
         {    
-        val img     = new WritableImage(width, height)
-        val nrPix   = width * height
-        val pixels  = Array.ofDim[Int](nrPix)
-        val lastRow = nrPix - width
-        val writer  = img.getPixelWriter
-        val format  = PixelFormat.getIntArgbInstance
-                
-        private val colors = Array.tabulate(256)( i =>
-            {
-            val prop   = i.toDouble / 256.0
-            val hue    = 240.0 - 150.0 * prop
-            val bright = 0.3 + prop / 2
-            val c = Color.hsb(hue, 1.0, bright)
-            var col = 0xff
-            col = (col << 8) + (c.getRed   * 255).toInt
-            col = (col << 8) + (c.getGreen * 255).toInt
-            col = (col << 8) + (c.getBlue  * 255).toInt
-            col
-            })
-            
+        val image = new WaterfallImage(rows, width, height)
+        
         /**
-         * Make a palette. tweak this often
-         */                 
-        private val colors2 = Array.tabulate(256)( i=>
-            {
-            val r = if (i < 170) 0 else (i-170) * 3
-            val g = if (i <  85) 0 else if (i < 170) (i-85) * 3 else 255
-            val b = if (i <  85) i * 3 else 255
-            var col = 0xff
-            col = (col << 8) + r
-            col = (col << 8) + g
-            col = (col << 8) + b
-            col
-            })
-            
-
+         * Paint any rows pending
+         * @return true if there were some
+         */
+        def update : Boolean =
+            image.redraw
         
-        /*Scale the power spectrum bins onto the output width.  Do once & reuse. */
-        private var pslen = -1
-        private var psIndices = Array.fill(width)(0)
-        private var psbuf = Array.fill(100)(0)
-                
         //only call from javafx thread
         def redraw() =
-            {
-            if (pslen != psbuf.length)
-                {
-                pslen = psbuf.length
-                psIndices = Array.tabulate(width)(_ * pslen / width)
-                }
-            val pix = pixels
-            System.arraycopy(pix, width, pix, 0, lastRow)
-            var pixptr = lastRow
-            for (i <- 0 until width)
-                {
-                val p = psbuf(psIndices(i))
-                pix(pixptr) = colors2(p & 0xff)
-                pixptr += 1
-                }
-            //trace("iw:" + iwidth + "  ih:" + iheight + "  pix:" + pix.size + " pslen:" + pslen)
-            writer.setPixels(0, 0, width, height, format, pix, 0, width)
-            ctx.drawImage(img, 0.0, 0.0, width, height)
-            }
-
-        def update(ps: Array[Int]) =
-            {
-            psbuf = ps.clone
-            }
+            image.draw(ctx, 0.0, 0.0)
                 
+        par.history.foreach(image.repaint)
         }//Waterfall
 
 
@@ -311,6 +255,11 @@ class TuningPanel(par: App) extends AnchorPane
     getChildren.add(canvas)
     val ctx = canvas.getGraphicsContext2D
 
+    /**
+     * Rows from the DSP side, waiting for the next pulse
+     */
+    val rows = new RowRing(64, par.wf.width)
+    
     var waterfall = new WaterfallArea(initialWidth, initialHeight - TUNER_HEIGHT)
     var tuner     = new TunerArea(initialWidth, TUNER_HEIGHT)
     var scope     = new ScopeArea(initialHeight - TUNER_HEIGHT, initialHeight - TUNER_HEIGHT)
@@ -333,28 +282,34 @@ class TuningPanel(par: App) extends AnchorPane
     widthProperty.addListener(resizeListener)
     heightProperty.addListener(resizeListener)
 
-    class Redrawer extends EventHandler[ActionEvent]
+    /**
+     * The canvas is repainted on any pulse that brings new rows, so they show
+     * at the next frame, and on every fourth otherwise, for the tuner and scope.
+     * The tuner and scope draw over the waterfall, so all three go together.
+     */
+    val pulse = new AnimationTimer
         {
-        override def handle(event: javafx.event.ActionEvent) =
+        private var frames = 0
+        
+        override def handle(now: Long) =
             {
-            waterfall.redraw
-            tuner.redraw
-            if (showScope)
-                scope.redraw
-            }       
+            frames += 1
+            if (waterfall.update || frames % 4 == 0)
+                {
+                waterfall.redraw
+                tuner.redraw
+                if (showScope)
+                    scope.redraw
+                }
+            }
         }
-        
-    val oneFrameAmt = Duration.millis(70);
-    var oneFrame = new KeyFrame(oneFrameAmt, new Redrawer)
-
-    TimelineBuilder.create()
-       .cycleCount(Animation.INDEFINITE)
-       .keyFrames(oneFrame)
-       .build()
-       .play();
+    pulse.start
 
+    /**
+     * Called from the DSP side.  Never blocks; a full ring drops the row.
+     */
     def update(ps: Array[Int]) =
-        waterfall.update(ps)
+        rows.write(ps)
 
     def updateScope(x: Double, y: Double) =
         scope.update(x, y)
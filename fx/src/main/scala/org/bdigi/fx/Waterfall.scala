@@ -29,11 +29,12 @@ package org.bdigi.fx
 //import java.awt.{Color,Dimension,Image,Point,RenderingHints}
 //import java.awt.geom.{Rectangle2D}
 
-import org.bdigi.{App, Complex, Constants, DFft, MathUtil, Window}
+import org.bdigi.{App, Complex, Constants, DFft, MathUtil, RowRing, SpectrumHistory, Window}
+
+import java.nio.IntBuffer
 
 import javafx.application.Platform
-import javafx.animation.{Animation, KeyFrame, TimelineBuilder}
-import javafx.util.Duration
+import javafx.animation.AnimationTimer
 import javafx.beans.value.{ChangeListener,ObservableValue}
 import javafx.scene.layout.{AnchorPane,HBox,VBox,Pane}
 import javafx.scene.canvas.{Canvas, GraphicsContext}
@@ -44,87 +45,225 @@ import javafx.event.{ActionEvent, Event, EventHandler}
 import javafx.scene.input.{KeyEvent,MouseEvent,ScrollEvent}
 
 //########################################################################
-//#    W A T E R F A L L
+//#    W A T E R F A L L   I M A G E
 //########################################################################
 
 
 
-class AudioWaterfall(par: App) extends Pane
+/**
+ * The image side of a waterfall, shared by the widgets that show one.
+ *
+ * Spectrum rows come in from the DSP side through a lock-free RowRing,
+ * and each FX pulse paints whatever is pending into a ring of image rows
+ * and blits them with at most two setPixels calls.  Nothing scrolls: the
+ * oldest ring row is drawn at the top, so the image is drawn in two
+ * pieces split at head.  If more rows are pending than maxRowsPerFrame,
+ * they are merged by their peaks, so a stalled UI catches up in one frame
+ * and the DSP side never waits.
+ *
+ * All but the constructor must be called from the javafx thread.
+ */
+class WaterfallImage(rows: RowRing, width: Int, height: Int, 
+    palette: Array[Int] = WaterfallImage.palette)
 {
+    val iwidth  = math.max(1, width)
+    val iheight = math.max(1, height)
 
-    class Waterfall(width: Double, height: Double) extends Canvas(width, height)
-        {
-        val iwidth = width.toInt
-        val iheight = height.toInt
+    val img     = new WritableImage(iwidth, iheight)
+    val nrPix   = iwidth * iheight
+    val pixels  = IntBuffer.allocate(nrPix)
+    val writer  = img.getPixelWriter
+    val format  = PixelFormat.getIntArgbPreInstance
     
-        val img     = new WritableImage(iwidth, iheight)
-        val nrPix   = iwidth * iheight
-        val pixels  = Array.ofDim[Int](nrPix)
-        val lastRow = nrPix - iwidth
-        val writer  = img.getPixelWriter
-        val format  = PixelFormat.getIntArgbInstance
-        val g2d     = getGraphicsContext2D
-                
-        private val colors = Array.tabulate(256)( i =>
+    val maxRowsPerFrame = math.min(8, iheight)
+    
+    /**
+     * Rows folded into others because the UI fell behind
+     */
+    var mergedRows = 0L
+    
+    /**
+     * The image row the next spectrum row goes to, which is also the
+     * oldest row showing
+     */
+    private var head = 0
+    
+    /*Scale the power spectrum bins onto the output width.  Do once & reuse. */
+    private val psIndices = Array.tabulate(iwidth)(_ * rows.width / iwidth)
+    private val merged    = Array.ofDim[Int](rows.width)
+    
+    /**
+     * Colour one spectrum row into the image row at head, and advance head
+     */
+    private def paintRow(ps: Array[Int], idx: Array[Int]) =
+        {
+        val pix = pixels.array
+        var pixptr = head * iwidth
+        var i = 0
+        while (i < iwidth)
             {
-            val prop   = i.toDouble / 256.0
-            val hue    = 240.0 - 150.0 * prop
-            val bright = 0.3 + prop / 2
-            val c = Color.hsb(hue, 1.0, bright)
-            var col = 0xff
-            col = (col << 8) + (c.getRed   * 255).toInt
-            col = (col << 8) + (c.getGreen * 255).toInt
-            col = (col << 8) + (c.getBlue  * 255).toInt
-            col
-            })
-            
-        /**
-         * Make a palette. tweak this often
-         */                 
-        private val colors2 = Array.tabulate(256)( i=>
+            pix(pixptr) = palette(ps(idx(i)) & 0xff)
+            pixptr += 1
+            i += 1
+            }
+        head += 1
+        if (head >= iheight)
+            head = 0
+        }
+        
+    /**
+     * Push image rows [start, start+n) of the ring to the image, in
+     * one piece or two if they wrap
+     */
+    private def blit(start: Int, n: Int) =
+        {
+        val first = math.min(n, iheight - start)
+        pixels.position(start * iwidth)
+        writer.setPixels(0, start, iwidth, first, format, pixels, iwidth)
+        if (first < n)
             {
-            val r = if (i < 170) 0 else (i-170) * 3
-            val g = if (i <  85) 0 else if (i < 170) (i-85) * 3 else 255
-            val b = if (i <  85) i * 3 else 255
-            var col = 0xff
-            col = (col << 8) + r
-            col = (col << 8) + g
-            col = (col << 8) + b
-            col
-            })
+            pixels.position(0)
+            writer.setPixels(0, 0, iwidth, n - first, format, pixels, iwidth)
+            }
+        pixels.rewind
+        }
             
+    /**
+     * Draw the ring at x, y with the oldest row, at head, on top
+     */
+    def draw(g: GraphicsContext, x: Double, y: Double) =
+        {
+        val older = iheight - head
+        g.drawImage(img, 0, head, iwidth, older, x, y, iwidth, older)
+        if (head > 0)
+            g.drawImage(img, 0, 0, iwidth, head, x, y + older, iwidth, head)
+        }
+            
+    /**
+     * Take every row pending in the ring, merging them down to
+     * maxRowsPerFrame if there are more, and paint them.
+     * @return true if the image changed
+     */
+    def redraw : Boolean =
+        {
+        val pending = rows.available
+        if (pending > 0)
+            {
+            val start = head
+            val group = (pending + maxRowsPerFrame - 1) / maxRowsPerFrame
+            var n = 0
+            var left = pending
+            while (left > 0)
+                {
+                val k = math.min(group, left)
+                if (k == 1)
+                    {
+                    paintRow(rows.peek, psIndices)
+                    rows.release
+                    }
+                else
+                    {
+                    java.util.Arrays.fill(merged, 0)
+                    var j = 0
+                    while (j < k)
+                        {
+                        val row = rows.peek
+                        var i = 0
+                        while (i < merged.length)
+                            {
+                            if (row(i) > merged(i))
+                                merged(i) = row(i)
+                            i += 1
+                            }
+                        rows.release
+                        j += 1
+                        }
+                    mergedRows += k - 1
+                    paintRow(merged, psIndices)
+                    }
+                left -= k
+                n += 1
+                }
+            blit(start, n)
+            }
+        pending > 0
+        }
+
+    /**
+     * Fill the image with the newest rows of the history, for a fresh
+     * image after a resize
+     */
+    def repaint(history: SpectrumHistory) =
+        {
+        val n = math.min(iheight.toLong, history.count - history.first).toInt
+        val idx = Array.tabulate(iwidth)(_ * history.width / iwidth)
+        history.latest(n)( (t, row) => paintRow(row, idx) )
+        writer.setPixels(0, 0, iwidth, iheight, format, pixels, iwidth)
+        pixels.rewind
+        }
+}
 
+
+object WaterfallImage
+{
+    /**
+     * Make a palette. tweak this often
+     */                 
+    val palette = Array.tabulate(256)( i=>
+        {
+        val r = if (i < 170) 0 else (i-170) * 3
+        val g = if (i <  85) 0 else if (i < 170) (i-85) * 3 else 255
+        val b = if (i <  85) i * 3 else 255
+        var col = 0xff
+        col = (col << 8) + r
+        col = (col << 8) + g
+        col = (col << 8) + b
+        col
+        })
+        
+    /**
+     * Blue to yellow, through hue
+     */
+    val huePalette = Array.tabulate(256)( i =>
+        {
+        val prop   = i.toDouble / 256.0
+        val hue    = 240.0 - 150.0 * prop
+        val bright = 0.3 + prop / 2
+        val c = Color.hsb(hue, 1.0, bright)
+        var col = 0xff
+        col = (col << 8) + (c.getRed   * 255).toInt
+        col = (col << 8) + (c.getGreen * 255).toInt
+        col = (col << 8) + (c.getBlue  * 255).toInt
+        col
+        })
+}
+
+
+//########################################################################
+//#    W A T E R F A L L
+//########################################################################
+
+
+
+class AudioWaterfall(par: App) extends Pane
+{
+
+    class Waterfall(width: Double, height: Double) extends Canvas(width, height)
+        {
+        val image = new WaterfallImage(rows, width.toInt, height.toInt)
+        val g2d   = getGraphicsContext2D
         
-        /*Scale the power spectrum bins onto the output width.  Do once & reuse. */
-        private var pslen = -1
-        private var psIndices = Array.fill(iwidth)(0)
-        private var psbuf = Array.fill(100)(0)
-                
         //only call from javafx thread
         def redraw() =
             {
-            if (pslen != psbuf.length)
-                {
-                pslen = psbuf.length
-                psIndices = Array.tabulate(iwidth)(_ * pslen / iwidth)
-                }
-            val pix = pixels
-            System.arraycopy(pix, iwidth, pix, 0, lastRow)
-            var pixptr = lastRow
-            for (i <- 0 until iwidth)
-                {
-                val p = psbuf(psIndices(i))
-                pix(pixptr) = colors2(p & 0xff)
-                pixptr += 1
-                }
-            //trace("iw:" + iwidth + "  ih:" + iheight + "  pix:" + pix.size + " pslen:" + pslen)
-            writer.setPixels(0, 0, iwidth, iheight, format, pix, 0, iwidth)
-            g2d.drawImage(img, 0.0, 0.0, width, height)
+            if (image.redraw)
+                image.draw(g2d, 0.0, 0.0)
             }
 
-        def updateSpectrum(ps: Array[Int]) =
+        def repaint(history: SpectrumHistory) =
             {
-            psbuf = ps.clone
+            image.repaint(history)
+            image.draw(g2d, 0.0, 0.0)
             }
                 
         }//Waterfall
@@ -302,6 +441,11 @@ class AudioWaterfall(par: App) extends Pane
     val minFreq = 0.0
     val maxFreq = 2500.0
     
+    /**
+     * Rows from the DSP side, waiting for the next pulse
+     */
+    val rows = new RowRing(64, par.wf.width)
+    
     var wf = new Waterfall(initialW-initialH, initialH-tunerH)
     wf.relocate(0,0)
     var tuner = new Tuner(initialW-initialH, tunerH)
@@ -317,6 +461,7 @@ class AudioWaterfall(par: App) extends Pane
         getChildren.clear
         wf = new Waterfall(width-height, height-tunerH)
         wf.relocate(0,0)
+        par.history.foreach(wf.repaint)
         tuner = new Tuner(width-height, tunerH)
         tuner.relocate(0, height-tunerH)
         scope = new Scope(height, height)
@@ -324,26 +469,29 @@ class AudioWaterfall(par: App) extends Pane
         getChildren.addAll(wf, tuner, scope)
         }
 
-    class Redrawer extends EventHandler[ActionEvent]
+    /**
+     * Paint pending rows on every pulse, which is the display's frame rate,
+     * and the scope on every fifth
+     */
+    val pulse = new AnimationTimer
         {
-        override def handle(event: javafx.event.ActionEvent) =
+        private var frames = 0
+        
+        override def handle(now: Long) =
             {
             wf.redraw
-            scope.redraw
-            }       
+            frames += 1
+            if (frames % 5 == 0)
+                scope.redraw
+            }
         }
-        
-    val oneFrameAmt = Duration.millis(90);
-    var oneFrame = new KeyFrame(oneFrameAmt, new Redrawer)
-
-    TimelineBuilder.create()
-       .cycleCount(Animation.INDEFINITE)
-       .keyFrames(oneFrame)
-       .build()
-       .play();
+    pulse.start
 
+    /**
+     * Called from the DSP side.  Never blocks; a full ring drops the row.
+     */
     def update(ps: Array[Int]) =
-        wf.updateSpectrum(ps)
+        rows.write(ps)
 
     def updateScope(x: Double, y: Double) =
         scope.update(x, y)
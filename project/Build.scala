@@ -2,6 +2,7 @@ import sbt._
 import sbt.Keys._
 import sbtassembly.Plugin._ 
 import AssemblyKeys._
+import pl.project13.scala.sbt.SbtJmh._
 
 object MyBuild extends Build {
 
@@ -41,6 +42,17 @@ object MyBuild extends Build {
     ) dependsOn core
 
 
+    /**
+     * JMH microbenchmarks.  Not aggregated, so that a plain build
+     * does not run them.  Try:   sbt "bench/run -i 5 -wi 5 -f 1 -prof gc"
+     */
+    lazy val bench = Project(
+        id = "bench",
+        base = file("bench"),
+        settings = buildSettings ++ jmhSettings
+    ) dependsOn core
+
+
 }//MyBuild
 
 